@@ -0,0 +1,100 @@
+package hr.fer.zemris.java.fractals.benchmarks;
+
+import hr.fer.zemris.java.fractals.AllocationMetrics;
+import hr.fer.zemris.java.fractals.Complex;
+import hr.fer.zemris.java.fractals.ComplexPolynomial;
+import hr.fer.zemris.java.fractals.ComplexRootedPolynomial;
+import hr.fer.zemris.java.fractals.Newton;
+import hr.fer.zemris.java.fractals.NewtonKernel;
+
+/**
+ * Micro benchmark of a Newton fractal frame on a single core, computed by
+ * {@link Newton.ComputationJob} in every {@link Newton.Mode}: with a
+ * {@link NewtonKernel}, on pooled {@link Complex} numbers and on new ones.
+ * Frames of the polynomial with roots 1, -1, i and -i, of the third roots of
+ * unity and of <i>z<sup>3</sup> - 2z + 2</i>, whose iteration has a cycle
+ * between 0 and 1, are computed over the square <i>[-2, 2] x [-2, 2]</i>.
+ *
+ * <pre>
+ * java NewtonKernelBenchmark [width] [height]
+ * </pre>
+ *
+ * The time per frame and per pixel of the best measured round is printed,
+ * with bytes allocated per pixel and the number of pixels whose color differs
+ * from the frame computed on new complex numbers.
+ *
+ * @author Ante Spajic
+ */
+public class NewtonKernelBenchmark {
+
+	/** Number of warm-up rounds. */
+	private static final int WARMUP_ROUNDS = 3;
+
+	/** Number of measured rounds. */
+	private static final int ROUNDS = 5;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args optional width and height of the frame
+	 */
+	public static void main(String[] args) {
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : width;
+		run("4 roots", width, height, new ComplexRootedPolynomial(Complex.ONE, Complex.ONE_NEG, Complex.IM,
+				Complex.IM_NEG));
+		run("3 roots", width, height, new ComplexRootedPolynomial(Complex.ONE, new Complex(-0.5, Math.sqrt(3) / 2),
+				new Complex(-0.5, -Math.sqrt(3) / 2)));
+		run("cycle", width, height, new ComplexRootedPolynomial(new Complex(-1.7692923542386314, 0),
+				new Complex(0.884646177119315, 0.5897428050222058), new Complex(0.884646177119315, -0.5897428050222058)));
+	}
+
+	/**
+	 * Measures a single polynomial in every mode.
+	 *
+	 * @param name name of the case
+	 * @param width width of the frame
+	 * @param height height of the frame
+	 * @param roots roots of the polynomial
+	 */
+	private static void run(String name, int width, int height, ComplexRootedPolynomial roots) {
+		ComplexPolynomial poly = roots.toComplexPolynom();
+		short[] reference = new short[width * height];
+		new Newton.ComputationJob(-2, 2, -2, 2, width, height, 0, height - 1, reference, roots, poly, 0,
+				Newton.Mode.OBJECTS, null).call();
+		for (Newton.Mode mode : Newton.Mode.values()) {
+			short[] data = new short[width * height];
+			AllocationMetrics metrics = new AllocationMetrics();
+			long time = measure(() -> new Newton.ComputationJob(-2, 2, -2, 2, width, height, 0, height - 1, data,
+					roots, poly, 0, mode, metrics).call());
+			int differ = 0;
+			for (int i = 0; i < data.length; i++) {
+				if (data[i] != reference[i]) {
+					differ++;
+				}
+			}
+			System.out.printf("%-20s %8.1f ms/frame  %8.1f ns/pixel  %8.1f B/pixel  %d pixels differ%n",
+					name + ", " + mode.toString().toLowerCase(), time / 1e6, (double) time / data.length,
+					(double) metrics.getAllocated() / (WARMUP_ROUNDS + ROUNDS) / data.length, differ);
+		}
+	}
+
+	/**
+	 * Runs the warm-up and measured rounds of a frame.
+	 *
+	 * @param frame computation of a single frame
+	 * @return duration of the best round in nanoseconds
+	 */
+	private static long measure(Runnable frame) {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			frame.run();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			frame.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+}
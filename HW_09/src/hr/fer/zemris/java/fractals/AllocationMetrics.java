@@ -0,0 +1,231 @@
+package hr.fer.zemris.java.fractals;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import hr.fer.zemris.java.fractals.cmplxcache.IComplexCache;
+
+/**
+ * Allocation statistics of a rendered frame: bytes allocated by the threads
+ * that computed it, garbage collections that ran meanwhile and use of the
+ * complex caches. Computation jobs add what they allocated, the metrics are
+ * finished when the frame is done.
+ * <p>
+ * Allocated bytes are measured with the HotSpot extension of
+ * {@link java.lang.management.ThreadMXBean}; on virtual machines without it
+ * they are not reported.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class AllocationMetrics {
+
+	/**
+	 * thread bean that measures allocated bytes, null if not supported
+	 */
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	/**
+	 * time, number of collections and collection time at the start
+	 */
+	private final long start = System.nanoTime();
+	private final long startCollections = collections();
+	private final long startCollectionTime = collectionTime();
+
+	/**
+	 * bytes allocated by computation jobs
+	 */
+	private final LongAdder allocated = new LongAdder();
+
+	/**
+	 * reused, allocated and dropped cached complex numbers
+	 */
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder cacheMisses = new LongAdder();
+	private final LongAdder cacheDrops = new LongAdder();
+
+	/**
+	 * duration, number of collections and collection time of the frame
+	 */
+	private long elapsed;
+	private long gcCount;
+	private long gcTime;
+
+	/**
+	 * Returns the number of bytes the current thread allocated so far.
+	 *
+	 * @return allocated bytes or -1 if they can't be measured
+	 */
+	public static long allocatedBytes() {
+		if (THREADS == null) {
+			return -1;
+		}
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Adds bytes a computation job allocated.
+	 *
+	 * @param bytes
+	 *            allocated bytes, ignored if negative
+	 */
+	public void addAllocated(long bytes) {
+		if (bytes > 0) {
+			allocated.add(bytes);
+		}
+	}
+
+	/**
+	 * Adds the use of a complex cache between two snapshots of its counters.
+	 *
+	 * @param cache
+	 *            the cache
+	 * @param hits
+	 *            hits of the cache at the first snapshot
+	 * @param misses
+	 *            misses of the cache at the first snapshot
+	 * @param drops
+	 *            drops of the cache at the first snapshot
+	 */
+	public void addCache(IComplexCache cache, long hits, long misses, long drops) {
+		cacheHits.add(cache.getHits() - hits);
+		cacheMisses.add(cache.getMisses() - misses);
+		cacheDrops.add(cache.getDrops() - drops);
+	}
+
+	/**
+	 * Finishes the metrics when the frame is done.
+	 */
+	public void finish() {
+		elapsed = System.nanoTime() - start;
+		gcCount = collections() - startCollections;
+		gcTime = collectionTime() - startCollectionTime;
+	}
+
+	/**
+	 * Returns the number of bytes allocated by computation jobs.
+	 *
+	 * @return allocated bytes
+	 */
+	public long getAllocated() {
+		return allocated.sum();
+	}
+
+	/**
+	 * Returns the allocation rate of the frame.
+	 *
+	 * @return allocated megabytes per second
+	 */
+	public double getAllocationRate() {
+		return elapsed == 0 ? 0 : getAllocated() / 1048576.0 / (elapsed / 1e9);
+	}
+
+	/**
+	 * Returns the number of garbage collections during the frame.
+	 *
+	 * @return number of collections
+	 */
+	public long getCollections() {
+		return gcCount;
+	}
+
+	/**
+	 * Returns the time spent in garbage collections during the frame.
+	 *
+	 * @return collection time in milliseconds
+	 */
+	public long getCollectionTime() {
+		return gcTime;
+	}
+
+	/**
+	 * Returns the number of reused cached complex numbers.
+	 *
+	 * @return number of cache hits
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Returns the number of complex numbers caches had to allocate.
+	 *
+	 * @return number of cache misses
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	/**
+	 * Returns the number of released complex numbers caches didn't keep.
+	 *
+	 * @return number of dropped releases
+	 */
+	public long getCacheDrops() {
+		return cacheDrops.sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(String.format("%.1f ms", elapsed / 1e6));
+		if (THREADS != null) {
+			sb.append(String.format(", allocated %.1f MB (%.1f MB/s)", getAllocated() / 1048576.0,
+					getAllocationRate()));
+		}
+		sb.append(String.format(", %d GCs in %d ms", gcCount, gcTime));
+		long hits = getCacheHits();
+		long misses = getCacheMisses();
+		if (hits + misses > 0) {
+			sb.append(String.format(", complex cache %d reused, %d allocated, %d dropped", hits, misses,
+					getCacheDrops()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the thread bean if it can measure allocated bytes.
+	 *
+	 * @return the thread bean or null
+	 */
+	private static com.sun.management.ThreadMXBean threads() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+				if (threads.isThreadAllocatedMemorySupported()) {
+					threads.setThreadAllocatedMemoryEnabled(true);
+					return threads;
+				}
+			}
+		} catch (LinkageError | UnsupportedOperationException ignore) {
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of garbage collections so far.
+	 *
+	 * @return number of collections
+	 */
+	private static long collections() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the time spent in garbage collections so far.
+	 *
+	 * @return collection time in milliseconds
+	 */
+	private static long collectionTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+}
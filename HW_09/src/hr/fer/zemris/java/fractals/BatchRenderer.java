@@ -0,0 +1,253 @@
+package hr.fer.zemris.java.fractals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Renders Newton fractals of a polynomial without the viewer, for example the
+ * frames of a zoom animation. Frames are not computed pixel by pixel but
+ * resampled from tiles of a lattice that doesn't depend on the frame: at
+ * level <code>l</code> the lattice has a point at every multiple of
+ * <code>2<sup>-l</sup></code> in both directions, and is split into tiles of
+ * {@link #TILE_SIZE} by {@link #TILE_SIZE} points. A frame uses the coarsest
+ * level at least as fine as its pixels and takes the color of every pixel
+ * from the closest point, so frames that overlap, like neighbouring frames of
+ * a zoom or a pan, share the tiles they overlap in. Tiles missing from the
+ * previous frame and the {@link TileCache}, if one is given, are computed
+ * together in the shared pool of workers and stored to the cache. Frames of a
+ * sequence are written by a {@link FrameWriter} while the next ones are
+ * rendered.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class BatchRenderer {
+
+	/**
+	 * width and height of a tile in points of the lattice
+	 */
+	public static final int TILE_SIZE = 128;
+
+	/**
+	 * roots of the polynomial
+	 */
+	private final ComplexRootedPolynomial roots;
+
+	/**
+	 * polynomial with provided roots
+	 */
+	private final ComplexPolynomial poly;
+
+	/**
+	 * way of computing the iteration
+	 */
+	private final Newton.Mode mode;
+
+	/**
+	 * cache of computed tiles, can be null
+	 */
+	private final TileCache cache;
+
+	/**
+	 * tiles of the previous frame by level and position
+	 */
+	private Map<String, short[]> previous = new HashMap<>();
+
+	/**
+	 * Creates a new renderer.
+	 *
+	 * @param roots
+	 *            roots of the polynomial
+	 * @param mode
+	 *            way of computing the iteration
+	 * @param cache
+	 *            cache of computed tiles, can be null
+	 */
+	public BatchRenderer(ComplexRootedPolynomial roots, Newton.Mode mode, TileCache cache) {
+		if (roots == null || mode == null) {
+			throw new IllegalArgumentException("Roots and mode can't be null");
+		}
+		this.roots = roots;
+		this.poly = roots.toComplexPolynom();
+		this.mode = mode;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the number of color indexes of rendered frames, including 0 for
+	 * pixels that converged to no root.
+	 *
+	 * @return number of colors
+	 */
+	public short getColors() {
+		return (short) (poly.order() + 1);
+	}
+
+	/**
+	 * Renders a frame.
+	 *
+	 * @param viewport
+	 *            rectangle of the complex plane to render
+	 * @param width
+	 *            width of the frame, at least 2
+	 * @param height
+	 *            height of the frame, at least 2
+	 * @return color indexes of the frame, line by line
+	 * @throws IOException
+	 *             if a computed tile can't be stored to the cache
+	 */
+	public short[] render(Viewport viewport, int width, int height) throws IOException {
+		if (width < 2 || height < 2) {
+			throw new IllegalArgumentException("Frame must be at least 2x2 pixels");
+		}
+		double pixel = Math.min((viewport.getReMax() - viewport.getReMin()) / (width - 1),
+				(viewport.getImMax() - viewport.getImMin()) / (height - 1));
+		int level = (int) Math.ceil(-Math.log(pixel) / Math.log(2) - 1e-9);
+		long[] columns = new long[width];
+		for (int x = 0; x < width; x++) {
+			columns[x] = Math.round(Math.scalb(re(viewport, width, x), level));
+		}
+		long[] lines = new long[height];
+		for (int y = 0; y < height; y++) {
+			lines[y] = Math.round(Math.scalb(im(viewport, height, y), level));
+		}
+		long tileXMin = Math.floorDiv(columns[0], TILE_SIZE);
+		long tileYMin = Math.floorDiv(lines[height - 1], TILE_SIZE);
+		int tilesX = (int) (Math.floorDiv(columns[width - 1], TILE_SIZE) - tileXMin + 1);
+		int tilesY = (int) (Math.floorDiv(lines[0], TILE_SIZE) - tileYMin + 1);
+
+		short[][] tiles = new short[tilesX * tilesY][];
+		Map<String, short[]> current = new HashMap<>();
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		List<Integer> computed = new ArrayList<>();
+		for (int j = 0; j < tilesY; j++) {
+			for (int i = 0; i < tilesX; i++) {
+				long tileX = tileXMin + i;
+				long tileY = tileYMin + j;
+				String name = level + " " + tileX + " " + tileY;
+				short[] tile = previous.get(name);
+				if (tile == null && cache != null) {
+					tile = cache.get(TileCache.key(roots, mode, level, tileX, tileY, TILE_SIZE), TILE_SIZE * TILE_SIZE);
+				}
+				if (tile == null) {
+					tile = new short[TILE_SIZE * TILE_SIZE];
+					tasks.add(Newton.FractalProducerImpl.POOL.submit(new Newton.TileTask(job(level, tileX, tileY, tile))));
+					computed.add(j * tilesX + i);
+				}
+				tiles[j * tilesX + i] = tile;
+				current.put(name, tile);
+			}
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+		previous = current;
+		if (cache != null) {
+			for (int index : computed) {
+				cache.put(TileCache.key(roots, mode, level, tileXMin + index % tilesX, tileYMin + index / tilesX,
+						TILE_SIZE), tiles[index]);
+			}
+		}
+
+		short[] data = new short[width * height];
+		for (int y = 0; y < height; y++) {
+			int j = (int) (Math.floorDiv(lines[y], TILE_SIZE) - tileYMin);
+			int row = (TILE_SIZE - 1 - Math.floorMod(lines[y], TILE_SIZE)) * TILE_SIZE;
+			for (int x = 0; x < width; x++) {
+				int i = (int) (Math.floorDiv(columns[x], TILE_SIZE) - tileXMin);
+				data[y * width + x] = tiles[j * tilesX + i][row + Math.floorMod(columns[x], TILE_SIZE)];
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Renders frames and writes them as PNG images named
+	 * <code>frame-00000.png</code>, <code>frame-00001.png</code> and so on.
+	 *
+	 * @param viewports
+	 *            rectangles of the complex plane to render, one per frame
+	 * @param width
+	 *            width of the frames
+	 * @param height
+	 *            height of the frames
+	 * @param directory
+	 *            directory to write the images to
+	 * @param queueCapacity
+	 *            number of rendered frames that can wait to be written
+	 * @throws IOException
+	 *             if a frame or a tile can't be written
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the writer
+	 */
+	public void render(List<Viewport> viewports, int width, int height, Path directory, int queueCapacity)
+			throws IOException, InterruptedException {
+		try (FrameWriter writer = new FrameWriter(getColors(), queueCapacity)) {
+			for (int i = 0; i < viewports.size(); i++) {
+				long start = System.nanoTime();
+				short[] data = render(viewports.get(i), width, height);
+				System.out.printf("Frame %d of %d rendered in %.1f ms%n", i + 1, viewports.size(),
+						(System.nanoTime() - start) / 1e6);
+				writer.write(directory.resolve(String.format("frame-%05d.png", i)), data, width, height);
+			}
+		}
+	}
+
+	/**
+	 * Creates the job that computes a tile of the lattice.
+	 *
+	 * @param level
+	 *            level of the lattice
+	 * @param tileX
+	 *            position of the tile along the real axis
+	 * @param tileY
+	 *            position of the tile along the imaginary axis
+	 * @param data
+	 *            array for colors of the tile, line by line from the top
+	 * @return the job
+	 */
+	private Newton.ComputationJob job(int level, long tileX, long tileY, short[] data) {
+		double reMin = Math.scalb((double) (tileX * TILE_SIZE), -level);
+		double reMax = Math.scalb((double) (tileX * TILE_SIZE + TILE_SIZE - 1), -level);
+		double imMin = Math.scalb((double) (tileY * TILE_SIZE), -level);
+		double imMax = Math.scalb((double) (tileY * TILE_SIZE + TILE_SIZE - 1), -level);
+		return new Newton.ComputationJob(reMin, reMax, imMin, imMax, TILE_SIZE, TILE_SIZE, 0, TILE_SIZE - 1, data,
+				roots, poly, 0, mode, null);
+	}
+
+	/**
+	 * Returns the real part of a column of a frame.
+	 *
+	 * @param viewport
+	 *            rectangle of the frame
+	 * @param width
+	 *            width of the frame
+	 * @param x
+	 *            the column
+	 * @return the real part
+	 */
+	private static double re(Viewport viewport, int width, int x) {
+		return x / (width - 1.0) * (viewport.getReMax() - viewport.getReMin()) + viewport.getReMin();
+	}
+
+	/**
+	 * Returns the imaginary part of a line of a frame.
+	 *
+	 * @param viewport
+	 *            rectangle of the frame
+	 * @param height
+	 *            height of the frame
+	 * @param y
+	 *            the line
+	 * @return the imaginary part
+	 */
+	private static double im(Viewport viewport, int height, int y) {
+		return (height - 1.0 - y) / (height - 1) * (viewport.getImMax() - viewport.getImMin())
+				+ viewport.getImMin();
+	}
+}
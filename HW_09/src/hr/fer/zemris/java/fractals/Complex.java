@@ -4,8 +4,10 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * This is an implementation of immutable model of complex number denoted. Each
- * method returns a new instance of {@link Complex} class. This class contains
+ * This is an implementation of model of complex number denoted. Each method
+ * returns a new instance of {@link Complex} class, except for the methods that
+ * take a <code>result</code> operand, which store the result in it and return
+ * it, so pooled numbers can be reused without allocation. This class contains
  * constants:
  * <ul>
  * <li><code>ZERO</code>: 0+i0</li>
@@ -111,6 +113,25 @@ public class Complex {
 		return new Complex(real, imag);
 	}
 
+	/**
+	 * Stores a product <i>this*c</i> to the result, which can also be one of
+	 * the operands.
+	 * 
+	 * @param c
+	 *            complex number to multiply with
+	 * @param result
+	 *            complex number to store the product to
+	 * @return the result
+	 */
+	public Complex multiply(Complex c, Complex result) {
+		if (c == null || result == null) {
+			throw new IllegalArgumentException("Argument cannot be null");
+		}
+		double real = this.re * c.re - this.im * c.im;
+		double imag = this.re * c.im + this.im * c.re;
+		return result.set(real, imag);
+	}
+
 	/**
 	 * returns <i> this/c </i>
 	 * 
@@ -130,6 +151,29 @@ public class Complex {
 		return new Complex(magnitude * Math.cos(angle), magnitude * Math.sin(angle));
 	}
 
+	/**
+	 * Stores <i>this/c</i> to the result, which can also be one of the
+	 * operands.
+	 * 
+	 * @param c
+	 *            complex number that is a divisor
+	 * @param result
+	 *            complex number to store the quotient to
+	 * @return the result
+	 */
+	public Complex divide(Complex c, Complex result) {
+		if (c == null || result == null) {
+			throw new NullPointerException("Value given can not be null.");
+		}
+		double norm = c.re * c.re + c.im * c.im;
+		if (norm == 0) {
+			throw new IllegalArgumentException("Value given can not be zero.");
+		}
+		double real = (this.re * c.re + this.im * c.im) / norm;
+		double imag = (this.im * c.re - this.re * c.im) / norm;
+		return result.set(real, imag);
+	}
+
 	/**
 	 * returns <i> this+c </i>
 	 * 
@@ -146,6 +190,23 @@ public class Complex {
 		return new Complex(real, imag);
 	}
 
+	/**
+	 * Stores <i>this+c</i> to the result, which can also be one of the
+	 * operands.
+	 * 
+	 * @param c
+	 *            complex number to add to this one
+	 * @param result
+	 *            complex number to store the sum to
+	 * @return the result
+	 */
+	public Complex add(Complex c, Complex result) {
+		if (c == null || result == null) {
+			throw new IllegalArgumentException("Invalid operand, can't be null");
+		}
+		return result.set(this.re + c.re, this.im + c.im);
+	}
+
 	/**
 	 * returns <i>this-c</i>
 	 * 
@@ -162,6 +223,23 @@ public class Complex {
 		return new Complex(real, imag);
 	}
 
+	/**
+	 * Stores <i>this-c</i> to the result, which can also be one of the
+	 * operands.
+	 * 
+	 * @param c
+	 *            complex number to subtract from this
+	 * @param result
+	 *            complex number to store the difference to
+	 * @return the result
+	 */
+	public Complex sub(Complex c, Complex result) {
+		if (c == null || result == null) {
+			throw new IllegalArgumentException("Invalid operand, can't be null");
+		}
+		return result.set(this.re - c.re, this.im - c.im);
+	}
+
 	/**
 	 * returns -this
 	 * 
@@ -226,4 +304,19 @@ public class Complex {
 	public void setImaginary(double im) {
 		this.im = im;
 	}
+
+	/**
+	 * Sets both parts of this complex number.
+	 * 
+	 * @param re
+	 *            the real part
+	 * @param im
+	 *            the imaginary part
+	 * @return this complex number
+	 */
+	public Complex set(double re, double im) {
+		this.re = re;
+		this.im = im;
+		return this;
+	}
 }
@@ -1,5 +1,7 @@
 package hr.fer.zemris.java.fractals;
 
+import java.util.Arrays;
+
 /**
  * Class that represents an immutable model of coefficient-based complex
  * polynomial.
@@ -33,6 +35,16 @@ public class ComplexPolynomial {
 		return (short) (factors.length - 1);
 	}
 
+	/**
+	 * returns factors of this polynomial, starting with the factor of the
+	 * highest power; eg. For (7+2i)z^3+2z^2+5z+1 returns [7+2i, 2, 5, 1]
+	 * 
+	 * @return a copy of the factors
+	 */
+	public Complex[] getFactors() {
+		return Arrays.copyOf(factors, factors.length);
+	}
+
 	/**
 	 * computes a new polynomial <i>this*p</i>
 	 * 
@@ -89,6 +101,29 @@ public class ComplexPolynomial {
 		return result;
 	}
 
+	/**
+	 * computes polynomial value at given point z with Horner's scheme and
+	 * stores it to the result, which can also be z
+	 * 
+	 * @param z
+	 *            point to compute the polynomial value at
+	 * @param result
+	 *            complex number to store the value to
+	 * @return the result
+	 */
+	public Complex apply(Complex z, Complex result) {
+		double zRe = z.getRe();
+		double zIm = z.getIm();
+		double re = factors[0].getRe();
+		double im = factors[0].getIm();
+		for (int i = 1; i < factors.length; i++) {
+			double r = re * zRe - im * zIm + factors[i].getRe();
+			im = re * zIm + im * zRe + factors[i].getIm();
+			re = r;
+		}
+		return result.set(re, im);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -1,5 +1,7 @@
 package hr.fer.zemris.java.fractals;
 
+import java.util.Arrays;
+
 /**
  * This is an implementation of immutable model of root-based complex polynomial
  * denoted. Each method returns a new instance of this class.
@@ -45,6 +47,15 @@ public class ComplexRootedPolynomial {
 		return result;
 	}
 
+	/**
+	 * returns roots of this polynomial
+	 * 
+	 * @return a copy of the roots
+	 */
+	public Complex[] getRoots() {
+		return Arrays.copyOf(roots, roots.length);
+	}
+
 	/**
 	 * converts this representation to ComplexPolynomial type
 	 * 
@@ -88,7 +99,9 @@ public class ComplexRootedPolynomial {
 		double distance = Double.MAX_VALUE;
 		int index = 0;
 		for (int i = 0; i < roots.length; i++) {
-			double magnitude = z.sub(roots[i]).module();
+			double re = z.getRe() - roots[i].getRe();
+			double im = z.getIm() - roots[i].getIm();
+			double magnitude = Math.sqrt(re * re + im * im);
 			if (magnitude < distance) {
 				distance = magnitude;
 				index = i;
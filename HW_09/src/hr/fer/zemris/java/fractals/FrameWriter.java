@@ -0,0 +1,198 @@
+package hr.fer.zemris.java.fractals;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes rendered frames as PNG images on a thread of its own. Frames wait in
+ * a bounded queue, so rendering blocks when it gets ahead of the disk instead
+ * of keeping every frame in memory. If writing fails, the rest of the frames
+ * are discarded and the failure is thrown by the next write or by
+ * {@link #close()}.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class FrameWriter implements AutoCloseable {
+
+	/**
+	 * frame that tells the writing thread to stop
+	 */
+	private static final Frame END = new Frame(null, null);
+
+	/**
+	 * a frame waiting to be written
+	 */
+	private static class Frame {
+
+		/**
+		 * file to write the frame to
+		 */
+		final Path file;
+
+		/**
+		 * the image
+		 */
+		final BufferedImage image;
+
+		Frame(Path file, BufferedImage image) {
+			this.file = file;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * colors of the images, black for pixels that converged to no root
+	 */
+	private final IndexColorModel palette;
+
+	/**
+	 * frames waiting to be written
+	 */
+	private final BlockingQueue<Frame> queue;
+
+	/**
+	 * thread that writes the frames
+	 */
+	private final Thread thread;
+
+	/**
+	 * first failure of writing, null if there is none
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Creates a new writer and starts its thread.
+	 *
+	 * @param colors
+	 *            number of color indexes, including 0 for no root
+	 * @param capacity
+	 *            number of frames that can wait to be written
+	 */
+	public FrameWriter(int colors, int capacity) {
+		if (colors < 1 || colors > 256) {
+			throw new IllegalArgumentException("Number of colors must be between 1 and 256");
+		}
+		this.palette = palette(colors);
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.thread = new Thread(this::run, "frame-writer");
+		thread.start();
+	}
+
+	/**
+	 * Queues a frame, waiting while the queue is full.
+	 *
+	 * @param file
+	 *            file to write the frame to
+	 * @param data
+	 *            color indexes of the frame, line by line
+	 * @param width
+	 *            width of the frame
+	 * @param height
+	 *            height of the frame
+	 * @throws IOException
+	 *             if writing of an earlier frame failed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void write(Path file, short[] data, int width, int height) throws IOException, InterruptedException {
+		checkFailure();
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, palette);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (byte) data[i];
+		}
+		queue.put(new Frame(file, image));
+	}
+
+	/**
+	 * Waits until all queued frames are written and stops the thread.
+	 *
+	 * @throws IOException
+	 *             if writing of a frame failed or if interrupted while
+	 *             waiting
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			thread.interrupt();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing frames");
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Writes queued frames until the end.
+	 */
+	private void run() {
+		while (true) {
+			Frame frame;
+			try {
+				frame = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (frame == END) {
+				return;
+			}
+			if (failure != null) {
+				continue;
+			}
+			try {
+				Files.createDirectories(frame.file.toAbsolutePath().getParent());
+				if (!ImageIO.write(frame.image, "png", frame.file.toFile())) {
+					throw new IOException("No PNG writer available");
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Throws the failure of writing if there is one.
+	 *
+	 * @throws IOException
+	 *             the failure
+	 */
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Writing frames failed", failure);
+		}
+	}
+
+	/**
+	 * Creates a palette of black and colors of different hues, one for every
+	 * root.
+	 *
+	 * @param colors
+	 *            number of colors
+	 * @return the palette
+	 */
+	private static IndexColorModel palette(int colors) {
+		byte[] r = new byte[colors];
+		byte[] g = new byte[colors];
+		byte[] b = new byte[colors];
+		for (int i = 1; i < colors; i++) {
+			int rgb = Color.HSBtoRGB((float) (i - 1) / (colors - 1), 0.8f, 0.9f);
+			r[i] = (byte) (rgb >> 16);
+			g[i] = (byte) (rgb >> 8);
+			b[i] = (byte) rgb;
+		}
+		return new IndexColorModel(8, colors, r, g, b);
+	}
+}
@@ -0,0 +1,186 @@
+package hr.fer.zemris.java.fractals;
+
+/**
+ * Guessing fill of a grid of pixels by the Mariani-Silver algorithm. Only the
+ * border of a rectangle is computed; when all of its pixels have the same
+ * color, the whole rectangle gets it, otherwise the rectangle is split in
+ * halves by a computed line and both halves are filled the same way.
+ * <p>
+ * Every component of a basin of Newton's iteration is simply connected, so a
+ * closed border that lies in a single basin holds no pixels of other basins.
+ * Only details thinner than the distance between computed pixels can be
+ * missed.
+ *
+ * @author Ante Spajic
+ *
+ */
+class MarianiSilver {
+
+	/**
+	 * number of inner pixels of a rectangle that is computed instead of split
+	 */
+	static final int MIN_AREA = 4 * 4;
+
+	/**
+	 * kernel that computes the pixels
+	 */
+	private final NewtonKernel kernel;
+
+	/**
+	 * real parts of the columns and imaginary parts of the lines
+	 */
+	private final double[] re;
+	private final double[] im;
+
+	/**
+	 * colors of the pixels, line by line
+	 */
+	private final short[] grid;
+
+	/**
+	 * indexes in the grid of the pixels to compute and their values
+	 */
+	private final int[] points;
+	private final double[] pointRe;
+	private final double[] pointIm;
+	private final short[] colors;
+
+	/**
+	 * number of pixels to compute
+	 */
+	private int count;
+
+	/**
+	 * Creates a new fill of a grid.
+	 *
+	 * @param kernel
+	 *            kernel that computes the pixels
+	 * @param re
+	 *            real parts of the columns
+	 * @param im
+	 *            imaginary parts of the lines
+	 */
+	MarianiSilver(NewtonKernel kernel, double[] re, double[] im) {
+		this.kernel = kernel;
+		this.re = re;
+		this.im = im;
+		this.grid = new short[re.length * im.length];
+		int border = 2 * (re.length + im.length);
+		this.points = new int[Math.max(border, MIN_AREA)];
+		this.pointRe = new double[points.length];
+		this.pointIm = new double[points.length];
+		this.colors = new short[points.length];
+	}
+
+	/**
+	 * Fills the grid.
+	 *
+	 * @return colors of the pixels, line by line
+	 */
+	short[] fill() {
+		int right = re.length - 1;
+		int bottom = im.length - 1;
+		for (int x = 0; x <= right; x++) {
+			add(x, 0);
+			if (bottom > 0) {
+				add(x, bottom);
+			}
+		}
+		for (int y = 1; y < bottom; y++) {
+			add(0, y);
+			if (right > 0) {
+				add(right, y);
+			}
+		}
+		compute();
+		fill(0, right, 0, bottom);
+		return grid;
+	}
+
+	/**
+	 * Fills the inner pixels of a rectangle whose border is computed.
+	 *
+	 * @param x0
+	 *            left column
+	 * @param x1
+	 *            right column
+	 * @param y0
+	 *            top line
+	 * @param y1
+	 *            bottom line
+	 */
+	private void fill(int x0, int x1, int y0, int y1) {
+		if (x1 - x0 < 2 || y1 - y0 < 2) {
+			return;
+		}
+		int columns = re.length;
+		short color = grid[y0 * columns + x0];
+		boolean same = true;
+		for (int x = x0; x <= x1 && same; x++) {
+			same = grid[y0 * columns + x] == color && grid[y1 * columns + x] == color;
+		}
+		for (int y = y0 + 1; y < y1 && same; y++) {
+			same = grid[y * columns + x0] == color && grid[y * columns + x1] == color;
+		}
+		if (same) {
+			for (int y = y0 + 1; y < y1; y++) {
+				for (int x = x0 + 1; x < x1; x++) {
+					grid[y * columns + x] = color;
+				}
+			}
+			return;
+		}
+		if ((x1 - x0 - 1) * (y1 - y0 - 1) <= MIN_AREA) {
+			for (int y = y0 + 1; y < y1; y++) {
+				for (int x = x0 + 1; x < x1; x++) {
+					add(x, y);
+				}
+			}
+			compute();
+			return;
+		}
+		if (x1 - x0 >= y1 - y0) {
+			int x = (x0 + x1) >>> 1;
+			for (int y = y0 + 1; y < y1; y++) {
+				add(x, y);
+			}
+			compute();
+			fill(x0, x, y0, y1);
+			fill(x, x1, y0, y1);
+		} else {
+			int y = (y0 + y1) >>> 1;
+			for (int x = x0 + 1; x < x1; x++) {
+				add(x, y);
+			}
+			compute();
+			fill(x0, x1, y0, y);
+			fill(x0, x1, y, y1);
+		}
+	}
+
+	/**
+	 * Adds a pixel to compute.
+	 *
+	 * @param x
+	 *            column of the pixel
+	 * @param y
+	 *            line of the pixel
+	 */
+	private void add(int x, int y) {
+		points[count] = y * re.length + x;
+		pointRe[count] = re[x];
+		pointIm[count] = im[y];
+		count++;
+	}
+
+	/**
+	 * Computes the added pixels and stores their colors to the grid.
+	 */
+	private void compute() {
+		kernel.compute(pointRe, pointIm, count, colors, 0);
+		for (int i = 0; i < count; i++) {
+			grid[points[i]] = colors[i];
+		}
+		count = 0;
+	}
+}
@@ -1,14 +1,18 @@
 package hr.fer.zemris.java.fractals;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 
+import hr.fer.zemris.java.fractals.cmplxcache.ComplexCache;
+import hr.fer.zemris.java.fractals.cmplxcache.ComplexCacheWorkerThread;
+import hr.fer.zemris.java.fractals.cmplxcache.IComplexCache;
 import hr.fer.zemris.java.fractals.viewer.FractalViewer;
 import hr.fer.zemris.java.fractals.viewer.IFractalProducer;
 import hr.fer.zemris.java.fractals.viewer.IFractalResultObserver;
@@ -70,13 +74,53 @@ public class Newton {
 	 */
 	public static final double CONVERGENCE_THRESHOLD = 0.001;
 
+	/**
+	 * Ways of computing the iteration of a pixel.
+	 */
+	public enum Mode {
+		/**
+		 * on primitive doubles with a {@link NewtonKernel}
+		 */
+		KERNEL,
+		/**
+		 * with a {@link NewtonKernel} that stops iterating pixels close to
+		 * roots and in cycles
+		 */
+		ACCELERATED,
+		/**
+		 * like {@link #ACCELERATED}, computing only borders of rectangles of
+		 * a single color with {@link MarianiSilver}
+		 */
+		GUESSING,
+		/**
+		 * on {@link Complex} numbers taken from the complex cache of the
+		 * computing thread and modified in place
+		 */
+		POOLED,
+		/**
+		 * on new {@link Complex} numbers for every operation
+		 */
+		OBJECTS
+	}
+
 	/**
 	 * Entry point to the program
 	 * 
 	 * @param args
-	 *            unused command line arguments
+	 *            optional mode of computation: kernel, accelerated, guessing,
+	 *            pooled or objects
 	 */
 	public static void main(String[] args) {
+		Mode mode = Mode.KERNEL;
+		if (args.length > 0) {
+			try {
+				mode = Mode.valueOf(args[0].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.out.println(
+						"Unknown mode " + args[0] + ", expected kernel, accelerated, guessing, pooled or objects");
+				System.exit(1);
+			}
+		}
 
 		Scanner sc = new Scanner(System.in);
 		System.out.println("Welcome to Newton-Raphson iteration-based fractal viewer.");
@@ -105,12 +149,14 @@ public class Newton {
 		ComplexRootedPolynomial roots = new ComplexRootedPolynomial(rootList.toArray(new Complex[0]));
 		ComplexPolynomial poly = roots.toComplexPolynom();
 
-		FractalViewer.show(new FractalProducerImpl(roots, poly));
+		FractalViewer.show(new FractalProducerImpl(roots, poly, mode));
 	}
 
 	/**
 	 * Class used to compute color of each pixel from fractal that was created
-	 * from a complex polynomial.
+	 * from a complex polynomial. A job computes a rectangle of the raster,
+	 * either every pixel or every <code>step</code>-th pixel in both
+	 * directions, whose color then fills a square of <code>step</code> pixels.
 	 * 
 	 * @author Ante Spajic
 	 *
@@ -141,6 +187,28 @@ public class Newton {
 		int yMin;
 		int yMax;
 
+		/**
+		 * starting and ending column of raster to generate
+		 */
+		int xMin;
+		int xMax;
+
+		/**
+		 * distance between computed pixels
+		 */
+		int step = 1;
+
+		/**
+		 * distance between pixels whose colors were computed by a previous
+		 * pass and are kept, 0 if there was no such pass
+		 */
+		int computed;
+
+		/**
+		 * tells when the raster is no longer needed, can be null
+		 */
+		BooleanSupplier cancelled;
+
 		/**
 		 * array containing color indexes
 		 */
@@ -157,10 +225,20 @@ public class Newton {
 		ComplexPolynomial poly;
 
 		/**
-		 * the offset in array
+		 * the offset in array of the first pixel to generate
 		 */
 		int offset;
 
+		/**
+		 * way of computing the iteration
+		 */
+		Mode mode;
+
+		/**
+		 * allocation statistics of the frame, can be null
+		 */
+		AllocationMetrics metrics;
+
 		/**
 		 * Creates a new iterative computation job.
 		 * 
@@ -191,6 +269,45 @@ public class Newton {
 		 */
 		public ComputationJob(double reMin, double reMax, double imMin, double imMax, int width, int height, int yMin,
 				int yMax, short[] data, ComplexRootedPolynomial roots, ComplexPolynomial poly, int offset) {
+			this(reMin, reMax, imMin, imMax, width, height, yMin, yMax, data, roots, poly, offset, Mode.KERNEL, null);
+		}
+
+		/**
+		 * Creates a new iterative computation job with given mode of
+		 * computation that adds its allocations to given metrics.
+		 * 
+		 * @param reMin
+		 *            minimum real part of complex number
+		 * @param reMax
+		 *            maxiumum real part of complex number
+		 * @param imMin
+		 *            minimum imaginary part of complex number
+		 * @param imMax
+		 *            maximum imaginary part of complex number
+		 * @param width
+		 *            width of raster
+		 * @param height
+		 *            height of raster
+		 * @param yMin
+		 *            starting line of raster to generate
+		 * @param yMax
+		 *            ending line of raster to generate
+		 * @param data
+		 *            data of color indexes
+		 * @param roots
+		 *            entered complex polynom roots
+		 * @param poly
+		 *            complex polynomial with provided roots
+		 * @param offset
+		 *            the offset
+		 * @param mode
+		 *            way of computing the iteration
+		 * @param metrics
+		 *            allocation statistics of the frame, can be null
+		 */
+		public ComputationJob(double reMin, double reMax, double imMin, double imMax, int width, int height, int yMin,
+				int yMax, short[] data, ComplexRootedPolynomial roots, ComplexPolynomial poly, int offset, Mode mode,
+				AllocationMetrics metrics) {
 			super();
 			this.reMin = reMin;
 			this.reMax = reMax;
@@ -200,39 +317,345 @@ public class Newton {
 			this.height = height;
 			this.yMin = yMin;
 			this.yMax = yMax;
+			this.xMin = 0;
+			this.xMax = width - 1;
 			this.data = data;
 			this.poly = poly;
 			this.roots = roots;
 			this.offset = offset;
+			this.mode = mode;
+			this.metrics = metrics;
 		}
 
 		@Override
 		public Void call() {
+			long allocated = metrics == null ? -1 : AllocationMetrics.allocatedBytes();
+			int samples = (xMax - xMin) / step + 1;
+			double[] re = new double[samples];
+			for (int i = 0; i < samples; i++) {
+				re[i] = (xMin + i * step) / (width - 1.0) * (reMax - reMin) + reMin;
+			}
+			short[] row = new short[samples];
+			if (mode == Mode.GUESSING) {
+				computeGuessing(re, row, new NewtonKernel(roots, poly, true));
+			} else {
+				computeLines(re, row);
+			}
+			if (allocated >= 0) {
+				metrics.addAllocated(AllocationMetrics.allocatedBytes() - allocated);
+			}
+			return null;
+		}
 
-			for (int y = yMin; y <= yMax; y++) {
-				for (int x = 0; x < width; x++) {
-					double cre = x / (width - 1.0) * (reMax - reMin) + reMin;
-					double cim = (height - 1.0 - y) / (height - 1) * (imMax - imMin) + imMin;
-					Complex zn = new Complex(cre, cim);
-					Complex zn1;
-					double module;
-					int iter = 0;
-					do {
-						zn1 = zn.sub(poly.apply(zn).divide(poly.derive().apply(zn)));
-						module = zn1.sub(zn).module();
-						zn = zn1;
-						iter++;
-					} while (module > CONVERGENCE_THRESHOLD && iter < MAX_ITER);
-					int index = roots.indexOfClosestRootFor(zn1, ROOT_THRESHOLD);
-					if (index == -1) {
-						data[offset++] = 0;
-					} else {
-						data[offset++] = (short) index;
+		/**
+		 * Computes the lines one by one.
+		 * 
+		 * @param re
+		 *            real parts of the computed columns
+		 * @param row
+		 *            array for colors of a line
+		 */
+		private void computeLines(double[] re, short[] row) {
+			NewtonKernel kernel = null;
+			if (mode == Mode.KERNEL || mode == Mode.ACCELERATED) {
+				kernel = new NewtonKernel(roots, poly, mode == Mode.ACCELERATED);
+			}
+			ComplexPolynomial derived = mode == Mode.POOLED ? poly.derive() : null;
+			double[] newRe = re;
+			short[] newRow = row;
+			if (computed > 0) {
+				newRe = new double[re.length];
+				int n = 0;
+				for (int i = 0; i < re.length; i++) {
+					if ((xMin + i * step) % computed != 0) {
+						newRe[n++] = re[i];
 					}
 				}
+				newRe = Arrays.copyOf(newRe, n);
+				newRow = new short[n];
+			}
+			for (int y = yMin; y <= yMax; y += step) {
+				if (cancelled != null && cancelled.getAsBoolean()) {
+					break;
+				}
+				boolean refined = computed > 0 && y % computed == 0;
+				double[] lineRe = refined ? newRe : re;
+				short[] lineRow = refined ? newRow : row;
+				double cim = (height - 1.0 - y) / (height - 1) * (imMax - imMin) + imMin;
+				switch (mode) {
+				case POOLED:
+					computePooled(lineRe, cim, lineRow, derived);
+					break;
+				case OBJECTS:
+					computeObjects(lineRe, cim, lineRow);
+					break;
+				default:
+					kernel.computeRow(lineRe, cim, lineRow, 0);
+				}
+				if (refined) {
+					merge(newRow, row, y);
+				}
+				fill(row, y);
 			}
+		}
 
-			return null;
+		/**
+		 * Combines the colors of a line computed by a previous pass, taken
+		 * from the raster, with the colors of the rest of its pixels.
+		 * 
+		 * @param newRow
+		 *            colors of the pixels not computed by a previous pass
+		 * @param row
+		 *            array for colors of the line
+		 * @param y
+		 *            the line
+		 */
+		private void merge(short[] newRow, short[] row, int y) {
+			int index = offset + (y - yMin) * width;
+			for (int i = 0, n = 0; i < row.length; i++) {
+				int x = xMin + i * step;
+				row[i] = x % computed == 0 ? data[index + i * step] : newRow[n++];
+			}
+		}
+
+		/**
+		 * Computes the lines by guessing fill of rectangles of a single color.
+		 * 
+		 * @param re
+		 *            real parts of the computed columns
+		 * @param row
+		 *            array for colors of a line
+		 * @param kernel
+		 *            kernel that computes the pixels
+		 */
+		private void computeGuessing(double[] re, short[] row, NewtonKernel kernel) {
+			if (cancelled != null && cancelled.getAsBoolean()) {
+				return;
+			}
+			int lines = (yMax - yMin) / step + 1;
+			double[] im = new double[lines];
+			for (int i = 0; i < lines; i++) {
+				im[i] = (height - 1.0 - (yMin + i * step)) / (height - 1) * (imMax - imMin) + imMin;
+			}
+			short[] grid = new MarianiSilver(kernel, re, im).fill();
+			for (int i = 0; i < lines; i++) {
+				System.arraycopy(grid, i * row.length, row, 0, row.length);
+				fill(row, yMin + i * step);
+			}
+		}
+
+		/**
+		 * Stores the colors of a computed line to the raster, filling the
+		 * square of every computed pixel.
+		 * 
+		 * @param row
+		 *            colors of the computed pixels of the line
+		 * @param y
+		 *            the computed line
+		 */
+		private void fill(short[] row, int y) {
+			int yEnd = Math.min(y + step, yMax + 1);
+			int columns = xMax - xMin + 1;
+			for (int line = y; line < yEnd; line++) {
+				int index = offset + (line - yMin) * width;
+				if (step == 1) {
+					System.arraycopy(row, 0, data, index, columns);
+					continue;
+				}
+				for (int i = 0; i < row.length; i++) {
+					int from = i * step;
+					Arrays.fill(data, index + from, index + Math.min(from + step, columns), row[i]);
+				}
+			}
+		}
+
+		/**
+		 * Computes the pixels of a line on complex numbers from the complex
+		 * cache of the current thread, modified in place.
+		 * 
+		 * @param re
+		 *            real parts of the pixels
+		 * @param cim
+		 *            imaginary part of the line
+		 * @param row
+		 *            array to store the colors to
+		 * @param derived
+		 *            derivative of the polynomial
+		 */
+		private void computePooled(double[] re, double cim, short[] row, ComplexPolynomial derived) {
+			IComplexCache cache = ComplexCache.getCache();
+			long hits = cache.getHits();
+			long misses = cache.getMisses();
+			long drops = cache.getDrops();
+			Complex zn = cache.get();
+			Complex value = cache.get();
+			Complex derivative = cache.get();
+			for (int x = 0; x < re.length; x++) {
+				zn.set(re[x], cim);
+				double module;
+				int iter = 0;
+				do {
+					derived.apply(zn, derivative);
+					if (derivative.getRe() == 0 && derivative.getIm() == 0) {
+						zn.set(Double.NaN, Double.NaN);
+						break;
+					}
+					poly.apply(zn, value).divide(derivative, value);
+					zn.sub(value, zn);
+					module = value.module();
+					iter++;
+				} while (module > CONVERGENCE_THRESHOLD && iter < MAX_ITER);
+				int index = roots.indexOfClosestRootFor(zn, ROOT_THRESHOLD);
+				row[x] = (short) (index == -1 ? 0 : index);
+			}
+			cache.release(derivative);
+			cache.release(value);
+			cache.release(zn);
+			if (metrics != null) {
+				metrics.addCache(cache, hits, misses, drops);
+			}
+		}
+
+		/**
+		 * Computes the pixels of a line on new complex numbers for every
+		 * operation.
+		 * 
+		 * @param re
+		 *            real parts of the pixels
+		 * @param cim
+		 *            imaginary part of the line
+		 * @param row
+		 *            array to store the colors to
+		 */
+		private void computeObjects(double[] re, double cim, short[] row) {
+			for (int x = 0; x < re.length; x++) {
+				Complex zn = new Complex(re[x], cim);
+				Complex zn1;
+				double module;
+				int iter = 0;
+				do {
+					Complex derivative = poly.derive().apply(zn);
+					if (derivative.getRe() == 0 && derivative.getIm() == 0) {
+						zn1 = new Complex(Double.NaN, Double.NaN);
+						break;
+					}
+					zn1 = zn.sub(poly.apply(zn).divide(derivative));
+					module = zn1.sub(zn).module();
+					zn = zn1;
+					iter++;
+				} while (module > CONVERGENCE_THRESHOLD && iter < MAX_ITER);
+				int index = roots.indexOfClosestRootFor(zn1, ROOT_THRESHOLD);
+				if (index == -1) {
+					row[x] = 0;
+				} else {
+					row[x] = (short) index;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Task that computes a rectangle of the raster in a {@link ForkJoinPool}.
+	 * Pixels near basin boundaries take many more iterations than the rest, so
+	 * a task keeps splitting its rectangle in halves while it is large or
+	 * while other workers have nothing to steal, and leaves small rectangles
+	 * to a {@link ComputationJob}.
+	 * 
+	 * @author Ante Spajic
+	 *
+	 */
+	static class TileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * number of computed pixels of a rectangle that is never split
+		 */
+		static final int MIN_TILE = 16 * 16;
+
+		/**
+		 * number of computed pixels of a rectangle that is always split
+		 */
+		static final int MAX_TILE = 128 * 128;
+
+		/**
+		 * number of queued tasks over which only large rectangles are split
+		 */
+		static final int SURPLUS = 2;
+
+		/**
+		 * job with parameters of the whole raster
+		 */
+		private final ComputationJob frame;
+
+		/**
+		 * first and last column and line of the rectangle
+		 */
+		private final int xMin;
+		private final int xMax;
+		private final int yMin;
+		private final int yMax;
+
+		/**
+		 * Creates a new task that computes the whole raster.
+		 * 
+		 * @param frame
+		 *            job with parameters of the whole raster
+		 */
+		TileTask(ComputationJob frame) {
+			this(frame, frame.xMin, frame.xMax, frame.yMin, frame.yMax);
+		}
+
+		/**
+		 * Creates a new task that computes a rectangle of the raster.
+		 * 
+		 * @param frame
+		 *            job with parameters of the whole raster
+		 * @param xMin
+		 *            first column of the rectangle
+		 * @param xMax
+		 *            last column of the rectangle
+		 * @param yMin
+		 *            first line of the rectangle
+		 * @param yMax
+		 *            last line of the rectangle
+		 */
+		private TileTask(ComputationJob frame, int xMin, int xMax, int yMin, int yMax) {
+			this.frame = frame;
+			this.xMin = xMin;
+			this.xMax = xMax;
+			this.yMin = yMin;
+			this.yMax = yMax;
+		}
+
+		@Override
+		protected void compute() {
+			if (frame.cancelled != null && frame.cancelled.getAsBoolean()) {
+				return;
+			}
+			int step = frame.step;
+			int columns = (xMax - xMin) / step + 1;
+			int lines = (yMax - yMin) / step + 1;
+			int pixels = columns * lines;
+			if (pixels > MAX_TILE || pixels > MIN_TILE && getSurplusQueuedTaskCount() <= SURPLUS) {
+				if (columns >= lines) {
+					int x = xMin + columns / 2 * step;
+					invokeAll(new TileTask(frame, xMin, x - 1, yMin, yMax), new TileTask(frame, x, xMax, yMin, yMax));
+				} else {
+					int y = yMin + lines / 2 * step;
+					invokeAll(new TileTask(frame, xMin, xMax, yMin, y - 1), new TileTask(frame, xMin, xMax, y, yMax));
+				}
+				return;
+			}
+			ComputationJob job = new ComputationJob(frame.reMin, frame.reMax, frame.imMin, frame.imMax, frame.width,
+					frame.height, yMin, yMax, frame.data, frame.roots, frame.poly, yMin * frame.width + xMin,
+					frame.mode, frame.metrics);
+			job.xMin = xMin;
+			job.xMax = xMax;
+			job.step = step;
+			job.computed = frame.computed;
+			job.cancelled = frame.cancelled;
+			job.call();
 		}
 	}
 
@@ -242,12 +665,38 @@ public class Newton {
 	 * about three-hundred years we know that each function that is k-times
 	 * differentiable around a given point x0 can be approximated by a k-th
 	 * order Taylor-polynomial.
+	 * <p>
+	 * Rasters are computed by {@link TileTask}s in a fork join pool that is
+	 * shared by all producers. A raster is first computed coarsely, every
+	 * {@link #PREVIEW_STEPS} pixel, and each of these previews is sent to the
+	 * observer before the raster is refined. A pass computes only the pixels
+	 * the previous one didn't, except in {@link Mode#GUESSING} whose previews
+	 * hold guessed colors. When a newer request arrives, older ones stop
+	 * computing and send nothing more. Progress is printed only when the
+	 * system property <code>newton.verbose</code> is <code>true</code>.
 	 * 
 	 * @author Ante Spajic
 	 *
 	 */
 	public static class FractalProducerImpl implements IFractalProducer {
 
+		/**
+		 * distances between computed pixels of the previews, from coarsest to
+		 * finest
+		 */
+		public static final int[] PREVIEW_STEPS = { 16, 4 };
+
+		/**
+		 * whether progress of the computations is printed
+		 */
+		static final boolean VERBOSE = Boolean.getBoolean("newton.verbose");
+
+		/**
+		 * pool of workers shared by all producers
+		 */
+		static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+				ComplexCacheWorkerThread::new, null, false);
+
 		/**
 		 * entered roots
 		 */
@@ -256,46 +705,79 @@ public class Newton {
 		 * polynom whose roots were entered
 		 */
 		private ComplexPolynomial polynom;
+		/**
+		 * way of computing the iteration
+		 */
+		private Mode mode;
+		/**
+		 * number of the newest request
+		 */
+		private final AtomicLong latestRequest = new AtomicLong(Long.MIN_VALUE);
 
 		public FractalProducerImpl(ComplexRootedPolynomial roots, ComplexPolynomial poly) {
+			this(roots, poly, Mode.KERNEL);
+		}
+
+		/**
+		 * Creates a new producer that computes the iteration in given mode.
+		 * 
+		 * @param roots
+		 *            entered roots
+		 * @param poly
+		 *            polynom whose roots were entered
+		 * @param mode
+		 *            way of computing the iteration
+		 */
+		public FractalProducerImpl(ComplexRootedPolynomial roots, ComplexPolynomial poly, Mode mode) {
 			this.roots = roots;
 			this.polynom = poly;
+			this.mode = mode;
 		}
 
 		@Override
 		public void produce(double reMin, double reMax, double imMin, double imMax, int width, int height,
 				long requestNo, IFractalResultObserver observer) {
-			System.out.println("Begininng calculations...");
+			if (VERBOSE) {
+				System.out.println("Begininng calculations...");
+			}
+			latestRequest.accumulateAndGet(requestNo, Math::max);
+			BooleanSupplier cancelled = () -> latestRequest.get() > requestNo;
+			AllocationMetrics metrics = new AllocationMetrics();
 			short[] data = new short[width * height];
-			final int jobCount = 8 * Runtime.getRuntime().availableProcessors();
-			int part = height / jobCount;
-
-			ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (r) -> {
-				Thread t = new Thread(r);
-				t.setDaemon(true);
-				return t;
-			});
-			List<Future<Void>> results = new ArrayList<>();
-
-			for (int i = 0; i < jobCount; i++) {
-				int yMin = i * part;
-				int yMax = (i + 1) * part - 1;
-				if (i == jobCount - 1) {
-					yMax = height - 1;
+			short colors = (short) (polynom.order() + 1);
+
+			List<Integer> steps = new ArrayList<>();
+			for (int step : PREVIEW_STEPS) {
+				if (step < width && step < height) {
+					steps.add(step);
 				}
-				ComputationJob job = new ComputationJob(reMin, reMax, imMin, imMax, width, height, yMin, yMax, data,
-						roots, polynom, yMin * width);
-				results.add(pool.submit(job));
 			}
-			for (Future<Void> job : results) {
-				try {
-					job.get();
-				} catch (InterruptedException | ExecutionException e) {
+			steps.add(1);
+			int computed = 0;
+			for (int step : steps) {
+				ComputationJob frame = new ComputationJob(reMin, reMax, imMin, imMax, width, height, 0, height - 1,
+						data, roots, polynom, 0, mode, metrics);
+				frame.step = step;
+				frame.computed = mode != Mode.GUESSING && computed % step == 0 ? computed : 0;
+				frame.cancelled = cancelled;
+				POOL.invoke(new TileTask(frame));
+				if (cancelled.getAsBoolean()) {
+					if (VERBOSE) {
+						System.out.println("Calculations of request " + requestNo + " cancelled.");
+					}
+					return;
 				}
+				computed = step;
+				if (step > 1) {
+					observer.acceptResult(Arrays.copyOf(data, data.length), colors, requestNo);
+				}
+			}
+			metrics.finish();
+			if (VERBOSE) {
+				System.out.println("Calculations done in " + mode.toString().toLowerCase() + " mode: " + metrics);
+				System.out.println("Notifying observer => GUI!");
 			}
-			pool.shutdown();
-			System.out.println("Calculations done. Notifying observer => GUI!");
-			observer.acceptResult(data, (short) (polynom.order() + 1), requestNo);
+			observer.acceptResult(data, colors, requestNo);
 		}
 	}
 
@@ -308,7 +790,7 @@ public class Newton {
 	 * @return complex number if a valid string was entered or <code>null</code>
 	 *         if it couldn't be parsed
 	 */
-	private static Complex parse(String s) {
+	static Complex parse(String s) {
 		s = s.replaceAll("\\s+", "");
 		Complex parsed = null;
 		if (s.contains(String.valueOf("+")) || (s.contains(String.valueOf("-")) && s.lastIndexOf('-') > 0)) {
@@ -0,0 +1,102 @@
+package hr.fer.zemris.java.fractals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless renderer of a zoom sequence of a Newton fractal into PNG images.
+ *
+ * <pre>
+ * java NewtonBatch --roots 1,-1,i,-i --from -2,2,-2,2 --to -0.1,0.1,-0.1,0.1 \
+ *     --frames 60 --size 800x600 --out frames [--cache tiles] [--mode guessing] [--queue 4]
+ * </pre>
+ *
+ * Viewports are written as <code>reMin,reMax,imMin,imMax</code>; without
+ * <code>--to</code> a single frame is rendered. With <code>--cache</code>,
+ * computed tiles are kept in the given directory and reused by later frames
+ * and runs.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class NewtonBatch {
+
+	/**
+	 * Entry point to the program
+	 *
+	 * @param args
+	 *            options of the sequence
+	 * @throws IOException
+	 *             if frames or tiles can't be written
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for frames to be written
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		System.setProperty("java.awt.headless", "true");
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) {
+				usage("Unexpected argument " + args[i]);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		if (args.length % 2 != 0) {
+			usage("Missing value of " + args[args.length - 1]);
+		}
+		if (!options.containsKey("roots") || !options.containsKey("from") || !options.containsKey("out")) {
+			usage("Options --roots, --from and --out are required");
+		}
+
+		List<Complex> rootList = new ArrayList<>();
+		for (String s : options.get("roots").split(",")) {
+			Complex root = Newton.parse(s);
+			if (root == null) {
+				usage("Can't parse root " + s);
+			}
+			rootList.add(root);
+		}
+		if (rootList.size() < 2) {
+			usage("Expected at least 2 roots");
+		}
+		ComplexRootedPolynomial roots = new ComplexRootedPolynomial(rootList.toArray(new Complex[0]));
+		Viewport from = Viewport.parse(options.get("from"));
+		Viewport to = options.containsKey("to") ? Viewport.parse(options.get("to")) : from;
+		int frames = Integer.parseInt(options.getOrDefault("frames", options.containsKey("to") ? "30" : "1"));
+		String[] size = options.getOrDefault("size", "800x600").split("x");
+		int width = Integer.parseInt(size[0]);
+		int height = Integer.parseInt(size[1]);
+		Newton.Mode mode = Newton.Mode.valueOf(options.getOrDefault("mode", "kernel").toUpperCase());
+		int queue = Integer.parseInt(options.getOrDefault("queue", "4"));
+		TileCache cache = options.containsKey("cache") ? new TileCache(Paths.get(options.get("cache"))) : null;
+		Path out = Paths.get(options.get("out"));
+
+		BatchRenderer renderer = new BatchRenderer(roots, mode, cache);
+		long start = System.nanoTime();
+		renderer.render(Viewport.zoom(from, to, frames), width, height, out, queue);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d frames of %dx%d written to %s in %.1f s (%.2f frames/s)%n", frames, width, height, out,
+				seconds, frames / seconds);
+		if (cache != null) {
+			System.out.println("Tile cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+		}
+	}
+
+	/**
+	 * Prints the problem and usage of the program and exits.
+	 *
+	 * @param problem
+	 *            what is wrong with the arguments
+	 */
+	private static void usage(String problem) {
+		System.out.println(problem);
+		System.out.println("Usage: NewtonBatch --roots 1,-1,i,-i --from reMin,reMax,imMin,imMax"
+				+ " [--to reMin,reMax,imMin,imMax] [--frames n] [--size WIDTHxHEIGHT] --out directory"
+				+ " [--cache directory] [--mode kernel|accelerated|guessing|pooled|objects] [--queue n]");
+		System.exit(1);
+	}
+}
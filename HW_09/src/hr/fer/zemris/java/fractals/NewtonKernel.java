@@ -0,0 +1,443 @@
+package hr.fer.zemris.java.fractals;
+
+/**
+ * Newton-Raphson iteration of a complex polynomial computed on primitive
+ * doubles. The polynomial and its first derivative are evaluated together with
+ * Horner's scheme, so a single iteration takes a multiplication and an
+ * addition per factor and one division, without any powers, angles or
+ * {@link Complex} objects.
+ * <p>
+ * A whole row of the raster is iterated at once. Real and imaginary parts of
+ * the iterated pixels are kept in separate arrays and every step of the
+ * iteration is a plain loop over them, which the JIT can vectorise. Pixels
+ * that converge are colored and removed from the arrays after every step, so
+ * only pixels that still iterate are computed.
+ * <p>
+ * An accelerated kernel also stops iterating a pixel as soon as it gets
+ * close enough to a root to surely converge to it, and when it returns to a
+ * value it had before, so it is in a cycle and converges to no root. A pixel
+ * surely converges to a root <i>r</i> when it is closer to it than
+ * <i>d/(2n-1)</i>, where <i>d</i> is the distance of <i>r</i> to the closest
+ * other root and <i>n</i> the order of the polynomial. At a distance <i>e</i>
+ * from <i>r</i> a step multiplies the distance by at most <i>t/(1-t)</i>,
+ * where <i>t = e(n-1)/(d-e)</i>, which is below 1 within that distance, so
+ * every step gets closer to <i>r</i> and the bound keeps shrinking. The
+ * distance is not halved by every step, that needs <i>d/(3n-2)</i>, but only
+ * convergence matters for the color. Cycles are detected like in Brent's
+ * algorithm, by comparing pixels to their values at the last power of two
+ * iterations.
+ * <p>
+ * A kernel keeps the arrays of the iterated row, so it must not be used by
+ * several threads at once.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class NewtonKernel {
+
+	/**
+	 * squared distance of a pixel to its earlier value that counts as a cycle
+	 */
+	static final double CYCLE_DISTANCE = 1e-12;
+
+	/**
+	 * real and imaginary parts of polynomial factors, starting with the highest
+	 * power
+	 */
+	private final double[] factorRe;
+	private final double[] factorIm;
+
+	/**
+	 * real and imaginary parts of polynomial roots
+	 */
+	private final double[] rootRe;
+	private final double[] rootIm;
+
+	/**
+	 * maximum number of iterations
+	 */
+	private final int maxIter;
+
+	/**
+	 * squared convergence threshold
+	 */
+	private final double convergence;
+
+	/**
+	 * squared acceptable root-distance
+	 */
+	private final double rootDistance;
+
+	/**
+	 * squared distances from roots within which pixels surely converge to
+	 * them, null if pixels iterate until they converge
+	 */
+	private final double[] basin;
+
+	/**
+	 * iterated values of the pixels in the row
+	 */
+	private double[] zRe;
+	private double[] zIm;
+
+	/**
+	 * polynomial values at the iterated values
+	 */
+	private double[] pRe;
+	private double[] pIm;
+
+	/**
+	 * derivative values at the iterated values
+	 */
+	private double[] dRe;
+	private double[] dIm;
+
+	/**
+	 * squared length of the last step of every pixel
+	 */
+	private double[] step;
+
+	/**
+	 * values of the pixels at the last power of two iterations
+	 */
+	private double[] savedRe;
+	private double[] savedIm;
+
+	/**
+	 * index in the row of every iterated pixel
+	 */
+	private int[] pixel;
+
+	/**
+	 * Creates a new kernel that iterates with thresholds and maximum number of
+	 * iterations of {@link Newton}.
+	 *
+	 * @param roots
+	 *            roots of the polynomial
+	 * @param poly
+	 *            polynomial with provided roots
+	 */
+	public NewtonKernel(ComplexRootedPolynomial roots, ComplexPolynomial poly) {
+		this(roots, poly, false);
+	}
+
+	/**
+	 * Creates a new kernel that iterates with thresholds and maximum number of
+	 * iterations of {@link Newton}.
+	 *
+	 * @param roots
+	 *            roots of the polynomial
+	 * @param poly
+	 *            polynomial with provided roots
+	 * @param accelerated
+	 *            whether pixels stop iterating close to roots and in cycles
+	 */
+	public NewtonKernel(ComplexRootedPolynomial roots, ComplexPolynomial poly, boolean accelerated) {
+		this(roots, poly, Newton.MAX_ITER, Newton.CONVERGENCE_THRESHOLD, Newton.ROOT_THRESHOLD, accelerated);
+	}
+
+	/**
+	 * Creates a new kernel.
+	 *
+	 * @param roots
+	 *            roots of the polynomial
+	 * @param poly
+	 *            polynomial with provided roots
+	 * @param maxIter
+	 *            maximum number of iterations
+	 * @param convergenceThreshold
+	 *            the convergence threshold
+	 * @param rootThreshold
+	 *            acceptable root-distance
+	 * @param accelerated
+	 *            whether pixels stop iterating close to roots and in cycles
+	 */
+	public NewtonKernel(ComplexRootedPolynomial roots, ComplexPolynomial poly, int maxIter,
+			double convergenceThreshold, double rootThreshold, boolean accelerated) {
+		if (roots == null || poly == null) {
+			throw new IllegalArgumentException("Polynomial can't be null");
+		}
+		if (maxIter < 1) {
+			throw new IllegalArgumentException("Number of iterations must be positive");
+		}
+		Complex[] factors = poly.getFactors();
+		factorRe = new double[factors.length];
+		factorIm = new double[factors.length];
+		for (int i = 0; i < factors.length; i++) {
+			factorRe[i] = factors[i].getRe();
+			factorIm[i] = factors[i].getIm();
+		}
+		Complex[] r = roots.getRoots();
+		rootRe = new double[r.length];
+		rootIm = new double[r.length];
+		for (int i = 0; i < r.length; i++) {
+			rootRe[i] = r[i].getRe();
+			rootIm[i] = r[i].getIm();
+		}
+		this.maxIter = maxIter;
+		this.convergence = convergenceThreshold * convergenceThreshold;
+		this.rootDistance = rootThreshold * rootThreshold;
+		this.basin = accelerated ? basin(factors.length - 1) : null;
+	}
+
+	/**
+	 * Computes squared distances from roots within which pixels surely
+	 * converge to them.
+	 *
+	 * @param order
+	 *            order of the polynomial
+	 * @return squared distances, 0 for repeated roots
+	 */
+	private double[] basin(int order) {
+		double[] basin = new double[rootRe.length];
+		for (int i = 0; i < rootRe.length; i++) {
+			double closest = Double.MAX_VALUE;
+			for (int j = 0; j < rootRe.length; j++) {
+				if (j != i) {
+					double dx = rootRe[i] - rootRe[j];
+					double dy = rootIm[i] - rootIm[j];
+					closest = Math.min(closest, Math.sqrt(dx * dx + dy * dy));
+				}
+			}
+			if (rootRe.length == 1 || order < 1) {
+				closest = 0;
+			}
+			double radius = closest / (2 * order - 1);
+			basin[i] = radius * radius;
+		}
+		return basin;
+	}
+
+	/**
+	 * Iterates a row of pixels and stores their color indexes: the index of
+	 * the root a pixel converged to, starting from 1, or 0 if it converged to
+	 * none.
+	 *
+	 * @param re
+	 *            real parts of the pixels in the row
+	 * @param im
+	 *            imaginary part of the row
+	 * @param data
+	 *            array of color indexes
+	 * @param offset
+	 *            index in data of the first pixel of the row
+	 */
+	public void computeRow(double[] re, double im, short[] data, int offset) {
+		int n = re.length;
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			zRe[i] = re[i];
+			zIm[i] = im;
+			pixel[i] = i;
+		}
+		iterate(n, data, offset);
+	}
+
+	/**
+	 * Iterates first n of given pixels and stores their color indexes
+	 * consecutively: the index of the root a pixel converged to, starting from
+	 * 1, or 0 if it converged to none.
+	 *
+	 * @param re
+	 *            real parts of the pixels
+	 * @param im
+	 *            imaginary parts of the pixels
+	 * @param n
+	 *            number of pixels
+	 * @param data
+	 *            array of color indexes
+	 * @param offset
+	 *            index in data of the first pixel
+	 */
+	public void compute(double[] re, double[] im, int n, short[] data, int offset) {
+		ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			zRe[i] = re[i];
+			zIm[i] = im[i];
+			pixel[i] = i;
+		}
+		iterate(n, data, offset);
+	}
+
+	/**
+	 * Iterates first n pixels until all of them are colored.
+	 *
+	 * @param n
+	 *            number of pixels
+	 * @param data
+	 *            array of color indexes
+	 * @param offset
+	 *            index in data of the first pixel
+	 */
+	private void iterate(int n, short[] data, int offset) {
+		if (basin != null) {
+			System.arraycopy(zRe, 0, savedRe, 0, n);
+			System.arraycopy(zIm, 0, savedIm, 0, n);
+		}
+		int save = 1;
+		for (int iter = 1; n > 0; iter++) {
+			step(n);
+			boolean last = iter == maxIter;
+			int kept = 0;
+			for (int i = 0; i < n; i++) {
+				if (!(step[i] > convergence) || last) {
+					data[offset + pixel[i]] = closestRoot(zRe[i], zIm[i]);
+					continue;
+				}
+				if (basin != null) {
+					short root = basinOf(zRe[i], zIm[i]);
+					if (root != 0 || isCycle(i)) {
+						data[offset + pixel[i]] = root;
+						continue;
+					}
+					savedRe[kept] = savedRe[i];
+					savedIm[kept] = savedIm[i];
+				}
+				zRe[kept] = zRe[i];
+				zIm[kept] = zIm[i];
+				pixel[kept] = pixel[i];
+				kept++;
+			}
+			n = kept;
+			if (basin != null && iter == save) {
+				System.arraycopy(zRe, 0, savedRe, 0, n);
+				System.arraycopy(zIm, 0, savedIm, 0, n);
+				save *= 2;
+			}
+		}
+	}
+
+	/**
+	 * Makes a single iteration of first n pixels,
+	 * <i>z<sub>n+1</sub> = z<sub>n</sub> - p(z<sub>n</sub>)/p'(z<sub>n</sub>)</i>.
+	 * A pixel where the derivative is zero gets a value that is not a number,
+	 * which converges to no root.
+	 *
+	 * @param n
+	 *            number of iterated pixels
+	 */
+	private void step(int n) {
+		double[] zRe = this.zRe, zIm = this.zIm;
+		double[] pRe = this.pRe, pIm = this.pIm;
+		double[] dRe = this.dRe, dIm = this.dIm;
+		double[] step = this.step;
+
+		double aRe = factorRe[0];
+		double aIm = factorIm[0];
+		for (int i = 0; i < n; i++) {
+			pRe[i] = aRe;
+			pIm[i] = aIm;
+			dRe[i] = 0;
+			dIm[i] = 0;
+		}
+		for (int k = 1; k < factorRe.length; k++) {
+			aRe = factorRe[k];
+			aIm = factorIm[k];
+			for (int i = 0; i < n; i++) {
+				double x = zRe[i];
+				double y = zIm[i];
+				double pr = pRe[i];
+				double pi = pIm[i];
+				double dr = dRe[i];
+				double di = dIm[i];
+				dRe[i] = dr * x - di * y + pr;
+				dIm[i] = dr * y + di * x + pi;
+				pRe[i] = pr * x - pi * y + aRe;
+				pIm[i] = pr * y + pi * x + aIm;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			double dr = dRe[i];
+			double di = dIm[i];
+			double norm = dr * dr + di * di;
+			double qRe = (pRe[i] * dr + pIm[i] * di) / norm;
+			double qIm = (pIm[i] * dr - pRe[i] * di) / norm;
+			zRe[i] -= qRe;
+			zIm[i] -= qIm;
+			step[i] = qRe * qRe + qIm * qIm;
+		}
+	}
+
+	/**
+	 * Finds the root whose basin radius the given value is within.
+	 *
+	 * @param re
+	 *            real part of the value
+	 * @param im
+	 *            imaginary part of the value
+	 * @return index of the root starting from 1, or 0 if there is no such root
+	 */
+	private short basinOf(double re, double im) {
+		for (int i = 0; i < rootRe.length; i++) {
+			double dx = re - rootRe[i];
+			double dy = im - rootIm[i];
+			if (dx * dx + dy * dy < basin[i]) {
+				return (short) (i + 1);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Checks whether a pixel returned to its value at the last power of two
+	 * iterations.
+	 *
+	 * @param i
+	 *            index of the pixel in the arrays
+	 * @return true if the pixel is in a cycle
+	 */
+	private boolean isCycle(int i) {
+		double dx = zRe[i] - savedRe[i];
+		double dy = zIm[i] - savedIm[i];
+		return dx * dx + dy * dy < CYCLE_DISTANCE;
+	}
+
+	/**
+	 * Finds the closest root to the given value that is within acceptable
+	 * root-distance.
+	 *
+	 * @param re
+	 *            real part of the value
+	 * @param im
+	 *            imaginary part of the value
+	 * @return index of the root starting from 1, or 0 if there is no such root
+	 */
+	private short closestRoot(double re, double im) {
+		double distance = Double.MAX_VALUE;
+		int index = 0;
+		for (int i = 0; i < rootRe.length; i++) {
+			double dx = re - rootRe[i];
+			double dy = im - rootIm[i];
+			double d = dx * dx + dy * dy;
+			if (d < distance) {
+				distance = d;
+				index = i;
+			}
+		}
+		return (short) (distance <= rootDistance ? index + 1 : 0);
+	}
+
+	/**
+	 * Makes sure the arrays can hold a row of given width.
+	 *
+	 * @param width
+	 *            width of the row
+	 */
+	private void ensureCapacity(int width) {
+		if (zRe != null && zRe.length >= width) {
+			return;
+		}
+		zRe = new double[width];
+		zIm = new double[width];
+		pRe = new double[width];
+		pIm = new double[width];
+		dRe = new double[width];
+		dIm = new double[width];
+		step = new double[width];
+		pixel = new int[width];
+		if (basin != null) {
+			savedRe = new double[width];
+			savedIm = new double[width];
+		}
+	}
+}
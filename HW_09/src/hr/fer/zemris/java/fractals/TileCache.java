@@ -0,0 +1,173 @@
+package hr.fer.zemris.java.fractals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Disk-backed cache of computed tiles of Newton fractals. A tile is keyed by
+ * the roots of the polynomial, the mode of computation and its level,
+ * position and size in the lattice of {@link BatchRenderer}, so the colors of
+ * a tile depend on nothing but its key. Tiles are kept as files named by the SHA-256 hash of
+ * the key, written to a temporary file first and then moved into place, so
+ * several renderers can share a directory.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class TileCache {
+
+	/**
+	 * first four bytes of a tile file
+	 */
+	private static final int MAGIC = 0x4e54494c;
+
+	/**
+	 * directory of the tile files
+	 */
+	private final Path directory;
+
+	/**
+	 * number of tiles found and not found in the cache
+	 */
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates a new cache in given directory, creating it if it doesn't exist.
+	 *
+	 * @param directory
+	 *            directory of the tile files
+	 * @throws IOException
+	 *             if the directory can't be created
+	 */
+	public TileCache(Path directory) throws IOException {
+		this.directory = Files.createDirectories(directory);
+	}
+
+	/**
+	 * Creates the key of a tile.
+	 *
+	 * @param roots
+	 *            roots of the polynomial
+	 * @param mode
+	 *            way of computing the iteration
+	 * @param level
+	 *            level of the lattice
+	 * @param tileX
+	 *            position of the tile along the real axis
+	 * @param tileY
+	 *            position of the tile along the imaginary axis
+	 * @param size
+	 *            width and height of the tile in points of the lattice
+	 * @return the key
+	 */
+	public static String key(ComplexRootedPolynomial roots, Newton.Mode mode, int level, long tileX, long tileY,
+			int size) {
+		StringBuilder sb = new StringBuilder("newton");
+		sb.append(' ').append(Newton.MAX_ITER).append(' ').append(Newton.CONVERGENCE_THRESHOLD).append(' ')
+				.append(Newton.ROOT_THRESHOLD).append(' ').append(mode);
+		for (Complex root : roots.getRoots()) {
+			sb.append(' ').append(Double.toHexString(root.getRe())).append(' ')
+					.append(Double.toHexString(root.getIm()));
+		}
+		sb.append(' ').append(level).append(' ').append(tileX).append(' ').append(tileY).append(' ').append(size);
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * Returns the colors of a cached tile.
+	 *
+	 * @param key
+	 *            key of the tile
+	 * @param length
+	 *            number of pixels of the tile
+	 * @return colors of the tile or null if it isn't cached or can't be read
+	 */
+	public short[] get(String key, int length) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file(key)));
+			if (buffer.remaining() == 8 + 2 * length && buffer.getInt() == MAGIC && buffer.getInt() == length) {
+				short[] data = new short[length];
+				buffer.asShortBuffer().get(data);
+				hits.increment();
+				return data;
+			}
+		} catch (NoSuchFileException ignore) {
+		} catch (IOException e) {
+			System.err.println("Can't read tile " + key + ": " + e.getMessage());
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Stores the colors of a tile.
+	 *
+	 * @param key
+	 *            key of the tile
+	 * @param data
+	 *            colors of the tile
+	 * @throws IOException
+	 *             if the tile can't be written
+	 */
+	public void put(String key, short[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8 + 2 * data.length);
+		buffer.putInt(MAGIC).putInt(data.length);
+		buffer.asShortBuffer().put(data);
+		Path file = file(key);
+		Files.createDirectories(file.getParent());
+		Path temporary = Files.createTempFile(file.getParent(), key, ".tmp");
+		try {
+			Files.write(temporary, buffer.array());
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Returns the number of tiles found in the cache.
+	 *
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of tiles not found in the cache.
+	 *
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the file of a tile.
+	 *
+	 * @param key
+	 *            key of the tile
+	 * @return the file
+	 */
+	private Path file(String key) {
+		return directory.resolve(key.substring(0, 2)).resolve(key + ".tile");
+	}
+}
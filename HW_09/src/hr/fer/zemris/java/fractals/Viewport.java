@@ -0,0 +1,154 @@
+package hr.fer.zemris.java.fractals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable rectangle of the complex plane that is rendered into a frame.
+ *
+ * @author Ante Spajic
+ *
+ */
+public final class Viewport {
+
+	/**
+	 * minimum and maximum real part of complex number
+	 */
+	private final double reMin;
+	private final double reMax;
+
+	/**
+	 * minimum and maximum imaginary part of complex number
+	 */
+	private final double imMin;
+	private final double imMax;
+
+	/**
+	 * Creates a new viewport.
+	 *
+	 * @param reMin
+	 *            minimum real part of complex number
+	 * @param reMax
+	 *            maxiumum real part of complex number
+	 * @param imMin
+	 *            minimum imaginary part of complex number
+	 * @param imMax
+	 *            maximum imaginary part of complex number
+	 */
+	public Viewport(double reMin, double reMax, double imMin, double imMax) {
+		if (!(reMin < reMax) || !(imMin < imMax)) {
+			throw new IllegalArgumentException("Viewport must have minimums smaller than maximums");
+		}
+		this.reMin = reMin;
+		this.reMax = reMax;
+		this.imMin = imMin;
+		this.imMax = imMax;
+	}
+
+	/**
+	 * Parses a viewport written as <code>reMin,reMax,imMin,imMax</code>.
+	 *
+	 * @param s
+	 *            string to parse
+	 * @return the viewport
+	 * @throws IllegalArgumentException
+	 *             if the string is not a valid viewport
+	 */
+	public static Viewport parse(String s) {
+		String[] parts = s.split(",");
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Expected reMin,reMax,imMin,imMax but got " + s);
+		}
+		double[] values = new double[4];
+		for (int i = 0; i < 4; i++) {
+			values[i] = Double.parseDouble(parts[i].trim());
+		}
+		return new Viewport(values[0], values[1], values[2], values[3]);
+	}
+
+	/**
+	 * Returns a sequence of viewports that zooms from one viewport to another.
+	 * The center moves linearly while the size changes geometrically, so
+	 * every frame zooms by the same factor.
+	 *
+	 * @param from
+	 *            the first viewport
+	 * @param to
+	 *            the last viewport
+	 * @param frames
+	 *            number of viewports
+	 * @return the viewports
+	 */
+	public static List<Viewport> zoom(Viewport from, Viewport to, int frames) {
+		if (frames < 1) {
+			throw new IllegalArgumentException("Number of frames must be positive");
+		}
+		List<Viewport> result = new ArrayList<>(frames);
+		for (int i = 0; i < frames; i++) {
+			double t = frames == 1 ? 1 : (double) i / (frames - 1);
+			double re = from.centerRe() + (to.centerRe() - from.centerRe()) * t;
+			double im = from.centerIm() + (to.centerIm() - from.centerIm()) * t;
+			double width = from.width() * Math.pow(to.width() / from.width(), t);
+			double height = from.height() * Math.pow(to.height() / from.height(), t);
+			result.add(new Viewport(re - width / 2, re + width / 2, im - height / 2, im + height / 2));
+		}
+		return result;
+	}
+
+	public double getReMin() {
+		return reMin;
+	}
+
+	public double getReMax() {
+		return reMax;
+	}
+
+	public double getImMin() {
+		return imMin;
+	}
+
+	public double getImMax() {
+		return imMax;
+	}
+
+	/**
+	 * Returns the real part of the center.
+	 *
+	 * @return the real part
+	 */
+	private double centerRe() {
+		return (reMin + reMax) / 2;
+	}
+
+	/**
+	 * Returns the imaginary part of the center.
+	 *
+	 * @return the imaginary part
+	 */
+	private double centerIm() {
+		return (imMin + imMax) / 2;
+	}
+
+	/**
+	 * Returns the width along the real axis.
+	 *
+	 * @return the width
+	 */
+	private double width() {
+		return reMax - reMin;
+	}
+
+	/**
+	 * Returns the height along the imaginary axis.
+	 *
+	 * @return the height
+	 */
+	private double height() {
+		return imMax - imMin;
+	}
+
+	@Override
+	public String toString() {
+		return reMin + "," + reMax + "," + imMin + "," + imMax;
+	}
+}
@@ -1,12 +1,25 @@
 package hr.fer.zemris.java.fractals.cmplxcache;
 
+/**
+ * Gives access to the complex cache of the current thread. Threads that
+ * implement {@link IThreadBoundComplexCache} carry their own cache, other
+ * threads get one from a thread local.
+ * 
+ * @author Ante Spajic
+ *
+ */
 public class ComplexCache {
 	
+	private static final ThreadLocal<IComplexCache> LOCAL = ThreadLocal.withInitial(ComplexCacheImpl::new);
+
 	private static final IComplexCacheProducer PRODUCER = new IComplexCacheProducer() {
 		@Override
 		public IComplexCache getCache() {
-			IThreadBoundComplexCache customThread = (IThreadBoundComplexCache)Thread.currentThread();
-			return customThread.getComplexCache();
+			Thread thread = Thread.currentThread();
+			if (thread instanceof IThreadBoundComplexCache) {
+				return ((IThreadBoundComplexCache) thread).getComplexCache();
+			}
+			return LOCAL.get();
 		}
 	};
 
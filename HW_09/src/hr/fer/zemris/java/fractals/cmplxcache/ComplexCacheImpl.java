@@ -5,24 +5,69 @@ import java.util.List;
 
 import hr.fer.zemris.java.fractals.Complex;
 
+/**
+ * A cache of complex numbers used by a single thread. It keeps at most a
+ * given number of released complex numbers, the rest are left to the garbage
+ * collector.
+ * 
+ * @author Ante Spajic
+ *
+ */
 public class ComplexCacheImpl implements IComplexCache {
-	
+
+	/**
+	 * number of complex numbers a cache keeps by default
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
 	private List<Complex> list = new ArrayList<>();
-	
+
+	/**
+	 * maximum number of kept complex numbers
+	 */
+	private final int capacity;
+
+	/**
+	 * number of reused, allocated and dropped complex numbers
+	 */
+	private long hits;
+	private long misses;
+	private long drops;
+
 	public ComplexCacheImpl() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new cache that keeps at most given number of complex numbers.
+	 * 
+	 * @param capacity
+	 *            maximum number of kept complex numbers
+	 */
+	public ComplexCacheImpl(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity can't be negative");
+		}
+		this.capacity = capacity;
 	}
 
 	@Override
 	public Complex get() {
 		if(list.isEmpty()) {
+			misses++;
 			return new Complex();
 		}
+		hits++;
 		return list.remove(list.size()-1);
 	}
 	
 	@Override
 	public void release(Complex c) {
-		list.add(c);
+		if (list.size() < capacity) {
+			list.add(c);
+		} else {
+			drops++;
+		}
 	}
 
 	@Override
@@ -40,4 +85,19 @@ public class ComplexCacheImpl implements IComplexCache {
 		c.setImaginary(templete.getIm());
 		return c;
 	}
+
+	@Override
+	public long getHits() {
+		return hits;
+	}
+
+	@Override
+	public long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public long getDrops() {
+		return drops;
+	}
 }
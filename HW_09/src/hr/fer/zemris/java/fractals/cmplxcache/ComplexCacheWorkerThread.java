@@ -0,0 +1,49 @@
+package hr.fer.zemris.java.fractals.cmplxcache;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * A worker thread of a {@link ForkJoinPool} that carries its own bounded
+ * complex cache, so {@link ComplexCache#getCache()} can reach it without a
+ * thread local lookup. Its constructor can be used as a worker thread factory
+ * of the pool.
+ * 
+ * @author Ante Spajic
+ *
+ */
+public class ComplexCacheWorkerThread extends ForkJoinWorkerThread implements IThreadBoundComplexCache {
+
+	/**
+	 * cache of this thread
+	 */
+	private final IComplexCache cache;
+
+	/**
+	 * Creates a new worker thread with a cache of default capacity.
+	 * 
+	 * @param pool
+	 *            the pool this thread works in
+	 */
+	public ComplexCacheWorkerThread(ForkJoinPool pool) {
+		this(pool, ComplexCacheImpl.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new worker thread with a cache of given capacity.
+	 * 
+	 * @param pool
+	 *            the pool this thread works in
+	 * @param capacity
+	 *            maximum number of complex numbers the cache keeps
+	 */
+	public ComplexCacheWorkerThread(ForkJoinPool pool, int capacity) {
+		super(pool);
+		this.cache = new ComplexCacheImpl(capacity);
+	}
+
+	@Override
+	public IComplexCache getComplexCache() {
+		return cache;
+	}
+}
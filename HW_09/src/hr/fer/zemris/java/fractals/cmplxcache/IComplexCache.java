@@ -7,4 +7,26 @@ public interface IComplexCache {
 	Complex get(double real, double imaginary);
 	Complex get(Complex templete);
 	void release(Complex c);
+
+	/**
+	 * Returns the number of complex numbers that were reused.
+	 * 
+	 * @return number of gets served from the cache
+	 */
+	long getHits();
+
+	/**
+	 * Returns the number of complex numbers that had to be allocated.
+	 * 
+	 * @return number of gets that found the cache empty
+	 */
+	long getMisses();
+
+	/**
+	 * Returns the number of released complex numbers that were left to the
+	 * garbage collector because the cache was full.
+	 * 
+	 * @return number of dropped releases
+	 */
+	long getDrops();
 }
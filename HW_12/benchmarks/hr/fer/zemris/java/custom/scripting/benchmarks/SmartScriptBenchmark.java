@@ -0,0 +1,103 @@
+package hr.fer.zemris.java.custom.scripting.benchmarks;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import hr.fer.zemris.java.custom.scripting.exec.ScriptProgram;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Micro benchmark of the execution paths of {@link SmartScriptEngine}. The
+ * first script only runs an empty FOR loop, so it measures the loop
+ * comparison and increment. The second one evaluates an echo expression with
+ * integer and double operands in every iteration. The third one nests three
+ * loops and reads all their variables in the innermost one, so it measures
+ * variable lookups and function calls. The last one writes table rows that
+ * are mostly static text, in the UTF-8 response encoding. Output is
+ * discarded. Scripts are flattened into a {@link ScriptProgram} once, the way
+ * the server caches them.
+ *
+ * <pre>
+ * java SmartScriptBenchmark [iterations per script]
+ * </pre>
+ *
+ * Every script is executed in a number of warm-up rounds before the measured
+ * rounds, the average time per loop iteration is printed.
+ *
+ * @author Ante Spajic
+ */
+public class SmartScriptBenchmark {
+
+	/** Number of warm-up rounds. */
+	private static final int WARMUP_ROUNDS = 10;
+
+	/** Number of measured rounds. */
+	private static final int ROUNDS = 20;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args optional number of loop iterations per script execution
+	 */
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		run("for-loop", "{$FOR i 0 " + iterations + " 1$}{$END$}", iterations);
+		run("echo-expression", "{$FOR i 0 " + iterations + " 1$}{$= i 3 * \"1.5\" + i - 2 / $}{$END$}",
+				iterations);
+		int side = (int) Math.cbrt(iterations);
+		run("nested-loops", "{$FOR i 0 " + side + " 1$}{$FOR j 0 " + side + " 1$}{$FOR k 0 " + side
+				+ " 1$}{$= i j k * + @dup \"x\" @tparamSet k @sin \"0.0\" @decfmt $}{$END$}{$END$}{$END$}",
+				side * side * side);
+		run("static-text", "{$FOR i 0 " + iterations / 10 + " 1$}\r\n  <tr class=\"row\">{$= \"<td>\" $}"
+				+ "<span class=\"label\">Row number</span>{$= \"</td>\" \"<td>\" $}{$= i $}</td>\r\n"
+				+ "    <td><a href=\"/details?id=\">details</a> &middot; <a href=\"/edit\">edit</a></td>\r\n"
+				+ "  </tr>{$END$}", iterations / 10);
+	}
+
+	/**
+	 * Measures a single script.
+	 *
+	 * @param name name of the benchmark
+	 * @param script the smart script
+	 * @param iterations number of loop iterations of the script
+	 */
+	private static void run(String name, String script, int iterations) {
+		ScriptProgram program = new SmartScriptParser(script).getProgram();
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			execute(program);
+		}
+		long best = Long.MAX_VALUE;
+		long total = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			execute(program);
+			long time = System.nanoTime() - start;
+			best = Math.min(best, time);
+			total += time;
+		}
+		System.out.printf("%-16s avg %8.2f ns/iteration  best %8.2f ns/iteration%n", name,
+				(double) total / ROUNDS / iterations, (double) best / iterations);
+	}
+
+	/**
+	 * Executes a program, discarding its output.
+	 *
+	 * @param program the flattened script
+	 */
+	private static void execute(ScriptProgram program) {
+		OutputStream discard = new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		RequestContext rc = new RequestContext(discard, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		new SmartScriptEngine(program, rc).execute();
+	}
+}
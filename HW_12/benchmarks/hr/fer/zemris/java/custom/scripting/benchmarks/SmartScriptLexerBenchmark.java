@@ -0,0 +1,109 @@
+package hr.fer.zemris.java.custom.scripting.benchmarks;
+
+import hr.fer.zemris.java.custom.scripting.parser.ScriptToken;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptLexer;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.custom.scripting.parser.TokenType;
+
+/**
+ * Throughput benchmark of {@link SmartScriptLexer} on large templates. The
+ * template repeats an HTML table row with echo tags, FOR loops, strings with
+ * escapes, numbers and function calls, which is what scripts served by the
+ * server look like. Two cases are measured: scanning all tokens without
+ * creating their elements, and the whole {@link SmartScriptParser}, which
+ * creates every element.
+ *
+ * <pre>
+ * java SmartScriptLexerBenchmark [template size in MB]
+ * </pre>
+ *
+ * Every case is run in a number of warm-up rounds before the measured rounds,
+ * the throughput in MB of template characters per second is printed.
+ *
+ * @author Ante Spajic
+ */
+public class SmartScriptLexerBenchmark {
+
+	/** Number of warm-up rounds. */
+	private static final int WARMUP_ROUNDS = 5;
+
+	/** Number of measured rounds. */
+	private static final int ROUNDS = 10;
+
+	/** Number of characters in a MB. */
+	private static final int MB = 1024 * 1024;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args optional size of the template in MB
+	 */
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		String template = template(size * MB);
+		run("scan", template, () -> scan(template));
+		run("parse", template, () -> new SmartScriptParser(template).getDocumentNode().numberOfChildren());
+	}
+
+	/**
+	 * Builds a template of a given size.
+	 *
+	 * @param size number of characters
+	 * @return the template
+	 */
+	private static String template(int size) {
+		StringBuilder sb = new StringBuilder(size + 256);
+		sb.append("<html><body><table>\r\n");
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("  <tr class=\"row\"><td>{$= \"Row\" ").append(i).append(" @paramGet $}</td>\r\n")
+				.append("    <td>{$FOR k 1 ").append(i % 10).append(" 1 $}{$= k 2.5 * \"\\\"\" @decfmt $}{$END$}</td>\r\n")
+				.append("    <td>{$= -").append(i % 97).append(" 0.25 + \"a\\\\b\\n\" @tparamSet $}</td></tr>\r\n")
+				.append("  <!-- plain text between rows keeps the text scanner busy as well \\{ -->\r\n");
+		}
+		return sb.append("</table></body></html>\r\n").toString();
+	}
+
+	/**
+	 * Scans all tokens of a template without creating their elements.
+	 *
+	 * @param template the template
+	 * @return number of tokens
+	 */
+	private static int scan(String template) {
+		SmartScriptLexer lexer = new SmartScriptLexer(template);
+		int count = 0;
+		ScriptToken token;
+		do {
+			token = lexer.nextToken();
+			count += token.getLength();
+		} while (token.getType() != TokenType.EOF);
+		return count;
+	}
+
+	/**
+	 * Measures a single case.
+	 *
+	 * @param name name of the case
+	 * @param template the template
+	 * @param task the measured work, returns a value that keeps it from being
+	 *            optimized away
+	 */
+	private static void run(String name, String template, java.util.function.IntSupplier task) {
+		int sink = 0;
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			sink += task.getAsInt();
+		}
+		long best = Long.MAX_VALUE;
+		long total = 0;
+		for (int i = 0; i < ROUNDS; i++) {
+			long start = System.nanoTime();
+			sink += task.getAsInt();
+			long time = System.nanoTime() - start;
+			best = Math.min(best, time);
+			total += time;
+		}
+		double mb = (double) template.length() / MB;
+		System.out.printf("%-6s avg %8.1f MB/s  best %8.1f MB/s  (%d)%n", name, mb / (total / 1e9 / ROUNDS),
+				mb / (best / 1e9), sink);
+	}
+}
@@ -0,0 +1,109 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import hr.fer.zemris.java.webserver.PropertyKeys;
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+
+/**
+ * Load test that compares the fixed thread pool execution mode of
+ * {@link SmartHttpServer} with the virtual thread mode. For every number of
+ * concurrent keep-alive clients the server is started in both modes and
+ * driven by a {@link LoadGenerator} against {@link SlowWorker}, which blocks
+ * for 20 ms per request like a worker waiting for a database would.
+ * 
+ * <pre>
+ * java ExecutionModeLoadTest config/server.properties 1000 5000 10000
+ * </pre>
+ * 
+ * Large client counts need a high open file limit (<code>ulimit -n</code>).
+ * The route concurrency limit is disabled for the comparison.
+ * 
+ * @author Ante Spajic
+ */
+public class ExecutionModeLoadTest {
+
+	/** Warm-up duration in milliseconds. */
+	private static final long WARMUP = 5000;
+
+	/** Measured duration in milliseconds. */
+	private static final long DURATION = 10000;
+
+	/**
+	 * Runs the comparison.
+	 *
+	 * @param args path to server.properties followed by client counts
+	 * @throws IOException if the configuration can not be read
+	 * @throws InterruptedException if interrupted while waiting for the server
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			throw new IllegalArgumentException("Must provide path to server.properties and client counts.");
+		}
+		Properties base = new Properties();
+		try (InputStream is = Files.newInputStream(Paths.get(args[0]))) {
+			base.load(is);
+		}
+		int[] clients = new int[Math.max(1, args.length - 1)];
+		clients[0] = 1000;
+		for (int i = 1; i < args.length; i++) {
+			clients[i - 1] = Integer.parseInt(args[i]);
+		}
+		int port = Integer.parseInt(base.getProperty(PropertyKeys.PORT)) + 1;
+		for (int count : clients) {
+			for (String mode : new String[] { SmartHttpServer.MODE_POOL, SmartHttpServer.MODE_VIRTUAL }) {
+				Path config = writeConfig(base, mode, port);
+				SmartHttpServer server = new SmartHttpServer(config.toString());
+				server.start();
+				Thread.sleep(500);
+				LoadGenerator generator = new LoadGenerator(
+						new InetSocketAddress(base.getProperty(PropertyKeys.ADDRESS), port), count, "/slow");
+				LoadResult result = generator.run(WARMUP, DURATION);
+				System.out.printf("%6d clients  %-8s %s%n", count, mode, result);
+				server.stop();
+				Files.delete(config);
+				port++;
+			}
+		}
+	}
+
+	/**
+	 * Writes a server configuration derived from the base configuration.
+	 *
+	 * @param base the base configuration
+	 * @param mode the execution mode
+	 * @param port the port to listen on
+	 * @return path to the written configuration
+	 * @throws IOException if the configuration can not be written
+	 */
+	private static Path writeConfig(Properties base, String mode, int port) throws IOException {
+		Properties workers = new Properties();
+		try (InputStream is = Files.newInputStream(Paths.get(base.getProperty(PropertyKeys.WORKERS_CONFIG)))) {
+			workers.load(is);
+		}
+		workers.setProperty("/slow", SlowWorker.class.getName());
+		Path workersConfig = Files.createTempFile("workers", ".properties");
+		workersConfig.toFile().deleteOnExit();
+		try (OutputStream os = Files.newOutputStream(workersConfig)) {
+			workers.store(os, null);
+		}
+		Properties config = new Properties();
+		config.putAll(base);
+		config.setProperty(PropertyKeys.PORT, Integer.toString(port));
+		config.setProperty(PropertyKeys.EXECUTION_MODE, mode);
+		config.setProperty(PropertyKeys.ROUTE_CONCURRENCY, "0");
+		config.setProperty(PropertyKeys.WORKERS_CONFIG, workersConfig.toString());
+		Path path = Files.createTempFile("server", ".properties");
+		try (OutputStream os = Files.newOutputStream(path)) {
+			config.store(os, null);
+		}
+		return path;
+	}
+}
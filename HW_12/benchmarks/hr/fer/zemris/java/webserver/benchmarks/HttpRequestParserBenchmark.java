@@ -0,0 +1,194 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hr.fer.zemris.java.webserver.HttpRequestParser;
+
+/**
+ * Micro benchmark of request header parsing on a single core. A typical
+ * browser request with a query and cookies is parsed and the parts the server
+ * uses are taken from it: path, parameters, keep-alive, host, cookies and the
+ * validator headers. {@link HttpRequestParser} is compared with the previous
+ * parsing, which created a string of the whole header and split it into lines
+ * and fields.
+ *
+ * <pre>
+ * java HttpRequestParserBenchmark [requests per round]
+ * </pre>
+ *
+ * The number of requests parsed per second in the best measured round is
+ * printed.
+ *
+ * @author Ante Spajic
+ */
+public class HttpRequestParserBenchmark {
+
+	/** Number of warm-up rounds. */
+	private static final int WARMUP_ROUNDS = 10;
+
+	/** Number of measured rounds. */
+	private static final int ROUNDS = 20;
+
+	/** The request. */
+	private static final byte[] REQUEST = ("GET /ext/EchoParams?name=Ante+Spaji%C4%87&a=1&b=2 HTTP/1.1\r\n"
+			+ "Host: localhost:5721\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Encoding: gzip, deflate\r\n"
+			+ "Accept-Language: hr-HR,hr;q=0.9,en-US;q=0.8,en;q=0.7\r\n"
+			+ "Cookie: sid=QWERTYUIOPASDFGHJKLZ; theme=dark\r\n"
+			+ "If-None-Match: \"1a2b-3c4d\"\r\n"
+			+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	/** Keeps the results alive so parsing can not be optimized away. */
+	private static int sink;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args optional number of requests per round
+	 */
+	public static void main(String[] args) {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		ByteBuffer buffer = ByteBuffer.wrap(REQUEST);
+		HttpRequestParser parser = new HttpRequestParser();
+		run("string split", requests, () -> legacy(REQUEST));
+		run("parser", requests, () -> parse(parser, buffer));
+	}
+
+	/**
+	 * Parses the request with the parser.
+	 *
+	 * @param parser the parser
+	 * @param buffer buffer holding the request
+	 * @return a value depending on the parsed parts
+	 */
+	private static int parse(HttpRequestParser parser, ByteBuffer buffer) {
+		parser.reset();
+		parser.parse(buffer, buffer.limit());
+		Map<String, String> params = new HashMap<>();
+		if (parser.isValid() && parser.isMethod("GET") && parser.isVersion("HTTP/1.1")) {
+			parser.parseParameters(params);
+		}
+		int result = parser.getPath().length() + params.size();
+		result += parser.headerContains("Connection", "close") ? 1 : 0;
+		result += parser.getHeader("Host").length();
+		for (int h = parser.indexOfHeader("Cookie", 0); h >= 0; h = parser.indexOfHeader("Cookie", h + 1)) {
+			result += parser.getHeaderValue(h).length();
+		}
+		result += parser.getHeader("If-None-Match").length();
+		return result + (parser.getHeader("Range") == null ? 0 : 1);
+	}
+
+	/**
+	 * Parses the request like the server did before the parser.
+	 *
+	 * @param header the request header
+	 * @return a value depending on the parsed parts
+	 */
+	private static int legacy(byte[] header) {
+		String requestHeader = new String(header, StandardCharsets.US_ASCII);
+		List<String> request = new ArrayList<>();
+		for (String s : requestHeader.split("\n")) {
+			if (s.isEmpty() || s.equals("\r")) break;
+			request.add(s.endsWith("\r") ? s.substring(0, s.length() - 1) : s);
+		}
+		String[] info = request.get(0).split(" ");
+		Map<String, String> params = new HashMap<>();
+		String[] reqPath = info[1].split("\\?");
+		if (info[0].toUpperCase().equals("GET") && info[2].toUpperCase().equals("HTTP/1.1") && reqPath.length > 1) {
+			for (String group : reqPath[1].split("&")) {
+				String[] nameVal = group.trim().split("=");
+				params.put(nameVal[0].trim(), nameVal[1].trim());
+			}
+		}
+		int result = reqPath[0].length() + params.size();
+		for (String line : request) {
+			if (line.regionMatches(true, 0, "Connection:", 0, "Connection:".length())
+					&& line.substring("Connection:".length()).toLowerCase().contains("close")) {
+				result++;
+			}
+			if (line.startsWith("Host:")) {
+				result += line.substring("Host:".length()).trim().length();
+			}
+			if (line.startsWith("Cookie:")) {
+				for (String cookie : line.substring("Cookie:".length()).trim().split(";")) {
+					result += cookie.split("=").length;
+				}
+			}
+		}
+		result += header(request, "If-None-Match").length();
+		return result + (header(request, "Range") == null ? 0 : 1);
+	}
+
+	/**
+	 * Returns the value of a header from a list of header lines.
+	 *
+	 * @param request header lines
+	 * @param name name of the header
+	 * @return the value or null if there is none
+	 */
+	private static String header(List<String> request, String name) {
+		for (String line : request) {
+			if (line.length() > name.length() && line.charAt(name.length()) == ':'
+					&& line.regionMatches(true, 0, name, 0, name.length())) {
+				return line.substring(name.length() + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Measures a single parsing method.
+	 *
+	 * @param name name of the method
+	 * @param requests number of requests per round
+	 * @param parse parses a single request
+	 */
+	private static void run(String name, int requests, Parse parse) {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			round(requests, parse);
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			best = Math.min(best, round(requests, parse));
+		}
+		System.out.printf("%-13s %,12.0f requests/s  %7.1f ns/request%n", name, requests * 1e9 / best,
+				(double) best / requests);
+	}
+
+	/**
+	 * Runs a single round.
+	 *
+	 * @param requests number of requests
+	 * @param parse parses a single request
+	 * @return duration of the round in nanoseconds
+	 */
+	private static long round(int requests, Parse parse) {
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			sink += parse.run();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Parsing of a single request.
+	 */
+	@FunctionalInterface
+	private interface Parse {
+
+		/**
+		 * Parses the request.
+		 *
+		 * @return a value depending on the parsed parts
+		 */
+		int run();
+	}
+}
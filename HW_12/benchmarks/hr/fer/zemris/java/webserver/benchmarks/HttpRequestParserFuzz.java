@@ -0,0 +1,218 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import hr.fer.zemris.java.webserver.HttpRequestParser;
+
+/**
+ * Randomized check of {@link HttpRequestParser}. Every round generates a
+ * request with random parameters and headers and checks that:
+ * <ul>
+ * <li>the parsed path, parameters and header values are the generated ones,
+ * </li>
+ * <li>feeding the request in randomly sized pieces gives the same result as
+ * feeding it at once,</li>
+ * <li>a copy with random bytes mutated, inserted or removed is either parsed
+ * or reported incomplete, but never makes the parser throw.</li>
+ * </ul>
+ *
+ * <pre>
+ * java HttpRequestParserFuzz [rounds] [seed]
+ * </pre>
+ *
+ * The process exits with status 1 on the first failure, printing the request.
+ *
+ * @author Ante Spajic
+ */
+public class HttpRequestParserFuzz {
+
+	/** Characters parameter names and values are made of. */
+	private static final String ALPHABET = "abcXYZ019 +-_.~%&=?/:;\"'čšž€";
+
+	/**
+	 * Runs the check.
+	 *
+	 * @param args optional number of rounds and random seed
+	 * @throws UnsupportedEncodingException never, UTF-8 is always supported
+	 */
+	public static void main(String[] args) throws UnsupportedEncodingException {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		Random random = new Random(seed);
+		HttpRequestParser parser = new HttpRequestParser();
+		for (int round = 0; round < rounds; round++) {
+			Map<String, String> params = new HashMap<>();
+			Map<String, String> headers = new HashMap<>();
+			byte[] request = generate(random, params, headers);
+
+			parser.reset();
+			check(parser.parse(ByteBuffer.wrap(request), request.length), "complete", request, seed);
+			check(parser.getLength() == request.length, "length", request, seed);
+			check(parser.isValid() && parser.isMethod("get") && parser.isVersion("HTTP/1.1"), "request line",
+					request, seed);
+			check(parser.getPath().equals("/some/path"), "path", request, seed);
+			Map<String, String> parsed = new HashMap<>();
+			parser.parseParameters(parsed);
+			check(parsed.equals(params), "parameters " + parsed + " " + params, request, seed);
+			for (Map.Entry<String, String> e : headers.entrySet()) {
+				check(e.getValue().equals(parser.getHeader(e.getKey().toUpperCase())), "header " + e.getKey(),
+						request, seed);
+			}
+			String whole = describe(parser);
+
+			parser.reset();
+			ByteBuffer buffer = ByteBuffer.wrap(request);
+			boolean complete = false;
+			for (int limit = 0; !complete;) {
+				limit = Math.min(request.length, limit + 1 + random.nextInt(16));
+				complete = parser.parse(buffer, limit);
+				check(complete == (limit == request.length), "incremental", request, seed);
+			}
+			check(describe(parser).equals(whole), "incremental result", request, seed);
+
+			byte[] mutated = mutate(random, request);
+			parser.reset();
+			try {
+				if (parser.parse(ByteBuffer.wrap(mutated), mutated.length)) {
+					describe(parser);
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				check(false, "exception", mutated, seed);
+			}
+		}
+		System.out.println(rounds + " rounds passed, seed " + seed);
+	}
+
+	/**
+	 * Generates a valid request.
+	 *
+	 * @param random source of randomness
+	 * @param params map the generated parameters are put into
+	 * @param headers map the generated headers are put into
+	 * @return the request
+	 * @throws UnsupportedEncodingException never
+	 */
+	private static byte[] generate(Random random, Map<String, String> params, Map<String, String> headers)
+			throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = random.nextInt(3); i > 0; i--) {
+			sb.append(random.nextBoolean() ? "\r\n" : "\n");
+		}
+		sb.append("GET /some/path");
+		int count = random.nextInt(5);
+		for (int i = 0; i < count; i++) {
+			String name = "p" + i + text(random);
+			String value = text(random);
+			params.put(name, value);
+			sb.append(i == 0 ? '?' : '&').append(URLEncoder.encode(name, "UTF-8"));
+			if (!value.isEmpty() || random.nextBoolean()) {
+				sb.append('=').append(URLEncoder.encode(value, "UTF-8"));
+			}
+		}
+		sb.append(" HTTP/1.1");
+		String eol = random.nextBoolean() ? "\r\n" : "\n";
+		sb.append(eol);
+		for (int i = random.nextInt(8); i > 0; i--) {
+			String name = "X-Header-" + i;
+			String value = text(random).replaceAll("[^\\x20-\\x7e]", "x").trim();
+			headers.put(name, value);
+			sb.append(name).append(':').append(random.nextBoolean() ? " " : "").append(value);
+			sb.append(random.nextBoolean() ? "\t" : "").append(eol);
+		}
+		sb.append(eol);
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns a random string of up to eight characters.
+	 *
+	 * @param random source of randomness
+	 * @return the string
+	 */
+	private static String text(Random random) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = random.nextInt(9); i > 0; i--) {
+			sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Mutates, inserts or removes a few random bytes of a request.
+	 *
+	 * @param random source of randomness
+	 * @param request the request
+	 * @return the mutated copy
+	 */
+	private static byte[] mutate(Random random, byte[] request) {
+		List<Byte> bytes = new ArrayList<>();
+		for (byte b : request) {
+			bytes.add(b);
+		}
+		byte[] interesting = { ' ', '\r', '\n', '\t', ':', '?', '&', '=', '%', '/', 0, (byte) 0xff };
+		for (int i = 1 + random.nextInt(4); i > 0 && !bytes.isEmpty(); i--) {
+			int index = random.nextInt(bytes.size());
+			byte b = random.nextBoolean() ? interesting[random.nextInt(interesting.length)] : (byte) random.nextInt();
+			switch (random.nextInt(3)) {
+			case 0:
+				bytes.set(index, b);
+				break;
+			case 1:
+				bytes.add(index, b);
+				break;
+			default:
+				bytes.remove(index);
+			}
+		}
+		byte[] result = new byte[bytes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bytes.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Describes everything the parser has parsed.
+	 *
+	 * @param parser the parser
+	 * @return the description
+	 */
+	private static String describe(HttpRequestParser parser) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(parser.getLength()).append(parser.isValid()).append(parser.getPath()).append(parser.hasQuery());
+		Map<String, String> params = new HashMap<>();
+		parser.parseParameters(params);
+		sb.append(params);
+		for (int i = 0; i < parser.getHeaderCount(); i++) {
+			sb.append('|').append(parser.getHeaderValue(i));
+		}
+		return sb.append(parser.headerContains("Connection", "close")).toString();
+	}
+
+	/**
+	 * Exits if a condition does not hold.
+	 *
+	 * @param condition the condition
+	 * @param what what has been checked
+	 * @param request the request
+	 * @param seed random seed of the run
+	 */
+	private static void check(boolean condition, String what, byte[] request, long seed) {
+		if (condition) {
+			return;
+		}
+		System.out.println("Failed: " + what + ", seed " + seed);
+		System.out.println(Objects.toString(new String(request, StandardCharsets.ISO_8859_1)));
+		System.exit(1);
+	}
+}
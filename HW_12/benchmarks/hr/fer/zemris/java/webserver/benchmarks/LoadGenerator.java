@@ -0,0 +1,621 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * HTTP/1.1 load generator. A single selector drives a fixed number of
+ * keep-alive connections. In a closed loop every connection sends its next
+ * request as soon as the previous response has been completely received. In
+ * an open loop requests are due at a fixed rate regardless of how fast the
+ * server responds, a due request is sent on the next free connection and its
+ * latency is measured from the time it was due, so time spent waiting for a
+ * connection is not hidden. Responses delimited by
+ * <code>Content-Length</code>, chunked transfer encoding or by closing the
+ * connection are supported, closed connections are reopened.
+ *
+ * @author Ante Spajic
+ */
+public class LoadGenerator {
+
+	/** The server address. */
+	private final InetSocketAddress address;
+
+	/** Number of concurrent connections. */
+	private final int connections;
+
+	/** Requests sent round-robin by every connection. */
+	private final byte[][] requests;
+
+	/**
+	 * Instantiates a new load generator.
+	 *
+	 * @param address the server address
+	 * @param connections number of concurrent keep-alive connections
+	 * @param paths request paths (with query) sent round-robin
+	 */
+	public LoadGenerator(InetSocketAddress address, int connections, String... paths) {
+		if (paths.length == 0) {
+			throw new IllegalArgumentException("At least one path must be provided");
+		}
+		this.address = address;
+		this.connections = connections;
+		this.requests = new byte[paths.length][];
+		for (int i = 0; i < paths.length; i++) {
+			requests[i] = ("GET " + paths[i] + " HTTP/1.1\r\n"
+					+ "Host: " + address.getHostString() + ":" + address.getPort() + "\r\n"
+					+ "\r\n").getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * Runs the load in a closed loop, only responses completed after the
+	 * warm-up are measured.
+	 *
+	 * @param warmupMillis warm-up duration in milliseconds
+	 * @param durationMillis measured duration in milliseconds
+	 * @return the measured result
+	 * @throws IOException if the selector can not be opened
+	 */
+	public LoadResult run(long warmupMillis, long durationMillis) throws IOException {
+		return run(null, warmupMillis, durationMillis);
+	}
+
+	/**
+	 * Runs the load in an open loop at a fixed rate, only responses completed
+	 * after the warm-up are measured.
+	 *
+	 * @param rate number of requests per second
+	 * @param warmupMillis warm-up duration in milliseconds
+	 * @param durationMillis measured duration in milliseconds
+	 * @return the measured result
+	 * @throws IOException if the selector can not be opened
+	 */
+	public LoadResult runOpen(double rate, long warmupMillis, long durationMillis) throws IOException {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		return run(new Schedule(rate), warmupMillis, durationMillis);
+	}
+
+	/**
+	 * Runs the load.
+	 *
+	 * @param schedule schedule of an open loop, null for a closed loop
+	 * @param warmupMillis warm-up duration in milliseconds
+	 * @param durationMillis measured duration in milliseconds
+	 * @return the measured result
+	 * @throws IOException if the selector can not be opened
+	 */
+	private LoadResult run(Schedule schedule, long warmupMillis, long durationMillis) throws IOException {
+		Recorder recorder = new Recorder();
+		try (Selector selector = Selector.open()) {
+			List<Client> clients = new ArrayList<>();
+			long start = System.nanoTime();
+			if (schedule != null) {
+				schedule.start = start;
+				schedule.next = start;
+			}
+			for (int i = 0; i < connections; i++) {
+				Client client = new Client(i, recorder, schedule);
+				client.open(selector);
+				clients.add(client);
+			}
+			recorder.measureFrom = start + warmupMillis * 1_000_000L;
+			long end = recorder.measureFrom + durationMillis * 1_000_000L;
+			long now;
+			while ((now = System.nanoTime()) < end) {
+				long timeout = 100;
+				if (schedule != null) {
+					schedule.dispatch(now, selector, recorder);
+					timeout = Math.max(1, Math.min(timeout, (schedule.next - now) / 1_000_000));
+				}
+				selector.select(timeout);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Client client = (Client) key.attachment();
+					try {
+						client.handle(key, selector);
+					} catch (IOException e) {
+						recorder.errors++;
+						client.reopen(selector);
+					}
+				}
+			}
+			if (schedule != null) {
+				schedule.finish(end, clients, recorder);
+			}
+			for (Client client : clients) {
+				client.close();
+			}
+		}
+		return recorder.toResult(durationMillis);
+	}
+
+	/**
+	 * Arrivals of an open loop and the connections waiting for them.
+	 */
+	private static class Schedule {
+		/** Nanoseconds between two arrivals. */
+		final double interval;
+		/** Time the next request is due. */
+		long next;
+		/** Number of requests that have been due. */
+		private long arrivals;
+		/** Time the first request is due. */
+		long start;
+		/** Due times of requests waiting for a free connection. */
+		final ArrayDeque<Long> backlog = new ArrayDeque<>();
+		/** Connections waiting for a request. */
+		final ArrayDeque<Client> idle = new ArrayDeque<>();
+
+		/**
+		 * Instantiates a new schedule.
+		 *
+		 * @param rate number of requests per second
+		 */
+		Schedule(double rate) {
+			this.interval = 1e9 / rate;
+		}
+
+		/**
+		 * Queues the requests that have become due.
+		 *
+		 * @param now the current time
+		 */
+		private void arrive(long now) {
+			while (next <= now) {
+				backlog.add(next);
+				arrivals++;
+				next = start + (long) (arrivals * interval);
+			}
+		}
+
+		/**
+		 * Queues the requests that have become due and sends them on free
+		 * connections.
+		 *
+		 * @param now the current time
+		 * @param selector the load generator selector
+		 * @param recorder the recorder of the run
+		 */
+		void dispatch(long now, Selector selector, Recorder recorder) {
+			arrive(now);
+			while (!backlog.isEmpty() && !idle.isEmpty()) {
+				Client client = idle.poll();
+				try {
+					client.send(client.channel.keyFor(selector), backlog.poll());
+				} catch (IOException e) {
+					recorder.errors++;
+					client.reopen(selector);
+				}
+			}
+		}
+
+		/**
+		 * Records the requests that were due but not complete when the run
+		 * ended, with the time they had waited until then, so an overloaded
+		 * server is not measured only by the requests it managed to serve.
+		 *
+		 * @param end the end of the run
+		 * @param clients the connections, busy ones have a request in flight
+		 * @param recorder the recorder of the run
+		 */
+		void finish(long end, List<Client> clients, Recorder recorder) {
+			arrive(end);
+			for (Long dueAt : backlog) {
+				recorder.unfinished(dueAt, end);
+			}
+			backlog.clear();
+			for (Client client : clients) {
+				if (client.busy) {
+					recorder.unfinished(client.sentAt, end);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects the latencies and counters of a run.
+	 */
+	private static class Recorder {
+		/** Responses completed before this time are not measured. */
+		long measureFrom;
+		/** Measured latencies in nanoseconds. */
+		long[] latencies = new long[1 << 16];
+		/** Number of measured responses. */
+		int count;
+		/** Number of requests not complete when the run ended. */
+		long unfinished;
+		/** Number of failed requests. */
+		long errors;
+		/** Number of received bytes. */
+		long bytes;
+		/** Status codes other than 2xx/3xx. */
+		long badStatus;
+
+		/**
+		 * Records a completed response.
+		 *
+		 * @param sentAt time the request was sent
+		 * @param now completion time
+		 * @param status the response status code
+		 */
+		void record(long sentAt, long now, int status) {
+			if (now < measureFrom) {
+				return;
+			}
+			if (status >= 400) {
+				badStatus++;
+			}
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = now - sentAt;
+		}
+
+		/**
+		 * Records a request of an open loop that was not complete when the run
+		 * ended.
+		 *
+		 * @param dueAt time the request was due
+		 * @param end the end of the run
+		 */
+		void unfinished(long dueAt, long end) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = end - dueAt;
+			unfinished++;
+		}
+
+		/**
+		 * Creates the result of the run.
+		 *
+		 * @param durationMillis measured duration
+		 * @return the result
+		 */
+		LoadResult toResult(long durationMillis) {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			return new LoadResult(sorted, durationMillis, unfinished, errors, badStatus, bytes);
+		}
+	}
+
+	/**
+	 * A single client connection and the state of its current response.
+	 */
+	private class Client {
+		/** Index of the client, determines the first request path. */
+		private int next;
+		/** The recorder of the run. */
+		private final Recorder recorder;
+		/** Schedule of an open loop, null for a closed loop. */
+		private final Schedule schedule;
+		/** True while a request has been sent and its response not received. */
+		private boolean busy;
+		/** The channel. */
+		private SocketChannel channel;
+		/** Request bytes still to be written. */
+		private ByteBuffer out;
+		/** Bytes of the response being read. */
+		private final ByteBuffer in = ByteBuffer.allocate(16384);
+		/** Time the current request was sent. */
+		private long sentAt;
+		/** Parser of the current response. */
+		private final ResponseParser parser = new ResponseParser();
+
+		/**
+		 * Instantiates a new client.
+		 *
+		 * @param index index of the client
+		 * @param recorder the recorder of the run
+		 * @param schedule schedule of an open loop, null for a closed loop
+		 */
+		Client(int index, Recorder recorder, Schedule schedule) {
+			this.next = index;
+			this.recorder = recorder;
+			this.schedule = schedule;
+		}
+
+		/**
+		 * Opens a new connection.
+		 *
+		 * @param selector the load generator selector
+		 * @throws IOException if the connection can not be opened
+		 */
+		void open(Selector selector) throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			busy = false;
+			if (channel.connect(address)) {
+				channel.register(selector, 0, this);
+				ready(channel.keyFor(selector));
+			} else {
+				channel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+
+		/**
+		 * Closes the current connection and opens a new one.
+		 *
+		 * @param selector the load generator selector
+		 */
+		void reopen(Selector selector) {
+			if (schedule != null) {
+				schedule.idle.remove(this);
+			}
+			close();
+			try {
+				open(selector);
+			} catch (IOException e) {
+				recorder.errors++;
+			}
+		}
+
+		/**
+		 * Closes the connection.
+		 */
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException ignore) {}
+		}
+
+		/**
+		 * Handles a ready key of this client.
+		 *
+		 * @param key the selected key
+		 * @param selector the load generator selector
+		 * @throws IOException if an I/O error occurs
+		 */
+		void handle(SelectionKey key, Selector selector) throws IOException {
+			if (key.isConnectable()) {
+				channel.finishConnect();
+				ready(key);
+			} else if (key.isWritable()) {
+				write(key);
+			} else if (key.isReadable()) {
+				read(key, selector);
+			}
+		}
+
+		/**
+		 * Sends the next request right away in a closed loop. In an open loop
+		 * the next request waiting for a connection is sent, if there is
+		 * none the client waits for one.
+		 *
+		 * @param key the key of this client
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void ready(SelectionKey key) throws IOException {
+			if (schedule == null) {
+				send(key, System.nanoTime());
+			} else if (!schedule.backlog.isEmpty()) {
+				send(key, schedule.backlog.poll());
+			} else {
+				busy = false;
+				key.interestOps(SelectionKey.OP_READ);
+				schedule.idle.add(this);
+			}
+		}
+
+		/**
+		 * Starts sending the next request.
+		 *
+		 * @param key the key of this client
+		 * @param dueAt time the request is measured from
+		 * @throws IOException if an I/O error occurs
+		 */
+		void send(SelectionKey key, long dueAt) throws IOException {
+			out = ByteBuffer.wrap(requests[next++ % requests.length]);
+			parser.reset();
+			in.clear();
+			busy = true;
+			sentAt = dueAt;
+			write(key);
+		}
+
+		/**
+		 * Writes the rest of the request.
+		 *
+		 * @param key the key of this client
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void write(SelectionKey key) throws IOException {
+			channel.write(out);
+			key.interestOps(out.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Reads available response bytes.
+		 *
+		 * @param key the key of this client
+		 * @param selector the load generator selector
+		 * @throws IOException if an I/O error occurs
+		 */
+		private void read(SelectionKey key, Selector selector) throws IOException {
+			int n = channel.read(in);
+			if (n < 0 && !busy) {
+				// an idle connection closed by the server
+				reopen(selector);
+				return;
+			}
+			if (n < 0) {
+				if (!parser.complete(true)) {
+					throw new IOException("Connection closed before the response was complete");
+				}
+				recorder.record(sentAt, System.nanoTime(), parser.status);
+				reopen(selector);
+				return;
+			}
+			recorder.bytes += n;
+			in.flip();
+			parser.feed(in);
+			in.clear();
+			if (parser.complete(false)) {
+				recorder.record(sentAt, System.nanoTime(), parser.status);
+				if (parser.close) {
+					reopen(selector);
+				} else {
+					ready(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Incremental parser that only determines where a response ends.
+	 */
+	static class ResponseParser {
+		/** Bytes of the header read so far. */
+		private final StringBuilder header = new StringBuilder();
+		/** True once the header has been read. */
+		private boolean headerDone;
+		/** The status code. */
+		int status;
+		/** True if the server closes the connection after the response. */
+		boolean close;
+		/** True if the body is chunked. */
+		private boolean chunked;
+		/** Body bytes still expected, -1 if delimited by closing the connection. */
+		private long remaining;
+		/** Chunk parsing state: 0 size, 1 data, 2 data CRLF, 3 trailer, 4 done. */
+		private int chunkState;
+		/** Size of the chunk being parsed. */
+		private long chunkSize;
+		/** Length of the current trailer line. */
+		private int trailerLine;
+
+		/**
+		 * Resets the parser for a new response.
+		 */
+		void reset() {
+			header.setLength(0);
+			headerDone = false;
+			status = 0;
+			close = false;
+			chunked = false;
+			remaining = -1;
+			chunkState = 0;
+			chunkSize = 0;
+			trailerLine = 0;
+		}
+
+		/**
+		 * Consumes response bytes.
+		 *
+		 * @param buffer bytes to consume
+		 */
+		void feed(ByteBuffer buffer) {
+			while (!headerDone && buffer.hasRemaining()) {
+				char c = (char) (buffer.get() & 0xFF);
+				header.append(c);
+				int len = header.length();
+				if (c == '\n' && len >= 4 && header.charAt(len - 2) == '\r' && header.charAt(len - 3) == '\n') {
+					parseHeader();
+				}
+			}
+			if (!headerDone) {
+				return;
+			}
+			if (!chunked) {
+				if (remaining > 0) {
+					remaining -= Math.min(remaining, buffer.remaining());
+				}
+				buffer.position(buffer.limit());
+				return;
+			}
+			while (buffer.hasRemaining() && chunkState != 4) {
+				switch (chunkState) {
+				case 0:
+					char c = (char) buffer.get();
+					if (c == '\n') {
+						chunkState = chunkSize == 0 ? 3 : 1;
+					} else if (Character.digit(c, 16) >= 0) {
+						chunkSize = chunkSize * 16 + Character.digit(c, 16);
+					}
+					break;
+				case 1:
+					int skip = (int) Math.min(chunkSize, buffer.remaining());
+					buffer.position(buffer.position() + skip);
+					chunkSize -= skip;
+					if (chunkSize == 0) {
+						chunkState = 2;
+					}
+					break;
+				case 2:
+					if (buffer.get() == '\n') {
+						chunkState = 0;
+					}
+					break;
+				case 3:
+					byte b = buffer.get();
+					if (b == '\n') {
+						chunkState = trailerLine == 0 ? 4 : 3;
+						trailerLine = 0;
+					} else if (b != '\r') {
+						trailerLine++;
+					}
+					break;
+				}
+			}
+		}
+
+		/**
+		 * Parses the status line and the headers that delimit the body.
+		 */
+		private void parseHeader() {
+			headerDone = true;
+			String[] lines = header.toString().split("\r\n");
+			String[] statusLine = lines[0].split(" ");
+			status = statusLine.length > 1 ? Integer.parseInt(statusLine[1]) : 0;
+			for (String line : lines) {
+				String lower = line.toLowerCase();
+				if (lower.startsWith("content-length:")) {
+					remaining = Long.parseLong(line.substring("content-length:".length()).trim());
+				} else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+					chunked = true;
+				} else if (lower.startsWith("connection:") && lower.contains("close")) {
+					close = true;
+				}
+			}
+			if (status == 304 || status == 204) {
+				remaining = 0;
+			}
+			if (remaining < 0 && !chunked) {
+				close = true;
+			}
+		}
+
+		/**
+		 * Checks if the whole response has been received.
+		 *
+		 * @param eof true if the connection has been closed by the server
+		 * @return true if the response is complete
+		 */
+		boolean complete(boolean eof) {
+			if (!headerDone) {
+				return false;
+			}
+			if (chunked) {
+				return chunkState == 4;
+			}
+			return remaining < 0 ? eof : remaining == 0;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+/**
+ * Result of a single {@link LoadGenerator} run: throughput, latency
+ * percentiles and error counters.
+ *
+ * @author Ante Spajic
+ */
+public class LoadResult {
+
+	/** Sorted latencies in nanoseconds. */
+	private final long[] latencies;
+
+	/** Measured duration in milliseconds. */
+	private final long durationMillis;
+
+	/** Number of requests not complete when the run ended. */
+	private final long unfinished;
+
+	/** Number of failed requests. */
+	private final long errors;
+
+	/** Number of responses with an error status code. */
+	private final long badStatus;
+
+	/** Number of received bytes. */
+	private final long bytes;
+
+	/**
+	 * Instantiates a new load result.
+	 *
+	 * @param latencies sorted latencies in nanoseconds, including those of
+	 *            unfinished requests up to the end of the run
+	 * @param durationMillis measured duration in milliseconds
+	 * @param unfinished number of requests that were waiting or in flight
+	 *            when the run ended
+	 * @param errors number of failed requests
+	 * @param badStatus number of responses with status 4xx or 5xx
+	 * @param bytes number of received bytes
+	 */
+	public LoadResult(long[] latencies, long durationMillis, long unfinished, long errors, long badStatus,
+			long bytes) {
+		this.latencies = latencies;
+		this.durationMillis = durationMillis;
+		this.unfinished = unfinished;
+		this.errors = errors;
+		this.badStatus = badStatus;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Returns the number of completed requests per second.
+	 *
+	 * @return the throughput
+	 */
+	public double throughput() {
+		return requests() * 1000.0 / durationMillis;
+	}
+
+	/**
+	 * Returns the latency at the provided percentile in milliseconds. Requests
+	 * that were not complete when the run ended count with the time they had
+	 * waited until then.
+	 *
+	 * @param percentile percentile between 0 and 100
+	 * @return the latency in milliseconds, 0 if nothing was measured
+	 */
+	public double percentile(double percentile) {
+		if (latencies.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+		return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+	}
+
+	/**
+	 * Returns the number of completed requests.
+	 *
+	 * @return the number of requests
+	 */
+	public int requests() {
+		return (int) (latencies.length - unfinished);
+	}
+
+	/**
+	 * Returns the number of requests of an open loop that were waiting for a
+	 * connection or for their response when the run ended.
+	 *
+	 * @return the number of unfinished requests
+	 */
+	public long unfinished() {
+		return unfinished;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%10.1f req/s  p50 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms  max %8.2f ms"
+				+ "  unfinished %d  errors %d  status>=400 %d  %.1f MB/s",
+				throughput(), percentile(50), percentile(99), percentile(99.9), percentile(100),
+				unfinished, errors, badStatus, bytes / 1048576.0 / (durationMillis / 1000.0));
+	}
+}
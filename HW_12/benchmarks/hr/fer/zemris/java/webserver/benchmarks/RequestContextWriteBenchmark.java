@@ -0,0 +1,133 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Micro benchmark of {@link RequestContext#write} on a single core. Every
+ * response is written by a new request context, like the server creates one
+ * per request, and consists of a number of writes of the same size: short
+ * strings like the ones smart scripts and workers write, small and large byte
+ * arrays like cached static text and files. Short strings are also written
+ * without a response buffer, where every write reaches the output stream.
+ * Output is discarded.
+ *
+ * <pre>
+ * java RequestContextWriteBenchmark [writes per response]
+ * </pre>
+ *
+ * The time per write and the throughput of the best measured round are
+ * printed.
+ *
+ * @author Ante Spajic
+ */
+public class RequestContextWriteBenchmark {
+
+	/** Number of warm-up rounds. */
+	private static final int WARMUP_ROUNDS = 10;
+
+	/** Number of measured rounds. */
+	private static final int ROUNDS = 20;
+
+	/** Number of responses per round. */
+	private static final int RESPONSES = 200;
+
+	/** Size of the response buffer the server uses by default. */
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Stream that discards everything written to it. */
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args optional number of writes per response
+	 * @throws IOException never, output is discarded
+	 */
+	public static void main(String[] args) throws IOException {
+		int writes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		String text = "<td>Row 1234</td>";
+		byte[] small = new byte[64];
+		byte[] large = new byte[4096];
+		Arrays.fill(small, (byte) 'a');
+		Arrays.fill(large, (byte) 'b');
+		run("string 17B", writes, text.getBytes(StandardCharsets.UTF_8).length, BUFFER_SIZE, rc -> rc.write(text));
+		run("bytes 64B", writes, small.length, BUFFER_SIZE, rc -> rc.write(small));
+		run("bytes 4KB", writes, large.length, BUFFER_SIZE, rc -> rc.write(large));
+		run("unbuffered 17B", writes, text.getBytes(StandardCharsets.UTF_8).length, 0, rc -> rc.write(text));
+	}
+
+	/**
+	 * Measures a single kind of writes.
+	 *
+	 * @param name name of the case
+	 * @param writes number of writes per response
+	 * @param size bytes written by a single write
+	 * @param bufferSize size of the response buffer, 0 for none
+	 * @param write a single write
+	 * @throws IOException never, output is discarded
+	 */
+	private static void run(String name, int writes, int size, int bufferSize, Write write) throws IOException {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			round(writes, bufferSize, write);
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			best = Math.min(best, round(writes, bufferSize, write));
+		}
+		long count = (long) RESPONSES * writes;
+		System.out.printf("%-15s %8.1f ns/write  %9.1f MB/s%n", name, (double) best / count,
+				count * size / 1048576.0 / (best / 1e9));
+	}
+
+	/**
+	 * Runs a single round.
+	 *
+	 * @param writes number of writes per response
+	 * @param bufferSize size of the response buffer, 0 for none
+	 * @param write a single write
+	 * @return duration of the round in nanoseconds
+	 * @throws IOException never, output is discarded
+	 */
+	private static long round(int writes, int bufferSize, Write write) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < RESPONSES; i++) {
+			RequestContext rc = new RequestContext(DISCARD, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+			rc.setBufferSize(bufferSize);
+			for (int j = 0; j < writes; j++) {
+				write.run(rc);
+			}
+			rc.finish();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * A single write to a request context.
+	 */
+	@FunctionalInterface
+	private interface Write {
+
+		/**
+		 * Writes to the request context.
+		 *
+		 * @param rc the request context
+		 * @throws IOException if writing fails
+		 */
+		void run(RequestContext rc) throws IOException;
+	}
+}
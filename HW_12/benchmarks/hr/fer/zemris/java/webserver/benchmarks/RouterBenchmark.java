@@ -0,0 +1,136 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.Router;
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+import hr.fer.zemris.java.webserver.workers.CircleWorker;
+import hr.fer.zemris.java.webserver.workers.HelloWorker;
+
+/**
+ * Micro benchmark of request dispatch. For a few typical request paths it
+ * compares the {@link Router} with the previous dispatch, which concatenated
+ * the map key of every request and loaded and instantiated the class of every
+ * <code>/ext/</code> request through reflection. Only finding the worker is
+ * measured, workers are not invoked.
+ *
+ * <pre>
+ * java RouterBenchmark [dispatches per round]
+ * </pre>
+ *
+ * The average time per dispatch of the best measured round is printed.
+ *
+ * @author Ante Spajic
+ */
+public class RouterBenchmark {
+
+	/** Number of warm-up rounds. */
+	private static final int WARMUP_ROUNDS = 10;
+
+	/** Number of measured rounds. */
+	private static final int ROUNDS = 20;
+
+	/** Keeps the results alive so dispatching can not be optimized away. */
+	private static int sink;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @param args optional number of dispatches per round
+	 * @throws Exception if a worker can not be instantiated
+	 */
+	public static void main(String[] args) throws Exception {
+		int dispatches = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		Map<String, IWebWorker> workersMap = new HashMap<>();
+		workersMap.put("/hello", new HelloWorker());
+		workersMap.put("/cw", new CircleWorker());
+		Router router = new Router(SmartHttpServer.WORKERS_PACKAGE, RouterBenchmark.class.getClassLoader());
+		for (Map.Entry<String, IWebWorker> e : workersMap.entrySet()) {
+			router.add(e.getKey(), e.getValue());
+		}
+		router.add("/users/{id}/posts", new HelloWorker());
+
+		for (String path : new String[] { "/hello", "/cw", "/index.html" }) {
+			run(path, "map", dispatches, () -> legacy(workersMap, path.substring(1)) != null);
+			run(path, "router", dispatches, () -> router.route(path) != null);
+		}
+		// reflection is orders of magnitude slower, measure less of it
+		run("/ext/EchoParams", "map", dispatches / 100, () -> legacy(workersMap, "ext/EchoParams") != null);
+		run("/ext/EchoParams", "router", dispatches, () -> router.route("/ext/EchoParams") != null);
+		run("/users/42/posts", "router", dispatches, () -> router.route("/users/42/posts") != null);
+	}
+
+	/**
+	 * Dispatches like the server did before the route table: the path is
+	 * relative to the document root.
+	 *
+	 * @param workersMap configured workers by their routes
+	 * @param path the request path without the leading slash
+	 * @return the worker or null if there is none
+	 * @throws Exception if a worker can not be instantiated
+	 */
+	private static IWebWorker legacy(Map<String, IWebWorker> workersMap, String path) throws Exception {
+		if (path.startsWith("ext/")) {
+			String fqcn = SmartHttpServer.WORKERS_PACKAGE + "." + path.substring("ext/".length());
+			return (IWebWorker) RouterBenchmark.class.getClassLoader().loadClass(fqcn).getDeclaredConstructor().newInstance();
+		} else if (workersMap.containsKey("/" + path)) {
+			return workersMap.get("/" + path);
+		}
+		return null;
+	}
+
+	/**
+	 * Measures a single dispatch method.
+	 *
+	 * @param path the request path
+	 * @param name name of the dispatch method
+	 * @param dispatches number of dispatches per round
+	 * @param dispatch a single dispatch, returns true if a worker was found
+	 * @throws Exception if a worker can not be instantiated
+	 */
+	private static void run(String path, String name, int dispatches, Dispatch dispatch) throws Exception {
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			round(dispatches, dispatch);
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < ROUNDS; i++) {
+			best = Math.min(best, round(dispatches, dispatch));
+		}
+		System.out.printf("%-18s %-7s %10.1f ns/dispatch%n", path, name, (double) best / dispatches);
+	}
+
+	/**
+	 * Runs a single round.
+	 *
+	 * @param dispatches number of dispatches
+	 * @param dispatch a single dispatch
+	 * @return duration of the round in nanoseconds
+	 * @throws Exception if a worker can not be instantiated
+	 */
+	private static long round(int dispatches, Dispatch dispatch) throws Exception {
+		long start = System.nanoTime();
+		for (int i = 0; i < dispatches; i++) {
+			if (dispatch.run()) {
+				sink++;
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * A single dispatch.
+	 */
+	@FunctionalInterface
+	private interface Dispatch {
+
+		/**
+		 * Dispatches a request.
+		 *
+		 * @return true if a worker was found
+		 * @throws Exception if a worker can not be instantiated
+		 */
+		boolean run() throws Exception;
+	}
+}
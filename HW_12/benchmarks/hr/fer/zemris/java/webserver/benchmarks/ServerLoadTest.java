@@ -0,0 +1,116 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import hr.fer.zemris.java.webserver.PropertyKeys;
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+
+/**
+ * Load test of {@link SmartHttpServer} with the content it ships with: the
+ * smart scripts and static files of the <code>webroot</code> and the workers,
+ * both mapped ones and ones called through <code>/ext/</code>. Every
+ * resource is driven on its own by a closed-loop {@link LoadGenerator}, then
+ * all of them are requested round-robin, first in a closed loop and then in
+ * an open loop at a fixed rate. The throughput and latency percentiles of
+ * every run are printed.
+ *
+ * <pre>
+ * java ServerLoadTest config/server.properties [connections] [requests per second]
+ * </pre>
+ *
+ * The server is started on the port following the configured one, the
+ * document root of the configuration must be the <code>webroot</code>
+ * directory. Without a rate, the open loop runs at half the throughput of the
+ * closed loop over all resources.
+ *
+ * @author Ante Spajic
+ */
+public class ServerLoadTest {
+
+	/** Warm-up duration in milliseconds. */
+	private static final long WARMUP = 3000;
+
+	/** Measured duration in milliseconds. */
+	private static final long DURATION = 5000;
+
+	/** The requested resources. */
+	private static final String[] PATHS = {
+			"/scripts/osnovni.smscr",
+			"/scripts/fibonacci.smscr",
+			"/scripts/zbrajanje.smscr?a=4&b=2",
+			"/scripts/brojPoziva.smscr",
+			"/index.html",
+			"/sample.txt",
+			"/fruits.png",
+			"/hello",
+			"/cw",
+			"/ext/CircleWorker",
+			"/ext/EchoParams?name=Ante&a=1&b=2"
+	};
+
+	/**
+	 * Runs the load test.
+	 *
+	 * @param args path to server.properties, optional number of connections
+	 *            and rate of the open loop
+	 * @throws IOException if the configuration can not be read
+	 * @throws InterruptedException if interrupted while waiting for the server
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			throw new IllegalArgumentException("Must provide path to server.properties.");
+		}
+		Properties base = new Properties();
+		try (InputStream is = Files.newInputStream(Paths.get(args[0]))) {
+			base.load(is);
+		}
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		int port = Integer.parseInt(base.getProperty(PropertyKeys.PORT)) + 1;
+		Path config = writeConfig(base, port);
+		SmartHttpServer server = new SmartHttpServer(config.toString());
+		server.start();
+		Thread.sleep(500);
+		try {
+			InetSocketAddress address = new InetSocketAddress(base.getProperty(PropertyKeys.ADDRESS), port);
+			for (String path : PATHS) {
+				LoadResult result = new LoadGenerator(address, connections, path).run(WARMUP, DURATION);
+				System.out.printf("%-36s %s%n", path, result);
+			}
+			LoadGenerator mixed = new LoadGenerator(address, connections, PATHS);
+			LoadResult closed = mixed.run(WARMUP, DURATION);
+			System.out.printf("%-36s %s%n", "all, closed loop", closed);
+			double rate = args.length > 2 ? Double.parseDouble(args[2]) : closed.throughput() / 2;
+			LoadResult open = mixed.runOpen(rate, WARMUP, DURATION);
+			System.out.printf("%-36s %s%n", String.format("all, open loop at %.0f req/s", rate), open);
+		} finally {
+			server.stop();
+			Files.delete(config);
+		}
+	}
+
+	/**
+	 * Writes a server configuration derived from the base configuration.
+	 *
+	 * @param base the base configuration
+	 * @param port the port to listen on
+	 * @return path to the written configuration
+	 * @throws IOException if the configuration can not be written
+	 */
+	private static Path writeConfig(Properties base, int port) throws IOException {
+		Properties config = new Properties();
+		config.putAll(base);
+		config.setProperty(PropertyKeys.PORT, Integer.toString(port));
+		Path path = Files.createTempFile("server", ".properties");
+		try (OutputStream os = Files.newOutputStream(path)) {
+			config.store(os, null);
+		}
+		return path;
+	}
+}
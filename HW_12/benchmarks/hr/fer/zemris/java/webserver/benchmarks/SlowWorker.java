@@ -0,0 +1,32 @@
+package hr.fer.zemris.java.webserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * The Class SlowWorker simulates a worker that blocks on a remote resource,
+ * such as a database, before it answers. The blocking time in milliseconds is
+ * read from the <code>delay</code> parameter and defaults to 20 ms.
+ * 
+ * @author Ante Spajic
+ */
+public class SlowWorker implements IWebWorker {
+
+	/** The response body. */
+	private static final byte[] BODY = "<html><body>done</body></html>".getBytes(StandardCharsets.UTF_8);
+
+	@Override
+	public void processRequest(RequestContext context) {
+		String delay = context.getParameter("delay");
+		try {
+			Thread.sleep(delay == null ? 20 : Long.parseLong(delay));
+			context.addAdditionalHeader("Content-Length: " + BODY.length);
+			context.write(BODY);
+		} catch (InterruptedException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package hr.fer.zemris.java.custom.scripting.compiler;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * A smart script compiled into a Java class by {@link SmartScriptCompiler}.
+ * A compiled script keeps no state between executions, so a single instance
+ * can serve many requests at once.
+ * 
+ * @author Ante Spajic
+ */
+public interface CompiledScript {
+
+	/**
+	 * Executes the script and writes its output to the request context.
+	 *
+	 * @param requestContext the request context of the request being served
+	 */
+	void execute(RequestContext requestContext);
+}
@@ -0,0 +1,501 @@
+package hr.fer.zemris.java.custom.scripting.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import hr.fer.zemris.java.custom.scripting.elems.Element;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantDouble;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantInteger;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantString;
+import hr.fer.zemris.java.custom.scripting.elems.ElementFunction;
+import hr.fer.zemris.java.custom.scripting.elems.ElementOperator;
+import hr.fer.zemris.java.custom.scripting.elems.ElementVariable;
+import hr.fer.zemris.java.custom.scripting.exec.ScriptRuntime;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.exec.TextFragment;
+import hr.fer.zemris.java.custom.scripting.nodes.CacheNode;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
+import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
+import hr.fer.zemris.java.custom.scripting.nodes.INodeVisitor;
+import hr.fer.zemris.java.custom.scripting.nodes.TextNode;
+
+/**
+ * SmartScriptCompiler translates a parsed smart script into the source of a
+ * Java class implementing {@link CompiledScript}, compiles it in memory with
+ * the system Java compiler and loads it. Compared to {@link SmartScriptEngine}
+ * the generated code does not dispatch instructions or interpret echo elements:
+ * <ul>
+ * <li>constants are resolved once and passed to the class on construction,
+ * static text as {@link TextFragment}s that keep their encoded bytes,</li>
+ * <li>the operand stack of an echo tag is resolved at compile time into local
+ * variables, so <code>@dup</code> and <code>@swap</code> cost nothing,</li>
+ * <li>operators and functions are bound to direct {@link ScriptRuntime} calls,</li>
+ * <li>FOR loops become Java loops, integer loops use a primitive counter.</li>
+ * </ul>
+ * Documents the compiler does not support, such as a FOR loop without a step,
+ * a variable used outside of its loop or a CACHE block, cause a
+ * {@link SmartScriptCompilerException} and should be interpreted instead.
+ *
+ * @author Ante Spajic
+ */
+public class SmartScriptCompiler {
+
+	/** The package of generated classes. */
+	private static final String PACKAGE = "hr.fer.zemris.java.custom.scripting.compiler.generated";
+
+	/** Number of document children compiled into a single method. */
+	private static final int NODES_PER_METHOD = 64;
+
+	/** Counter used to generate unique class names. */
+	private static final AtomicInteger COUNTER = new AtomicInteger();
+
+	/**
+	 * Compiles the provided document.
+	 *
+	 * @param document the parsed document
+	 * @return the compiled script
+	 * @throws SmartScriptCompilerException if the document can not be compiled
+	 */
+	public CompiledScript compile(DocumentNode document) {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null) {
+			throw new SmartScriptCompilerException("No Java compiler is available in this runtime.");
+		}
+		String className = "Script" + COUNTER.incrementAndGet();
+		SourceGenerator generator = new SourceGenerator(className);
+		document.accept(generator);
+		Map<String, byte[]> classes = compileSource(javac, PACKAGE + "." + className, generator.getSource());
+		ClassLoader loader = new ClassLoader(CompiledScript.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(String name) throws ClassNotFoundException {
+				byte[] bytes = classes.get(name);
+				if (bytes == null) {
+					throw new ClassNotFoundException(name);
+				}
+				return defineClass(name, bytes, 0, bytes.length);
+			}
+		};
+		try {
+			Class<?> scriptClass = loader.loadClass(PACKAGE + "." + className);
+			return (CompiledScript) scriptClass.getConstructor(Object[].class)
+					.newInstance((Object) generator.getConstants());
+		} catch (ReflectiveOperationException e) {
+			throw new SmartScriptCompilerException("Couldn't load compiled script: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Generates the Java source for the provided document without compiling it.
+	 *
+	 * @param className simple name of the generated class
+	 * @param document the parsed document
+	 * @return the Java source
+	 * @throws SmartScriptCompilerException if the document can not be compiled
+	 */
+	public String generateSource(String className, DocumentNode document) {
+		SourceGenerator generator = new SourceGenerator(className);
+		document.accept(generator);
+		return generator.getSource();
+	}
+
+	/**
+	 * Compiles a single source file in memory.
+	 *
+	 * @param javac the system Java compiler
+	 * @param className fully qualified name of the class
+	 * @param source the source code
+	 * @return bytecode of all generated classes by their binary names
+	 */
+	private Map<String, byte[]> compileSource(JavaCompiler javac, String className, String source) {
+		Map<String, ByteArrayOutputStream> output = new HashMap<>();
+		JavaFileObject sourceFile = new SimpleJavaFileObject(
+				URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+				javac.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+			@Override
+			public JavaFileObject getJavaFileForOutput(Location location, String name, Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+					@Override
+					public OutputStream openOutputStream() {
+						ByteArrayOutputStream bos = new ByteArrayOutputStream();
+						output.put(name, bos);
+						return bos;
+					}
+				};
+			}
+		};
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		List<String> options = Arrays.asList("-classpath", classpath(), "-g:none", "-nowarn");
+		Boolean success = javac.getTask(null, fileManager, diagnostics, options, null, Arrays.asList(sourceFile)).call();
+		if (success == null || !success) {
+			StringBuilder sb = new StringBuilder("Couldn't compile script:");
+			for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+				sb.append(' ').append(d.getMessage(null));
+			}
+			throw new SmartScriptCompilerException(sb.toString());
+		}
+		Map<String, byte[]> classes = new HashMap<>();
+		for (Map.Entry<String, ByteArrayOutputStream> e : output.entrySet()) {
+			classes.put(e.getKey(), e.getValue().toByteArray());
+		}
+		return classes;
+	}
+
+	/**
+	 * Returns the class path generated classes are compiled against, it contains
+	 * the location this class has been loaded from.
+	 *
+	 * @return the class path
+	 */
+	private static String classpath() {
+		String classpath = System.getProperty("java.class.path", "");
+		CodeSource codeSource = CompiledScript.class.getProtectionDomain().getCodeSource();
+		if (codeSource != null && codeSource.getLocation() != null) {
+			try {
+				classpath = new File(codeSource.getLocation().toURI()).getPath() + File.pathSeparator + classpath;
+			} catch (Exception ignore) {}
+		}
+		return classpath;
+	}
+
+	/**
+	 * Visitor that generates the source of a compiled script. Constants are
+	 * collected into an array the generated class receives on construction.
+	 */
+	private static class SourceGenerator implements INodeVisitor {
+
+		/** Simple name of the generated class. */
+		private final String className;
+
+		/** Collected constants. */
+		private final List<Object> constants = new ArrayList<>();
+
+		/** Indexes of already collected constants. */
+		private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+		/** Generated methods. */
+		private final StringBuilder methods = new StringBuilder();
+
+		/** Body of the execute method. */
+		private final StringBuilder execute = new StringBuilder();
+
+		/** Loop variables in scope, innermost first, as name and Java expression pairs. */
+		private final LinkedList<String[]> scopes = new LinkedList<>();
+
+		/** Current indentation of generated statements. */
+		private int indent;
+
+		/** Counter used to generate unique local variable names. */
+		private int locals;
+
+		/** Generated source, available once the document has been visited. */
+		private String source;
+
+		/**
+		 * Instantiates a new source generator.
+		 *
+		 * @param className simple name of the generated class
+		 */
+		SourceGenerator(String className) {
+			this.className = className;
+		}
+
+		/**
+		 * Returns the generated source.
+		 *
+		 * @return the Java source
+		 */
+		String getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the constants the generated class must be constructed with.
+		 *
+		 * @return array of constants
+		 */
+		Object[] getConstants() {
+			return constants.toArray();
+		}
+
+		@Override
+		public void visitDocumentNode(DocumentNode node) {
+			int parts = 0;
+			for (int i = 0, n = node.numberOfChildren(); i < n; i += NODES_PER_METHOD) {
+				execute.append("\t\tpart").append(parts).append("(rc);\n");
+				methods.append("\n\tprivate void part").append(parts++).append("(RequestContext rc) {\n");
+				indent = 2;
+				for (int j = i, end = Math.min(n, i + NODES_PER_METHOD); j < end; j++) {
+					node.getChild(j).accept(this);
+				}
+				methods.append("\t}\n");
+			}
+			source = "package " + PACKAGE + ";\n\n"
+					+ "import hr.fer.zemris.java.custom.scripting.compiler.CompiledScript;\n"
+					+ "import hr.fer.zemris.java.custom.scripting.exec.ScriptRuntime;\n"
+					+ "import hr.fer.zemris.java.custom.scripting.exec.TextFragment;\n"
+					+ "import hr.fer.zemris.java.custom.scripting.exec.ValueWrapper;\n"
+					+ "import hr.fer.zemris.java.webserver.RequestContext;\n\n"
+					+ "public final class " + className + " implements CompiledScript {\n\n"
+					+ "\tprivate final Object[] k;\n\n"
+					+ "\tpublic " + className + "(Object[] k) {\n\t\tthis.k = k;\n\t}\n\n"
+					+ "\t@Override\n\tpublic void execute(RequestContext rc) {\n"
+					+ execute
+					+ "\t}\n"
+					+ methods
+					+ "}\n";
+		}
+
+		@Override
+		public void visitTextNode(TextNode node) {
+			line("ScriptRuntime.write(rc, (TextFragment) " + constant(new TextFragment(node.getValue())) + ");");
+		}
+
+		@Override
+		public void visitForLoopNode(ForLoopNode node) {
+			if (node.getStepExpression() == null) {
+				throw new SmartScriptCompilerException("FOR loop without a step expression is not supported.");
+			}
+			Element start = node.getStartExpression();
+			Element end = node.getEndExpression();
+			Element step = node.getStepExpression();
+			String name = node.getVariable().getName();
+			String local = "v" + locals++;
+			String variable;
+			if (start instanceof ElementConstantInteger && end instanceof ElementConstantInteger
+					&& step instanceof ElementConstantInteger) {
+				line("for (int " + local + " = " + ((ElementConstantInteger) start).getValue() + "; "
+						+ local + " < " + ((ElementConstantInteger) end).getValue() + "; "
+						+ local + " += " + ((ElementConstantInteger) step).getValue() + ") {");
+				variable = "Integer.valueOf(" + local + ")";
+			} else {
+				line("ValueWrapper " + local + " = new ValueWrapper("
+						+ constant(ScriptRuntime.number(start.asText())) + ");");
+				line("ValueWrapper " + local + "end = new ValueWrapper(" + constant(end.asText()) + ");");
+				line("ValueWrapper " + local + "step = new ValueWrapper(" + constant(step.asText()) + ");");
+				line("for (; " + local + ".compareWith(" + local + "end) < 0; " + local + ".incrementBy(" + local + "step)) {");
+				variable = local + ".getValue()";
+			}
+			scopes.addFirst(new String[] { name, variable });
+			indent++;
+			for (int i = 0, n = node.numberOfChildren(); i < n; i++) {
+				node.getChild(i).accept(this);
+			}
+			indent--;
+			scopes.removeFirst();
+			line("}");
+		}
+
+		@Override
+		public void visitCacheNode(CacheNode node) {
+			throw new SmartScriptCompilerException("CACHE block is not supported.");
+		}
+
+		@Override
+		public void visitEchoNode(EchoNode node) {
+			LinkedList<String> stack = new LinkedList<>();
+			line("{");
+			indent++;
+			for (Element el : node.getElements()) {
+				if (el instanceof ElementConstantDouble) {
+					stack.push(constant(((ElementConstantDouble) el).getValue()));
+				} else if (el instanceof ElementConstantInteger) {
+					stack.push(constant(((ElementConstantInteger) el).getValue()));
+				} else if (el instanceof ElementConstantString) {
+					stack.push(constant(((ElementConstantString) el).getValue()));
+				} else if (el instanceof ElementVariable) {
+					stack.push(variable(((ElementVariable) el).getName()));
+				} else if (el instanceof ElementOperator) {
+					String right = pop(stack);
+					String left = pop(stack);
+					stack.push(local(operator(((ElementOperator) el).getValue(), left, right)));
+				} else if (el instanceof ElementFunction) {
+					function(stack, ((ElementFunction) el).getName());
+				}
+			}
+			for (int i = stack.size() - 1; i >= 0; i--) {
+				line("ScriptRuntime.write(rc, " + stack.get(i) + ");");
+			}
+			indent--;
+			line("}");
+		}
+
+		/**
+		 * Generates a call of a built-in function, unknown functions are ignored
+		 * just like the interpreter ignores them.
+		 *
+		 * @param stack compile time operand stack of Java expressions
+		 * @param name name of the function
+		 */
+		private void function(LinkedList<String> stack, String name) {
+			String a;
+			String b;
+			switch (name.toLowerCase()) {
+			case "sin":
+				stack.push(local("ScriptRuntime.sin(" + pop(stack) + ")"));
+				break;
+			case "decfmt":
+				b = pop(stack);
+				a = pop(stack);
+				stack.push(local("ScriptRuntime.decfmt(" + a + ", " + b + ")"));
+				break;
+			case "dup":
+				a = pop(stack);
+				stack.push(a);
+				stack.push(a);
+				break;
+			case "swap":
+				a = pop(stack);
+				b = pop(stack);
+				stack.push(a);
+				stack.push(b);
+				break;
+			case "setmimetype":
+				line("ScriptRuntime.setMimeType(rc, " + pop(stack) + ");");
+				break;
+			case "paramget":
+			case "pparamget":
+			case "tparamget":
+				b = pop(stack);
+				a = pop(stack);
+				stack.push(local("ScriptRuntime." + name.toLowerCase().replace("paramget", "paramGet")
+						+ "(rc, " + a + ", " + b + ")"));
+				break;
+			case "pparamset":
+			case "tparamset":
+				b = pop(stack);
+				a = pop(stack);
+				line("ScriptRuntime." + name.toLowerCase().replace("paramset", "paramSet")
+						+ "(rc, " + a + ", " + b + ");");
+				break;
+			case "pparamdel":
+			case "tparamdel":
+				line("ScriptRuntime." + name.toLowerCase().replace("paramdel", "paramDel")
+						+ "(rc, " + pop(stack) + ");");
+				break;
+			default:
+				break;
+			}
+		}
+
+		/**
+		 * Returns a call of the runtime method implementing an operator.
+		 *
+		 * @param symbol the operator symbol
+		 * @param left expression of the left operand
+		 * @param right expression of the right operand
+		 * @return Java expression applying the operator
+		 */
+		private String operator(String symbol, String left, String right) {
+			switch (symbol) {
+			case "+":
+				return "ScriptRuntime.add(" + left + ", " + right + ")";
+			case "-":
+				return "ScriptRuntime.subtract(" + left + ", " + right + ")";
+			case "*":
+				return "ScriptRuntime.multiply(" + left + ", " + right + ")";
+			case "/":
+				return "ScriptRuntime.divide(" + left + ", " + right + ")";
+			default:
+				return "ScriptRuntime.operate(" + constant(symbol) + ", " + left + ", " + right + ")";
+			}
+		}
+
+		/**
+		 * Pops an expression from the compile time stack.
+		 *
+		 * @param stack the compile time stack
+		 * @return the popped expression
+		 */
+		private String pop(LinkedList<String> stack) {
+			if (stack.isEmpty()) {
+				throw new SmartScriptCompilerException("Echo tag pops more values than it pushes.");
+			}
+			return stack.pop();
+		}
+
+		/**
+		 * Stores the value of an expression into a new local variable, so every
+		 * operation is evaluated exactly once and in the original order.
+		 *
+		 * @param expression the expression to evaluate
+		 * @return name of the local variable
+		 */
+		private String local(String expression) {
+			String name = "e" + locals++;
+			line("Object " + name + " = " + expression + ";");
+			return name;
+		}
+
+		/**
+		 * Resolves a variable to the innermost enclosing loop that defines it.
+		 *
+		 * @param name name of the variable
+		 * @return Java expression with the value of the variable
+		 */
+		private String variable(String name) {
+			for (String[] scope : scopes) {
+				if (scope[0].equals(name)) {
+					return scope[1];
+				}
+			}
+			throw new SmartScriptCompilerException("Variable " + name + " is used outside of its loop.");
+		}
+
+		/**
+		 * Returns an expression that reads the provided constant.
+		 *
+		 * @param value the constant value
+		 * @return Java expression with the constant
+		 */
+		private String constant(Object value) {
+			Integer index = constantIndexes.get(value);
+			if (index == null) {
+				index = constants.size();
+				constants.add(value);
+				constantIndexes.put(value, index);
+			}
+			return "k[" + index + "]";
+		}
+
+		/**
+		 * Appends an indented statement to the current method.
+		 *
+		 * @param statement the statement
+		 */
+		private void line(String statement) {
+			for (int i = 0; i < indent; i++) {
+				methods.append('\t');
+			}
+			methods.append(statement).append('\n');
+		}
+	}
+}
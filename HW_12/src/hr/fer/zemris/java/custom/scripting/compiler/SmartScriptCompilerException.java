@@ -0,0 +1,34 @@
+package hr.fer.zemris.java.custom.scripting.compiler;
+
+/**
+ * This exception is thrown by {@link SmartScriptCompiler} when a document can
+ * not be compiled, either because it uses a construct the compiler does not
+ * support or because no Java compiler is available at runtime. Such documents
+ * can still be executed by the interpreting engine.
+ * 
+ * @author Ante Spajic
+ *
+ */
+public class SmartScriptCompilerException extends RuntimeException {
+
+	/**
+	 * Default generated serial version ID
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Constructs a new exception with <code>null</code> as its detail message.
+	 */
+	public SmartScriptCompilerException() {
+	}
+
+	/**
+	 * Constructs a new exception with a specified detail message.
+	 * 
+	 * @param message
+	 *            the detail message
+	 */
+	public SmartScriptCompilerException(String message) {
+		super(message);
+	}
+}
@@ -5,6 +5,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
+import hr.fer.zemris.java.custom.scripting.nodes.CacheNode;
 import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
 import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
 import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
@@ -77,6 +78,11 @@ public class TreeWriter {
 			System.out.print(node.asText());
 		}
 
+		@Override
+		public void visitCacheNode(CacheNode node) {
+			System.out.print(node.asText());
+		}
+
 		@Override
 		public void visitDocumentNode(DocumentNode node) {
 			System.out.print(node.asText());
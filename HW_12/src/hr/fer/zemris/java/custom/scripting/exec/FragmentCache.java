@@ -0,0 +1,415 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FragmentCache keeps the output of CACHE blocks of smart scripts, bounded by
+ * the total number of cached bytes and evicted least recently used first.
+ * Output of a block is cached per values of its inputs: the variables of
+ * enclosing loops and the parameters, persistent parameters and temporary
+ * parameters the block reads, all of which are known when the script is
+ * flattened into a {@link ScriptProgram}. Besides the output, an entry holds
+ * the mime type and parameter changes the block made, which are applied
+ * again when the entry is used.
+ * <p>
+ * Entries expire after the time to live of their block. Hits and misses are
+ * counted for the whole cache and for every {@link Fragment}.
+ *
+ * @author Ante Spajic
+ */
+public class FragmentCache {
+
+	/** Bytes an entry is counted with besides its output. */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	/**
+	 * A CACHE block of a program, with the inputs its output depends on.
+	 */
+	public static final class Fragment {
+
+		/** Name of the block. */
+		private final String name;
+
+		/** Time to live of cached output in nanoseconds. */
+		final long timeToLive;
+
+		/** Slots of the enclosing loop variables the block reads. */
+		final int[] slots;
+
+		/** Opcodes of the parameter reads of the block. */
+		final int[] sources;
+
+		/** Names of the parameters the block reads. */
+		final String[] names;
+
+		/** Number of executions served from the cache. */
+		private final LongAdder hits = new LongAdder();
+
+		/** Number of executions that had to run the block. */
+		private final LongAdder misses = new LongAdder();
+
+		/**
+		 * Instantiates a new fragment.
+		 *
+		 * @param name name of the block
+		 * @param timeToLive time to live of cached output in nanoseconds
+		 * @param slots slots of the enclosing loop variables the block reads
+		 * @param sources opcodes of the parameter reads of the block
+		 * @param names names of the parameters the block reads
+		 */
+		Fragment(String name, long timeToLive, int[] slots, int[] sources, String[] names) {
+			this.name = name;
+			this.timeToLive = timeToLive;
+			this.slots = slots;
+			this.sources = sources;
+			this.names = names;
+		}
+
+		/**
+		 * Returns the name of the block.
+		 *
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the time to live of cached output.
+		 *
+		 * @return time to live in milliseconds
+		 */
+		public long getTimeToLive() {
+			return timeToLive / 1_000_000;
+		}
+
+		/**
+		 * Returns the number of executions of the block served from the cache.
+		 *
+		 * @return number of hits
+		 */
+		public long getHits() {
+			return hits.sum();
+		}
+
+		/**
+		 * Returns the number of executions that had to run the block.
+		 *
+		 * @return number of misses
+		 */
+		public long getMisses() {
+			return misses.sum();
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Cached output of a block for a single set of input values.
+	 */
+	static final class Entry {
+
+		/** Charset the output is encoded in. */
+		final Charset charset;
+
+		/** The output. */
+		final byte[] output;
+
+		/**
+		 * Changes of the block, each one as offset in the output it was made
+		 * at, opcode and two arguments.
+		 */
+		final Object[][] effects;
+
+		/** Value of {@link System#nanoTime()} the entry expires at. */
+		final long expires;
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param charset charset the output is encoded in
+		 * @param output the output
+		 * @param effects changes the block made
+		 * @param expires value of {@link System#nanoTime()} the entry
+		 *            expires at
+		 */
+		Entry(Charset charset, byte[] output, Object[][] effects, long expires) {
+			this.charset = charset;
+			this.output = output;
+			this.effects = effects;
+			this.expires = expires;
+		}
+
+		/**
+		 * Returns the number of bytes this entry occupies in the cache.
+		 *
+		 * @return the size in bytes
+		 */
+		int weight() {
+			return output.length + ENTRY_OVERHEAD;
+		}
+	}
+
+	/**
+	 * Output of a block that is being executed, recorded so it can be cached
+	 * when the block ends. Recordings of nested blocks are chained, the
+	 * output of an inner block is recorded by all enclosing ones.
+	 */
+	static final class Recording {
+
+		/** The executed block. */
+		final Fragment fragment;
+
+		/** Values of the inputs of the block. */
+		final Object[] key;
+
+		/** Charset the output is encoded in. */
+		final Charset charset;
+
+		/** Recording of the enclosing block, null if there is none. */
+		final Recording parent;
+
+		/** The recorded output. */
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		/** The recorded changes. */
+		private final List<Object[]> effects = new ArrayList<>();
+
+		/**
+		 * Instantiates a new recording.
+		 *
+		 * @param fragment the executed block
+		 * @param key values of the inputs of the block
+		 * @param charset charset the output is encoded in
+		 * @param parent recording of the enclosing block, may be null
+		 */
+		Recording(Fragment fragment, Object[] key, Charset charset, Recording parent) {
+			this.fragment = fragment;
+			this.key = key;
+			this.charset = charset;
+			this.parent = parent;
+		}
+
+		/**
+		 * Records output in this and all enclosing recordings.
+		 *
+		 * @param bytes array holding the output
+		 * @param offset offset of the output in the array
+		 * @param length length of the output
+		 */
+		void write(byte[] bytes, int offset, int length) {
+			for (Recording r = this; r != null; r = r.parent) {
+				r.output.write(bytes, offset, length);
+			}
+		}
+
+		/**
+		 * Records a change in this and all enclosing recordings.
+		 *
+		 * @param opcode opcode of the function that made the change
+		 * @param a the first argument
+		 * @param b the second argument, may be null
+		 */
+		void effect(int opcode, Object a, Object b) {
+			for (Recording r = this; r != null; r = r.parent) {
+				r.effects.add(new Object[] { r.output.size(), opcode, a, b });
+			}
+		}
+
+		/**
+		 * Creates the cache entry of the recorded output.
+		 *
+		 * @return the entry
+		 */
+		Entry toEntry() {
+			return new Entry(charset, output.toByteArray(), effects.toArray(new Object[0][]),
+					System.nanoTime() + fragment.timeToLive);
+		}
+	}
+
+	/**
+	 * Key of an entry, a block and the values of its inputs.
+	 */
+	private static final class Key {
+
+		/** The block. */
+		private final Fragment fragment;
+
+		/** Values of the inputs. */
+		private final Object[] values;
+
+		/** The hash code. */
+		private final int hash;
+
+		/**
+		 * Instantiates a new key.
+		 *
+		 * @param fragment the block
+		 * @param values values of the inputs
+		 */
+		Key(Fragment fragment, Object[] values) {
+			this.fragment = fragment;
+			this.values = values;
+			this.hash = 31 * System.identityHashCode(fragment) + Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return fragment == other.fragment && Arrays.equals(values, other.values);
+		}
+	}
+
+	/** Maximum number of cached bytes. */
+	private final long capacity;
+
+	/** Cached output in access order. */
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** Number of currently cached bytes. */
+	private long size;
+
+	/** Number of block executions served from the cache. */
+	private final LongAdder hits = new LongAdder();
+
+	/** Number of block executions that had to run the block. */
+	private final LongAdder misses = new LongAdder();
+
+	/** Number of entries removed to make room for others. */
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Instantiates a new fragment cache.
+	 *
+	 * @param capacity maximum number of cached bytes, 0 disables caching
+	 */
+	public FragmentCache(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the cached output of a block.
+	 *
+	 * @param fragment the block
+	 * @param key values of the inputs of the block
+	 * @param charset charset of the response
+	 * @return the entry or null if there is no live entry in the charset
+	 */
+	Entry get(Fragment fragment, Object[] key, Charset charset) {
+		Entry entry = null;
+		if (capacity > 0) {
+			Key k = new Key(fragment, key);
+			synchronized (entries) {
+				entry = entries.get(k);
+				if (entry != null && entry.expires - System.nanoTime() <= 0) {
+					entries.remove(k);
+					size -= entry.weight();
+					entry = null;
+				}
+			}
+		}
+		if (entry == null || !entry.charset.equals(charset)) {
+			misses.increment();
+			fragment.misses.increment();
+			return null;
+		}
+		hits.increment();
+		fragment.hits.increment();
+		return entry;
+	}
+
+	/**
+	 * Stores the output of a block, evicting least recently used entries
+	 * until the cache fits its capacity.
+	 *
+	 * @param recording the finished recording of the block
+	 */
+	void put(Recording recording) {
+		Entry entry = recording.toEntry();
+		if (entry.weight() > capacity) {
+			return;
+		}
+		synchronized (entries) {
+			Entry old = entries.put(new Key(recording.fragment, recording.key), entry);
+			if (old != null) {
+				size -= old.weight();
+			}
+			size += entry.weight();
+			Iterator<Entry> it = entries.values().iterator();
+			while (size > capacity && it.hasNext()) {
+				size -= it.next().weight();
+				it.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached output.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of block executions served from the cache.
+	 *
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of block executions that had to run the block.
+	 *
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of entries evicted to make room for others.
+	 *
+	 * @return number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the number of currently cached bytes.
+	 *
+	 * @return number of cached bytes
+	 */
+	public long size() {
+		synchronized (entries) {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * FunctionRegistry holds the {@link ScriptFunction}s smart scripts can call
+ * in addition to the built-in functions, and the executor asynchronous
+ * functions run on. Names are case insensitive like the names of built-in
+ * functions, which can not be replaced. Functions are resolved when a script
+ * is flattened into a {@link ScriptProgram}, so they must be registered
+ * before scripts are executed.
+ *
+ * @author Ante Spajic
+ */
+public class FunctionRegistry {
+
+	/** Names of the built-in functions. */
+	private static final Set<String> BUILT_IN = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("sin",
+			"decfmt", "dup", "swap", "setmimetype", "paramget", "pparamget", "tparamget", "pparamset", "tparamset",
+			"pparamdel", "tparamdel")));
+
+	/** Registered functions by their lower case names. */
+	private final Map<String, ScriptFunction> functions = new HashMap<>();
+
+	/** Executor of asynchronous functions. */
+	private final Executor executor;
+
+	/**
+	 * Instantiates a new function registry.
+	 *
+	 * @param executor the executor asynchronous functions run on
+	 */
+	public FunctionRegistry(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor must not be null");
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Registers a function.
+	 *
+	 * @param name name scripts call the function by, without the
+	 *            <code>@</code>
+	 * @param function the function
+	 * @throws IllegalArgumentException if the name is taken by a built-in
+	 *             function or the arity is negative
+	 */
+	public synchronized void register(String name, ScriptFunction function) {
+		String key = name.toLowerCase();
+		if (BUILT_IN.contains(key)) {
+			throw new IllegalArgumentException("Built-in function " + name + " can not be replaced");
+		}
+		if (function.getArity() < 0) {
+			throw new IllegalArgumentException("Arity of a function must not be negative");
+		}
+		functions.put(key, function);
+	}
+
+	/**
+	 * Returns a registered function.
+	 *
+	 * @param name name of the function, in any case
+	 * @return the function or null if none is registered under the name
+	 */
+	public synchronized ScriptFunction get(String name) {
+		return functions.get(name.toLowerCase());
+	}
+
+	/**
+	 * Returns the executor asynchronous functions run on.
+	 *
+	 * @return the executor
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+}
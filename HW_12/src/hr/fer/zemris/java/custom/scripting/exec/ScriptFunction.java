@@ -0,0 +1,48 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * ScriptFunction is a function smart scripts can call by a name it is
+ * registered under in a {@link FunctionRegistry}, next to the built-in ones. A
+ * function pops a fixed number of arguments from the stack of an echo tag and
+ * pushes its result.
+ * <p>
+ * An asynchronous function, such as a lookup in a database or a call of
+ * another service, is started on the executor of its registry and its result
+ * is waited for only when the script uses it, so lookups of a single page run
+ * at the same time. Calls whose arguments are constants and which are not in
+ * a loop are started as soon as the script starts executing. An asynchronous
+ * function must therefore not depend on anything the script changes, such as
+ * temporary parameters, and must not write to the request context.
+ *
+ * @author Ante Spajic
+ */
+public interface ScriptFunction {
+
+	/**
+	 * Returns the number of arguments the function pops from the stack.
+	 *
+	 * @return the number of arguments
+	 */
+	int getArity();
+
+	/**
+	 * Checks if the function is executed asynchronously.
+	 *
+	 * @return true if calls are started on the executor of the registry
+	 */
+	default boolean isAsync() {
+		return false;
+	}
+
+	/**
+	 * Calls the function.
+	 *
+	 * @param rc the request context of the script
+	 * @param args the arguments in the order they were pushed
+	 * @return the result, null pushes an empty string
+	 * @throws Exception if the function fails, which fails the script
+	 */
+	Object apply(RequestContext rc, Object[] args) throws Exception;
+}
@@ -0,0 +1,716 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import hr.fer.zemris.java.custom.scripting.elems.Element;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantDouble;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantInteger;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantString;
+import hr.fer.zemris.java.custom.scripting.elems.ElementFunction;
+import hr.fer.zemris.java.custom.scripting.elems.ElementOperator;
+import hr.fer.zemris.java.custom.scripting.elems.ElementVariable;
+import hr.fer.zemris.java.custom.scripting.nodes.CacheNode;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
+import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
+import hr.fer.zemris.java.custom.scripting.nodes.INodeVisitor;
+import hr.fer.zemris.java.custom.scripting.nodes.TextNode;
+
+/**
+ * ScriptProgram is a smart script flattened into an array of instructions,
+ * the form {@link SmartScriptEngine} executes. Every instruction is an opcode
+ * followed by its operands in the same <code>int</code> array, operands refer
+ * to a pool of constants, to variable slots or to other instructions. The
+ * document tree is walked only once, when the program is built:
+ * <ul>
+ * <li>numbers and strings become entries of the constant pool,</li>
+ * <li>adjacent text and echo tags of only constants are merged into a single
+ * {@link TextFragment}, which keeps its encoded bytes,</li>
+ * <li>every FOR loop gets the slot of its nesting depth and variables are
+ * resolved to the slot of the innermost loop that defines them,</li>
+ * <li>start, end and step values of loops are parsed once, ends and steps
+ * into wrappers that are shared by all executions,</li>
+ * <li>operators and functions become opcodes, unknown functions are
+ * dropped,</li>
+ * <li>the operand stack an echo tag needs is computed, so it can be
+ * allocated once per execution,</li>
+ * <li>functions of a {@link FunctionRegistry} are resolved, asynchronous ones
+ * with constant arguments outside of loops and CACHE blocks are moved to the start of the
+ * program, and results of asynchronous functions are waited for right before
+ * they are used,</li>
+ * <li>every CACHE block gets a {@link FragmentCache.Fragment} that lists
+ * the loop variables and parameters its output depends on, a parameter
+ * whose name is not a constant can not be read inside of a CACHE block.</li>
+ * </ul>
+ * Errors the tree walking engine used to hit while executing, such as
+ * reading a variable outside of its loop, compile to an instruction that
+ * fails at the same point of the output. A program is immutable and can be
+ * executed by many requests at once.
+ *
+ * @author Ante Spajic
+ */
+public final class ScriptProgram {
+
+	/** Writes the text fragment in constant <code>k</code>. */
+	static final int TEXT = 0;
+	/** Pushes constant <code>k</code>. */
+	static final int PUSH = 1;
+	/** Pushes the value of slot <code>s</code>. */
+	static final int LOAD = 2;
+	/** Operator <code>+</code>. */
+	static final int ADD = 3;
+	/** Operator <code>-</code>. */
+	static final int SUBTRACT = 4;
+	/** Operator <code>*</code>. */
+	static final int MULTIPLY = 5;
+	/** Operator <code>/</code>. */
+	static final int DIVIDE = 6;
+	/** Any other operator, which leaves its left operand. */
+	static final int DROP = 7;
+	/** Function <code>@sin</code>. */
+	static final int SIN = 8;
+	/** Function <code>@decfmt</code>. */
+	static final int DECFMT = 9;
+	/** Function <code>@dup</code>. */
+	static final int DUP = 10;
+	/** Function <code>@swap</code>. */
+	static final int SWAP = 11;
+	/** Function <code>@setMimeType</code>. */
+	static final int SET_MIME_TYPE = 12;
+	/** Function <code>@paramGet</code>. */
+	static final int PARAM_GET = 13;
+	/** Function <code>@pparamGet</code>. */
+	static final int PPARAM_GET = 14;
+	/** Function <code>@tparamGet</code>. */
+	static final int TPARAM_GET = 15;
+	/** Function <code>@pparamSet</code>. */
+	static final int PPARAM_SET = 16;
+	/** Function <code>@tparamSet</code>. */
+	static final int TPARAM_SET = 17;
+	/** Function <code>@pparamDel</code>. */
+	static final int PPARAM_DEL = 18;
+	/** Function <code>@tparamDel</code>. */
+	static final int TPARAM_DEL = 19;
+	/** Writes the operand stack from the bottom up and empties it. */
+	static final int ECHO = 20;
+	/**
+	 * Starts a loop, <code>s k_start k_end exit</code>: stores a wrapper of the
+	 * start value into slot <code>s</code> and jumps to <code>exit</code> if it
+	 * is not less than the end value.
+	 */
+	static final int FOR = 21;
+	/**
+	 * Ends an iteration, <code>s k_end k_step body</code>: increments slot
+	 * <code>s</code> and jumps to <code>body</code> while it is less than the
+	 * end value.
+	 */
+	static final int NEXT = 22;
+	/** Fails with the message in constant <code>k</code>. */
+	static final int FAIL = 23;
+	/** Calls the registered function in constant <code>k</code>. */
+	static final int CALL = 24;
+	/**
+	 * Stands for the call of a function that has been started with the
+	 * program, <code>i arity</code>: pops the arguments and pushes the future
+	 * of prefetched call <code>i</code>.
+	 */
+	static final int PREFETCHED = 25;
+	/** Waits for the future <code>n</code> places below the top of the stack. */
+	static final int JOIN = 26;
+	/**
+	 * Starts a CACHE block, <code>k exit</code>: writes the cached output of
+	 * the fragment in constant <code>k</code> and jumps to <code>exit</code>,
+	 * or starts recording the output of the block.
+	 */
+	static final int CACHE = 27;
+	/** Ends a CACHE block and caches its recorded output. */
+	static final int END_CACHE = 28;
+
+	/**
+	 * Call of an asynchronous function with constant arguments, started when
+	 * the program starts.
+	 */
+	static final class Prefetch {
+
+		/** The function. */
+		final ScriptFunction function;
+
+		/** The arguments. */
+		final Object[] args;
+
+		/**
+		 * Instantiates a new prefetched call.
+		 *
+		 * @param function the function
+		 * @param args the arguments
+		 */
+		Prefetch(ScriptFunction function, Object[] args) {
+			this.function = function;
+			this.args = args;
+		}
+	}
+
+	/** The instructions. */
+	final int[] code;
+
+	/** The constant pool. */
+	final Object[] constants;
+
+	/** Number of variable slots. */
+	final int slots;
+
+	/** Maximum depth of the operand stack. */
+	final int maxStack;
+
+	/** Calls started with the program. */
+	final Prefetch[] prefetches;
+
+	/** Executor of asynchronous functions, null without a registry. */
+	final Executor executor;
+
+	/** Flag telling whether the program calls registered functions. */
+	private final boolean usesFunctions;
+
+	/** CACHE blocks of the program in document order. */
+	private final List<FragmentCache.Fragment> fragments;
+
+	/**
+	 * Instantiates a new program from its builder.
+	 *
+	 * @param builder the builder that has visited the document
+	 * @param functions the registry of functions, may be null
+	 */
+	private ScriptProgram(Builder builder, FunctionRegistry functions) {
+		this.code = Arrays.copyOf(builder.code, builder.size);
+		this.constants = builder.constants.toArray();
+		this.slots = builder.maxDepth;
+		this.maxStack = Math.max(1, builder.maxStack);
+		this.prefetches = builder.prefetches.toArray(new Prefetch[0]);
+		this.executor = functions == null ? null : functions.getExecutor();
+		this.usesFunctions = builder.usesFunctions;
+		this.fragments = Collections.unmodifiableList(builder.fragments);
+	}
+
+	/**
+	 * Flattens a parsed document into a program that only calls built-in
+	 * functions.
+	 *
+	 * @param document the document
+	 * @return the program
+	 */
+	public static ScriptProgram compile(DocumentNode document) {
+		return compile(document, null);
+	}
+
+	/**
+	 * Flattens a parsed document into a program.
+	 *
+	 * @param document the document
+	 * @param functions functions the script may call besides the built-in
+	 *            ones, null for none
+	 * @return the program
+	 */
+	public static ScriptProgram compile(DocumentNode document, FunctionRegistry functions) {
+		Builder builder = new Builder(functions);
+		document.accept(builder);
+		builder.flushText();
+		return new ScriptProgram(builder, functions);
+	}
+
+	/**
+	 * Checks if the program calls functions of a {@link FunctionRegistry}.
+	 *
+	 * @return true if registered functions are called
+	 */
+	public boolean usesFunctions() {
+		return usesFunctions;
+	}
+
+	/**
+	 * Returns the CACHE blocks of the program in document order.
+	 *
+	 * @return the cached blocks, empty if there are none
+	 */
+	public List<FragmentCache.Fragment> getFragments() {
+		return fragments;
+	}
+
+	/**
+	 * Returns the number of <code>int</code>s the instructions take.
+	 *
+	 * @return size of the code
+	 */
+	public int getCodeSize() {
+		return code.length;
+	}
+
+	/**
+	 * Visitor that emits the instructions of a document.
+	 */
+	private static class Builder implements INodeVisitor {
+
+		/**
+		 * Inputs of a CACHE block that is being visited.
+		 */
+		private static final class Block {
+
+			/** Number of loops enclosing the block. */
+			final int depth;
+
+			/** Slots of the enclosing loop variables the block reads. */
+			final List<Integer> slots = new ArrayList<>();
+
+			/** Opcodes of the parameter reads of the block. */
+			final List<Integer> sources = new ArrayList<>();
+
+			/** Names of the parameters the block reads. */
+			final List<String> names = new ArrayList<>();
+
+			/**
+			 * Instantiates a new block.
+			 *
+			 * @param depth number of loops enclosing the block
+			 */
+			Block(int depth) {
+				this.depth = depth;
+			}
+
+			/**
+			 * Adds a read of a parameter, unless it has been added before.
+			 *
+			 * @param source opcode of the read
+			 * @param name name of the parameter
+			 */
+			void read(int source, String name) {
+				for (int i = 0; i < names.size(); i++) {
+					if (sources.get(i) == source && names.get(i).equals(name)) {
+						return;
+					}
+				}
+				sources.add(source);
+				names.add(name);
+			}
+		}
+
+		/** Marks a stack value that is the future of an asynchronous call. */
+		private static final Object PENDING = new Object();
+
+		/** Registered functions, null for none. */
+		private final FunctionRegistry functions;
+
+		/** Emitted instructions. */
+		private int[] code = new int[64];
+
+		/** Number of emitted <code>int</code>s. */
+		private int size;
+
+		/** Collected constants. */
+		private final List<Object> constants = new ArrayList<>();
+
+		/** Indexes of already collected constants. */
+		private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+		/** Names of the loop variables in scope, innermost first. */
+		private final LinkedList<String> scopes = new LinkedList<>();
+
+		/** Deepest loop nesting, the number of slots. */
+		private int maxDepth;
+
+		/** Deepest operand stack of an echo tag. */
+		private int maxStack;
+
+		/** Depth of the operand stack of the current echo tag. */
+		private int depth;
+
+		/**
+		 * What is known about the values on the operand stack of the current
+		 * echo tag: the value of a constant, {@link #PENDING} or null.
+		 */
+		private Object[] values = new Object[16];
+
+		/** Static text that has not been emitted yet. */
+		private final StringBuilder text = new StringBuilder();
+
+		/** Calls started with the program. */
+		private final List<Prefetch> prefetches = new ArrayList<>();
+
+		/** Flag telling whether registered functions are called. */
+		private boolean usesFunctions;
+
+		/** CACHE blocks being visited, innermost first. */
+		private final LinkedList<Block> blocks = new LinkedList<>();
+
+		/** Fragments of the CACHE blocks in document order. */
+		private final List<FragmentCache.Fragment> fragments = new ArrayList<>();
+
+		/**
+		 * Instantiates a new builder.
+		 *
+		 * @param functions registered functions, null for none
+		 */
+		Builder(FunctionRegistry functions) {
+			this.functions = functions;
+		}
+
+		@Override
+		public void visitDocumentNode(DocumentNode node) {
+			for (int i = 0, n = node.numberOfChildren(); i < n; i++) {
+				node.getChild(i).accept(this);
+			}
+		}
+
+		@Override
+		public void visitTextNode(TextNode node) {
+			text.append(node.getValue());
+		}
+
+		@Override
+		public void visitForLoopNode(ForLoopNode node) {
+			if (node.getStepExpression() == null) {
+				emit(FAIL, constant("FOR loop without a step expression can not be executed."));
+				return;
+			}
+			int slot = scopes.size();
+			int end = constant(ValueWrapper.parsed(node.getEndExpression().asText()));
+			int step = constant(ValueWrapper.parsed(node.getStepExpression().asText()));
+			emit(FOR, slot, constant(ScriptRuntime.number(node.getStartExpression().asText())), end);
+			int exit = size;
+			emit(0);
+			int body = size;
+			scopes.addFirst(node.getVariable().getName());
+			maxDepth = Math.max(maxDepth, scopes.size());
+			for (int i = 0, n = node.numberOfChildren(); i < n; i++) {
+				node.getChild(i).accept(this);
+			}
+			scopes.removeFirst();
+			emit(NEXT, slot, end, step);
+			emit(body);
+			code[exit] = size;
+		}
+
+		@Override
+		public void visitCacheNode(CacheNode node) {
+			emit(CACHE, 0, 0);
+			int start = size - 3;
+			int index = constants.size();
+			constants.add(null);
+			code[start + 1] = index;
+			int number = fragments.size();
+			fragments.add(null);
+			Block block = new Block(scopes.size());
+			blocks.addFirst(block);
+			for (int i = 0, n = node.numberOfChildren(); i < n; i++) {
+				node.getChild(i).accept(this);
+			}
+			blocks.removeFirst();
+			emit(END_CACHE);
+			code[start + 2] = size;
+			String name = node.getName() != null ? node.getName() : "fragment " + (number + 1);
+			long timeToLive = (long) (Double.parseDouble(node.getTimeToLive().asText()) * 1e9);
+			FragmentCache.Fragment fragment = new FragmentCache.Fragment(name, timeToLive,
+					block.slots.stream().mapToInt(Integer::intValue).toArray(),
+					block.sources.stream().mapToInt(Integer::intValue).toArray(),
+					block.names.toArray(new String[0]));
+			constants.set(index, fragment);
+			fragments.set(number, fragment);
+		}
+
+		@Override
+		public void visitEchoNode(EchoNode node) {
+			if (isConstant(node)) {
+				for (Element el : node.getElements()) {
+					text.append(constantValue(el));
+				}
+				return;
+			}
+			depth = 0;
+			for (Element el : node.getElements()) {
+				boolean valid;
+				Object value = constantValue(el);
+				if (value != null) {
+					valid = instruction(0, 1, PUSH, constant(value));
+				} else if (el instanceof ElementVariable) {
+					valid = variable(((ElementVariable) el).getName());
+				} else if (el instanceof ElementOperator) {
+					valid = instruction(2, -1, operator(((ElementOperator) el).getValue()));
+				} else if (el instanceof ElementFunction) {
+					valid = function(((ElementFunction) el).getName());
+				} else {
+					valid = true;
+				}
+				if (!valid) {
+					return;
+				}
+			}
+			join(depth);
+			emit(ECHO);
+		}
+
+		/**
+		 * Checks if an echo tag only pushes constants, so its output is known
+		 * in advance.
+		 *
+		 * @param node the echo tag
+		 * @return true if all elements are constants
+		 */
+		private static boolean isConstant(EchoNode node) {
+			for (Element el : node.getElements()) {
+				if (constantValue(el) == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Returns the value an element pushes if it is a constant.
+		 *
+		 * @param el the element
+		 * @return the value or null if the element is not a constant
+		 */
+		private static Object constantValue(Element el) {
+			if (el instanceof ElementConstantDouble) {
+				return ((ElementConstantDouble) el).getValue();
+			} else if (el instanceof ElementConstantInteger) {
+				return ((ElementConstantInteger) el).getValue();
+			} else if (el instanceof ElementConstantString) {
+				return ((ElementConstantString) el).getValue();
+			}
+			return null;
+		}
+
+		/**
+		 * Emits the static text collected since the last instruction as a
+		 * single fragment.
+		 */
+		private void flushText() {
+			if (text.length() == 0) {
+				return;
+			}
+			int index = constants.size();
+			constants.add(new TextFragment(text.toString()));
+			text.setLength(0);
+			emit(TEXT, index);
+		}
+
+		/**
+		 * Emits the load of a variable from the slot of the innermost loop
+		 * that defines it.
+		 *
+		 * @param name name of the variable
+		 * @return false if the variable is used outside of its loop
+		 */
+		private boolean variable(String name) {
+			int index = scopes.indexOf(name);
+			if (index < 0) {
+				emit(FAIL, constant("Variable " + name + " is used outside of its loop."));
+				return false;
+			}
+			int slot = scopes.size() - 1 - index;
+			for (Block block : blocks) {
+				if (slot < block.depth && !block.slots.contains(slot)) {
+					block.slots.add(slot);
+				}
+			}
+			return instruction(0, 1, LOAD, slot);
+		}
+
+		/**
+		 * Emits the instruction of a built-in or registered function.
+		 *
+		 * @param name name of the function
+		 * @return false if the function pops more values than there are
+		 */
+		private boolean function(String name) {
+			switch (name.toLowerCase()) {
+			case "sin":
+				return instruction(1, 0, SIN);
+			case "decfmt":
+				return instruction(2, -1, DECFMT);
+			case "dup":
+				return instruction(1, 1, DUP);
+			case "swap":
+				return instruction(2, 0, SWAP);
+			case "setmimetype":
+				return instruction(1, -1, SET_MIME_TYPE);
+			case "paramget":
+				return instruction(2, -1, PARAM_GET);
+			case "pparamget":
+				return instruction(2, -1, PPARAM_GET);
+			case "tparamget":
+				return instruction(2, -1, TPARAM_GET);
+			case "pparamset":
+				return instruction(2, -2, PPARAM_SET);
+			case "tparamset":
+				return instruction(2, -2, TPARAM_SET);
+			case "pparamdel":
+				return instruction(1, -1, PPARAM_DEL);
+			case "tparamdel":
+				return instruction(1, -1, TPARAM_DEL);
+			default:
+				ScriptFunction function = functions == null ? null : functions.get(name);
+				return function == null || call(function);
+			}
+		}
+
+		/**
+		 * Emits the call of a registered function. An asynchronous call with
+		 * constant arguments outside of loops is started with the program.
+		 *
+		 * @param function the function
+		 * @return false if the function pops more values than there are
+		 */
+		private boolean call(ScriptFunction function) {
+			usesFunctions = true;
+			int arity = function.getArity();
+			if (function.isAsync() && scopes.isEmpty() && blocks.isEmpty() && depth >= arity) {
+				Object[] args = Arrays.copyOfRange(values, depth - arity, depth);
+				boolean constant = true;
+				for (Object arg : args) {
+					constant &= arg != null && arg != PENDING;
+				}
+				if (constant) {
+					prefetches.add(new Prefetch(function, args));
+					return instruction(arity, 1 - arity, PREFETCHED, prefetches.size() - 1, arity);
+				}
+			}
+			return instruction(arity, 1 - arity, CALL, constant(function));
+		}
+
+		/**
+		 * Returns the opcode of an operator.
+		 *
+		 * @param symbol the operator symbol
+		 * @return the opcode
+		 */
+		private static int operator(String symbol) {
+			switch (symbol) {
+			case "+":
+				return ADD;
+			case "-":
+				return SUBTRACT;
+			case "*":
+				return MULTIPLY;
+			case "/":
+				return DIVIDE;
+			default:
+				return DROP;
+			}
+		}
+
+		/**
+		 * Emits an instruction of an echo tag and tracks the depth of the
+		 * operand stack. An instruction that would pop from an empty stack
+		 * is replaced by a failing one.
+		 *
+		 * @param pops number of values the instruction needs on the stack
+		 * @param effect change of the stack depth
+		 * @param instruction the opcode and its operands
+		 * @return false if the stack does not hold enough values
+		 */
+		private boolean instruction(int pops, int effect, int... instruction) {
+			if (depth < pops) {
+				emit(FAIL, constant("Echo tag pops more values than it pushes."));
+				return false;
+			}
+			int opcode = instruction[0];
+			if (opcode != DUP && opcode != SWAP && opcode != DROP) {
+				join(pops);
+			}
+			if (!blocks.isEmpty() && (opcode == PARAM_GET || opcode == PPARAM_GET || opcode == TPARAM_GET)) {
+				Object name = values[depth - 2];
+				if (name == null) {
+					emit(FAIL, constant("CACHE block reads a parameter whose name is not a constant."));
+					return false;
+				}
+				for (Block block : blocks) {
+					block.read(opcode, name.toString());
+				}
+			}
+			emit(instruction);
+			if (depth + Math.max(effect, 0) > values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			switch (opcode) {
+			case PUSH:
+				values[depth] = constants.get(instruction[1]);
+				break;
+			case DUP:
+				values[depth] = values[depth - 1];
+				break;
+			case SWAP:
+				Object top = values[depth - 1];
+				values[depth - 1] = values[depth - 2];
+				values[depth - 2] = top;
+				break;
+			case CALL:
+				values[depth - pops] = ((ScriptFunction) constants.get(instruction[1])).isAsync() ? PENDING : null;
+				break;
+			case PREFETCHED:
+				values[depth - pops] = PENDING;
+				break;
+			case DROP:
+				break;
+			default:
+				Arrays.fill(values, depth - pops, depth + effect, null);
+				break;
+			}
+			depth += effect;
+			maxStack = Math.max(maxStack, depth);
+			return true;
+		}
+
+		/**
+		 * Emits waits for the futures among the values at the top of the
+		 * operand stack.
+		 *
+		 * @param count number of values at the top of the stack
+		 */
+		private void join(int count) {
+			for (int i = 0; i < count; i++) {
+				if (values[depth - 1 - i] == PENDING) {
+					emit(JOIN, i);
+					values[depth - 1 - i] = null;
+				}
+			}
+		}
+
+		/**
+		 * Returns the index of a constant, equal constants share an entry.
+		 *
+		 * @param value the constant value
+		 * @return index in the constant pool
+		 */
+		private int constant(Object value) {
+			Integer index = constantIndexes.get(value);
+			if (index == null) {
+				index = constants.size();
+				constants.add(value);
+				constantIndexes.put(value, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Appends <code>int</code>s to the code, after the pending static
+		 * text.
+		 *
+		 * @param values opcode and operands
+		 */
+		private void emit(int... values) {
+			flushText();
+			if (size + values.length > code.length) {
+				code = Arrays.copyOf(code, Math.max(code.length * 2, size + values.length));
+			}
+			System.arraycopy(values, 0, code, size, values.length);
+			size += values.length;
+		}
+	}
+}
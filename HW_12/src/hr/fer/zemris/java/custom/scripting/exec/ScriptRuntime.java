@@ -0,0 +1,304 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * ScriptRuntime contains the semantics of smart script operators and built-in
+ * functions. Both the interpreting {@link SmartScriptEngine} and compiled
+ * scripts call these methods, so every way of executing a script produces the
+ * same output. Arguments are given in the order they were pushed on the stack.
+ *
+ * @author Ante Spajic
+ */
+public final class ScriptRuntime {
+
+	/**
+	 * Private constructor, this class only has static methods.
+	 */
+	private ScriptRuntime() {
+	}
+
+	/**
+	 * Applies an arithmetic operator on two operands. Unknown operators leave
+	 * the left operand as the result.
+	 *
+	 * @param symbol the operator symbol
+	 * @param left the left operand
+	 * @param right the right operand
+	 * @return the result of the operation
+	 */
+	public static Object operate(String symbol, Object left, Object right) {
+		switch (symbol) {
+		case "+":
+			return add(left, right);
+		case "-":
+			return subtract(left, right);
+		case "/":
+			return divide(left, right);
+		case "*":
+			return multiply(left, right);
+		default:
+			return left;
+		}
+	}
+
+	/**
+	 * Returns <code>left + right</code>.
+	 *
+	 * @param left the left operand
+	 * @param right the right operand
+	 * @return the sum
+	 */
+	public static Object add(Object left, Object right) {
+		ValueWrapper v = new ValueWrapper(left);
+		v.increment(right);
+		return v.getValue();
+	}
+
+	/**
+	 * Returns <code>left - right</code>.
+	 *
+	 * @param left the left operand
+	 * @param right the right operand
+	 * @return the difference
+	 */
+	public static Object subtract(Object left, Object right) {
+		ValueWrapper v = new ValueWrapper(left);
+		v.decrement(right);
+		return v.getValue();
+	}
+
+	/**
+	 * Returns <code>left * right</code>.
+	 *
+	 * @param left the left operand
+	 * @param right the right operand
+	 * @return the product
+	 */
+	public static Object multiply(Object left, Object right) {
+		ValueWrapper v = new ValueWrapper(left);
+		v.multiply(right);
+		return v.getValue();
+	}
+
+	/**
+	 * Returns <code>left / right</code>.
+	 *
+	 * @param left the left operand
+	 * @param right the right operand
+	 * @return the quotient
+	 */
+	public static Object divide(Object left, Object right) {
+		ValueWrapper v = new ValueWrapper(left);
+		v.divide(right);
+		return v.getValue();
+	}
+
+	/**
+	 * Parses the start value of a FOR loop, so its variable is a number from
+	 * the first iteration on.
+	 *
+	 * @param value the value
+	 * @return the Integer or Double the value stands for, or the value itself
+	 *         if it is not a number
+	 */
+	public static Object number(Object value) {
+		return ValueWrapper.number(value);
+	}
+
+	/**
+	 * Function <code>@sin</code>, sine of an angle given in radians.
+	 *
+	 * @param x the angle
+	 * @return sine of the angle
+	 */
+	public static Object sin(Object x) {
+		return Math.sin(Double.parseDouble(x.toString()));
+	}
+
+	/**
+	 * Function <code>@decfmt</code>, formats a number with a
+	 * {@link DecimalFormat} pattern.
+	 *
+	 * @param value the number to format
+	 * @param format the pattern
+	 * @return the formatted number
+	 */
+	public static Object decfmt(Object value, Object format) {
+		return new DecimalFormat(format.toString()).format(value);
+	}
+
+	/**
+	 * Function <code>@setMimeType</code>.
+	 *
+	 * @param rc the request context
+	 * @param mimeType the mime type
+	 */
+	public static void setMimeType(RequestContext rc, Object mimeType) {
+		rc.setMimeType(mimeType.toString());
+	}
+
+	/**
+	 * Function <code>@paramGet</code>.
+	 *
+	 * @param rc the request context
+	 * @param name the parameter name
+	 * @param defaultValue value returned if the parameter does not exist
+	 * @return the parameter value
+	 */
+	public static Object paramGet(RequestContext rc, Object name, Object defaultValue) {
+		String value = rc.getParameter(name.toString());
+		return value == null ? defaultValue.toString() : value;
+	}
+
+	/**
+	 * Function <code>@pparamGet</code>.
+	 *
+	 * @param rc the request context
+	 * @param name the parameter name
+	 * @param defaultValue value returned if the parameter does not exist
+	 * @return the persistent parameter value
+	 */
+	public static Object pparamGet(RequestContext rc, Object name, Object defaultValue) {
+		String value = rc.getPersistentParameter(name.toString());
+		return value == null ? defaultValue.toString() : value;
+	}
+
+	/**
+	 * Function <code>@tparamGet</code>.
+	 *
+	 * @param rc the request context
+	 * @param name the parameter name
+	 * @param defaultValue value returned if the parameter does not exist
+	 * @return the temporary parameter value
+	 */
+	public static Object tparamGet(RequestContext rc, Object name, Object defaultValue) {
+		String value = rc.getTemporaryParameter(name.toString());
+		return value == null ? defaultValue.toString() : value;
+	}
+
+	/**
+	 * Function <code>@pparamSet</code>.
+	 *
+	 * @param rc the request context
+	 * @param value the value to store
+	 * @param name the parameter name
+	 */
+	public static void pparamSet(RequestContext rc, Object value, Object name) {
+		rc.setPersistentParameter(name.toString(), value.toString());
+	}
+
+	/**
+	 * Function <code>@tparamSet</code>.
+	 *
+	 * @param rc the request context
+	 * @param value the value to store
+	 * @param name the parameter name
+	 */
+	public static void tparamSet(RequestContext rc, Object value, Object name) {
+		rc.setTemporaryParameter(name.toString(), value.toString());
+	}
+
+	/**
+	 * Function <code>@pparamDel</code>.
+	 *
+	 * @param rc the request context
+	 * @param name the parameter name
+	 */
+	public static void pparamDel(RequestContext rc, Object name) {
+		rc.removePersistentParameter(name.toString());
+	}
+
+	/**
+	 * Function <code>@tparamDel</code>.
+	 *
+	 * @param rc the request context
+	 * @param name the parameter name
+	 */
+	public static void tparamDel(RequestContext rc, Object name) {
+		rc.removeTemporaryParameter(name.toString());
+	}
+
+	/**
+	 * Calls a registered function.
+	 *
+	 * @param function the function
+	 * @param rc the request context
+	 * @param args the arguments in the order they were pushed
+	 * @return the result of the function, an empty string instead of null
+	 */
+	public static Object call(ScriptFunction function, RequestContext rc, Object[] args) {
+		Object result;
+		try {
+			result = function.apply(rc, args);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Script function failed: " + e.getMessage(), e);
+		}
+		return result == null ? "" : result;
+	}
+
+	/**
+	 * Starts a call of an asynchronous function.
+	 *
+	 * @param function the function
+	 * @param rc the request context
+	 * @param args the arguments in the order they were pushed
+	 * @param executor the executor the function runs on
+	 * @return future of the result, to be passed to {@link #join(Object)}
+	 */
+	public static CompletableFuture<Object> callAsync(ScriptFunction function, RequestContext rc, Object[] args,
+			Executor executor) {
+		return CompletableFuture.supplyAsync(() -> call(function, rc, args), executor);
+	}
+
+	/**
+	 * Waits for the result of an asynchronous function.
+	 *
+	 * @param future future returned by {@link #callAsync}
+	 * @return the result of the function
+	 */
+	public static Object join(Object future) {
+		try {
+			return ((CompletableFuture<?>) future).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes static text to the request context, in the bytes the fragment
+	 * keeps for the charset of the response.
+	 *
+	 * @param rc the request context
+	 * @param text the text
+	 */
+	public static void write(RequestContext rc, TextFragment text) {
+		try {
+			rc.write(text.getBytes(rc.getCharset()));
+		} catch (IOException ignore) {}
+	}
+
+	/**
+	 * Writes a value to the request context, I/O errors are ignored because a
+	 * script can not react to them.
+	 *
+	 * @param rc the request context
+	 * @param value the value to write
+	 */
+	public static void write(RequestContext rc, Object value) {
+		try {
+			rc.write(value.toString());
+		} catch (IOException ignore) {}
+	}
+}
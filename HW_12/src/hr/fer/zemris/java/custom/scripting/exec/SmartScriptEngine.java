@@ -1,263 +1,348 @@
 package hr.fer.zemris.java.custom.scripting.exec;
 
 import java.io.IOException;
-import java.text.DecimalFormat;
-import java.util.Stack;
+import java.util.Arrays;
 
-import hr.fer.zemris.java.custom.scripting.elems.Element;
-import hr.fer.zemris.java.custom.scripting.elems.ElementConstantDouble;
-import hr.fer.zemris.java.custom.scripting.elems.ElementConstantInteger;
-import hr.fer.zemris.java.custom.scripting.elems.ElementConstantString;
-import hr.fer.zemris.java.custom.scripting.elems.ElementFunction;
-import hr.fer.zemris.java.custom.scripting.elems.ElementOperator;
-import hr.fer.zemris.java.custom.scripting.elems.ElementVariable;
 import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
-import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
-import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
-import hr.fer.zemris.java.custom.scripting.nodes.INodeVisitor;
-import hr.fer.zemris.java.custom.scripting.nodes.TextNode;
 import hr.fer.zemris.java.webserver.RequestContext;
 
+import static hr.fer.zemris.java.custom.scripting.exec.ScriptProgram.*;
+
 /**
  * Smart script engine is a custom engine used to execute smart script programs
  * and outputs the result within a request context's output stream.
- * 
+ * <p>
+ * The engine executes the flat instructions of a {@link ScriptProgram} in a
+ * single loop. Loop variables live in an array of slots indexed by the
+ * nesting depth of their loop, and echo tags are evaluated on an operand
+ * stack that is allocated once for the whole execution. Calls of asynchronous
+ * functions the program starts with are started before anything is written.
+ * <p>
+ * With a {@link FragmentCache}, a CACHE block whose output is cached for the
+ * current values of its inputs is not executed, its output is written and
+ * its changes of the mime type and parameters are applied instead. The
+ * output of other blocks is recorded while they execute and cached.
+ *
  * @author Ante Spajic
  *
  */
 public class SmartScriptEngine {
 
+	/** The program. */
+	private ScriptProgram program;
+
+	/** The request context. */
+	private RequestContext requestContext;
+
+	/** Cache of the output of CACHE blocks, null if it is not cached. */
+	private FragmentCache fragments;
+
 	/**
-	 * Types of parameters for functions that deal with request context.
-	 * 
-	 * @author Ante Spajic
+	 * Instantiates a new smart script engine that executes smart script files.
+	 *
+	 * @param documentNode the document node
+	 * @param requestContext the request context to output the result to browser
 	 */
-	private enum ParamType {
-		NORMAL, PERSISTENT, TEMPORARY;
+	public SmartScriptEngine(DocumentNode documentNode, RequestContext requestContext) {
+		this(ScriptProgram.compile(documentNode), requestContext);
 	}
-	
-	/** The document node. */
-	private DocumentNode documentNode;
-	
-	/** The request context. */
-	private RequestContext requestContext;
-	
-	/** The multistack. */
-	private ObjectMultistack multistack = new ObjectMultistack();
-	
-	/** The node visitor. */
-	private INodeVisitor visitor = new INodeVisitor() {
 
-		@Override
-		public void visitTextNode(TextNode node) {
-			try {
-				requestContext.write(node.asText());
-			} catch (IOException e) {}
-		}
-		
-		@Override
-		public void visitDocumentNode(DocumentNode node) {
-			for(int i = 0, n=node.numberOfChildren(); i<n; i++){
-				node.getChild(i).accept(this);
-			}
-		}
+	/**
+	 * Instantiates a new smart script engine that executes an already
+	 * flattened program, which can be shared by many engines.
+	 *
+	 * @param program the program
+	 * @param requestContext the request context to output the result to browser
+	 */
+	public SmartScriptEngine(ScriptProgram program, RequestContext requestContext) {
+		this(program, requestContext, null);
+	}
 
-		@Override
-		public void visitForLoopNode(ForLoopNode node) {
-			ValueWrapper start = new ValueWrapper(node.getStartExpression().asText());
-			Object end = node.getEndExpression().asText();
-			Object step = node.getStepExpression().asText();
-			String name = node.getVariable().getName();
-			multistack.push(name, start);
-			
-			while(start.numCompare(end) < 0) {
-				for(int i=0,n=node.numberOfChildren();i<n;i++){
-					node.getChild(i).accept(this);
-				}
-				multistack.peek(name).increment(step);
-			}
-			multistack.pop(name);
-		}
+	/**
+	 * Instantiates a new smart script engine that executes an already
+	 * flattened program and caches the output of its CACHE blocks.
+	 *
+	 * @param program the program
+	 * @param requestContext the request context to output the result to browser
+	 * @param fragments cache of the output of CACHE blocks, null to always
+	 *            execute them
+	 */
+	public SmartScriptEngine(ScriptProgram program, RequestContext requestContext, FragmentCache fragments) {
+		this.program = program;
+		this.requestContext = requestContext;
+		this.fragments = fragments;
+	}
 
-		@Override
-		public void visitEchoNode(EchoNode node) {
-			Stack<Object> stack = new Stack<>();
-			for (Element el : node.getElements()) {
-				if (el instanceof ElementConstantDouble) {
-					stack.push(((ElementConstantDouble)el).getValue());
-				} else if (el instanceof ElementConstantInteger) {
-					stack.push(((ElementConstantInteger)el).getValue());
-				} else if (el instanceof ElementConstantString) {
-					stack.push(((ElementConstantString)el).getValue());
-				} else if (el instanceof ElementVariable) {
-					String name = ((ElementVariable)el).getName();
-					stack.push(multistack.peek(name).getValue());
-				} else if (el instanceof ElementOperator) {
-					doOperation(stack,(ElementOperator)el);
-				} else if (el instanceof ElementFunction) {
-					doFunction(stack,(ElementFunction)el);
-				}
-			}
-			
-			Stack<String> reverse = new Stack<>();
-            while (!stack.isEmpty()) {
-                reverse.push(stack.pop().toString());
-            }
-            while (!reverse.isEmpty()) {
-                try {
-                    requestContext.write(reverse.pop());
-                } catch (IOException e) {}
-            }
+	/**
+	 * Executes this engine, runs the program.
+	 */
+	public void execute() {
+		RequestContext rc = requestContext;
+		int[] code = program.code;
+		Object[] k = program.constants;
+		ValueWrapper[] slots = new ValueWrapper[program.slots];
+		Object[] stack = new Object[program.maxStack];
+		Object[] prefetched = new Object[program.prefetches.length];
+		for (int i = 0; i < prefetched.length; i++) {
+			ScriptProgram.Prefetch call = program.prefetches[i];
+			prefetched[i] = ScriptRuntime.callAsync(call.function, rc, call.args.clone(), program.executor);
 		}
-
-		/**
-		 * Performs the fucntion stored in {@link ElementFunction} token.
-		 *
-		 * @param stack temporary stack with function arguments
-		 * @param el the element function token with function to be executed
-		 */
-		private void doFunction(Stack<Object> stack, ElementFunction el) {
-			String name = el.getName();
-			
-			switch (name.toLowerCase()) {
-			case "sin":
-				ValueWrapper val = new ValueWrapper(stack.pop());
-				Double x = Double.parseDouble(val.getValue().toString());
-				stack.push(Math.sin(x));
+		FragmentCache.Recording recording = null;
+		int sp = 0;
+		int pc = 0;
+		Object a;
+		Object b;
+		while (pc < code.length) {
+			switch (code[pc++]) {
+			case TEXT:
+				if (recording == null) {
+					ScriptRuntime.write(rc, (TextFragment) k[code[pc++]]);
+				} else {
+					byte[] bytes = ((TextFragment) k[code[pc++]]).getBytes(recording.charset);
+					write(rc, recording, bytes, 0, bytes.length);
+				}
 				break;
-			case "decfmt":
-				DecimalFormat df = new DecimalFormat(stack.pop().toString());
-				Object value = new ValueWrapper(stack.pop()).getValue();
-                stack.push(df.format(value));
+			case PUSH:
+				stack[sp++] = k[code[pc++]];
 				break;
-			case "dup":
-				stack.push(stack.peek());
+			case LOAD:
+				stack[sp++] = slots[code[pc++]].getValue();
 				break;
-			case "swap":
-				Object a = stack.pop();
-				Object b = stack.pop();
-				stack.push(a);
-				stack.push(b);
+			case ADD:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.add(stack[sp - 1], stack[sp]);
 				break;
-			case "setmimetype":
-				requestContext.setMimeType(stack.pop().toString());
+			case SUBTRACT:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.subtract(stack[sp - 1], stack[sp]);
 				break;
-			case "paramget":
-				getParameter(ParamType.NORMAL,stack);
+			case MULTIPLY:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.multiply(stack[sp - 1], stack[sp]);
 				break;
-			case "pparamget":
-				getParameter(ParamType.PERSISTENT,stack);
+			case DIVIDE:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.divide(stack[sp - 1], stack[sp]);
 				break;
-			case "pparamset":
-				setParameter(ParamType.PERSISTENT,stack);
+			case DROP:
+				sp--;
 				break;
-			case "pparamdel":
-				requestContext.removePersistentParameter(stack.pop().toString());
+			case SIN:
+				stack[sp - 1] = ScriptRuntime.sin(stack[sp - 1]);
 				break;
-			case "tparamget":
-				getParameter(ParamType.TEMPORARY,stack);
+			case DECFMT:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.decfmt(stack[sp - 1], stack[sp]);
 				break;
-			case "tparamset":
-				setParameter(ParamType.TEMPORARY,stack);
+			case DUP:
+				stack[sp] = stack[sp - 1];
+				sp++;
 				break;
-			case "tparamdel":
-				requestContext.removeTemporaryParameter(stack.pop().toString());
+			case SWAP:
+				a = stack[sp - 1];
+				stack[sp - 1] = stack[sp - 2];
+				stack[sp - 2] = a;
 				break;
-			default:
+			case SET_MIME_TYPE:
+				effect(rc, recording, SET_MIME_TYPE, stack[--sp], null);
 				break;
-			}
-		}
-
-		/**
-		 * Sets a provided parameter in a request context.
-		 * 
-		 * @param type type of the parameter to be set 
-		 * @param stack stack with the parameters
-		 */
-		private void setParameter(ParamType type, Stack<Object> stack) {
-			String name = stack.pop().toString();
-			String value = stack.pop().toString();
-			switch (type) {
-			case PERSISTENT:
-				requestContext.setPersistentParameter(name, value);
+			case PARAM_GET:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.paramGet(rc, stack[sp - 1], stack[sp]);
 				break;
-			case TEMPORARY:
-				requestContext.setTemporaryParameter(name, value);
+			case PPARAM_GET:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.pparamGet(rc, stack[sp - 1], stack[sp]);
 				break;
-			default:
+			case TPARAM_GET:
+				sp--;
+				stack[sp - 1] = ScriptRuntime.tparamGet(rc, stack[sp - 1], stack[sp]);
+				break;
+			case PPARAM_SET:
+			case TPARAM_SET:
+				b = stack[--sp];
+				a = stack[--sp];
+				effect(rc, recording, code[pc - 1], a, b);
+				break;
+			case PPARAM_DEL:
+			case TPARAM_DEL:
+				effect(rc, recording, code[pc - 1], stack[--sp], null);
+				break;
+			case ECHO:
+				for (int i = 0; i < sp; i++) {
+					if (recording == null) {
+						ScriptRuntime.write(rc, stack[i]);
+					} else {
+						byte[] bytes = stack[i].toString().getBytes(recording.charset);
+						write(rc, recording, bytes, 0, bytes.length);
+					}
+					stack[i] = null;
+				}
+				sp = 0;
+				break;
+			case FOR: {
+				ValueWrapper variable = new ValueWrapper(k[code[pc + 1]]);
+				slots[code[pc]] = variable;
+				pc = variable.compareWith((ValueWrapper) k[code[pc + 2]]) < 0 ? pc + 4 : code[pc + 3];
 				break;
 			}
-		}
-
-		/**
-		 * Gets a parameter from a request context and pushes it to a stack.
-		 * 
-		 * @param type type of request parameter
-		 * @param stack stack with program arguments
-		 */
-		private void getParameter(ParamType type, Stack<Object> stack) {
-			String defaultValue = stack.pop().toString();
-			String name = stack.pop().toString();
-			String value = null;
-			switch(type) {
-			case NORMAL:
-				value = requestContext.getParameter(name);
+			case NEXT: {
+				ValueWrapper variable = slots[code[pc]];
+				variable.incrementBy((ValueWrapper) k[code[pc + 2]]);
+				pc = variable.compareWith((ValueWrapper) k[code[pc + 1]]) < 0 ? code[pc + 3] : pc + 4;
 				break;
-			case PERSISTENT:
-				value = requestContext.getPersistentParameter(name);
+			}
+			case CALL: {
+				ScriptFunction function = (ScriptFunction) k[code[pc++]];
+				Object[] args = Arrays.copyOfRange(stack, sp - function.getArity(), sp);
+				sp -= args.length;
+				stack[sp++] = function.isAsync() ? ScriptRuntime.callAsync(function, rc, args, program.executor)
+						: ScriptRuntime.call(function, rc, args);
 				break;
-			case TEMPORARY:
-				value = requestContext.getTemporaryParameter(name);
+			}
+			case PREFETCHED:
+				sp -= code[pc + 1];
+				stack[sp++] = prefetched[code[pc]];
+				pc += 2;
 				break;
+			case JOIN:
+				stack[sp - 1 - code[pc]] = ScriptRuntime.join(stack[sp - 1 - code[pc]]);
+				pc++;
+				break;
+			case CACHE: {
+				if (fragments == null) {
+					pc += 2;
+					break;
+				}
+				FragmentCache.Fragment fragment = (FragmentCache.Fragment) k[code[pc]];
+				Object[] key = key(fragment, slots);
+				FragmentCache.Entry entry = fragments.get(fragment, key, rc.getCharset());
+				if (entry != null) {
+					replay(rc, recording, entry);
+					pc = code[pc + 1];
+				} else {
+					recording = new FragmentCache.Recording(fragment, key, rc.getCharset(), recording);
+					pc += 2;
+				}
+				break;
+			}
+			case END_CACHE:
+				if (recording != null) {
+					fragments.put(recording);
+					recording = recording.parent;
+				}
+				break;
+			case FAIL:
+				throw new IllegalStateException((String) k[code[pc]]);
+			default:
+				throw new IllegalStateException("Unknown instruction " + code[pc - 1]);
 			}
-			stack.push(value == null ? defaultValue : value);
 		}
+	}
 
-		/**
-		 * Method that performs an operation on two last arguments on provided stack.
-		 * 
-		 * @param stack stack with arguments
-		 * @param el operator of operation
-		 */
-		private void doOperation(Stack<Object> stack, ElementOperator el) {
-			String symbol = el.getValue();
-			Object v2 = new ValueWrapper(stack.pop()).getValue();
-			ValueWrapper v1 = new ValueWrapper(stack.pop());
-			switch(symbol) {
-			case "+":
-				v1.increment(v2);
-				break;
-			case "-":
-				v1.decrement(v2);
+	/**
+	 * Returns the values of the inputs of a CACHE block: the variables of the
+	 * enclosing loops and the parameters it reads.
+	 *
+	 * @param fragment the block
+	 * @param slots the variable slots
+	 * @return values of the inputs
+	 */
+	private Object[] key(FragmentCache.Fragment fragment, ValueWrapper[] slots) {
+		int n = fragment.slots.length;
+		Object[] key = new Object[n + fragment.names.length];
+		for (int i = 0; i < n; i++) {
+			key[i] = slots[fragment.slots[i]].getValue();
+		}
+		for (int i = 0; i < fragment.names.length; i++) {
+			String name = fragment.names[i];
+			switch (fragment.sources[i]) {
+			case PARAM_GET:
+				key[n + i] = requestContext.getParameter(name);
 				break;
-			case "/":
-				v1.divide(v2);
+			case PPARAM_GET:
+				key[n + i] = requestContext.getPersistentParameter(name);
 				break;
-			case "*":
-				v1.multiply(v2);
+			default:
+				key[n + i] = requestContext.getTemporaryParameter(name);
 				break;
 			}
-			stack.push(v1.getValue());
 		}
-		
-	};
+		return key;
+	}
 
 	/**
-	 * Instantiates a new smart script engine that executes smart script files.
+	 * Writes cached output of a CACHE block and applies its changes in the
+	 * order the block made them.
 	 *
-	 * @param documentNode the document node
-	 * @param requestContext the request context to output the result to browser
+	 * @param rc the request context
+	 * @param recording recording of the enclosing block, may be null
+	 * @param entry the cached output
 	 */
-	public SmartScriptEngine(DocumentNode documentNode, RequestContext requestContext) {
-		this.documentNode = documentNode;
-		this.requestContext = requestContext;
-		
+	private static void replay(RequestContext rc, FragmentCache.Recording recording, FragmentCache.Entry entry) {
+		int offset = 0;
+		for (Object[] effect : entry.effects) {
+			int end = (Integer) effect[0];
+			write(rc, recording, entry.output, offset, end - offset);
+			effect(rc, recording, (Integer) effect[1], effect[2], effect[3]);
+			offset = end;
+		}
+		write(rc, recording, entry.output, offset, entry.output.length - offset);
 	}
 
 	/**
-	 * Executes this engine, compiles the program.
+	 * Writes output of a recorded CACHE block, I/O errors are ignored like
+	 * they are by {@link ScriptRuntime#write(RequestContext, Object)}.
+	 *
+	 * @param rc the request context
+	 * @param recording the recording, may be null
+	 * @param bytes the output
+	 * @param offset offset of the output in the array
+	 * @param length length of the output
 	 */
-	public void execute() {
-		documentNode.accept(visitor);
+	private static void write(RequestContext rc, FragmentCache.Recording recording, byte[] bytes, int offset,
+			int length) {
+		if (length == 0) {
+			return;
+		}
+		if (recording != null) {
+			recording.write(bytes, offset, length);
+		}
+		try {
+			rc.write(bytes, offset, length);
+		} catch (IOException ignore) {}
+	}
+
+	/**
+	 * Changes the mime type or a parameter and records the change.
+	 *
+	 * @param rc the request context
+	 * @param recording the recording, may be null
+	 * @param opcode opcode of the function that makes the change
+	 * @param a the first argument
+	 * @param b the second argument, null for functions with a single one
+	 */
+	private static void effect(RequestContext rc, FragmentCache.Recording recording, int opcode, Object a,
+			Object b) {
+		switch (opcode) {
+		case SET_MIME_TYPE:
+			ScriptRuntime.setMimeType(rc, a);
+			break;
+		case PPARAM_SET:
+			ScriptRuntime.pparamSet(rc, a, b);
+			break;
+		case TPARAM_SET:
+			ScriptRuntime.tparamSet(rc, a, b);
+			break;
+		case PPARAM_DEL:
+			ScriptRuntime.pparamDel(rc, a);
+			break;
+		default:
+			ScriptRuntime.tparamDel(rc, a);
+			break;
+		}
+		if (recording != null) {
+			recording.effect(opcode, a, b);
+		}
 	}
 }
@@ -0,0 +1,74 @@
+package hr.fer.zemris.java.custom.scripting.exec;
+
+import java.nio.charset.Charset;
+
+/**
+ * TextFragment is a run of static text of a script. The text is encoded when
+ * it is first written in a charset and the bytes are kept, so a template's
+ * static text is not encoded again on every request. Bytes of only the most
+ * recently used charset are kept, since all responses of a server normally
+ * use the same one.
+ *
+ * @author Ante Spajic
+ */
+public final class TextFragment {
+
+	/**
+	 * Text encoded in a charset.
+	 */
+	private static final class Encoded {
+
+		/** The charset. */
+		final Charset charset;
+
+		/** The encoded text. */
+		final byte[] bytes;
+
+		/**
+		 * Instantiates new encoded text.
+		 *
+		 * @param charset the charset
+		 * @param bytes the encoded text
+		 */
+		Encoded(Charset charset, byte[] bytes) {
+			this.charset = charset;
+			this.bytes = bytes;
+		}
+	}
+
+	/** The text. */
+	private final String text;
+
+	/** The text encoded in the last used charset, null until first used. */
+	private volatile Encoded encoded;
+
+	/**
+	 * Instantiates a new text fragment.
+	 *
+	 * @param text the text
+	 */
+	public TextFragment(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * Returns the text encoded in a charset. The returned array is shared and
+	 * must not be modified.
+	 *
+	 * @param charset the charset
+	 * @return the encoded text
+	 */
+	public byte[] getBytes(Charset charset) {
+		Encoded e = encoded;
+		if (e == null || !e.charset.equals(charset)) {
+			e = new Encoded(charset, text.getBytes(charset));
+			encoded = e;
+		}
+		return e.bytes;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
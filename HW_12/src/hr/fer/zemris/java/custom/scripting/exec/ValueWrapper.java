@@ -6,6 +6,12 @@ package hr.fer.zemris.java.custom.scripting.exec;
  * to represent number, integer or double) and <tt>null</tt> value (will be
  * treated as zero), container can provide methods for basic arithmetic
  * operations.
+ * <p>
+ * A stored string is parsed only once, when it is first used in an
+ * operation. Afterwards the value is kept in a primitive slot tagged with its
+ * type, and results of operations are boxed only when {@link #getValue()} is
+ * called. Numbers are recognised by scanning the string, exceptions are never
+ * used to detect the type of a value.
  * 
  * @author Ante Spajic
  *
@@ -30,15 +36,32 @@ public class ValueWrapper {
 	}
 
 	/**
-	 * Variable that holds this wrappers value.
+	 * Variable that holds this wrappers value, stale while {@link #boxed} is
+	 * false.
 	 */
 	private Object value;
 
 	/**
-	 * Type of a stored value for arithmetic operations.
+	 * False if {@link #value} must be boxed from the primitive slots.
+	 */
+	private boolean boxed = true;
+
+	/**
+	 * Type of a stored value for arithmetic operations, null until the value
+	 * is first used in an operation.
 	 */
 	private Type type;
 
+	/**
+	 * The stored value if it is an integer.
+	 */
+	private int intValue;
+
+	/**
+	 * The stored value if it is a double.
+	 */
+	private double doubleValue;
+
 	/**
 	 * Creates {@link ValueWrapper} with initial <code>value</code>.
 	 * 
@@ -55,6 +78,14 @@ public class ValueWrapper {
 	 * @return value
 	 */
 	public Object getValue() {
+		if (!boxed) {
+			if (type == Type.INTEGER) {
+				value = Integer.valueOf(intValue);
+			} else {
+				value = Double.valueOf(doubleValue);
+			}
+			boxed = true;
+		}
 		return this.value;
 	}
 
@@ -66,23 +97,8 @@ public class ValueWrapper {
 	 */
 	public void setValue(Object value) {
 		this.value = value;
-	}
-
-	/**
-	 * Private helper method that determines the type of the given value.
-	 * 
-	 * @param value
-	 *            tested value
-	 * @return type of the value
-	 */
-	private static Type determineType(Object value) {
-		if (value == null || isInteger(value.toString())) {
-			return Type.INTEGER;
-		} else if (isDouble(value.toString())) {
-			return Type.DOUBLE;
-		}
-
-		throw new IllegalArgumentException("Value must be an integer, double or a string that represents a number.");
+		this.boxed = true;
+		this.type = null;
 	}
 
 	/**
@@ -96,7 +112,21 @@ public class ValueWrapper {
 	 *         are equal, positive number otherwise
 	 */
 	public int numCompare(Object withValue) {
-		return (int) performOperation(withValue, Operation.COMPARE);
+		return performOperation(withValue, Operation.COMPARE);
+	}
+
+	/**
+	 * Compares this value with the value of another wrapper, the other value
+	 * is parsed only once no matter how often it is compared. A null wrapper
+	 * is treated as 0.
+	 * 
+	 * @param withValue
+	 *            wrapper of the value compared to this value
+	 * @return negative number (if this value is less then withValue), 0 if they
+	 *         are equal, positive number otherwise
+	 */
+	public int compareWith(ValueWrapper withValue) {
+		return performOperation(withValue, Operation.COMPARE);
 	}
 
 	/**
@@ -106,7 +136,19 @@ public class ValueWrapper {
 	 *            value which is used to perform operation
 	 */
 	public void increment(Object incValue) {
-		value = performOperation(incValue, Operation.INCREMENT);
+		performOperation(incValue, Operation.INCREMENT);
+	}
+
+	/**
+	 * Used when incrementing the stored value with the value of another
+	 * wrapper, the other value is parsed only once no matter how often it is
+	 * used. A null wrapper is treated as 0.
+	 * 
+	 * @param incValue
+	 *            wrapper of the value which is used to perform operation
+	 */
+	public void incrementBy(ValueWrapper incValue) {
+		performOperation(incValue, Operation.INCREMENT);
 	}
 
 	/**
@@ -116,7 +158,7 @@ public class ValueWrapper {
 	 *            value which is used to perform operation
 	 */
 	public void decrement(Object incValue) {
-		value = performOperation(incValue, Operation.DECREMENT);
+		performOperation(incValue, Operation.DECREMENT);
 	}
 
 	/**
@@ -126,7 +168,7 @@ public class ValueWrapper {
 	 *            value which is used to perform operation
 	 */
 	public void multiply(Object incValue) {
-		value = performOperation(incValue, Operation.MULTIPLY);
+		performOperation(incValue, Operation.MULTIPLY);
 	}
 
 	/**
@@ -136,36 +178,147 @@ public class ValueWrapper {
 	 *            value which is used to perform operation
 	 */
 	public void divide(Object incValue) {
-		value = performOperation(incValue, Operation.DIVIDE);
+		performOperation(incValue, Operation.DIVIDE);
+	}
+
+	/**
+	 * Creates a wrapper whose value has already been parsed. Such a wrapper
+	 * is not modified when it is used as the operand of another wrapper, so
+	 * it can be shared between threads. If the value is not a number, parsing
+	 * is retried and fails whenever the wrapper is used.
+	 * 
+	 * @param value
+	 *            the value
+	 * @return the wrapper
+	 */
+	static ValueWrapper parsed(Object value) {
+		ValueWrapper wrapper = new ValueWrapper(value);
+		try {
+			wrapper.resolve();
+		} catch (IllegalArgumentException ignore) {
+			// reported when the wrapper is used
+		}
+		return wrapper;
+	}
+
+	/**
+	 * Returns the number a value stands for.
+	 * 
+	 * @param value
+	 *            the value
+	 * @return the Integer or Double the value stands for, or the value itself
+	 *         if it is not a number
+	 */
+	static Object number(Object value) {
+		ValueWrapper wrapper = parsed(value);
+		if (wrapper.type == null) {
+			return value;
+		}
+		wrapper.boxed = false;
+		return wrapper.getValue();
+	}
+
+	/**
+	 * Private helper method that determines the type of the stored value and
+	 * parses it into the primitive slots, if that has not been done yet.
+	 */
+	private void resolve() {
+		if (type != null) {
+			return;
+		}
+		if (value == null) {
+			type = Type.INTEGER;
+			intValue = 0;
+		} else if (value instanceof Integer) {
+			type = Type.INTEGER;
+			intValue = (Integer) value;
+		} else if (value instanceof Double) {
+			type = Type.DOUBLE;
+			doubleValue = (Double) value;
+		} else {
+			String string = value.toString();
+			if (!parseInteger(string)) {
+				if (!isDouble(string)) {
+					throw new IllegalArgumentException(
+							"Value must be an integer, double or a string that represents a number.");
+				}
+				type = Type.DOUBLE;
+				doubleValue = Double.parseDouble(string);
+			}
+		}
+	}
+
+	/**
+	 * Private helper method that performs an operation with the value of
+	 * another wrapper.
+	 * 
+	 * @param incValue
+	 *            wrapper of the value that will be operated on
+	 * @param oper
+	 *            operation performed
+	 * @return result of the comparison, 0 for other operations
+	 */
+	private int performOperation(ValueWrapper incValue, Operation oper) {
+		resolve();
+		if (incValue == null) {
+			return performOperation(Type.INTEGER, 0, 0, oper);
+		}
+		incValue.resolve();
+		return performOperation(incValue.type, incValue.intValue, incValue.doubleValue, oper);
 	}
 
 	/**
-	 * Private helper method that delegates the operation to the operation
-	 * performer on integers or on doubles.
+	 * Private helper method that performs an operation with the given value.
+	 * Boxed numbers are used directly, other values are parsed.
 	 * 
 	 * @param incValue
 	 *            value that will be operated on
 	 * @param oper
 	 *            operation performed
-	 * @return result of the performed operation
+	 * @return result of the comparison, 0 for other operations
 	 */
-	private Object performOperation(Object incValue, Operation oper) {
-		this.type = determineType(value);
-		Type typeOfIncValue = determineType(incValue);
+	private int performOperation(Object incValue, Operation oper) {
+		resolve();
+		if (incValue instanceof Integer) {
+			return performOperation(Type.INTEGER, (Integer) incValue, 0, oper);
+		} else if (incValue instanceof Double) {
+			return performOperation(Type.DOUBLE, 0, (Double) incValue, oper);
+		}
+		return performOperation(new ValueWrapper(incValue), oper);
+	}
 
-		if (type != Type.INTEGER || typeOfIncValue != Type.INTEGER) {
-			Double v1 = getDoubleValue(value);
-			Double v2 = getDoubleValue(incValue);
+	/**
+	 * Private helper method that performs the operation on integers if both
+	 * values are integers, otherwise on doubles. The result is stored in the
+	 * primitive slots of this wrapper.
+	 * 
+	 * @param incType
+	 *            type of the other value
+	 * @param incInt
+	 *            the other value if it is an integer
+	 * @param incDouble
+	 *            the other value if it is a double
+	 * @param oper
+	 *            operation performed
+	 * @return result of the comparison, 0 for other operations
+	 */
+	private int performOperation(Type incType, int incInt, double incDouble, Operation oper) {
+		if (type == Type.INTEGER && incType == Type.INTEGER) {
 			if (oper == Operation.COMPARE) {
-				return v1.compareTo(v2);
-			} else {
-				return doubleOperation(v1, v2, oper);
+				return Integer.compare(intValue, incInt);
 			}
+			intValue = integerOperation(intValue, incInt, oper);
 		} else {
-			Integer v1 = getIntegerValue(value);
-			Integer v2 = getIntegerValue(incValue);
-			return integerOperation(v1, v2, oper);
+			double v1 = type == Type.INTEGER ? intValue : doubleValue;
+			double v2 = incType == Type.INTEGER ? incInt : incDouble;
+			if (oper == Operation.COMPARE) {
+				return Double.compare(v1, v2);
+			}
+			doubleValue = doubleOperation(v1, v2, oper);
+			type = Type.DOUBLE;
 		}
+		boxed = false;
+		return 0;
 	}
 
 	/**
@@ -179,7 +332,7 @@ public class ValueWrapper {
 	 *            operation to perform
 	 * @return result of the operation
 	 */
-	private Double doubleOperation(Double value1, Double value2, Operation oper) {
+	private static double doubleOperation(double value1, double value2, Operation oper) {
 		switch (oper) {
 		case INCREMENT:
 			return value1 + value2;
@@ -206,7 +359,7 @@ public class ValueWrapper {
 	 *            operation to perform
 	 * @return result of the operation
 	 */
-	private Integer integerOperation(Integer value1, Integer value2, Operation oper) {
+	private static int integerOperation(int value1, int value2, Operation oper) {
 		switch (oper) {
 		case INCREMENT:
 			return value1 + value2;
@@ -214,68 +367,134 @@ public class ValueWrapper {
 			return value1 - value2;
 		case MULTIPLY:
 			return value1 * value2;
-		case DIVIDE:
+		default:
 			if (value2 == 0) {
 				throw new ArithmeticException("Division by zero");
 			}
 			return value1 / value2;
-		default:
-			return value1.compareTo(value2);
 		}
 	}
 
 	/**
-	 * Returns a double that is the value of given value.
+	 * Helper method that parses a string the way {@link Integer#parseInt(String)}
+	 * does and stores the result as the integer value of this wrapper.
 	 * 
-	 * @param value
-	 *            value being parsed
-	 * @return parsed double
-	 */
-	private static Double getDoubleValue(Object value) {
-		return Double.valueOf(value == null ? 0 : Double.parseDouble(value.toString()));
-	}
-
-	/**
-	 * Returns a integer that is the value of given value.
-	 * 
-	 * @param value
-	 *            value being parsed
-	 * @return parsed integer
+	 * @param string
+	 *            String to be parsed
+	 * @return True if a string is a valid integer value, false otherwise.
 	 */
-	private static Integer getIntegerValue(Object value) {
-		return Integer.valueOf(value == null ? 0 : Integer.parseInt(value.toString()));
+	private boolean parseInteger(String string) {
+		int n = string.length();
+		int i = 0;
+		boolean negative = false;
+		if (n > 0 && (string.charAt(0) == '-' || string.charAt(0) == '+')) {
+			negative = string.charAt(0) == '-';
+			i++;
+		}
+		if (i == n) {
+			return false;
+		}
+		long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long result = 0;
+		for (; i < n; i++) {
+			int digit = Character.digit(string.charAt(i), 10);
+			if (digit < 0) {
+				return false;
+			}
+			result = result * 10 + digit;
+			if (result > limit) {
+				return false;
+			}
+		}
+		type = Type.INTEGER;
+		intValue = (int) (negative ? -result : result);
+		return true;
 	}
 
 	/**
-	 * Helper method that checks if a given string is parsable as a double.
+	 * Helper method that checks if a given string is parsable as a double. The
+	 * accepted syntax is the one of {@link Double#valueOf(String)}: decimal and
+	 * hexadecimal floating point literals, <code>NaN</code> and
+	 * <code>Infinity</code>, surrounded by optional whitespace.
 	 * 
 	 * @param string
 	 *            String to be checked
 	 * @return True if a string is a valid double value, false otherwise.
 	 */
 	private static boolean isDouble(String string) {
-		try {
-			Double.parseDouble(string);
-		} catch (NumberFormatException e) {
+		int i = 0;
+		int n = string.length();
+		while (i < n && string.charAt(i) <= ' ') {
+			i++;
+		}
+		while (n > i && string.charAt(n - 1) <= ' ') {
+			n--;
+		}
+		if (i < n && (string.charAt(i) == '-' || string.charAt(i) == '+')) {
+			i++;
+		}
+		if (string.startsWith("NaN", i)) {
+			return i + 3 == n;
+		}
+		if (string.startsWith("Infinity", i)) {
+			return i + 8 == n;
+		}
+		boolean hex = i + 1 < n && string.charAt(i) == '0'
+				&& (string.charAt(i + 1) == 'x' || string.charAt(i + 1) == 'X');
+		int radix = 10;
+		if (hex) {
+			i += 2;
+			radix = 16;
+		}
+		int digits = 0;
+		while (i < n && isDigit(string.charAt(i), radix)) {
+			i++;
+			digits++;
+		}
+		if (i < n && string.charAt(i) == '.') {
+			i++;
+			while (i < n && isDigit(string.charAt(i), radix)) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
 			return false;
 		}
-		return true;
+		char exponent = hex ? 'p' : 'e';
+		if (i < n && Character.toLowerCase(string.charAt(i)) == exponent) {
+			i++;
+			if (i < n && (string.charAt(i) == '-' || string.charAt(i) == '+')) {
+				i++;
+			}
+			int exponentDigits = 0;
+			while (i < n && isDigit(string.charAt(i), 10)) {
+				i++;
+				exponentDigits++;
+			}
+			if (exponentDigits == 0) {
+				return false;
+			}
+		} else if (hex) {
+			return false;
+		}
+		if (i < n && "fFdD".indexOf(string.charAt(i)) >= 0) {
+			i++;
+		}
+		return i == n;
 	}
 
 	/**
-	 * Helper method that checks if a given string is parsable as an integer.
+	 * Checks if a character is an ASCII digit in the given radix.
 	 * 
-	 * @param string
-	 *            String to be checked
-	 * @return True if a string is a valid integer value, false otherwise.
+	 * @param c
+	 *            the character
+	 * @param radix
+	 *            10 or 16
+	 * @return true if the character is a digit
 	 */
-	private static boolean isInteger(String string) {
-		try {
-			Integer.parseInt(string);
-		} catch (NumberFormatException e) {
-			return false;
-		}
-		return true;
+	private static boolean isDigit(char c, int radix) {
+		return c >= '0' && c <= '9' || radix == 16 && (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F');
 	}
 
 }
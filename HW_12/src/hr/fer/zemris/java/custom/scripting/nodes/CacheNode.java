@@ -0,0 +1,87 @@
+package hr.fer.zemris.java.custom.scripting.nodes;
+
+import hr.fer.zemris.java.custom.scripting.elems.Element;
+
+/**
+ * A node representing a block whose output is cached, written as
+ * <code>{$CACHE 60 "news" $} ... {$END$}</code>. The first argument is the
+ * time to live of cached output in seconds, the optional second one a name of
+ * the block. It inherits from Node class.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class CacheNode extends Node {
+
+	/**
+	 * Used for keeping time to live of the cached output in seconds.
+	 */
+	private Element timeToLive;
+	/**
+	 * Used for keeping the name of the block, can be null.
+	 */
+	private String name;
+
+	/**
+	 * Class constructor for creating a cached block with specified time to
+	 * live and name.
+	 *
+	 * @param timeToLive
+	 *            a numeric {@link Element}, the time to live in seconds
+	 * @param name
+	 *            name of the block, can be null
+	 * @throws IllegalArgumentException
+	 *             if <code>timeToLive</code> is <code>null</code>
+	 */
+	public CacheNode(Element timeToLive, String name) {
+		if (timeToLive == null) {
+			throw new IllegalArgumentException(
+					"Time to live of the cached block can't be null.");
+		}
+		this.timeToLive = timeToLive;
+		this.name = name;
+	}
+
+	/**
+	 * Getter method for time to live property.
+	 *
+	 * @return the time to live in seconds
+	 */
+	public Element getTimeToLive() {
+		return timeToLive;
+	}
+
+	/**
+	 * Getter method for name property.
+	 *
+	 * @return the name or null if the block has no name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns a text representation of the cached block.
+	 *
+	 * @example: {$ CACHE 60 "news" $}...{$END$}
+	 * @return a text representation
+	 */
+	@Override
+	public String asText() {
+		StringBuilder sb = new StringBuilder("{$ CACHE ").append(timeToLive.asText());
+		if (name != null) {
+			sb.append(" \"").append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+		}
+		sb.append(" $}");
+		for (int i = 0, n = numberOfChildren(); i < n; i++) {
+			sb.append(getChild(i).asText());
+		}
+		return sb.append("{$END$}").toString();
+	}
+
+	@Override
+	public void accept(INodeVisitor visitor) {
+		visitor.visitCacheNode(this);
+	}
+
+}
@@ -28,6 +28,13 @@ public interface INodeVisitor {
 	 */
 	void visitEchoNode(EchoNode node);
 	
+	/**
+	 * Action to be performed in cache node.
+	 *
+	 * @param node the cache node
+	 */
+	void visitCacheNode(CacheNode node);
+	
 	/**
 	 * Action to be performed in document node.
 	 *
@@ -8,6 +8,8 @@ package hr.fer.zemris.java.custom.scripting.nodes;
  */
 public class TextNode extends Node {
 
+	private String value;
+
 	private String text;
 
 	/**
@@ -17,20 +19,28 @@ public class TextNode extends Node {
 	 *            Value of the text node
 	 */
 	public TextNode(String text) {
+		this.value = text;
 		this.text = text;
 		this.text = this.text.replace("\\", "\\\\");
 		this.text = this.text.replace("{", "\\{");
 	}
 
 	/**
-	 * Getter for this nodes text property.
+	 * Getter for this nodes text property, the text as it is written to the
+	 * output.
 	 * 
 	 * @return This nodes text
 	 */
 	public String getValue() {
-		return text;
+		return value;
 	}
 	
+	/**
+	 * Returns the text as it is written in a document, with backslashes and
+	 * '{' escaped.
+	 * 
+	 * @return This nodes text as document source
+	 */
 	@Override
 	public String asText() {
 		return text;
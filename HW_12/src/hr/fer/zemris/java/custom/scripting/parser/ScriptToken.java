@@ -4,7 +4,9 @@ import hr.fer.zemris.java.custom.scripting.elems.Element;
 
 /**
  * This class represents a token generated by {@link SmartScriptLexer} to
- * process given text and encapsulate elements of the document.
+ * process given text and encapsulate elements of the document. Tokens of the
+ * lexer refer to their lexeme by its offset and length in the analyzed text
+ * and create their element on first use.
  * 
  * @author Ante Spajic
  *
@@ -16,9 +18,21 @@ public class ScriptToken {
 	 */
 	private TokenType type;
 	/**
-	 * Element that it encapsulates.
+	 * Element that it encapsulates, null until it is created from the lexeme.
 	 */
 	private Element element;
+	/**
+	 * Text the lexeme is in, null if the token was created with its element.
+	 */
+	private CharSequence text;
+	/**
+	 * Offset of the lexeme in the text, -1 if the token has no lexeme.
+	 */
+	private int offset = -1;
+	/**
+	 * Length of the lexeme.
+	 */
+	private int length;
 
 	/**
 	 * Public constructor that takes two arguments, TokenType which describes
@@ -37,6 +51,25 @@ public class ScriptToken {
 		this.element = element;
 	}
 
+	/**
+	 * Constructor of a token that refers to its lexeme in the analyzed text.
+	 * 
+	 * @param type
+	 *            Type of this token.
+	 * @param text
+	 *            Text the lexeme is in.
+	 * @param offset
+	 *            Offset of the lexeme.
+	 * @param length
+	 *            Length of the lexeme.
+	 */
+	ScriptToken(TokenType type, CharSequence text, int offset, int length) {
+		this.type = type;
+		this.text = text;
+		this.offset = offset;
+		this.length = length;
+	}
+
 	/**
 	 * Returns this tokens type.
 	 * 
@@ -52,11 +85,34 @@ public class ScriptToken {
 	 * @return {@link Element} that it encapsulates.
 	 */
 	public Element getValue() {
+		if (element == null && text != null) {
+			element = SmartScriptLexer.element(type, text, offset, length);
+		}
 		return element;
 	}
 
+	/**
+	 * Returns the offset of this token's lexeme in the analyzed text.
+	 * 
+	 * @return the offset or -1 if the token was not created by the lexer
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the length of this token's lexeme, including the quotes of a
+	 * string and the '@' of a function.
+	 * 
+	 * @return the length
+	 */
+	public int getLength() {
+		return length;
+	}
+
 	@Override
 	public String toString() {
-		return "(" + type + ", " + element.asText() + ")";
+		Element value = getValue();
+		return "(" + type + ", " + (value == null ? null : value.asText()) + ")";
 	}
 }
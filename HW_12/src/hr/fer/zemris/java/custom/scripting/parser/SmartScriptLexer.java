@@ -1,10 +1,11 @@
 package hr.fer.zemris.java.custom.scripting.parser;
 
+import hr.fer.zemris.java.custom.scripting.elems.Element;
 import hr.fer.zemris.java.custom.scripting.elems.ElementConstantDouble;
 import hr.fer.zemris.java.custom.scripting.elems.ElementConstantInteger;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantString;
 import hr.fer.zemris.java.custom.scripting.elems.ElementFunction;
 import hr.fer.zemris.java.custom.scripting.elems.ElementOperator;
-import hr.fer.zemris.java.custom.scripting.elems.ElementConstantString;
 import hr.fer.zemris.java.custom.scripting.elems.ElementVariable;
 import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
 
@@ -17,16 +18,29 @@ import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
  * in tag state lexer has a set of rules to further tokenize the text. Lexer
  * stays in TAG state until it encounters closing tag "$}". State can also be
  * changed manually with setState method with appropriate LexerStates.
- * 
+ * <p>
+ * The lexer scans the text in place in a single pass. Every token records the
+ * offset and length of its lexeme in the text, and its element is only
+ * created when the parser asks for it, so skipping whitespace and scanning
+ * names, numbers and text does not allocate. Leading and trailing whitespace
+ * of the document is ignored.
+ *
  * @author Ante Spajic
  *
  */
 public class SmartScriptLexer {
 
+	/** Element of the tokens that open and close tags. */
+	private static final ElementConstantString TAG_ELEMENT = new ElementConstantString("TAG");
+
+	/**
+	 * The analyzed text.
+	 */
+	private final CharSequence data;
 	/**
-	 * Loaded text as an char data array.
+	 * End of the analyzed part of the text, trailing whitespace excluded.
 	 */
-	private char[] data;
+	private final int end;
 	/**
 	 * Current index in text.
 	 */
@@ -42,18 +56,27 @@ public class SmartScriptLexer {
 
 	/**
 	 * Public constructor for this lexer, only argument is the text that you
-	 * want to lexically analyze.
-	 * 
+	 * want to lexically analyze. The text is not copied, so it must not change
+	 * while it is analyzed.
+	 *
 	 * @param text
 	 *            Text to be lexically analyzed.
 	 */
-	public SmartScriptLexer(String text) {
+	public SmartScriptLexer(CharSequence text) {
 		if (text == null) {
 			throw new IllegalArgumentException("Provided text cannot be null");
 		}
-		text = text.trim();
-		this.data = text.toCharArray();
-		this.currentIndex = 0;
+		int start = 0;
+		int end = text.length();
+		while (start < end && text.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		this.data = text;
+		this.end = end;
+		this.currentIndex = start;
 		this.state = SmartScriptLexerState.TEXT;
 	}
 
@@ -61,11 +84,11 @@ public class SmartScriptLexer {
 	 * Sets this lexer's state, allowed states are TEXT and TAG. While in TEXT
 	 * state lexer treats everything as text and the TAG state is entered when
 	 * "{$" is encountered in text.
-	 * 
+	 *
 	 * @param state
 	 */
 	public void setState(SmartScriptLexerState state) {
-		if (state == null || !(state instanceof SmartScriptLexerState)) {
+		if (state == null) {
 			throw new IllegalArgumentException(
 					"Invalid state provided, state cannot be: " + state);
 		}
@@ -75,7 +98,7 @@ public class SmartScriptLexer {
 	/**
 	 * Depending on the current state of this lexer this method analyzes word
 	 * until next whitespace and returns according ScriptToken
-	 * 
+	 *
 	 * @return Next token from given text
 	 */
 	public ScriptToken nextToken() {
@@ -83,9 +106,6 @@ public class SmartScriptLexer {
 			throw new SmartScriptLexerException(
 					"No more tokens to be generated.");
 		}
-		if (currentIndex == data.length) {
-			return new ScriptToken(TokenType.EOF, null);
-		}
 
 		switch (state) {
 		case TEXT:
@@ -103,54 +123,56 @@ public class SmartScriptLexer {
 	 * When in TEXT state nextToken method delegates work to this method which
 	 * treats everything until "{$" tag as text and generates textTokens from
 	 * given text.
-	 * 
-	 * @return Processed script token with according Element.
+	 *
+	 * @return Processed script token.
 	 */
 	private ScriptToken processText() {
-		try {
-			if (data[currentIndex] == '{' && data[currentIndex + 1] == '$') {
-				setState(SmartScriptLexerState.TAG);
-				currentIndex += 2;
-				token = new ScriptToken(TokenType.TAG, new ElementConstantString("TAG"));
-			} else {
-				token = textToken();
-			}
-		} catch (Exception e) {
-			throw new SmartScriptLexerException("Invalid opening tag.");
+		if (currentIndex == end) {
+			return token(TokenType.EOF, currentIndex);
 		}
-
-		return token;
+		if (isOpeningTag(currentIndex)) {
+			setState(SmartScriptLexerState.TAG);
+			currentIndex += 2;
+			return token(TokenType.TAG, currentIndex - 2);
+		}
+		return textToken();
 	}
 
 	/**
 	 * When in TAG state nextToken method delegates work to this method which
 	 * analyzes language tags and returns according script tokens that represent
 	 * elements from given text.
-	 * 
-	 * @return Processed script token with according Element.
+	 *
+	 * @return Processed script token.
 	 */
 	private ScriptToken processTag() {
-		// skip whitespaces
-		while (Character.toString(data[currentIndex]).matches("\\s+")
-				&& currentIndex < data.length - 1) {
+		while (currentIndex < end && isWhitespace(data.charAt(currentIndex))) {
 			currentIndex++;
 		}
-		if (data[currentIndex] == '$' && data[currentIndex + 1] == '}') {
+		if (currentIndex == end) {
+			return token(TokenType.EOF, currentIndex);
+		}
+		int start = currentIndex;
+		char c = data.charAt(currentIndex);
+		if (c == '$' && currentIndex + 1 < end && data.charAt(currentIndex + 1) == '}') {
 			setState(SmartScriptLexerState.TEXT);
 			currentIndex += 2;
-			return new ScriptToken(TokenType.TAG, new ElementConstantString("TAG"));
+			return token(TokenType.TAG, start);
 		}
 
-		if (data[currentIndex] == '=' && token.getType() == TokenType.TAG) {
+		if (c == '=' && token != null && token.getType() == TokenType.TAG) {
 			currentIndex++;
-			return new ScriptToken(TokenType.STRING, new ElementConstantString("="));
-		} else if (data[currentIndex] == '@') {
-			return functionToken();
-		} else if (data[currentIndex] == '"') {
+			return token(TokenType.STRING, start);
+		} else if (c == '@') {
+			currentIndex++;
+			skipName();
+			return token(TokenType.FUNCTION, start);
+		} else if (c == '"') {
 			return stringToken();
-		} else if (Character.isLetter(data[currentIndex])) {
-			return variableToken();
-		} else if (Character.isDigit(data[currentIndex])) {
+		} else if (Character.isLetter(c)) {
+			skipName();
+			return token(TokenType.VARIABLE, start);
+		} else if (Character.isDigit(c)) {
 			return numberToken();
 		} else {
 			// in case of symbol '-', method will check if there is a number
@@ -162,20 +184,19 @@ public class SmartScriptLexer {
 	/**
 	 * Method which generates tokens which represent mathematical operators
 	 * power(^), division(/), multiplication(*), addition(+) and subtraction(-).
-	 * 
-	 * @return Descriptive ScriptToken with according ElementOperator from
-	 *         analyzed text.
+	 *
+	 * @return Descriptive ScriptToken of an operator.
 	 */
 	private ScriptToken symbolToken() {
-		char symbol = data[currentIndex];
+		char symbol = data.charAt(currentIndex);
 
-		if (symbol == '-' && currentIndex + 1 < data.length
-				&& Character.isDigit(data[currentIndex + 1])) {
+		if (symbol == '-' && currentIndex + 1 < end
+				&& Character.isDigit(data.charAt(currentIndex + 1))) {
 			return numberToken();
 		} else if (symbol == '-' || symbol == '+' || symbol == '*'
 				|| symbol == '/' || symbol == '^') {
-			return new ScriptToken(TokenType.OPERATOR, new ElementOperator(
-					String.valueOf(data[currentIndex++])));
+			currentIndex++;
+			return token(TokenType.OPERATOR, currentIndex - 1);
 		} else {
 			throw new SmartScriptLexerException("Symbol (operator) is invalid.");
 		}
@@ -183,165 +204,245 @@ public class SmartScriptLexer {
 
 	/**
 	 * Method which generates number tokens that can be integer or double
-	 * precision values. If number is invalid an exception is thrown.
-	 * 
-	 * @return Descriptive ScriptToken with ElementConstantDouble or
-	 *         ElementConstantInteger value.
+	 * precision values. If number is invalid an exception is thrown. The value
+	 * of an integer is accumulated while scanning, so one that does not fit
+	 * into an int is rejected right away.
+	 *
+	 * @return Descriptive ScriptToken of a double or an integer constant.
 	 */
 	private ScriptToken numberToken() {
-		StringBuilder sb = new StringBuilder();
-		if (data[currentIndex] == '-') {
-			sb.append(data[currentIndex++]);
+		int start = currentIndex;
+		boolean negative = data.charAt(currentIndex) == '-';
+		if (negative) {
+			currentIndex++;
 		}
 
 		int dotCounter = 0;
-		while (currentIndex < data.length
-				&& (Character.isDigit(data[currentIndex]) || data[currentIndex] == '.')) {
-			if (data[currentIndex] == '.') {
+		long value = 0;
+		for (; currentIndex < end; currentIndex++) {
+			char c = data.charAt(currentIndex);
+			if (c == '.') {
 				dotCounter++;
+			} else if (Character.isDigit(c)) {
+				if (value <= Integer.MAX_VALUE + 1L) {
+					value = 10 * value + Character.digit(c, 10);
+				}
+			} else {
+				break;
 			}
-			sb.append(data[currentIndex++]);
 		}
 
 		if (dotCounter > 1) {
 			throw new SmartScriptLexerException(
 					"Watch it with those dots, numbers only contain 1 dot, no more.");
 		}
-		String value = sb.toString();
-		if (value.contains(".")) {
-			try {
-				return new ScriptToken(TokenType.CONSTANT_DOUBLE,
-						new ElementConstantDouble(Double.parseDouble(value)));
-			} catch (Exception e) {
-				throw new SmartScriptLexerException("Couldnt parse double");
-			}
-		} else {
-			try {
-				return new ScriptToken(TokenType.CONSTANT_DOUBLE,
-						new ElementConstantInteger(Integer.parseInt(value)));
-			} catch (Exception e) {
-				throw new SmartScriptLexerException("Couldnt parse integer");
-			}
+		if (dotCounter == 1) {
+			return token(TokenType.CONSTANT_DOUBLE, start);
 		}
-
-	}
-
-	/**
-	 * This method analyzes variables within document inside tag state and
-	 * returns according variable token.
-	 * 
-	 * @return Descriptive ScriptToken with according ElementVariable.
-	 */
-	private ScriptToken variableToken() {
-		if (!Character.isLetter(data[currentIndex])) {
-			throw new SmartScriptLexerException(
-					"Your variable name is not valid, it is invalid");
-		}
-
-		StringBuilder sb = new StringBuilder();
-		while ((Character.isLetter(data[currentIndex])
-				|| Character.isDigit(data[currentIndex]) || data[currentIndex] == '_')
-				&& currentIndex < data.length) {
-			sb.append(data[currentIndex++]);
+		if (value > (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE)) {
+			throw new SmartScriptLexerException("Couldnt parse integer");
 		}
-
-		return new ScriptToken(TokenType.VARIABLE, new ElementVariable(
-				sb.toString()));
+		return token(TokenType.CONSTANT_INTEGER, start);
 	}
 
 	/**
-	 * This method analyzes given function within given document inside tag
-	 * state and returns according token.
-	 * 
-	 * @return Descriptive ScriptToken with given ElementFunction inside.
+	 * Skips the letters, digits and underscores of a variable or function
+	 * name.
 	 */
-	private ScriptToken functionToken() {
-		StringBuilder sb = new StringBuilder();
-		// skip the '@' sign
-		currentIndex++;
-		while ((Character.isLetter(data[currentIndex])
-				|| Character.isDigit(data[currentIndex]) || data[currentIndex] == '_')
-				&& currentIndex < data.length) {
-			sb.append(data[currentIndex++]);
+	private void skipName() {
+		while (currentIndex < end) {
+			char c = data.charAt(currentIndex);
+			if (!Character.isLetterOrDigit(c) && c != '_') {
+				break;
+			}
+			currentIndex++;
 		}
-		return new ScriptToken(TokenType.FUNCTION, new ElementFunction(
-				sb.toString()));
 	}
 
 	/**
-	 * This method generates text tokens in text state.
-	 * 
-	 * @return Descriptive ScriptToken containing ElementString in text state.
+	 * This method generates text tokens in text state. A '{' that does not
+	 * open a tag is part of the text.
+	 *
+	 * @return Descriptive ScriptToken of text.
 	 */
 	private ScriptToken textToken() {
-		StringBuilder sb = new StringBuilder();
-		while (currentIndex < data.length && data[currentIndex] != '{') {
-			// if its not a valid escape sequence throws an exception otherwise
-			// it just keeps building
-			if (!checkForEscape(sb)) {
-				sb.append(data[currentIndex++]);
+		int start = currentIndex;
+		while (currentIndex < end && !isOpeningTag(currentIndex)) {
+			if (data.charAt(currentIndex) == '\\') {
+				checkEscape();
+			} else {
+				currentIndex++;
 			}
 		}
-
-		return new ScriptToken(TokenType.TEXT, new ElementConstantString(sb.toString()));
+		return token(TokenType.TEXT, start);
 	}
 
 	/**
 	 * This method generates string tokens in tag state.
-	 * 
-	 * @return Descriptive ScriptToken containing ElementString
+	 *
+	 * @return Descriptive ScriptToken of a string, including its quotes.
 	 */
 	private ScriptToken stringToken() {
-		StringBuilder sb = new StringBuilder();
+		int start = currentIndex;
 		// skip first annotation sign
 		currentIndex++;
-		while (currentIndex < data.length && data[currentIndex] != '"') {
-			if (!checkForEscape(sb)) {
-				sb.append(data[currentIndex++]);
+		while (currentIndex < end && data.charAt(currentIndex) != '"') {
+			if (data.charAt(currentIndex) == '\\') {
+				checkEscape();
+			} else {
+				currentIndex++;
 			}
 		}
+		if (currentIndex == end) {
+			throw new SmartScriptLexerException("String is not closed.");
+		}
 		// skip last annotation sign
 		currentIndex++;
-		return new ScriptToken(TokenType.STRING, new ElementConstantString(
-				sb.toString()));
+		return token(TokenType.STRING, start);
 	}
 
 	/**
-	 * Helper method that check if the escape sequence in text is correct and
-	 * throws an exception to notify the user that invalid escape sequence has
-	 * been provided and the document does not comply with lexing rules.
+	 * Helper method that check if the escape sequence at the current index is
+	 * correct and skips it, or throws an exception to notify the user that
+	 * invalid escape sequence has been provided and the document does not
+	 * comply with lexing rules.
 	 *
 	 * @throws SmartScriptLexerException
 	 *             If escape sequence is incorrect.
 	 */
-	private boolean checkForEscape(StringBuilder sb) {
-		if (currentIndex + 1 >= data.length) {
+	private void checkEscape() {
+		if (currentIndex + 1 >= end) {
 			throw new SmartScriptLexerException(
 					"Invalid escape sequence. Sequence out of bounds.");
 		}
-		if (data[currentIndex] != '\\') {
-			return false;
-		}
-		char next = data[currentIndex+1];
+		char next = data.charAt(currentIndex + 1);
 		switch (state) {
 		case TEXT:
-			if(next == '\\') sb.append("\\");
-			else if(next == '{') sb.append("{");
-			else throw new SmartScriptLexerException("Invalid TEXT escape sequence.");
-			currentIndex+=2;
-			return true;
+			if (next != '\\' && next != '{') {
+				throw new SmartScriptLexerException("Invalid TEXT escape sequence.");
+			}
+			break;
+		case TAG:
+			if (next != '\\' && next != '"' && next != 'r' && next != 'n') {
+				throw new SmartScriptLexerException("Invalid TAG escape sequence.");
+			}
+			break;
+		}
+		currentIndex += 2;
+	}
+
+	/**
+	 * Checks if a tag opens at an index.
+	 *
+	 * @param index the index
+	 * @return true if "{$" starts at the index
+	 */
+	private boolean isOpeningTag(int index) {
+		return data.charAt(index) == '{' && index + 1 < end && data.charAt(index + 1) == '$';
+	}
+
+	/**
+	 * Creates a token of the text from an index up to the current index.
+	 *
+	 * @param type type of the token
+	 * @param start index of the first character of the lexeme
+	 * @return the token
+	 */
+	private ScriptToken token(TokenType type, int start) {
+		return new ScriptToken(type, data, start, currentIndex - start);
+	}
+
+	/**
+	 * Checks if a character is whitespace, the same characters
+	 * <code>\s</code> matches in a regular expression.
+	 *
+	 * @param c the character
+	 * @return true for whitespace
+	 */
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+	}
+
+	/**
+	 * Creates the element of a token from its lexeme. The lexeme has been
+	 * checked by the lexer, so this can not fail.
+	 *
+	 * @param type type of the token
+	 * @param text the text the lexeme is in
+	 * @param offset offset of the lexeme
+	 * @param length length of the lexeme
+	 * @return the element, null for the end of the text
+	 */
+	static Element element(TokenType type, CharSequence text, int offset, int length) {
+		int to = offset + length;
+		switch (type) {
 		case TAG:
-			if (next == '\\') sb.append("\\");
-            else if (next == '"') sb.append("\"");
-            else if (next == 'r') sb.append("\r");
-            else if (next == 'n') sb.append("\n");
-            else throw new SmartScriptLexerException("Invalid TAG escape sequence.");
-            currentIndex += 2;
-            return true;
+			return TAG_ELEMENT;
+		case TEXT:
+			return new ElementConstantString(unescape(text, offset, to));
+		case STRING:
+			return new ElementConstantString(text.charAt(offset) == '"'
+					? unescape(text, offset + 1, to - 1) : text.subSequence(offset, to).toString());
+		case VARIABLE:
+			return new ElementVariable(text.subSequence(offset, to).toString());
+		case FUNCTION:
+			return new ElementFunction(text.subSequence(offset + 1, to).toString());
+		case OPERATOR:
+			return new ElementOperator(text.subSequence(offset, to).toString());
+		case CONSTANT_INTEGER:
+			return new ElementConstantInteger(parseInt(text, offset, to));
+		case CONSTANT_DOUBLE:
+			return new ElementConstantDouble(Double.parseDouble(text.subSequence(offset, to).toString()));
 		default:
-			throw new SmartScriptLexerException(
-					"You provided invalid escape sequence cannot lex the text ");
+			return null;
+		}
+	}
+
+	/**
+	 * Parses an integer the lexer has checked.
+	 *
+	 * @param text the text the integer is in
+	 * @param from start of the integer
+	 * @param to end of the integer
+	 * @return the integer
+	 */
+	private static int parseInt(CharSequence text, int from, int to) {
+		boolean negative = text.charAt(from) == '-';
+		long value = 0;
+		for (int i = negative ? from + 1 : from; i < to; i++) {
+			value = 10 * value + Character.digit(text.charAt(i), 10);
+		}
+		return (int) (negative ? -value : value);
+	}
+
+	/**
+	 * Resolves the escape sequences of text or of a string the lexer has
+	 * checked.
+	 *
+	 * @param text the text
+	 * @param from start of the region
+	 * @param to end of the region
+	 * @return the region without escapes
+	 */
+	private static String unescape(CharSequence text, int from, int to) {
+		int escape = from;
+		while (escape < to && text.charAt(escape) != '\\') {
+			escape++;
+		}
+		if (escape == to) {
+			return text.subSequence(from, to).toString();
+		}
+		StringBuilder sb = new StringBuilder(to - from);
+		sb.append(text, from, escape);
+		for (int i = escape; i < to; i++) {
+			char c = text.charAt(i);
+			if (c == '\\') {
+				c = text.charAt(++i);
+				c = c == 'r' ? '\r' : c == 'n' ? '\n' : c;
+			}
+			sb.append(c);
 		}
+		return sb.toString();
 	}
 
 }
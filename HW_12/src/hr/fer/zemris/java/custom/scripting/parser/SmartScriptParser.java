@@ -4,7 +4,10 @@ import java.util.EmptyStackException;
 import java.util.Stack;
 
 import hr.fer.zemris.java.custom.scripting.elems.Element;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantString;
 import hr.fer.zemris.java.custom.scripting.elems.ElementVariable;
+import hr.fer.zemris.java.custom.scripting.exec.ScriptProgram;
+import hr.fer.zemris.java.custom.scripting.nodes.CacheNode;
 import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
 import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
 import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
@@ -26,6 +29,11 @@ public class SmartScriptParser {
 	 */
 	private DocumentNode documentNode;
 
+	/**
+	 * The document flattened into instructions, created on first request.
+	 */
+	private ScriptProgram program;
+
 	/**
 	 * Lexer that does lexical analysis of the document and provides the parser
 	 * with tokens needed for correct build of syntax tree document.
@@ -39,7 +47,7 @@ public class SmartScriptParser {
 	 * @param text
 	 *            Text of the document.
 	 */
-	public SmartScriptParser(String text) {
+	public SmartScriptParser(CharSequence text) {
 		if (text == null) {
 			throw new IllegalArgumentException("Value given can not be null.");
 		}
@@ -56,6 +64,20 @@ public class SmartScriptParser {
 		return documentNode;
 	}
 
+	/**
+	 * Returns the parsed document flattened into the instructions the
+	 * {@link hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine}
+	 * executes.
+	 * 
+	 * @return the program of the document
+	 */
+	public ScriptProgram getProgram() {
+		if (program == null) {
+			program = ScriptProgram.compile(documentNode);
+		}
+		return program;
+	}
+
 	/**
 	 * The main method used for parsing. Creates a hierarchy of nodes/tags and
 	 * stores it in the documentNode collection of children nodes. Parser takes
@@ -86,6 +108,9 @@ public class SmartScriptParser {
 					case "for":
 						forTag(stack);
 						break;
+					case "cache":
+						cacheTag(stack);
+						break;
 					case "end":
 						endTag(stack);
 						break;
@@ -177,6 +202,46 @@ public class SmartScriptParser {
 
 	}
 
+	/**
+	 * Private helper method called if the lexer has generated an opening CACHE
+	 * tag token. Valid CACHE syntax is : a positive number, the time to live
+	 * of the cached output in seconds, followed by an optional string that
+	 * names the block.
+	 * 
+	 * @param stack
+	 *            Stack with parsing elements
+	 */
+	private void cacheTag(Stack<Object> stack) {
+		ScriptToken temp = lexer.nextToken();
+		if (temp.getType() != TokenType.CONSTANT_INTEGER
+				&& temp.getType() != TokenType.CONSTANT_DOUBLE
+				|| Double.parseDouble(temp.getValue().asText()) <= 0) {
+			throw new SmartScriptParserException(
+					"First argument in CACHE tag is not a positive number.");
+		}
+		Element timeToLive = temp.getValue();
+		String name = null;
+
+		temp = lexer.nextToken();
+		if (temp.getType() == TokenType.STRING) {
+			name = ((ElementConstantString) temp.getValue()).getValue();
+			temp = lexer.nextToken();
+		}
+		if (temp.getType() == TokenType.EOF) {
+			throw new SmartScriptParserException(
+					"CACHE tag is not properly closed.");
+		}
+		if (temp.getType() != TokenType.TAG) {
+			throw new SmartScriptParserException(
+					"Invalid arguments in CACHE tag.");
+		}
+
+		CacheNode cacheNode = new CacheNode(timeToLive, name);
+		Node parent = (Node) stack.peek();
+		parent.addChildNode(cacheNode);
+		stack.push(cacheNode);
+	}
+
 	/**
 	 * Method that is called if an empty tag token has been generated. This
 	 * method parses an empty tag.
@@ -0,0 +1,155 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import hr.fer.zemris.java.webserver.metrics.ServerMetrics;
+
+/**
+ * Blocking {@link InputStream} view of a non-blocking {@link SocketChannel},
+ * the counterpart of {@link ChannelOutputStream}. Workers read request bodies
+ * through this stream from a pool thread while the connection is suspended in
+ * the server selector; whenever no bytes are available the calling thread
+ * waits on a selector of its own, opened for that wait only, until the
+ * channel becomes readable again.
+ * <p>
+ * Bytes are read from the channel into a buffer of this stream. Bytes of the
+ * body the connection has already read are put in front of them with
+ * {@link #prepend(ByteBuffer)}, bytes the request did not need, which belong to
+ * the next pipelined request, are handed back with
+ * {@link #takeUnread(ByteBuffer)}.
+ *
+ * @author Ante Spajic
+ */
+class ChannelInputStream extends InputStream {
+
+	/** Time in milliseconds a read may wait for a readable channel. */
+	private static final long READ_TIMEOUT = 30000;
+
+	/** The channel bytes are read from. */
+	private final SocketChannel channel;
+
+	/** Metrics the read bytes are counted in. */
+	private final ServerMetrics metrics;
+
+	/** Bytes read from the channel, between position and limit. */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Instantiates a new channel input stream.
+	 *
+	 * @param channel the non-blocking channel to read from
+	 * @param metrics metrics the read bytes are counted in
+	 * @param bufferSize size of the read buffer
+	 */
+	public ChannelInputStream(SocketChannel channel, ServerMetrics metrics, int bufferSize) {
+		this.channel = channel;
+		this.metrics = metrics;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		buffer.flip();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	/**
+	 * Puts bytes in front of the bytes that have not been read from the
+	 * channel yet. The stream must not hold any unread bytes.
+	 *
+	 * @param source the bytes, between its position and limit
+	 * @throws IllegalStateException if the stream holds unread bytes
+	 */
+	public void prepend(ByteBuffer source) {
+		if (buffer.hasRemaining()) {
+			throw new IllegalStateException("Stream holds unread bytes");
+		}
+		buffer.clear();
+		buffer.put(source).flip();
+	}
+
+	/**
+	 * Moves the bytes that have been read from the channel but not from this
+	 * stream to the end of another buffer.
+	 *
+	 * @param target buffer the bytes are put into, in write mode
+	 * @return true if all unread bytes have been moved
+	 */
+	public boolean takeUnread(ByteBuffer target) {
+		if (buffer.remaining() > target.remaining()) {
+			return false;
+		}
+		target.put(buffer);
+		return true;
+	}
+
+	/**
+	 * Makes sure the buffer holds at least one byte, waiting for the channel if
+	 * necessary.
+	 *
+	 * @return false if the client has closed the connection
+	 * @throws IOException if waiting times out or an I/O error occurs
+	 */
+	private boolean fill() throws IOException {
+		if (buffer.hasRemaining()) {
+			return true;
+		}
+		buffer.clear();
+		try {
+			while (true) {
+				int n = channel.read(buffer);
+				if (n < 0) {
+					return false;
+				}
+				if (n > 0) {
+					metrics.addBytesReceived(n);
+					return true;
+				}
+				awaitReadable();
+			}
+		} finally {
+			buffer.flip();
+		}
+	}
+
+	/**
+	 * Blocks the calling thread until the channel has bytes to read.
+	 *
+	 * @throws IOException if waiting times out or an I/O error occurs
+	 */
+	private void awaitReadable() throws IOException {
+		try (Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_READ);
+			if (selector.select(READ_TIMEOUT) == 0) {
+				throw new SocketTimeoutException("Client is not sending the request body");
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import hr.fer.zemris.java.webserver.metrics.ServerMetrics;
+
+/**
+ * Blocking {@link OutputStream} view of a non-blocking {@link SocketChannel}.
+ * Workers write their responses through this stream from a pool thread while
+ * the channel stays registered with the server selector; whenever the socket
+ * send buffer is full the calling thread waits on a selector of its own,
+ * opened for that wait only, until the channel becomes writable again. A
+ * connection therefore holds no selector while it is idle.
+ *
+ * @author Ante Spajic
+ */
+class ChannelOutputStream extends OutputStream {
+
+	/** Time in milliseconds a write may wait for a writable channel. */
+	private static final long WRITE_TIMEOUT = 30000;
+
+	/** The channel bytes are written to. */
+	private final SocketChannel channel;
+
+	/** Metrics the written bytes are counted in. */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Instantiates a new channel output stream.
+	 *
+	 * @param channel the non-blocking channel to write to
+	 * @param metrics metrics the written bytes are counted in
+	 */
+	public ChannelOutputStream(SocketChannel channel, ServerMetrics metrics) {
+		this.channel = channel;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		write(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Writes all remaining bytes of the provided buffer to the channel.
+	 *
+	 * @param buffer bytes to be written
+	 * @throws IOException if an I/O error occurs or the client stops reading
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.write(buffer);
+			if (n == 0) {
+				awaitWritable();
+			}
+			metrics.addBytesSent(n);
+		}
+	}
+
+	/**
+	 * Sends a region of a file to the channel without copying it through the
+	 * heap, the operating system moves the bytes from the page cache straight
+	 * to the socket where it supports it.
+	 *
+	 * @param file the file to send
+	 * @param position position of the first byte to send
+	 * @param count number of bytes to send
+	 * @throws IOException if an I/O error occurs or the client stops reading
+	 */
+	public void transferFrom(FileChannel file, long position, long count) throws IOException {
+		long end = position + count;
+		while (position < end) {
+			long n = file.transferTo(position, end - position, channel);
+			if (n == 0) {
+				if (position >= file.size()) {
+					throw new IOException("File is shorter than expected");
+				}
+				awaitWritable();
+			}
+			metrics.addBytesSent(n);
+			position += n;
+		}
+	}
+
+	/**
+	 * Blocks the calling thread until the channel can accept more bytes.
+	 *
+	 * @throws IOException if waiting times out or an I/O error occurs
+	 */
+	protected void awaitWritable() throws IOException {
+		try (Selector selector = Selector.open()) {
+			channel.register(selector, SelectionKey.OP_WRITE);
+			if (selector.select(WRITE_TIMEOUT) == 0) {
+				throw new SocketTimeoutException("Client is not reading the response");
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import hr.fer.zemris.java.webserver.metrics.ServerMetrics;
+
+/**
+ * ClientConnection holds the state of a single persistent connection served by
+ * {@link SmartHttpServer}: the non-blocking channel, the bytes that have been
+ * read but not yet consumed by a request and the time of the last activity
+ * used to reap idle connections. Requests are parsed in place, bytes of
+ * pipelined requests stay in the buffer until the previous response has been
+ * written.
+ *
+ * @author Ante Spajic
+ */
+class ClientConnection {
+
+	/** The maximum size of a request header in bytes. */
+	public static final int MAX_HEADER_SIZE = 8192;
+
+	/** The client channel. */
+	private final SocketChannel channel;
+
+	/** The key of this connection within the server selector. */
+	private SelectionKey key;
+
+	/** Bytes read from the channel that have not been consumed yet. */
+	private final ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+
+	/** Parser of the requests read from this connection. */
+	private final HttpRequestParser parser = new HttpRequestParser();
+
+	/** Length of the request being served, discarded before the next one is parsed. */
+	private int served;
+
+	/** Metrics of the server this connection belongs to. */
+	private final ServerMetrics metrics;
+
+	/** Flag telling whether the connection has been closed. */
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/** The stream request bodies are read from, created for the first body. */
+	private ChannelInputStream inputStream;
+
+	/** The output stream workers write responses to. */
+	private final ChannelOutputStream outputStream;
+
+	/** Time of the last read or served request in milliseconds. */
+	private volatile long lastActivity = System.currentTimeMillis();
+
+	/**
+	 * Instantiates a new client connection.
+	 *
+	 * @param channel the non-blocking client channel
+	 * @param metrics metrics of the server
+	 */
+	public ClientConnection(SocketChannel channel, ServerMetrics metrics) {
+		this.channel = channel;
+		this.metrics = metrics;
+		this.outputStream = new ChannelOutputStream(channel, metrics);
+		metrics.connectionOpened();
+	}
+
+	/**
+	 * Sets the selection key of this connection.
+	 *
+	 * @param key key obtained by registering the channel
+	 */
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Returns the stream responses are written to.
+	 *
+	 * @return the output stream of this connection
+	 */
+	public ChannelOutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	/**
+	 * Returns the client channel.
+	 *
+	 * @return the channel of this connection
+	 */
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Reads available bytes from the channel into the connection buffer.
+	 *
+	 * @return number of bytes read, -1 if the client closed the connection
+	 * @throws IOException if an I/O error occurs
+	 */
+	public int read() throws IOException {
+		int n = channel.read(buffer);
+		if (n > 0) {
+			touch();
+			metrics.addBytesReceived(n);
+		}
+		return n;
+	}
+
+	/**
+	 * Checks whether the buffer is full, if it is and no request header could be
+	 * taken from it, the header is too large to be served.
+	 *
+	 * @return true if no more bytes can be read
+	 */
+	public boolean isFull() {
+		return !buffer.hasRemaining();
+	}
+
+	/**
+	 * Parses the next request buffered on this connection. The bytes of the
+	 * request stay in the buffer while it is served and are discarded when the
+	 * following request is taken, any bytes after the header are left for that
+	 * request.
+	 *
+	 * @return the parsed request, or null if no complete header has been
+	 *         received yet
+	 */
+	public HttpRequestParser takeRequest() {
+		if (served > 0) {
+			consume(served);
+			served = 0;
+			parser.reset();
+			if (inputStream != null && !inputStream.takeUnread(buffer)) {
+				throw new IllegalStateException("Unread bytes do not fit into the connection buffer");
+			}
+		}
+		if (!parser.parse(buffer, buffer.position())) {
+			return null;
+		}
+		served = parser.getLength();
+		return parser;
+	}
+
+	/**
+	 * Returns the stream the body of the request that has been taken last is
+	 * read from. Bytes following the header that have already been read from
+	 * the channel are moved into the stream, bytes the body does not use are
+	 * returned to this connection when the next request is taken.
+	 *
+	 * @return the input stream of the connection
+	 */
+	public InputStream openBody() {
+		if (inputStream == null) {
+			inputStream = new ChannelInputStream(channel, metrics, MAX_HEADER_SIZE);
+		}
+		ByteBuffer rest = buffer.duplicate();
+		rest.limit(buffer.position()).position(served);
+		inputStream.prepend(rest);
+		served = buffer.position();
+		return inputStream;
+	}
+
+	/**
+	 * Discards the first <code>count</code> bytes of the buffer.
+	 *
+	 * @param count number of bytes to discard
+	 */
+	private void consume(int count) {
+		if (count == 0) {
+			return;
+		}
+		buffer.flip();
+		buffer.position(count);
+		buffer.compact();
+	}
+
+	/**
+	 * Stops the selector from reading this connection while a request is served.
+	 */
+	public void suspend() {
+		key.interestOps(0);
+	}
+
+	/**
+	 * Lets the selector read this connection again. Must be called from the
+	 * selector thread.
+	 */
+	public void resumeReading() {
+		try {
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (CancelledKeyException ignore) {}
+	}
+
+	/**
+	 * Marks the connection as active at this moment.
+	 */
+	public void touch() {
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks if this connection waits for a request longer than allowed.
+	 *
+	 * @param now current time in milliseconds
+	 * @param timeout allowed idle time in milliseconds
+	 * @return true if the connection should be closed
+	 */
+	public boolean isIdle(long now, long timeout) {
+		try {
+			return key.interestOps() == SelectionKey.OP_READ && now - lastActivity > timeout;
+		} catch (CancelledKeyException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Checks if the connection is still open.
+	 *
+	 * @return true if the channel is open
+	 */
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Closes the connection, further calls have no effect.
+	 */
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		metrics.connectionClosed();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException ignore) {}
+	}
+}
@@ -0,0 +1,540 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Incremental parser of HTTP/1.1 request headers. The parser works in place on
+ * the buffer the request has been read into and only records offsets of the
+ * request line and header fields, so parsing a request does not allocate.
+ * Strings are only created for the parts the server actually asks for.
+ * <p>
+ * Bytes of a request may arrive in any number of reads. Every call to
+ * {@link #parse(ByteBuffer, int)} continues with the first line that has not
+ * been parsed yet, until the empty line ending the header is found. The bytes
+ * of the request must stay in the buffer while it is served, the parser is
+ * {@link #reset()} before the next request is parsed. Lines may end with CRLF
+ * or a bare LF, empty lines before the request line are skipped and folded
+ * header lines are joined with the previous line.
+ *
+ * @author Ante Spajic
+ */
+public final class HttpRequestParser {
+
+	/** The bytes of the buffer holding the request. */
+	private byte[] data;
+
+	/** Index of the next line to parse, -1 while skipping empty lines. */
+	private int lineStart = -1;
+
+	/** Index of the next byte to scan for a line feed. */
+	private int scanned;
+
+	/** Index of the request line. */
+	private int start;
+
+	/** Index just past the empty line ending the header, -1 until it is found. */
+	private int end = -1;
+
+	/** Flag telling whether the request line is well formed. */
+	private boolean valid;
+
+	/** End of the method. */
+	private int methodEnd;
+
+	/** Start of the request target. */
+	private int targetStart;
+
+	/** End of the path, which is the start of the query if there is one. */
+	private int pathEnd;
+
+	/** End of the request target. */
+	private int targetEnd;
+
+	/** End of the request line. */
+	private int lineEnd;
+
+	/** Name start, name end, value start and value end of every header field. */
+	private int[] headers = new int[4 * 16];
+
+	/** Number of header fields. */
+	private int headerCount;
+
+	/** The path, created on the first request for it. */
+	private String path;
+
+	/** Scratch space for decoding, reused by all requests. */
+	private byte[] scratch = new byte[256];
+
+	/**
+	 * Discards the parsed request so the next one can be parsed.
+	 */
+	public void reset() {
+		data = null;
+		lineStart = -1;
+		scanned = 0;
+		end = -1;
+		valid = false;
+		headerCount = 0;
+		path = null;
+	}
+
+	/**
+	 * Continues parsing the request held by a buffer. Bytes are read from the
+	 * start of the buffer's backing array, its position and limit are not
+	 * used.
+	 *
+	 * @param buffer the buffer holding the request, must be a heap buffer
+	 *            that is not a slice
+	 * @param limit number of bytes received so far
+	 * @return true if the header is complete
+	 */
+	public boolean parse(ByteBuffer buffer, int limit) {
+		if (end >= 0) {
+			return true;
+		}
+		byte[] data = this.data = buffer.array();
+		int i = scanned;
+		if (lineStart < 0) {
+			while (i < limit && (data[i] == '\r' || data[i] == '\n')) {
+				i++;
+			}
+			if (i == limit) {
+				scanned = i;
+				return false;
+			}
+			start = lineStart = i;
+		}
+		while (true) {
+			while (i < limit && data[i] != '\n') {
+				i++;
+			}
+			if (i == limit) {
+				scanned = i;
+				return false;
+			}
+			int contentEnd = i > lineStart && data[i - 1] == '\r' ? i - 1 : i;
+			i++;
+			if (contentEnd == lineStart) {
+				end = i;
+				return true;
+			}
+			if (lineStart == start) {
+				parseRequestLine(lineStart, contentEnd);
+			} else {
+				parseHeaderLine(lineStart, contentEnd);
+			}
+			lineStart = i;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes the request header takes from the start of
+	 * the buffer, including empty lines that preceded it.
+	 *
+	 * @return length of the header or -1 if it is not complete
+	 */
+	public int getLength() {
+		return end;
+	}
+
+	/**
+	 * Checks if the request line consists of a method, a request target
+	 * starting with a slash and a version, separated by single spaces.
+	 *
+	 * @return true if the request line is well formed
+	 */
+	public boolean isValid() {
+		return valid;
+	}
+
+	/**
+	 * Checks the method of the request, ignoring case.
+	 *
+	 * @param method the method
+	 * @return true if the request has the method
+	 */
+	public boolean isMethod(String method) {
+		return valid && regionEquals(start, methodEnd, method);
+	}
+
+	/**
+	 * Returns the method of the request.
+	 *
+	 * @return the method or an empty string if the request line is not valid
+	 */
+	public String getMethod() {
+		return valid ? new String(data, start, methodEnd - start, StandardCharsets.ISO_8859_1) : "";
+	}
+
+	/**
+	 * Checks the protocol version of the request, ignoring case.
+	 *
+	 * @param version the version, e.g. <code>HTTP/1.1</code>
+	 * @return true if the request has the version
+	 */
+	public boolean isVersion(String version) {
+		return valid && regionEquals(targetEnd + 1, lineEnd, version);
+	}
+
+	/**
+	 * Returns the path of the request target, without the query.
+	 *
+	 * @return the path, starting with a slash, or an empty string if the
+	 *         request line is not valid
+	 */
+	public String getPath() {
+		if (path == null) {
+			path = valid ? string(targetStart, pathEnd, StandardCharsets.ISO_8859_1) : "";
+		}
+		return path;
+	}
+
+	/**
+	 * Checks if the request target has a query.
+	 *
+	 * @return true if there is a query
+	 */
+	public boolean hasQuery() {
+		return valid && pathEnd < targetEnd;
+	}
+
+	/**
+	 * Puts the parameters of the query into a map. Names and values are
+	 * percent-decoded as UTF-8 and a plus stands for a space. A parameter
+	 * without a value gets an empty one.
+	 *
+	 * @param parameters map the parameters are put into
+	 */
+	public void parseParameters(Map<String, String> parameters) {
+		if (hasQuery()) {
+			parseParameters(data, pathEnd + 1, targetEnd, scratch(targetEnd - pathEnd), parameters);
+		}
+	}
+
+	/**
+	 * Puts the parameters of an <code>application/x-www-form-urlencoded</code>
+	 * request body into a map, decoding them the same way as the parameters of
+	 * the query.
+	 *
+	 * @param body the body
+	 * @param length length of the body
+	 * @param parameters map the parameters are put into
+	 */
+	public static void parseParameters(byte[] body, int length, Map<String, String> parameters) {
+		parseParameters(body, 0, length, new byte[length], parameters);
+	}
+
+	/**
+	 * Puts the parameters of a region into a map.
+	 *
+	 * @param data bytes of the region
+	 * @param from start of the region
+	 * @param to end of the region
+	 * @param scratch scratch space at least as large as the region
+	 * @param parameters map the parameters are put into
+	 */
+	private static void parseParameters(byte[] data, int from, int to, byte[] scratch,
+			Map<String, String> parameters) {
+		while (from < to) {
+			int next = indexOf(data, '&', from, to);
+			int eq = indexOf(data, '=', from, next);
+			if (eq > from) {
+				String value = eq < next ? decode(data, eq + 1, next, scratch) : "";
+				parameters.put(decode(data, from, eq, scratch), value);
+			}
+			from = next + 1;
+		}
+	}
+
+	/**
+	 * Passes the cookies of all <code>Cookie</code> header fields to a
+	 * consumer, in the order they are sent. Whitespace around names and values
+	 * is removed, pairs without a name or a value are skipped.
+	 *
+	 * @param consumer consumer of cookie names and values
+	 */
+	public void parseCookies(BiConsumer<String, String> consumer) {
+		for (int h = indexOfHeader("Cookie", 0); h >= 0; h = indexOfHeader("Cookie", h + 1)) {
+			String header = getHeaderValue(h);
+			for (int start = 0, end; start < header.length(); start = end + 1) {
+				end = header.indexOf(';', start);
+				if (end < 0) {
+					end = header.length();
+				}
+				int eq = header.indexOf('=', start);
+				if (eq < 0 || eq >= end) {
+					continue;
+				}
+				String name = header.substring(start, eq).trim();
+				String value = header.substring(eq + 1, end).trim();
+				if (!name.isEmpty() && !value.isEmpty()) {
+					consumer.accept(name, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of header fields.
+	 *
+	 * @return number of header fields
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * Finds a header field by name, ignoring case.
+	 *
+	 * @param name name of the header
+	 * @param from index of the first header field to look at
+	 * @return index of the header field or -1 if there is none
+	 */
+	public int indexOfHeader(String name, int from) {
+		for (int i = from; i < headerCount; i++) {
+			if (regionEquals(headers[4 * i], headers[4 * i + 1], name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the value of a header field.
+	 *
+	 * @param index index of the header field
+	 * @return the value without surrounding whitespace
+	 */
+	public String getHeaderValue(int index) {
+		return string(headers[4 * index + 2], headers[4 * index + 3], StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the value of the first header field with a name.
+	 *
+	 * @param name name of the header, case is ignored
+	 * @return the value or null if the header is not present
+	 */
+	public String getHeader(String name) {
+		int index = indexOfHeader(name, 0);
+		return index < 0 ? null : getHeaderValue(index);
+	}
+
+	/**
+	 * Checks if the value of any header field with a name contains a token,
+	 * ignoring case, without creating the value.
+	 *
+	 * @param name name of the header
+	 * @param token the token
+	 * @return true if the token is found
+	 */
+	public boolean headerContains(String name, String token) {
+		for (int i = indexOfHeader(name, 0); i >= 0; i = indexOfHeader(name, i + 1)) {
+			int last = headers[4 * i + 3] - token.length();
+			for (int j = headers[4 * i + 2]; j <= last; j++) {
+				if (regionEquals(j, j + token.length(), token)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records the parts of the request line.
+	 *
+	 * @param from start of the line
+	 * @param to end of the line without the line terminator
+	 */
+	private void parseRequestLine(int from, int to) {
+		methodEnd = indexOf(' ', from, to);
+		targetStart = methodEnd + 1;
+		targetEnd = indexOf(' ', targetStart, to);
+		pathEnd = indexOf('?', targetStart, targetEnd);
+		lineEnd = to;
+		valid = methodEnd > from && targetEnd + 1 < to && data[targetStart] == '/'
+				&& indexOf(' ', targetEnd + 1, to) == to;
+	}
+
+	/**
+	 * Records a header field, or joins a folded line with the previous field.
+	 * Lines without a name are ignored.
+	 *
+	 * @param from start of the line
+	 * @param to end of the line without the line terminator
+	 */
+	private void parseHeaderLine(int from, int to) {
+		if (isWhitespace(data[from])) {
+			if (headerCount > 0) {
+				headers[4 * headerCount - 1] = trimEnd(headers[4 * headerCount - 2], to);
+			}
+			return;
+		}
+		int colon = indexOf(':', from, to);
+		if (colon == from || colon == to) {
+			return;
+		}
+		if (4 * headerCount == headers.length) {
+			headers = Arrays.copyOf(headers, 2 * headers.length);
+		}
+		int valueStart = colon + 1;
+		while (valueStart < to && isWhitespace(data[valueStart])) {
+			valueStart++;
+		}
+		int h = 4 * headerCount++;
+		headers[h] = from;
+		headers[h + 1] = colon;
+		headers[h + 2] = valueStart;
+		headers[h + 3] = trimEnd(valueStart, to);
+	}
+
+	/**
+	 * Moves the end of a value back over trailing whitespace.
+	 *
+	 * @param from start of the value
+	 * @param to end of the value
+	 * @return the new end of the value
+	 */
+	private int trimEnd(int from, int to) {
+		while (to > from && isWhitespace(data[to - 1])) {
+			to--;
+		}
+		return to;
+	}
+
+	/**
+	 * Finds a byte within a region.
+	 *
+	 * @param c the byte
+	 * @param from start of the region
+	 * @param to end of the region
+	 * @return index of the byte or <code>to</code> if it is not found
+	 */
+	private int indexOf(char c, int from, int to) {
+		return indexOf(data, c, from, to);
+	}
+
+	/**
+	 * Finds a byte in a region of an array.
+	 *
+	 * @param data the array
+	 * @param c the byte
+	 * @param from start of the region
+	 * @param to end of the region
+	 * @return index of the byte or <code>to</code> if it is not found
+	 */
+	private static int indexOf(byte[] data, char c, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == c) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	/**
+	 * Compares a region with an ASCII string, ignoring case.
+	 *
+	 * @param from start of the region
+	 * @param to end of the region
+	 * @param s the string
+	 * @return true if they are equal
+	 */
+	private boolean regionEquals(int from, int to, String s) {
+		if (to - from != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			int b = data[from + i];
+			int c = s.charAt(i);
+			if (b != c) {
+				int lower = c | 0x20;
+				if (lower < 'a' || lower > 'z' || (b | 0x20) != lower) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a string of a region, line terminators of folded lines are left
+	 * out.
+	 *
+	 * @param from start of the region
+	 * @param to end of the region
+	 * @param charset charset of the region
+	 * @return the string
+	 */
+	private String string(int from, int to, Charset charset) {
+		int lf = indexOf('\n', from, to);
+		if (lf == to) {
+			return new String(data, from, to - from, charset);
+		}
+		byte[] bytes = scratch(to - from);
+		int length = 0;
+		for (int i = from; i < to; i++) {
+			if (data[i] != '\r' && data[i] != '\n') {
+				bytes[length++] = data[i];
+			}
+		}
+		return new String(bytes, 0, length, charset);
+	}
+
+	/**
+	 * Percent-decodes a region of parameters. Malformed escapes are kept as
+	 * they are.
+	 *
+	 * @param data bytes of the region
+	 * @param from start of the region
+	 * @param to end of the region
+	 * @param bytes scratch space at least as large as the region
+	 * @return the decoded string
+	 */
+	private static String decode(byte[] data, int from, int to, byte[] bytes) {
+		int length = 0;
+		for (int i = from; i < to; i++) {
+			byte b = data[i];
+			if (b == '+') {
+				b = ' ';
+			} else if (b == '%' && i + 2 < to) {
+				int high = Character.digit(data[i + 1], 16);
+				int low = Character.digit(data[i + 2], 16);
+				if (high >= 0 && low >= 0) {
+					b = (byte) (high << 4 | low);
+					i += 2;
+				}
+			}
+			bytes[length++] = b;
+		}
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the scratch space, enlarged if necessary.
+	 *
+	 * @param size needed size
+	 * @return the scratch space
+	 */
+	private byte[] scratch(int size) {
+		if (scratch.length < size) {
+			scratch = new byte[Math.max(size, 2 * scratch.length)];
+		}
+		return scratch;
+	}
+
+	/**
+	 * Checks if a byte is a space or a tab.
+	 *
+	 * @param b the byte
+	 * @return true if the byte is whitespace
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+}
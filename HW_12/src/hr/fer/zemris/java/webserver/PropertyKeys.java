@@ -25,7 +25,67 @@ public class PropertyKeys {
 	/** The Constant SESSION_TIMEOUT. */
 	public static final String SESSION_TIMEOUT = "session.timeout";
 	
+	/** The Constant SESSION_STORE, file sessions are kept in across restarts. */
+	public static final String SESSION_STORE = "session.store";
+	
 	/** The Constant WORKERS_CONFIG. */
 	public static final String WORKERS_CONFIG = "server.workers";
 	
+	/** The Constant KEEP_ALIVE_TIMEOUT, seconds an idle connection stays open. */
+	public static final String KEEP_ALIVE_TIMEOUT = "server.keepAliveTimeout";
+	
+	/** The Constant EXECUTION_MODE, <code>pool</code> or <code>virtual</code>. */
+	public static final String EXECUTION_MODE = "server.executionMode";
+	
+	/** The Constant ROUTE_CONCURRENCY, maximum concurrent requests per worker. */
+	public static final String ROUTE_CONCURRENCY = "server.routeConcurrency";
+	
+	/** The Constant SCRIPT_CACHE_SIZE, maximum number of cached parsed scripts. */
+	public static final String SCRIPT_CACHE_SIZE = "server.scriptCacheSize";
+	
+	/** The Constant SCRIPT_COMPILER, true if hot scripts are compiled to Java classes. */
+	public static final String SCRIPT_COMPILER = "server.scriptCompiler";
+	
+	/** The Constant RESPONSE_BUFFER_SIZE, bytes buffered per response, 0 for none. */
+	public static final String RESPONSE_BUFFER_SIZE = "server.responseBufferSize";
+	
+	/** The Constant STATIC_CACHE_SIZE, bytes of static files cached in memory. */
+	public static final String STATIC_CACHE_SIZE = "server.staticCacheSize";
+	
+	/** The Constant STATIC_CACHE_FILE_LIMIT, size of the largest cached static file. */
+	public static final String STATIC_CACHE_FILE_LIMIT = "server.staticCacheFileLimit";
+	
+	/** The Constant METRICS_PATH, path metrics are served at, empty to disable. */
+	public static final String METRICS_PATH = "server.metricsPath";
+	
+	/** The Constant MAX_REQUEST_BODY, size of the largest accepted request body. */
+	public static final String MAX_REQUEST_BODY = "server.maxRequestBody";
+	
+	/** The Constant UPLOAD_MEMORY_THRESHOLD, bytes of uploaded parts kept in memory. */
+	public static final String UPLOAD_MEMORY_THRESHOLD = "server.uploadMemoryThreshold";
+	
+	/** The Constant UPLOAD_DIRECTORY, directory of uploaded parts too large for memory. */
+	public static final String UPLOAD_DIRECTORY = "server.uploadDirectory";
+	
+	/** The Constant COMPRESSION, whether responses are compressed on the fly. */
+	public static final String COMPRESSION = "server.compression";
+	
+	/** The Constant COMPRESSION_MIN_SIZE, size of the smallest compressed response. */
+	public static final String COMPRESSION_MIN_SIZE = "server.compressionMinSize";
+	
+	/** The Constant COMPRESSION_MIME_TYPES, mime type prefixes of compressed responses. */
+	public static final String COMPRESSION_MIME_TYPES = "server.compressionMimeTypes";
+	
+	/** The Constant COMPRESSION_LEVEL, deflate compression level from 1 to 9. */
+	public static final String COMPRESSION_LEVEL = "server.compressionLevel";
+	
+	/** The Constant SCRIPT_FUNCTIONS, config file of functions scripts may call. */
+	public static final String SCRIPT_FUNCTIONS = "server.scriptFunctions";
+	
+	/** The Constant SCRIPT_FUNCTION_THREADS, threads asynchronous script functions run on. */
+	public static final String SCRIPT_FUNCTION_THREADS = "server.scriptFunctionThreads";
+	
+	/** The Constant FRAGMENT_CACHE_SIZE, bytes of cached output of CACHE blocks, 0 for none. */
+	public static final String FRAGMENT_CACHE_SIZE = "server.fragmentCacheSize";
+	
 }
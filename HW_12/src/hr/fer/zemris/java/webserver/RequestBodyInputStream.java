@@ -0,0 +1,195 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream of a request body, framed either by <code>Content-Length</code> or by
+ * chunked transfer encoding. The stream never reads past the end of the body,
+ * so bytes of a pipelined request that follows stay on the connection. Chunk
+ * extensions and trailers are read and ignored.
+ *
+ * @author Ante Spajic
+ */
+class RequestBodyInputStream extends InputStream {
+
+	/** Maximum length of a chunk size line or a trailer line. */
+	private static final int MAX_LINE = 4096;
+
+	/** Stream of the connection the body is read from. */
+	private final InputStream in;
+
+	/** Flag telling whether the body is chunked. */
+	private final boolean chunked;
+
+	/** Maximum size of a chunked body. */
+	private final long maxSize;
+
+	/** Bytes left in the body or in the current chunk. */
+	private long remaining;
+
+	/** Bytes of all chunks so far. */
+	private long size;
+
+	/** Flag telling whether a chunk has been read and its line end is due. */
+	private boolean inChunks;
+
+	/** Flag telling whether the whole body has been read. */
+	private boolean eof;
+
+	/**
+	 * Instantiates a new request body stream.
+	 *
+	 * @param in stream of the connection
+	 * @param chunked true if the body is chunked
+	 * @param length length of a body that is not chunked
+	 * @param maxSize maximum size of a chunked body
+	 */
+	private RequestBodyInputStream(InputStream in, boolean chunked, long length, long maxSize) {
+		this.in = in;
+		this.chunked = chunked;
+		this.remaining = chunked ? 0 : length;
+		this.maxSize = maxSize;
+		this.eof = !chunked && length == 0;
+	}
+
+	/**
+	 * Creates the stream of a body with a known length.
+	 *
+	 * @param in stream of the connection
+	 * @param length length of the body
+	 * @return the body stream
+	 */
+	public static RequestBodyInputStream fixed(InputStream in, long length) {
+		return new RequestBodyInputStream(in, false, length, length);
+	}
+
+	/**
+	 * Creates the stream of a chunked body.
+	 *
+	 * @param in stream of the connection
+	 * @param maxSize maximum size of the body, reading more fails
+	 * @return the body stream
+	 */
+	public static RequestBodyInputStream chunked(InputStream in, long maxSize) {
+		return new RequestBodyInputStream(in, true, 0, maxSize);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (remaining == 0 && !eof && chunked) {
+			nextChunk();
+		}
+		if (eof) {
+			return -1;
+		}
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n < 0) {
+			throw new EOFException("Request body ended early");
+		}
+		remaining -= n;
+		if (remaining == 0 && !chunked) {
+			eof = true;
+		}
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return eof ? 0 : (int) Math.min(in.available(), remaining);
+	}
+
+	/**
+	 * Reads and discards the rest of the body, unless it is larger than a
+	 * limit.
+	 *
+	 * @param limit maximum number of bytes to discard
+	 * @return true if the whole body has been read
+	 * @throws IOException if an I/O error occurs
+	 */
+	public boolean drain(long limit) throws IOException {
+		byte[] skip = new byte[4096];
+		long left = limit;
+		while (!eof) {
+			if (left <= 0 || !chunked && remaining > left) {
+				return false;
+			}
+			int n = read(skip, 0, (int) Math.min(skip.length, left));
+			if (n > 0) {
+				left -= n;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the size line of the next chunk. The last chunk is followed by
+	 * trailers, which are skipped.
+	 *
+	 * @throws IOException if the chunk is malformed or the body is too large
+	 */
+	private void nextChunk() throws IOException {
+		if (inChunks && !readLine().isEmpty()) {
+			throw new IOException("Chunk is longer than its size");
+		}
+		inChunks = true;
+		String line = readLine();
+		int end = line.indexOf(';');
+		String hex = (end < 0 ? line : line.substring(0, end)).trim();
+		long chunkSize;
+		try {
+			chunkSize = Long.parseLong(hex, 16);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed chunk size: " + hex);
+		}
+		if (chunkSize < 0 || chunkSize > maxSize - size) {
+			throw new IOException("Request body is too large");
+		}
+		if (chunkSize == 0) {
+			while (!readLine().isEmpty()) {
+				// trailers are not used
+			}
+			eof = true;
+			return;
+		}
+		size += chunkSize;
+		remaining = chunkSize;
+	}
+
+	/**
+	 * Reads a line ending with CRLF or LF.
+	 *
+	 * @return the line without its end
+	 * @throws IOException if the line is too long or the body ended
+	 */
+	private String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Request body ended early");
+			}
+			if (b == '\n') {
+				int length = sb.length();
+				if (length > 0 && sb.charAt(length - 1) == '\r') {
+					sb.setLength(length - 1);
+				}
+				return sb.toString();
+			}
+			if (sb.length() == MAX_LINE) {
+				throw new IOException("Chunk line is too long");
+			}
+			sb.append((char) b);
+		}
+	}
+}
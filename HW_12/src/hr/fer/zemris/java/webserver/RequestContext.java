@@ -1,20 +1,48 @@
 package hr.fer.zemris.java.webserver;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import hr.fer.zemris.java.webserver.multipart.MultipartParser;
+import hr.fer.zemris.java.webserver.multipart.Part;
 
 /**
  * Encapsulates information about an HTTP request that matches a defined route.
  * The RequestContext class contains information about the HTTP request in the
  * HttpContext property.
+ * <p>
+ * By default every write is sent to the output stream immediately. After
+ * {@link #setBufferSize(int)} the response is collected in a buffer and the
+ * header is sent together with the first part of the body. A response that
+ * fits into the buffer gets a <code>Content-Length</code> header when it is
+ * {@link #finish() finished}, a larger or explicitly {@link #flush() flushed}
+ * response without a known length is sent with chunked transfer encoding.
+ * <p>
+ * The body of a <code>POST</code> or <code>PUT</code> request is read from
+ * {@link #getInputStream()} as it arrives, a multipart form body is parsed by
+ * {@link #getParts()}.
+ * <p>
+ * Buffered responses are compressed on the fly when
+ * {@link #setCompression(ResponseCompression, String) compression} has been
+ * negotiated with the client and the mime type is allowed. The decision is
+ * made when the header is sent: a response that is finished while it still
+ * fits into the buffer is compressed only if it is large enough, a larger one
+ * always is. Compressed data is collected in a buffer of its own, so a
+ * response whose compressed form fits into it still gets a
+ * <code>Content-Length</code>, otherwise it is sent in chunks.
  * 
  * @author Ante Spajic
  */
@@ -89,14 +117,26 @@ public class RequestContext {
 		
 	}
 
+	/** Space reserved in front of buffered data for the header and chunk size. */
+	private static final int HEADROOM = 512;
+	
+	/** Line break that ends a chunk. */
+	private static final byte[] CRLF = { '\r', '\n' };
+	
+	/** The last chunk of a chunked response, without trailers. */
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+	
+	/** Header of a gzip member without optional fields. */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	
+	/** Length of the gzip trailer, the CRC-32 and size of the uncompressed data. */
+	private static final int GZIP_TRAILER_LENGTH = 8;
+
 	/** The output stream. */
 	private OutputStream outputStream;
 	
 	/** The charset for request. */
-	private Charset charset;
-	
-	/** The encoding for request. */
-	private String encoding = "UTF-8";
+	private Charset charset = StandardCharsets.UTF_8;
 	
 	/** The status code. */
 	private int statusCode = 200;
@@ -125,6 +165,63 @@ public class RequestContext {
 	/** The additional headers. */
 	private List<String> additionalHeaders;
 	
+	/** Flag telling whether the connection stays open after this response. */
+	private boolean keepAlive;
+	
+	/** The response buffer, null if writes are not buffered. */
+	private byte[] buffer;
+	
+	/** End of the buffered data, the data starts at {@link #HEADROOM}. */
+	private int position = HEADROOM;
+	
+	/** Flag telling whether the body is sent with chunked transfer encoding. */
+	private boolean chunked;
+	
+	/** Flag telling whether the response has been finished. */
+	private boolean finished;
+	
+	/** The request method. */
+	private String method = "GET";
+	
+	/** The parsed request header, null if none was set. */
+	private HttpRequestParser requestHeader;
+	
+	/** Stream of the request body. */
+	private InputStream inputStream;
+	
+	/** Number of bytes of multipart form parts kept in memory. */
+	private long uploadMemoryThreshold = 1024 * 1024;
+	
+	/** Directory of uploaded parts too large for memory, null for the default. */
+	private Path uploadDirectory;
+	
+	/** Parts of a multipart form body, null until parsed. */
+	private List<Part> parts;
+	
+	/** Compression settings, null if responses are not compressed. */
+	private ResponseCompression compression;
+	
+	/** Content coding negotiated with the client, null for none. */
+	private String contentEncoding;
+	
+	/** Deflater of a response being compressed, null otherwise. */
+	private Deflater deflater;
+	
+	/** Checksum of the uncompressed body of a gzip response. */
+	private CRC32 crc;
+	
+	/** Compressed data waiting to be sent, laid out like {@link #buffer}. */
+	private byte[] deflated;
+	
+	/** End of the compressed data, the data starts at {@link #HEADROOM}. */
+	private int deflatedEnd;
+	
+	/** Number of bytes of a compressed response before compression. */
+	private long uncompressedSize;
+	
+	/** Number of bytes of a compressed response after compression. */
+	private long compressedSize;
+	
 	/**
 	 * Instantiates a new request context.
 	 *
@@ -156,7 +253,17 @@ public class RequestContext {
 		if (headerGenerated) {
 			throw new RuntimeException("Header has already been generated");
 		}
-		this.encoding = encoding;
+		this.charset = Charset.forName(encoding);
+	}
+
+	/**
+	 * Returns the charset text written to this request context is encoded
+	 * in.
+	 *
+	 * @return the charset
+	 */
+	public Charset getCharset() {
+		return charset;
 	}
 
 	/**
@@ -171,6 +278,15 @@ public class RequestContext {
 		this.statusCode = statusCode;
 	}
 
+	/**
+	 * Returns the status code of this request context.
+	 *
+	 * @return HTTP status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
 	/**
 	 * Sets status text of this request.
 	 * 
@@ -259,7 +375,7 @@ public class RequestContext {
 	 * @return the value associated with provided name
 	 */
 	public String getTemporaryParameter(String name) {
-		return temporaryParameters.get(name);
+		return temporaryParameters == null ? null : temporaryParameters.get(name);
 	}
 	
 	/**
@@ -293,14 +409,414 @@ public class RequestContext {
 		temporaryParameters.remove(name);
 	}
 	
+	/**
+	 * Sets the request this context responds to.
+	 *
+	 * @param method the request method
+	 * @param requestHeader the parsed request header
+	 * @param inputStream stream of the request body
+	 */
+	public void setRequest(String method, HttpRequestParser requestHeader, InputStream inputStream) {
+		this.method = method;
+		this.requestHeader = requestHeader;
+		this.inputStream = inputStream;
+	}
+	
+	/**
+	 * Returns the method of the request, <code>GET</code> if none was set.
+	 * 
+	 * @return the request method
+	 */
+	public String getMethod() {
+		return method;
+	}
+	
+	/**
+	 * Returns the value of a request header.
+	 * 
+	 * @param name name of the header, case is ignored
+	 * @return the value or null if the header is not present
+	 */
+	public String getHeader(String name) {
+		return requestHeader == null ? null : requestHeader.getHeader(name);
+	}
+	
+	/**
+	 * Returns the stream of the request body. The body is streamed from the
+	 * connection, it can be read once and ends where the request ends.
+	 * 
+	 * @return the body stream, empty if the request has no body
+	 */
+	public InputStream getInputStream() {
+		if (inputStream == null) {
+			inputStream = new ByteArrayInputStream(new byte[0]);
+		}
+		return inputStream;
+	}
+	
+	/**
+	 * Configures where parts of a multipart form body are kept.
+	 * 
+	 * @param memoryThreshold number of bytes of all parts kept in memory, the
+	 *            rest is written to temporary files
+	 * @param directory directory of the temporary files, null for the default
+	 */
+	public void setUploadConfig(long memoryThreshold, Path directory) {
+		this.uploadMemoryThreshold = memoryThreshold;
+		this.uploadDirectory = directory;
+	}
+	
+	/**
+	 * Returns the parts of a <code>multipart/form-data</code> request body. The
+	 * body is read and parsed on the first call, so it can not be read from
+	 * {@link #getInputStream()} as well. Temporary files of the parts are
+	 * deleted once the request has been processed.
+	 * 
+	 * @return unmodifiable list of the parts, empty if the body is not a
+	 *         multipart form
+	 * @throws IOException if the body is malformed or can not be read
+	 */
+	public List<Part> getParts() throws IOException {
+		if (parts == null) {
+			String boundary = MultipartParser.boundary(getHeader("Content-Type"));
+			parts = boundary == null ? Collections.<Part>emptyList()
+					: new MultipartParser(getInputStream(), boundary, uploadMemoryThreshold, uploadDirectory).parse();
+		}
+		return parts;
+	}
+	
+	/**
+	 * Returns a part of a <code>multipart/form-data</code> request body.
+	 * 
+	 * @param name name of the form field
+	 * @return the first part with the name or null if there is none
+	 * @throws IOException if the body is malformed or can not be read
+	 */
+	public Part getPart(String name) throws IOException {
+		for (Part part : getParts()) {
+			if (part.getName().equals(name)) {
+				return part;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Deletes temporary files of the parts of the request body.
+	 */
+	public void deleteParts() {
+		if (parts != null) {
+			for (Part part : parts) {
+				part.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Releases resources held for the request once it has been processed,
+	 * whether the response was finished or not.
+	 */
+	void release() {
+		deleteParts();
+		if (deflater != null) {
+			compression.release(contentEncoding, deflater);
+			deflater = null;
+		}
+	}
+	
+	/**
+	 * Enables compression of a buffered response.
+	 * 
+	 * @param compression the compression settings of the server
+	 * @param contentEncoding the coding negotiated with the client, null if
+	 *            the client does not accept compressed responses
+	 */
+	public void setCompression(ResponseCompression compression, String contentEncoding) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header has already been generated");
+		}
+		this.compression = compression;
+		this.contentEncoding = contentEncoding;
+	}
+	
+	/**
+	 * Sets the size of the response buffer, 0 sends every write immediately.
+	 * 
+	 * @param bufferSize size of the buffer in bytes
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header has already been generated");
+		}
+		if (bufferSize < 0) {
+			throw new IllegalArgumentException("Buffer size must not be negative");
+		}
+		buffer = bufferSize == 0 ? null : new byte[HEADROOM + bufferSize + CRLF.length + LAST_CHUNK.length];
+	}
+	
+	/**
+	 * Writes provided data to the response, generating the header first if
+	 * it has not been generated yet.
+	 * 
+	 * @param data data to be written
+	 * @return this request context
+	 * @throws IOException if an I/O error occurs
+	 */
 	public RequestContext write(byte[] data) throws IOException {
-		if (!headerGenerated) {
-			charset = Charset.forName(encoding);
+		return write(data, 0, data.length);
+	}
+	
+	/**
+	 * Writes a part of provided data to the response.
+	 * 
+	 * @param data array with the data to be written
+	 * @param offset offset of the first byte to write
+	 * @param length number of bytes to write
+	 * @return this request context
+	 * @throws IOException if an I/O error occurs
+	 */
+	public RequestContext write(byte[] data, int offset, int length) throws IOException {
+		if (buffer == null) {
+			if (!headerGenerated) {
+				generateHeader();
+			}
+			outputStream.write(data, offset, length);
+			outputStream.flush();
+			return this;
+		}
+		if (finished) {
+			throw new RuntimeException("Response has already been finished");
+		}
+		int limit = buffer.length - CRLF.length - LAST_CHUNK.length;
+		while (length > 0) {
+			if (position == limit) {
+				flushBuffer(false, false);
+			}
+			if (headerGenerated && !chunked && deflater == null && position == HEADROOM
+					&& length >= limit - HEADROOM) {
+				outputStream.write(data, offset, length);
+				return this;
+			}
+			int n = Math.min(length, limit - position);
+			System.arraycopy(data, offset, buffer, position, n);
+			position += n;
+			offset += n;
+			length -= n;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sends the header if it has not been generated yet and the buffered part
+	 * of the response. A response flushed before it is finished can not get a
+	 * content length any more, so it is sent in chunks unless the
+	 * <code>Content-Length</code> header has been added.
+	 * 
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void flush() throws IOException {
+		if (buffer != null && !finished) {
+			flushBuffer(false, true);
+		} else if (!headerGenerated) {
 			generateHeader();
 		}
-		outputStream.write(data);
 		outputStream.flush();
-		return this;
+	}
+	
+	/**
+	 * Finishes the response and sends everything that is still buffered. A
+	 * buffered response that has not been flushed yet is sent with its
+	 * content length, even if nothing has been written.
+	 * 
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		if (buffer != null) {
+			flushBuffer(true, false);
+		}
+		outputStream.flush();
+	}
+	
+	/**
+	 * Sends the buffered data, compressing it first if the response is
+	 * compressed.
+	 * 
+	 * @param last true if this is the end of the response
+	 * @param sync true if compressed data must not be held back
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void flushBuffer(boolean last, boolean sync) throws IOException {
+		if (!headerGenerated && deflater == null && compression != null) {
+			startCompression(last);
+		}
+		if (deflater == null) {
+			send(buffer, position, last);
+		} else {
+			deflate(last, sync);
+		}
+		position = HEADROOM;
+	}
+	
+	/**
+	 * Decides whether the response is compressed, before its header is sent.
+	 * A compressible response varies with the <code>Accept-Encoding</code>
+	 * header, even if this client does not get it compressed.
+	 * 
+	 * @param last true if the whole response is in the buffer
+	 */
+	private void startCompression(boolean last) {
+		if (isBodyless() || statusCode == 206 || hasAdditionalHeader("Content-Encoding")
+				|| hasAdditionalHeader("Content-Length") || !compression.isCompressible(mimeType)) {
+			return;
+		}
+		if (!hasAdditionalHeader("Vary")) {
+			addAdditionalHeader("Vary: Accept-Encoding");
+		}
+		if (contentEncoding == null || last && position - HEADROOM < compression.getMinSize()) {
+			return;
+		}
+		addAdditionalHeader("Content-Encoding: " + contentEncoding);
+		deflater = compression.acquire(contentEncoding);
+		deflated = new byte[buffer.length];
+		deflatedEnd = HEADROOM;
+		if (contentEncoding.equals(ResponseCompression.GZIP)) {
+			crc = new CRC32();
+			System.arraycopy(GZIP_HEADER, 0, deflated, deflatedEnd, GZIP_HEADER.length);
+			deflatedEnd += GZIP_HEADER.length;
+		}
+	}
+	
+	/**
+	 * Compresses the buffered data. Compressed data is sent whenever its
+	 * buffer fills up, at the end of the response, and on a flush, which ends
+	 * the compressed block so the client can decode everything sent so far.
+	 * 
+	 * @param last true if this is the end of the response
+	 * @param sync true if all compressed data must be sent
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void deflate(boolean last, boolean sync) throws IOException {
+		int length = position - HEADROOM;
+		uncompressedSize += length;
+		if (crc != null) {
+			crc.update(buffer, HEADROOM, length);
+		}
+		deflater.setInput(buffer, HEADROOM, length);
+		if (last) {
+			deflater.finish();
+		}
+		int mode = sync && !last ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH;
+		int limit = deflated.length - CRLF.length - LAST_CHUNK.length - GZIP_TRAILER_LENGTH;
+		while (true) {
+			deflatedEnd += deflater.deflate(deflated, deflatedEnd, limit - deflatedEnd, mode);
+			if (deflatedEnd == limit) {
+				sendDeflated(false);
+			} else if (last ? deflater.finished() : deflater.needsInput()) {
+				break;
+			}
+		}
+		if (last) {
+			if (crc != null) {
+				putIntLE((int) crc.getValue());
+				putIntLE((int) uncompressedSize);
+			}
+			sendDeflated(true);
+			compression.record(uncompressedSize, compressedSize);
+			compression.release(contentEncoding, deflater);
+			deflater = null;
+		} else if (sync && deflatedEnd > HEADROOM) {
+			sendDeflated(false);
+		}
+	}
+	
+	/**
+	 * Appends a little endian integer to the compressed data.
+	 * 
+	 * @param value the integer
+	 */
+	private void putIntLE(int value) {
+		for (int i = 0; i < 4; i++) {
+			deflated[deflatedEnd++] = (byte) (value >>> 8 * i);
+		}
+	}
+	
+	/**
+	 * Sends the compressed data.
+	 * 
+	 * @param last true if this is the end of the response
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void sendDeflated(boolean last) throws IOException {
+		compressedSize += deflatedEnd - HEADROOM;
+		send(deflated, deflatedEnd, last);
+		deflatedEnd = HEADROOM;
+	}
+	
+	/**
+	 * Sends data laid out like the buffer with a single write, preceded by the
+	 * header if it has not been generated yet and framed as a chunk if the
+	 * response is chunked.
+	 * 
+	 * @param data the buffer holding the data from {@link #HEADROOM}
+	 * @param end end of the data
+	 * @param last true if this is the end of the response
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void send(byte[] data, int end, boolean last) throws IOException {
+		if (!headerGenerated && !hasAdditionalHeader("Content-Length") && !isBodyless()) {
+			if (last) {
+				addAdditionalHeader("Content-Length: " + (end - HEADROOM));
+			} else {
+				chunked = true;
+				addAdditionalHeader("Transfer-Encoding: chunked");
+			}
+		}
+		int start = HEADROOM;
+		if (chunked) {
+			if (end > start) {
+				start = prepend(data, Integer.toHexString(end - start) + "\r\n", start);
+				System.arraycopy(CRLF, 0, data, end, CRLF.length);
+				end += CRLF.length;
+			}
+			if (last) {
+				System.arraycopy(LAST_CHUNK, 0, data, end, LAST_CHUNK.length);
+				end += LAST_CHUNK.length;
+			}
+		}
+		if (!headerGenerated) {
+			start = prepend(data, header(), start);
+			headerGenerated = true;
+		}
+		outputStream.write(data, start, end - start);
+	}
+	
+	/**
+	 * Encodes text into a buffer right in front of the provided position.
+	 * Text that does not fit in front of it is written to the output stream
+	 * on its own.
+	 * 
+	 * @param data the buffer
+	 * @param text text to encode as ISO-8859-1
+	 * @param start position the text must end at
+	 * @return position of the first byte of the text
+	 * @throws IOException if an I/O error occurs
+	 */
+	private int prepend(byte[] data, CharSequence text, int start) throws IOException {
+		int length = text.length();
+		if (length > start) {
+			outputStream.write(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+			return start;
+		}
+		start -= length;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			data[start + i] = (byte) (c <= 0xFF ? c : '?');
+		}
+		return start;
 	}
 	
 	/**
@@ -309,31 +825,83 @@ public class RequestContext {
 	 * @throws IOException if an I/O error occurs 
 	 */
 	private void generateHeader() throws IOException {
-		outputStream.write(("HTTP/1.1 " + statusCode + " " + statusText + "\r\n" +
-				"Content-Type:" + mimeType + (mimeType.trim().startsWith("text/") ? "; charset=UTF-8": "") + "\r\n"+
-				(additionalHeaders!=null ? additionalHeaders(): "") +
-				(!outputCookies.isEmpty() ? cookiesToStr() : "") +
-				"\r\n"
-				).getBytes(StandardCharsets.ISO_8859_1));
+		outputStream.write(header().toString().getBytes(StandardCharsets.ISO_8859_1));
 		outputStream.flush();
 		headerGenerated = true;
 	}
+	
+	/**
+	 * Builds the text of the header.
+	 * 
+	 * @return the header, ending with an empty line
+	 */
+	private StringBuilder header() {
+		if (keepAlive && !chunked && !isBodyless() && !hasAdditionalHeader("Content-Length")) {
+			keepAlive = false;
+			addAdditionalHeader("Connection: close");
+		}
+		StringBuilder sb = new StringBuilder(128);
+		sb.append("HTTP/1.1 ").append(statusCode).append(' ').append(statusText).append("\r\n")
+			.append("Content-Type:").append(mimeType);
+		if (mimeType.trim().startsWith("text/")) {
+			sb.append("; charset=UTF-8");
+		}
+		sb.append("\r\n");
+		if (additionalHeaders != null) {
+			additionalHeaders(sb);
+		}
+		if (!outputCookies.isEmpty()) {
+			cookiesToStr(sb);
+		}
+		return sb.append("\r\n");
+	}
 
-	private String additionalHeaders() {
-		StringBuilder sb = new StringBuilder();
+	/**
+	 * Checks if the status code of this response forbids a body, such a
+	 * response ends with its header.
+	 *
+	 * @return true for 1xx, 204 and 304 responses
+	 */
+	private boolean isBodyless() {
+		return statusCode / 100 == 1 || statusCode == 204 || statusCode == 304;
+	}
+
+	/**
+	 * Checks if an additional header with the provided name has been added.
+	 *
+	 * @param name name of the header
+	 * @return true if such header exists
+	 */
+	private boolean hasAdditionalHeader(String name) {
+		if (additionalHeaders == null) {
+			return false;
+		}
+		for (String header : additionalHeaders) {
+			if (header.regionMatches(true, 0, name, 0, name.length())
+					&& header.length() > name.length() && header.charAt(name.length()) == ':') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Appends the additional headers to the header.
+	 * 
+	 * @param sb the header being built
+	 */
+	private void additionalHeaders(StringBuilder sb) {
 		for (String header : additionalHeaders) {
 			sb.append(header).append("\r\n");
 		}
-		return sb.toString();
 	}
 
 	/**
-	 * generates a string of output cookies to be written on output stream
+	 * Appends the output cookies to the header.
 	 * 
-	 * @return cookies to be written
+	 * @param sb the header being built
 	 */
-	private String cookiesToStr() {
-		StringBuilder sb = new StringBuilder();
+	private void cookiesToStr(StringBuilder sb) {
 		for (RCCookie r : outputCookies) {
 			sb.append("Set-Cookie: ")
 			.append(r.name).append("=").append(r.value);
@@ -351,7 +919,6 @@ public class RequestContext {
 			}
 			sb.append("\r\n");
 		}
-		return sb.toString();
 	}
 
 	/**
@@ -362,7 +929,6 @@ public class RequestContext {
 	 * @throws IOException
 	 */
 	public RequestContext write(String text) throws IOException {
-		charset = Charset.forName(encoding);
 		return write(text.getBytes(charset));
 	}
 
@@ -389,4 +955,30 @@ public class RequestContext {
 		}
 		additionalHeaders.add(header);
 	}
+ 	
+	/**
+	 * Sets whether the client wants the connection to stay open after this
+	 * response. A response without a <code>Content-Length</code> header can only
+	 * be delimited by closing the connection, so such a response is sent with
+	 * <code>Connection: close</code>.
+	 *
+	 * @param keepAlive true if the connection should be kept open
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		if (headerGenerated) {
+			throw new RuntimeException("Header has already been generated");
+		}
+		this.keepAlive = keepAlive;
+	}
+	
+	/**
+	 * Checks if the connection can stay open once this response has been
+	 * written, that is if a complete header with a content length or chunked
+	 * encoding was sent and a buffered response has been finished.
+	 *
+	 * @return true if the connection can be reused for the next request
+	 */
+	public boolean isKeepAlive() {
+		return keepAlive && headerGenerated && (buffer == null || finished);
+	}
  }
@@ -0,0 +1,231 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Settings of on-the-fly response compression shared by all requests of a
+ * server. It negotiates the content coding of a response from the
+ * <code>Accept-Encoding</code> header, decides which responses are worth
+ * compressing by their mime type and size, and keeps pools of
+ * {@link Deflater} instances, which hold native memory and are expensive to
+ * create for every response.
+ *
+ * @author Ante Spajic
+ */
+public class ResponseCompression {
+
+	/** The gzip content coding. */
+	public static final String GZIP = "gzip";
+
+	/** The deflate content coding, a zlib stream. */
+	public static final String DEFLATE = "deflate";
+
+	/** Size of the smallest response that is compressed. */
+	private final int minSize;
+
+	/** Prefixes of the mime types that are compressed. */
+	private final String[] mimeTypes;
+
+	/** Compression level of the deflaters. */
+	private final int level;
+
+	/** Idle deflaters producing raw deflate data, used for gzip. */
+	private final BlockingQueue<Deflater> rawDeflaters;
+
+	/** Idle deflaters producing zlib streams, used for deflate. */
+	private final BlockingQueue<Deflater> zlibDeflaters;
+
+	/** Number of compressed responses. */
+	private final LongAdder responses = new LongAdder();
+
+	/** Number of bytes of responses before compression. */
+	private final LongAdder bytesIn = new LongAdder();
+
+	/** Number of bytes of responses after compression. */
+	private final LongAdder bytesOut = new LongAdder();
+
+	/**
+	 * Instantiates new compression settings.
+	 *
+	 * @param minSize size of the smallest response that is compressed
+	 * @param mimeTypes prefixes of the mime types that are compressed, such as
+	 *            <code>text/</code> or <code>application/json</code>
+	 * @param level compression level from 1 to 9
+	 * @param poolSize maximum number of idle deflaters kept for each coding
+	 */
+	public ResponseCompression(int minSize, String[] mimeTypes, int level, int poolSize) {
+		if (minSize < 0 || poolSize < 1 || level < 1 || level > 9) {
+			throw new IllegalArgumentException("Invalid compression settings");
+		}
+		this.minSize = minSize;
+		this.mimeTypes = new String[mimeTypes.length];
+		for (int i = 0; i < mimeTypes.length; i++) {
+			this.mimeTypes[i] = mimeTypes[i].trim().toLowerCase();
+		}
+		this.level = level;
+		this.rawDeflaters = new ArrayBlockingQueue<>(poolSize);
+		this.zlibDeflaters = new ArrayBlockingQueue<>(poolSize);
+	}
+
+	/**
+	 * Selects the content coding of a response. Gzip is preferred over
+	 * deflate when the client accepts both equally, codings with a quality of
+	 * zero are refused.
+	 *
+	 * @param acceptEncoding value of the <code>Accept-Encoding</code> header,
+	 *            null if it was not sent
+	 * @return {@link #GZIP}, {@link #DEFLATE} or null if the response is sent
+	 *         unencoded
+	 */
+	public String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		double gzip = -1;
+		double deflate = -1;
+		double any = -1;
+		for (String coding : acceptEncoding.split(",")) {
+			int semicolon = coding.indexOf(';');
+			String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim().toLowerCase();
+			double quality = semicolon < 0 ? 1 : quality(coding.substring(semicolon + 1));
+			switch (name) {
+			case "gzip":
+			case "x-gzip":
+				gzip = Math.max(gzip, quality);
+				break;
+			case "deflate":
+				deflate = Math.max(deflate, quality);
+				break;
+			case "*":
+				any = quality;
+				break;
+			default:
+				break;
+			}
+		}
+		if (gzip < 0) {
+			gzip = any;
+		}
+		if (deflate < 0) {
+			deflate = any;
+		}
+		if (gzip <= 0 && deflate <= 0) {
+			return null;
+		}
+		return gzip >= deflate ? GZIP : DEFLATE;
+	}
+
+	/**
+	 * Parses the quality value among the parameters of a coding.
+	 *
+	 * @param params parameters of the coding
+	 * @return the quality, 1 if it is not given, 0 if it is malformed
+	 */
+	static double quality(String params) {
+		for (String param : params.split(";")) {
+			param = param.trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Double.parseDouble(param.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Checks if responses of a mime type are compressed.
+	 *
+	 * @param mimeType the mime type, parameters are ignored
+	 * @return true if the mime type is allowed
+	 */
+	public boolean isCompressible(String mimeType) {
+		String type = mimeType.trim().toLowerCase();
+		for (String prefix : mimeTypes) {
+			if (type.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the size of the smallest response that is compressed. Smaller
+	 * responses are sent as they are.
+	 *
+	 * @return the size in bytes
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Takes an idle deflater for a coding or creates a new one.
+	 *
+	 * @param encoding {@link #GZIP} or {@link #DEFLATE}
+	 * @return the deflater, to be returned with {@link #release}
+	 */
+	public Deflater acquire(String encoding) {
+		boolean gzip = encoding.equals(GZIP);
+		Deflater deflater = (gzip ? rawDeflaters : zlibDeflaters).poll();
+		return deflater != null ? deflater : new Deflater(level, gzip);
+	}
+
+	/**
+	 * Returns a deflater to the pool. A deflater that does not fit into the
+	 * pool any more is closed.
+	 *
+	 * @param encoding the coding the deflater was acquired for
+	 * @param deflater the deflater
+	 */
+	public void release(String encoding, Deflater deflater) {
+		deflater.reset();
+		if (!(encoding.equals(GZIP) ? rawDeflaters : zlibDeflaters).offer(deflater)) {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Records a compressed response.
+	 *
+	 * @param in number of bytes before compression
+	 * @param out number of bytes after compression
+	 */
+	void record(long in, long out) {
+		responses.increment();
+		bytesIn.add(in);
+		bytesOut.add(out);
+	}
+
+	/**
+	 * Returns the number of compressed responses.
+	 *
+	 * @return number of responses
+	 */
+	public long getResponses() {
+		return responses.sum();
+	}
+
+	/**
+	 * Returns the number of bytes of compressed responses before compression.
+	 *
+	 * @return number of bytes
+	 */
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * Returns the number of bytes of compressed responses after compression.
+	 *
+	 * @return number of bytes
+	 */
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+}
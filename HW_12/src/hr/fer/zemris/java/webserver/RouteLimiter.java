@@ -0,0 +1,57 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * RouteLimiter bounds the number of requests that may be executed by the same
+ * web worker at once. When every request gets its own thread a single slow
+ * route could otherwise accumulate an unbounded number of blocked requests
+ * and exhaust the memory of the server.
+ *
+ * @author Ante Spajic
+ */
+class RouteLimiter {
+
+	/** Maximum number of concurrent requests per route, 0 for no limit. */
+	private final int limit;
+
+	/** Permits of every route that has been requested so far. */
+	private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+	/**
+	 * Instantiates a new route limiter.
+	 *
+	 * @param limit maximum number of concurrent requests per route, 0 or less
+	 *            disables the limit
+	 */
+	public RouteLimiter(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Tries to reserve a slot for a request on the provided route.
+	 *
+	 * @param route the route of the request
+	 * @return true if the request may proceed, false if the route is saturated
+	 */
+	public boolean tryAcquire(String route) {
+		if (limit <= 0) {
+			return true;
+		}
+		return permits.computeIfAbsent(route, r -> new Semaphore(limit)).tryAcquire();
+	}
+
+	/**
+	 * Releases a slot previously reserved by {@link #tryAcquire(String)}.
+	 *
+	 * @param route the route of the finished request
+	 */
+	public void release(String route) {
+		if (limit <= 0) {
+			return;
+		}
+		permits.get(route).release();
+	}
+}
@@ -0,0 +1,362 @@
+package hr.fer.zemris.java.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Route table of the server's workers. Configured routes are put into a trie of
+ * path segments when the server starts, so dispatching a request walks the
+ * segments of its path in place instead of building keys for a map lookup. A
+ * segment written as <code>{name}</code> matches any non-empty segment and its
+ * percent-decoded value is passed to the worker as the parameter
+ * <code>name</code>, e.g. <code>/users/{id}</code> matches
+ * <code>/users/42</code>. Static segments take precedence over parameters.
+ * <p>
+ * Paths starting with <code>/ext/</code> name a worker class in the workers
+ * package. The class is loaded and instantiated on the first request only, the
+ * instance is shared by all later requests just like the configured workers.
+ * Configured routes take precedence over these.
+ *
+ * @author Ante Spajic
+ */
+public class Router {
+
+	/** Path prefix of lazily loaded workers. */
+	public static final String EXT_PREFIX = "/ext/";
+
+	/** Root of the trie, matches the empty path before the first slash. */
+	private final Node root = new Node();
+
+	/** Package the lazily loaded workers are looked up in. */
+	private final String extPackage;
+
+	/** Class loader of the lazily loaded workers. */
+	private final ClassLoader loader;
+
+	/** Matches of lazily loaded workers by their paths. */
+	private final ConcurrentMap<String, Match> extWorkers = new ConcurrentHashMap<>();
+
+	/** Number of segments of the longest route with parameters. */
+	private int parameterDepth;
+
+	/**
+	 * Instantiates a new empty router.
+	 *
+	 * @param extPackage package of the workers available under <code>/ext/</code>
+	 * @param loader class loader of the workers available under <code>/ext/</code>
+	 */
+	public Router(String extPackage, ClassLoader loader) {
+		this.extPackage = extPackage;
+		this.loader = loader;
+	}
+
+	/**
+	 * Adds a route. Must not be called once the router is used for
+	 * dispatching.
+	 *
+	 * @param route the route, starting with a slash
+	 * @param worker worker that processes requests for the route
+	 * @throws IllegalArgumentException if the route is malformed or clashes with
+	 *             an existing one
+	 */
+	public void add(String route, IWebWorker worker) {
+		if (!route.startsWith("/")) {
+			throw new IllegalArgumentException("Route must start with '/': " + route);
+		}
+		String[] segments = route.substring(1).split("/", -1);
+		String[] names = new String[segments.length];
+		boolean parameterized = false;
+		Node node = root;
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			if (segment.length() > 2 && segment.startsWith("{") && segment.endsWith("}")) {
+				names[i] = segment.substring(1, segment.length() - 1);
+				parameterized = true;
+				node = node.parameterChild();
+			} else {
+				node = node.child(segment);
+			}
+		}
+		if (node.match != null) {
+			throw new IllegalArgumentException("Route " + route + " clashes with " + node.match.route);
+		}
+		if (parameterized) {
+			node.parameterNames = names;
+			parameterDepth = Math.max(parameterDepth, segments.length);
+		}
+		node.match = new Match(route, worker, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * Finds the worker for a request path.
+	 *
+	 * @param path the request path without the query, starting with a slash
+	 * @return the match or null if no worker processes the path
+	 */
+	public Match route(String path) {
+		if (path.isEmpty() || path.charAt(0) != '/') {
+			return null;
+		}
+		String[] values = parameterDepth == 0 ? null : new String[parameterDepth];
+		Node node = find(root, path, 1, 0, values);
+		if (node == null) {
+			return path.startsWith(EXT_PREFIX) ? extWorker(path) : null;
+		}
+		if (node.parameterNames == null) {
+			return node.match;
+		}
+		Map<String, String> parameters = new HashMap<>();
+		for (int i = 0; i < node.parameterNames.length; i++) {
+			if (node.parameterNames[i] != null) {
+				parameters.put(node.parameterNames[i], values[i]);
+			}
+		}
+		return new Match(node.match.route, node.match.worker, parameters);
+	}
+
+	/**
+	 * Matches the remaining segments of a path against a subtree.
+	 *
+	 * @param node root of the subtree
+	 * @param path the request path
+	 * @param start index of the first character of the next segment
+	 * @param depth index of the next segment
+	 * @param values values of parameter segments by their indexes
+	 * @return the node of the matching route or null if there is none
+	 */
+	private Node find(Node node, String path, int start, int depth, String[] values) {
+		int end = path.indexOf('/', start);
+		if (end < 0) {
+			end = path.length();
+		}
+		int length = end - start;
+		for (int i = 0; i < node.names.length; i++) {
+			String name = node.names[i];
+			if (name.length() == length && path.regionMatches(start, name, 0, length)) {
+				Node found = next(node.children[i], path, end, depth, values);
+				if (found != null) {
+					return found;
+				}
+			}
+		}
+		if (node.parameter != null && length > 0 && depth < parameterDepth) {
+			Node found = next(node.parameter, path, end, depth, values);
+			if (found != null) {
+				values[depth] = decode(path, start, end);
+				return found;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Continues matching after a segment has been matched by a child.
+	 *
+	 * @param child the child that matched the segment
+	 * @param path the request path
+	 * @param end index just past the matched segment
+	 * @param depth index of the matched segment
+	 * @param values values of parameter segments by their indexes
+	 * @return the node of the matching route or null if there is none
+	 */
+	private Node next(Node child, String path, int end, int depth, String[] values) {
+		if (end == path.length()) {
+			return child.match == null ? null : child;
+		}
+		return find(child, path, end + 1, depth + 1, values);
+	}
+
+	/**
+	 * Percent-decodes a segment of a path as UTF-8. The path holds the bytes
+	 * of the request target as ISO-8859-1 characters. Malformed escapes are
+	 * kept as they are and, unlike in a query, a plus is not a space.
+	 *
+	 * @param path the request path
+	 * @param start index of the first character of the segment
+	 * @param end index just past the segment
+	 * @return the decoded segment
+	 */
+	private static String decode(String path, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		int length = 0;
+		for (int i = start; i < end; i++) {
+			char c = path.charAt(i);
+			if (c == '%' && i + 2 < end) {
+				int high = Character.digit(path.charAt(i + 1), 16);
+				int low = Character.digit(path.charAt(i + 2), 16);
+				if (high >= 0 && low >= 0) {
+					c = (char) (high << 4 | low);
+					i += 2;
+				}
+			}
+			bytes[length++] = (byte) c;
+		}
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the match of a lazily loaded worker, loading and instantiating
+	 * the worker class if it is requested for the first time.
+	 *
+	 * @param path the request path, starting with {@link #EXT_PREFIX}
+	 * @return the match or null if there is no such worker
+	 */
+	private Match extWorker(String path) {
+		Match match = extWorkers.get(path);
+		if (match != null) {
+			return match;
+		}
+		String name = path.substring(EXT_PREFIX.length());
+		if (!isIdentifier(name)) {
+			return null;
+		}
+		try {
+			Class<?> type = Class.forName(extPackage + "." + name, true, loader);
+			if (!IWebWorker.class.isAssignableFrom(type)) {
+				return null;
+			}
+			IWebWorker worker = (IWebWorker) type.getConstructor().newInstance();
+			match = new Match(path, worker, Collections.<String, String>emptyMap());
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			System.err.println("Couldn't instantiate worker " + name + ": " + e);
+			return null;
+		}
+		Match previous = extWorkers.putIfAbsent(path, match);
+		return previous == null ? match : previous;
+	}
+
+	/**
+	 * Checks if a worker name is a simple Java identifier, which keeps
+	 * <code>/ext/</code> requests from reaching classes outside the workers
+	 * package.
+	 *
+	 * @param name the name
+	 * @return true if the name is an identifier
+	 */
+	private static boolean isIdentifier(String name) {
+		if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0))) {
+			return false;
+		}
+		for (int i = 1; i < name.length(); i++) {
+			if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Worker found for a request path.
+	 *
+	 * @author Ante Spajic
+	 */
+	public static final class Match {
+
+		/** The route as configured, used as the key of route limits. */
+		private final String route;
+
+		/** The worker. */
+		private final IWebWorker worker;
+
+		/** Values of the route's path parameters. */
+		private final Map<String, String> parameters;
+
+		/**
+		 * Instantiates a new match.
+		 *
+		 * @param route the route
+		 * @param worker the worker
+		 * @param parameters values of path parameters
+		 */
+		private Match(String route, IWebWorker worker, Map<String, String> parameters) {
+			this.route = route;
+			this.worker = worker;
+			this.parameters = parameters;
+		}
+
+		/**
+		 * Returns the route as configured, such as <code>/users/{id}</code>.
+		 *
+		 * @return the route
+		 */
+		public String getRoute() {
+			return route;
+		}
+
+		/**
+		 * Returns the worker of the route.
+		 *
+		 * @return the worker
+		 */
+		public IWebWorker getWorker() {
+			return worker;
+		}
+
+		/**
+		 * Returns the values of the route's path parameters by their names.
+		 *
+		 * @return the path parameters, empty if the route has none
+		 */
+		public Map<String, String> getParameters() {
+			return parameters;
+		}
+	}
+
+	/**
+	 * Node of the route trie, one per distinct route prefix.
+	 */
+	private static final class Node {
+
+		/** Static segments of the children. */
+		private String[] names = new String[0];
+
+		/** Children by static segments, in the order of {@link #names}. */
+		private Node[] children = new Node[0];
+
+		/** Child matching any segment, null if there is none. */
+		private Node parameter;
+
+		/** Match of the route ending in this node, null if there is none. */
+		private Match match;
+
+		/** Parameter names by segment index, null if the route has none. */
+		private String[] parameterNames;
+
+		/**
+		 * Returns the child for a static segment, creating it if necessary.
+		 *
+		 * @param name the segment
+		 * @return the child
+		 */
+		private Node child(String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return children[i];
+				}
+			}
+			names = Arrays.copyOf(names, names.length + 1);
+			children = Arrays.copyOf(children, children.length + 1);
+			names[names.length - 1] = name;
+			return children[children.length - 1] = new Node();
+		}
+
+		/**
+		 * Returns the child for a parameter segment, creating it if necessary.
+		 *
+		 * @return the child
+		 */
+		private Node parameterChild() {
+			if (parameter == null) {
+				parameter = new Node();
+			}
+			return parameter;
+		}
+	}
+}
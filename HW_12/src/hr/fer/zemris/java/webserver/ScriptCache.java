@@ -0,0 +1,362 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import hr.fer.zemris.java.custom.scripting.compiler.CompiledScript;
+import hr.fer.zemris.java.custom.scripting.compiler.SmartScriptCompiler;
+import hr.fer.zemris.java.custom.scripting.compiler.SmartScriptCompilerException;
+import hr.fer.zemris.java.custom.scripting.exec.FragmentCache;
+import hr.fer.zemris.java.custom.scripting.exec.FunctionRegistry;
+import hr.fer.zemris.java.custom.scripting.exec.ScriptProgram;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+
+/**
+ * ScriptCache is a bounded least-recently-used cache of parsed smart scripts.
+ * A script is cached as the {@link ScriptProgram} the engine executes, which is
+ * never modified, so a single program can be executed by many requests at
+ * once. A cached script is used only while the last modification time of its
+ * file stays the same, a changed script is parsed again on its next request.
+ * A script is parsed by one request at a time, concurrent requests for it wait
+ * for that parse instead of repeating it.
+ * <p>
+ * If a {@link SmartScriptCompiler} is provided, a script that is requested
+ * again while cached is compiled on a background thread. Until compilation
+ * finishes, and for scripts the compiler does not support, requests are
+ * served by the interpreting {@link SmartScriptEngine}. Scripts that call
+ * functions of a {@link FunctionRegistry} or have CACHE blocks are always
+ * interpreted, the output of CACHE blocks is kept in a {@link FragmentCache}.
+ *
+ * @author Ante Spajic
+ */
+public class ScriptCache {
+
+	/**
+	 * Cached parse result of a single script.
+	 */
+	private static class CachedScript {
+
+		/** Last modification time of the parsed file. */
+		final FileTime lastModified;
+
+		/** The parsed document. */
+		final DocumentNode document;
+
+		/** The document flattened into instructions for the interpreter. */
+		final ScriptProgram program;
+		
+		/** The compiled script, null until compilation has finished. */
+		volatile CompiledScript compiled;
+		
+		/** Set once compilation of this script has been requested. */
+		final AtomicBoolean compileRequested = new AtomicBoolean();
+
+		/**
+		 * Instantiates a new entry.
+		 *
+		 * @param lastModified last modification time of the parsed file
+		 * @param document the parsed document
+		 * @param program the flattened document
+		 */
+		CachedScript(FileTime lastModified, DocumentNode document, ScriptProgram program) {
+			this.lastModified = lastModified;
+			this.document = document;
+			this.program = program;
+		}
+	}
+
+	/** Maximum number of cached scripts. */
+	private final int capacity;
+
+	/** Cached scripts in access order. */
+	private final Map<Path, CachedScript> entries;
+
+	/** Loads of scripts that are being parsed, by their paths. */
+	private final ConcurrentMap<Path, CompletableFuture<CachedScript>> loads = new ConcurrentHashMap<>();
+
+	/** Number of requests served from the cache or by waiting for a parse. */
+	private final LongAdder hits = new LongAdder();
+
+	/** Number of requests that had to parse the script. */
+	private final LongAdder misses = new LongAdder();
+
+	/** Number of scripts removed to make room for others. */
+	private final LongAdder evictions = new LongAdder();
+	
+	/** Compiler of hot scripts, null if scripts are only interpreted. */
+	private final SmartScriptCompiler compiler;
+	
+	/** Functions scripts may call besides the built-in ones, null for none. */
+	private final FunctionRegistry functions;
+
+	/** Cache of the output of CACHE blocks, null if it is not cached. */
+	private final FragmentCache fragments;
+
+	/** Thread scripts are compiled on, created with the first compilation. */
+	private ExecutorService compilerThread;
+
+	/**
+	 * Instantiates a new script cache.
+	 *
+	 * @param capacity maximum number of cached scripts, 0 disables caching
+	 */
+	public ScriptCache(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * Instantiates a new script cache that compiles hot scripts.
+	 *
+	 * @param capacity maximum number of cached scripts, 0 disables caching
+	 * @param compiler the compiler of hot scripts, null to only interpret them
+	 */
+	public ScriptCache(int capacity, SmartScriptCompiler compiler) {
+		this(capacity, compiler, null);
+	}
+
+	/**
+	 * Instantiates a new script cache whose scripts may call registered
+	 * functions.
+	 *
+	 * @param capacity maximum number of cached scripts, 0 disables caching
+	 * @param compiler the compiler of hot scripts, null to only interpret them
+	 * @param functions functions scripts may call besides the built-in ones,
+	 *            null for none
+	 */
+	public ScriptCache(int capacity, SmartScriptCompiler compiler, FunctionRegistry functions) {
+		this(capacity, compiler, functions, null);
+	}
+
+	/**
+	 * Instantiates a new script cache that also caches the output of CACHE
+	 * blocks of its scripts.
+	 *
+	 * @param capacity maximum number of cached scripts, 0 disables caching
+	 * @param compiler the compiler of hot scripts, null to only interpret them
+	 * @param functions functions scripts may call besides the built-in ones,
+	 *            null for none
+	 * @param fragments cache of the output of CACHE blocks, null to always
+	 *            execute them
+	 */
+	public ScriptCache(int capacity, SmartScriptCompiler compiler, FunctionRegistry functions,
+			FragmentCache fragments) {
+		this.compiler = compiler;
+		this.functions = functions;
+		this.fragments = fragments;
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity must not be negative");
+		}
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Path, CachedScript>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, CachedScript> eldest) {
+				if (size() > ScriptCache.this.capacity) {
+					evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the parsed document of the script at the provided path, parsing
+	 * it only if it is not cached or has been modified since it was cached.
+	 *
+	 * @param path path to the script
+	 * @return the parsed document
+	 * @throws IOException if the script can not be read
+	 */
+	public DocumentNode get(Path path) throws IOException {
+		return lookup(path, false).document;
+	}
+
+	/**
+	 * Executes the script at the provided path, using its compiled form if it
+	 * is available.
+	 *
+	 * @param path path to the script
+	 * @param rc the request context to write the output to
+	 * @throws IOException if the script can not be read
+	 */
+	public void execute(Path path, RequestContext rc) throws IOException {
+		CachedScript script = lookup(path, true);
+		CompiledScript compiled = script.compiled;
+		if (compiled != null) {
+			compiled.execute(rc);
+		} else {
+			new SmartScriptEngine(script.program, rc, fragments).execute();
+		}
+	}
+
+	/**
+	 * Finds the cached script for the provided path, parsing it if necessary.
+	 *
+	 * @param path path to the script
+	 * @param compile true if a cached script should be compiled
+	 * @return the cached script
+	 * @throws IOException if the script can not be read
+	 */
+	private CachedScript lookup(Path path, boolean compile) throws IOException {
+		while (true) {
+			FileTime lastModified = Files.getLastModifiedTime(path);
+			CachedScript entry;
+			synchronized (entries) {
+				entry = entries.get(path);
+			}
+			if (entry == null || !entry.lastModified.equals(lastModified)) {
+				CompletableFuture<CachedScript> load = new CompletableFuture<>();
+				CompletableFuture<CachedScript> running = loads.putIfAbsent(path, load);
+				if (running == null) {
+					misses.increment();
+					return load(path, lastModified, load);
+				}
+				entry = await(running);
+				if (!entry.lastModified.equals(lastModified)) {
+					// loaded before the script changed again
+					continue;
+				}
+			}
+			hits.increment();
+			if (compile && compiler != null && !entry.program.usesFunctions()
+					&& entry.program.getFragments().isEmpty() && entry.compileRequested.compareAndSet(false, true)) {
+				compileLater(entry);
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Parses a script and caches it, completing a load other requests of the
+	 * script wait for.
+	 *
+	 * @param path path to the script
+	 * @param lastModified last modification time of the script
+	 * @param load the load of the script, completed with the parsed script
+	 * @return the parsed script
+	 * @throws IOException if the script can not be read
+	 */
+	private CachedScript load(Path path, FileTime lastModified, CompletableFuture<CachedScript> load)
+			throws IOException {
+		try {
+			String documentBody = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+			DocumentNode document = new SmartScriptParser(documentBody).getDocumentNode();
+			CachedScript entry = new CachedScript(lastModified, document, ScriptProgram.compile(document, functions));
+			if (capacity > 0) {
+				synchronized (entries) {
+					entries.put(path, entry);
+				}
+			}
+			load.complete(entry);
+			return entry;
+		} catch (IOException | RuntimeException | Error e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			loads.remove(path, load);
+		}
+	}
+
+	/**
+	 * Waits for a script another request is loading.
+	 *
+	 * @param load the load of the script
+	 * @return the parsed script
+	 * @throws IOException if the script could not be read
+	 */
+	private static CachedScript await(CompletableFuture<CachedScript> load) throws IOException {
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the script to be parsed");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	/**
+	 * Compiles a cached script on the compiler thread, scripts that can not be
+	 * compiled stay interpreted.
+	 *
+	 * @param script the script to compile
+	 */
+	private synchronized void compileLater(CachedScript script) {
+		if (compilerThread == null) {
+			compilerThread = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "smscr-compiler");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		compilerThread.execute(() -> {
+			try {
+				script.compiled = compiler.compile(script.document);
+			} catch (SmartScriptCompilerException e) {
+				System.err.println(e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of requests served from the cache.
+	 *
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of requests that had to parse the script.
+	 *
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of scripts evicted to make room for others.
+	 *
+	 * @return number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the number of currently cached scripts.
+	 *
+	 * @return number of cached scripts
+	 */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+}
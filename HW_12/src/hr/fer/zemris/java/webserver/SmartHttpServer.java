@@ -2,12 +2,15 @@ package hr.fer.zemris.java.webserver;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -18,17 +21,27 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
+import java.util.Queue;
 import java.util.Scanner;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
-import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.custom.scripting.compiler.SmartScriptCompiler;
+import hr.fer.zemris.java.custom.scripting.exec.FragmentCache;
+import hr.fer.zemris.java.custom.scripting.exec.FunctionRegistry;
+import hr.fer.zemris.java.custom.scripting.exec.ScriptFunction;
 import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+import hr.fer.zemris.java.webserver.metrics.MetricsWorker;
+import hr.fer.zemris.java.webserver.metrics.ServerMetrics;
+import hr.fer.zemris.java.webserver.sessions.FileSessionPersistence;
+import hr.fer.zemris.java.webserver.sessions.Session;
+import hr.fer.zemris.java.webserver.sessions.SessionStore;
 
 /**
  * A web server is a computer system that processes requests via HTTP, the basic
@@ -36,7 +49,11 @@ import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
  * term can refer to the entire system, or specifically to the software that
  * accepts and supervises the HTTP requests. This HTTP server uses TCP transfer
  * protocol that works in a way that it transfers bytes between server and
- * client using {@link Socket}.
+ * client using non-blocking {@link SocketChannel}s. A single server thread
+ * multiplexes all connections with a {@link Selector} and hands a request to
+ * the worker pool only once its whole header has been read, so persistent
+ * (keep-alive) connections and pipelined requests do not pin pool threads
+ * while waiting for the client.
  * 
  * @author Ante Spajic
  */
@@ -65,6 +82,30 @@ public class SmartHttpServer {
 		sc.close();
 	}
 	
+	/** Execution mode that serves requests with a fixed thread pool. */
+	public static final String MODE_POOL = "pool";
+	
+	/** Execution mode that serves every request on its own virtual thread. */
+	public static final String MODE_VIRTUAL = "virtual";
+	
+	/** Metrics route of requests for static files. */
+	public static final String ROUTE_FILES = "files";
+	
+	/** Metrics route of requests for smart scripts. */
+	public static final String ROUTE_SCRIPTS = "scripts";
+	
+	/** Metrics route of requests that have been rejected before routing. */
+	public static final String ROUTE_INVALID = "invalid";
+	
+	/**
+	 * Number of unread request body bytes discarded to keep a connection
+	 * alive, a connection with more left is closed instead.
+	 */
+	private static final long MAX_BODY_DRAIN = 256 * 1024;
+	
+	/** Package of the workers available under <code>/ext/</code>. */
+	public static final String WORKERS_PACKAGE = "hr.fer.zemris.java.webserver.workers";
+	
 	/** The disallowed characters for cookie name and value. */
 	private final Pattern cookiePattern = Pattern.compile("[\\[\\]\\(\\)=,\"\\/?@:;]+");
 	
@@ -77,9 +118,21 @@ public class SmartHttpServer {
 	/** The worker threads. */
 	private int workerThreads;
 	
+	/** The execution mode, {@link #MODE_POOL} or {@link #MODE_VIRTUAL}. */
+	private String executionMode;
+	
+	/** Limits the number of concurrent requests per worker. */
+	private RouteLimiter routeLimiter;
+	
 	/** The session timeout. */
 	private int sessionTimeout;
 	
+	/** Time in milliseconds an idle keep-alive connection is kept open. */
+	private long keepAliveTimeout;
+	
+	/** Size of the response buffer of every request, 0 for unbuffered responses. */
+	private int responseBufferSize;
+	
 	/** The mime types map. */
 	private Map<String, String> mimeTypes = new HashMap<String, String>();
 	
@@ -92,32 +145,38 @@ public class SmartHttpServer {
 	/** The document root of this server. */
 	private Path documentRoot;
 
-	/** The map of webworkers. */
-	private Map<String,IWebWorker> workersMap;
+	/** The cache of parsed smart scripts. */
+	private ScriptCache scriptCache;
 	
-	/** Map of active sessions of this erver. */
-	private Map<String, SessionMapEntry> sessions = new HashMap<String, SessionMapEntry>();
+	/** The cache of the output of CACHE blocks of scripts, null if disabled. */
+	private FragmentCache fragmentCache;
 	
-	/** The session generator. */
-	private Random sessionRandom = new Random();
+	/** The cache of small static files. */
+	private StaticFileCache staticCache;
 	
-	/** The session collector of this server. */
-	private SessionCollector sc = new SessionCollector();
+	/** The route table of webworkers. */
+	private Router router;
 	
-	/**
-	 * SessionMapEntry class represents a data binded to session.
-	 */
-	private static class SessionMapEntry {
-		
-		/** The sessionID. */
-		String sid;
-		
-		/** Time when this session expires. */
-		long validUntil;
-		
-		/** Parameters of this session */
-		Map<String,String> map;
-	}
+	/** Active sessions of this server. */
+	private SessionStore sessions;
+	
+	/** The instrumentation of this server. */
+	private final ServerMetrics metrics = new ServerMetrics();
+	
+	/** Path the metrics are served at, empty if they are not served. */
+	private String metricsPath;
+	
+	/** Size of the largest accepted request body. */
+	private long maxRequestBody;
+	
+	/** Number of bytes of an uploaded multipart form kept in memory. */
+	private long uploadMemoryThreshold;
+	
+	/** Directory of uploaded parts too large for memory, null for the default. */
+	private Path uploadDirectory;
+	
+	/** Settings of response compression, null if responses are not compressed. */
+	private ResponseCompression compression;
 	
 	/**
 	 * Initializes a new smart http server.
@@ -143,8 +202,45 @@ public class SmartHttpServer {
 		address = properties.getProperty(PropertyKeys.ADDRESS);
 		port = Integer.parseInt(properties.getProperty(PropertyKeys.PORT));
 		workerThreads = Integer.parseInt(properties.getProperty(PropertyKeys.WORKER_THREADS));
+		executionMode = properties.getProperty(PropertyKeys.EXECUTION_MODE, MODE_POOL).trim().toLowerCase();
+		if (!executionMode.equals(MODE_POOL) && !executionMode.equals(MODE_VIRTUAL)) {
+			throw new RuntimeException("Unknown execution mode: " + executionMode);
+		}
+		responseBufferSize = Integer.parseInt(properties.getProperty(PropertyKeys.RESPONSE_BUFFER_SIZE, "8192").trim());
+		boolean compile = Boolean.parseBoolean(properties.getProperty(PropertyKeys.SCRIPT_COMPILER, "false").trim());
+		FunctionRegistry functions = loadFunctions(properties.getProperty(PropertyKeys.SCRIPT_FUNCTIONS, "").trim(),
+				Integer.parseInt(properties.getProperty(PropertyKeys.SCRIPT_FUNCTION_THREADS, "16").trim()));
+		long fragmentCacheSize = Long.parseLong(
+				properties.getProperty(PropertyKeys.FRAGMENT_CACHE_SIZE, "4194304").trim());
+		fragmentCache = fragmentCacheSize == 0 ? null : new FragmentCache(fragmentCacheSize);
+		scriptCache = new ScriptCache(Integer.parseInt(properties.getProperty(PropertyKeys.SCRIPT_CACHE_SIZE, "64")),
+				compile ? new SmartScriptCompiler() : null, functions, fragmentCache);
+		routeLimiter = new RouteLimiter(Integer.parseInt(properties.getProperty(PropertyKeys.ROUTE_CONCURRENCY, "0")));
 		sessionTimeout = Integer.parseInt(properties.getProperty(PropertyKeys.SESSION_TIMEOUT));
+		String sessionFile = properties.getProperty(PropertyKeys.SESSION_STORE, "").trim();
+		sessions = new SessionStore(1000L * sessionTimeout,
+				sessionFile.isEmpty() ? null : new FileSessionPersistence(Paths.get(sessionFile)));
+		keepAliveTimeout = 1000L * Integer.parseInt(properties.getProperty(PropertyKeys.KEEP_ALIVE_TIMEOUT, "15"));
 		documentRoot = Paths.get(properties.getProperty(PropertyKeys.DOCUMENT_ROOT));
+		staticCache = new StaticFileCache(documentRoot,
+				Long.parseLong(properties.getProperty(PropertyKeys.STATIC_CACHE_SIZE, "8388608").trim()),
+				Long.parseLong(properties.getProperty(PropertyKeys.STATIC_CACHE_FILE_LIMIT, "262144").trim()));
+		
+		metricsPath = properties.getProperty(PropertyKeys.METRICS_PATH, "/ext/Metrics").trim();
+		maxRequestBody = Long.parseLong(properties.getProperty(PropertyKeys.MAX_REQUEST_BODY, "104857600").trim());
+		uploadMemoryThreshold = Long.parseLong(
+				properties.getProperty(PropertyKeys.UPLOAD_MEMORY_THRESHOLD, "1048576").trim());
+		String uploadDir = properties.getProperty(PropertyKeys.UPLOAD_DIRECTORY, "").trim();
+		uploadDirectory = uploadDir.isEmpty() ? null : Paths.get(uploadDir);
+		if (Boolean.parseBoolean(properties.getProperty(PropertyKeys.COMPRESSION, "true").trim())) {
+			compression = new ResponseCompression(
+					Integer.parseInt(properties.getProperty(PropertyKeys.COMPRESSION_MIN_SIZE, "1024").trim()),
+					properties.getProperty(PropertyKeys.COMPRESSION_MIME_TYPES,
+							"text/,application/javascript,application/json,application/xml,image/svg+xml").split(","),
+					Integer.parseInt(properties.getProperty(PropertyKeys.COMPRESSION_LEVEL, "6").trim()),
+					Math.max(1, workerThreads));
+		}
+		registerMetrics();
 		
 		String workersConfigPath = properties.getProperty(PropertyKeys.WORKERS_CONFIG);
 		String mimeTypesPath = properties.getProperty(PropertyKeys.MIME_CONFIG);
@@ -171,147 +267,430 @@ public class SmartHttpServer {
 	}
 
 	/**
-	 * Reads workers config file and puts them into a map.
+	 * Reads workers config file and builds the route table from it.
 	 *
 	 * @param workersConfigPath path to config file for workers
 	 */
 	private void loadWorkers(String workersConfigPath) {
 		Properties properties = new Properties();
-		workersMap = new HashMap<>();
-		try {
-			properties.load(Files.newInputStream(Paths.get(workersConfigPath)));
+		router = new Router(WORKERS_PACKAGE, this.getClass().getClassLoader());
+		try (InputStream is = Files.newInputStream(Paths.get(workersConfigPath))) {
+			properties.load(is);
 			for (Object key : properties.keySet()) {
 				String path = key.toString();
 				String fqcn = properties.get(key).toString();
 				Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
-				Object newObject = referenceToClass.newInstance();
+				Object newObject = referenceToClass.getDeclaredConstructor().newInstance();
 				IWebWorker iww = (IWebWorker)newObject;
-				workersMap.put(path, iww);
+				router.add(path, iww);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException("Couldn't load workers config file");
-		} catch (InstantiationException | IllegalAccessException | ClassNotFoundException e) {
+		} catch (ReflectiveOperationException e) {
 			e.printStackTrace();
 		}
+		if (!metricsPath.isEmpty()) {
+			router.add(metricsPath, new MetricsWorker(metrics));
+		}
+	}
+
+	/**
+	 * Reads the config file of script functions and registers them. Every
+	 * line maps the name scripts call a function by to the class implementing
+	 * {@link ScriptFunction}.
+	 *
+	 * @param functionsConfigPath path to config file for functions, empty if
+	 *            scripts only call built-in functions
+	 * @param threads number of threads asynchronous functions run on
+	 * @return the registry or null if no functions are configured
+	 */
+	private FunctionRegistry loadFunctions(String functionsConfigPath, int threads) {
+		if (functionsConfigPath.isEmpty()) {
+			return null;
+		}
+		AtomicInteger counter = new AtomicInteger();
+		FunctionRegistry functions = new FunctionRegistry(Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "smscr-function-" + counter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}));
+		Properties properties = new Properties();
+		try (InputStream is = Files.newInputStream(Paths.get(functionsConfigPath))) {
+			properties.load(is);
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't load script functions config file");
+		}
+		for (String name : properties.stringPropertyNames()) {
+			String fqcn = properties.getProperty(name).trim();
+			try {
+				functions.register(name, loadFunction(name, fqcn));
+			} catch (IllegalArgumentException e) {
+				throw new RuntimeException("Script function " + name + " = " + fqcn + ": " + e.getMessage(), e);
+			}
+		}
+		return functions;
+	}
+
+	/**
+	 * Instantiates a script function configured in the functions config file.
+	 *
+	 * @param name name the function is configured under
+	 * @param fqcn fully qualified name of the class implementing the function
+	 * @return the function
+	 * @throws RuntimeException naming the function and class if the class
+	 *             can't be instantiated or isn't a {@link ScriptFunction}
+	 */
+	private ScriptFunction loadFunction(String name, String fqcn) {
+		String entry = "Script function " + name + " = " + fqcn;
+		try {
+			Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
+			if (!ScriptFunction.class.isAssignableFrom(referenceToClass)) {
+				throw new RuntimeException(entry + ": class is not a ScriptFunction");
+			}
+			return (ScriptFunction) referenceToClass.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(entry + ": class can't be instantiated", e);
+		}
+	}
+
+	/**
+	 * Registers the gauges and counters of the server's components with the
+	 * metrics.
+	 */
+	private void registerMetrics() {
+		metrics.gauge("pool_queue_depth", "Requests waiting for a worker thread.", () -> {
+			ExecutorService pool = threadPool;
+			return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getQueue().size() : 0;
+		});
+		metrics.gauge("pool_active_threads", "Worker threads serving a request.", () -> {
+			ExecutorService pool = threadPool;
+			return pool instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) pool).getActiveCount() : 0;
+		});
+		metrics.gauge("sessions", "Live sessions.", sessions::size);
+		metrics.counter("script_cache_hits_total", "Script cache hits.", scriptCache::getHits);
+		metrics.counter("script_cache_misses_total", "Script cache misses.", scriptCache::getMisses);
+		metrics.gauge("script_cache_hit_ratio", "Script cache hits per lookup since the server started.",
+				() -> ratio(scriptCache.getHits(), scriptCache.getMisses()));
+		if (fragmentCache != null) {
+			metrics.counter("fragment_cache_hits_total", "Executions of CACHE blocks served from the cache.",
+					fragmentCache::getHits);
+			metrics.counter("fragment_cache_misses_total", "Executions of CACHE blocks that ran the block.",
+					fragmentCache::getMisses);
+			metrics.gauge("fragment_cache_bytes", "Bytes of cached output of CACHE blocks.", fragmentCache::size);
+		}
+		metrics.counter("static_cache_hits_total", "Static file cache hits.", staticCache::getHits);
+		metrics.counter("static_cache_misses_total", "Static file cache misses.", staticCache::getMisses);
+		metrics.gauge("static_cache_hit_ratio", "Static file cache hits per lookup since the server started.",
+				() -> ratio(staticCache.getHits(), staticCache.getMisses()));
+		if (compression != null) {
+			metrics.counter("compressed_responses_total", "Responses compressed on the fly.",
+					compression::getResponses);
+			metrics.counter("compression_bytes_in_total", "Bytes of compressed responses before compression.",
+					compression::getBytesIn);
+			metrics.counter("compression_bytes_out_total", "Bytes of compressed responses after compression.",
+					compression::getBytesOut);
+		}
+	}
+
+	/**
+	 * Returns the share of hits among all lookups.
+	 *
+	 * @param hits number of hits
+	 * @param misses number of misses
+	 * @return the hit ratio, NaN if there have been no lookups
+	 */
+	private static double ratio(long hits, long misses) {
+		return hits + misses == 0 ? Double.NaN : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * Returns the cache of parsed smart scripts of this server.
+	 *
+	 * @return the script cache
+	 */
+	public ScriptCache getScriptCache() {
+		return scriptCache;
+	}
+
+	/**
+	 * Returns the cache of the output of CACHE blocks of scripts.
+	 *
+	 * @return the fragment cache, null if it is disabled
+	 */
+	public FragmentCache getFragmentCache() {
+		return fragmentCache;
+	}
+
+	/**
+	 * Returns the instrumentation of this server.
+	 *
+	 * @return the metrics
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the cache of static files of this server.
+	 *
+	 * @return the static file cache
+	 */
+	public StaticFileCache getStaticFileCache() {
+		return staticCache;
+	}
+
+	/**
+	 * Creates the executor client workers run on, depending on the configured
+	 * execution mode. Virtual threads are looked up reflectively so the server
+	 * still runs on older JVMs, where it falls back to a thread per request.
+	 *
+	 * @return the executor for client workers
+	 */
+	private ExecutorService createExecutor() {
+		if (executionMode.equals(MODE_POOL)) {
+			return Executors.newFixedThreadPool(workerThreads);
+		}
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads are not supported by this JVM, using a thread per request.");
+			return Executors.newCachedThreadPool();
+		}
 	}
 
 	/**
 	 * Starts the http smart server.
 	 */
-	protected synchronized void start() {
-		threadPool = Executors.newFixedThreadPool(workerThreads);
+	public synchronized void start() {
+		try {
+			staticCache.startWatching();
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't watch the document root for changes");
+		}
+		sessions.start();
+		threadPool = createExecutor();
 		if (serverThread == null) {
 			serverThread = new ServerThread();
 			serverThread.setDaemon(true);
-			sc.setDaemon(true);
 		}
 		if (!serverThread.isAlive()) {
 			serverThread.start();
-			sc.start(); 
 		}
 	}
 
 	/**
 	 * Stops the server.
 	 */
-	protected synchronized void stop() {
+	public synchronized void stop() {
 		serverThread.terminate();
 		threadPool.shutdown();
+		staticCache.stopWatching();
+		sessions.stop();
 	}
 
 	/**
-	 * ServerThread represents a thread that waits for requests and serves
-	 * proper responses.
+	 * Hands the next complete request buffered on a connection to the worker
+	 * pool. A connection whose buffer is full without containing a complete
+	 * header is rejected and closed; the error is written by the worker pool
+	 * too, so a client that doesn't read it can't hold up the selector.
+	 *
+	 * @param connection the connection to dispatch the request from
+	 * @return true if a request or an error has been dispatched
+	 */
+	private boolean dispatch(ClientConnection connection) {
+		HttpRequestParser request = connection.takeRequest();
+		if (request == null && !connection.isFull()) {
+			return false;
+		}
+		Runnable job = request != null ? new ClientWorker(connection, request) : () -> {
+			try {
+				new ClientWorker(connection, null).sendError(400, "Bad request");
+			} catch (IOException ignore) {
+			} finally {
+				connection.close();
+			}
+		};
+		try {
+			threadPool.submit(job);
+		} catch (RejectedExecutionException e) {
+			connection.close();
+		}
+		return true;
+	}
+
+	/**
+	 * ServerThread represents a thread that accepts connections and reads
+	 * requests from them using a single selector, the requests are then served
+	 * by client workers in the thread pool.
 	 *
 	 * @author Ante Spajic
 	 */
 	protected class ServerThread extends Thread {
 		
+		/** The selection timeout in milliseconds, also the idle connection check period. */
+		private static final long SELECT_TIMEOUT = 1000;
+		
 		/**  flag used to shut down the server thread. */
 		private volatile boolean running = true;
 		
+		/** The selector that multiplexes all channels of this server. */
+		private volatile Selector selector;
+		
+		/** Connections whose response has been written and that wait for the next request. */
+		private final Queue<ClientConnection> resumed = new ConcurrentLinkedQueue<>();
+		
 		/**
 		 * Terminates the server thread.
 		 */
 		public void terminate() {
 			running = false;
+			wakeup();
+		}
+		
+		/**
+		 * Returns a served connection to the selector so its next request can be
+		 * read. Safe to call from any thread.
+		 *
+		 * @param connection connection that waits for the next request
+		 */
+		public void resume(ClientConnection connection) {
+			resumed.add(connection);
+			wakeup();
+		}
+		
+		/**
+		 * Wakes the selector up if it is blocked in a select operation.
+		 */
+		private void wakeup() {
+			Selector s = selector;
+			if (s != null) {
+				s.wakeup();
+			}
 		}
 		
 		@Override
 		public void run() {
-			try {
-				ServerSocket serverSocket = new ServerSocket();
-				serverSocket.bind(new InetSocketAddress(address, port));
-				serverSocket.setSoTimeout(2500);
+			try (Selector selector = Selector.open();
+					ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+				this.selector = selector;
+				serverChannel.bind(new InetSocketAddress(address, port));
+				serverChannel.configureBlocking(false);
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+				long lastCheck = System.currentTimeMillis();
 				while (running) {
-					try {
-						Socket client = serverSocket.accept();
-						ClientWorker cw = new ClientWorker(client);
-						threadPool.submit(cw);
-					} catch (SocketTimeoutException ignore) {}
+					selector.select(SELECT_TIMEOUT);
+					ClientConnection connection;
+					while ((connection = resumed.poll()) != null) {
+						connection.resumeReading();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept(serverChannel, selector);
+						} else if (key.isReadable()) {
+							read((ClientConnection) key.attachment());
+						}
+					}
+					long now = System.currentTimeMillis();
+					if (now - lastCheck >= SELECT_TIMEOUT) {
+						closeIdle(selector, now);
+						lastCheck = now;
+					}
+				}
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof ClientConnection) {
+						((ClientConnection) key.attachment()).close();
+					}
 				}
-				serverSocket.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
-	}
 
-	/**
-	 * This thread periodically iterates through all sessions and deletes
-	 * timed-out sessions in order to avoid excessive memory consumption by
-	 * expired sessions.
-	 * 
-	 * @author Ante Spajic
-	 *
-	 */
-	private class SessionCollector extends Thread {
-		/** The Constant PERIOD represents a period after which this thread scans for expired sessions. */
-		// check dead sessions every 5 minutes
-		private static final int PERIOD = 300000;
-		
-		@Override
-		public void run() {
-			while(true) {
-				try {
-					Thread.sleep(PERIOD);
-					synchronized(sessions){
-						Iterator<Map.Entry<String,SmartHttpServer.SessionMapEntry>> iter = sessions.entrySet().iterator();
-						while(iter.hasNext()) {
-							Map.Entry<String,SmartHttpServer.SessionMapEntry> entry = iter.next();
-							if (entry.getValue().validUntil < (System.currentTimeMillis()/1000)) {
-								iter.remove();
-							}
-						}
-					}
-				} catch (InterruptedException yo) {}
+		/**
+		 * Accepts all pending connections and registers them for reading.
+		 *
+		 * @param serverChannel the listening channel
+		 * @param selector the selector to register new connections with
+		 */
+		private void accept(ServerSocketChannel serverChannel, Selector selector) {
+			SocketChannel channel = null;
+			try {
+				while ((channel = serverChannel.accept()) != null) {
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					ClientConnection connection = new ClientConnection(channel, metrics);
+					connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+				}
+			} catch (IOException e) {
+				if (channel != null) {
+					try { channel.close(); } catch (IOException ignore) {}
+				}
+			}
+		}
+
+		/**
+		 * Reads available bytes of a connection and dispatches the request once
+		 * its header is complete.
+		 *
+		 * @param connection the readable connection
+		 */
+		private void read(ClientConnection connection) {
+			try {
+				if (connection.read() < 0) {
+					connection.close();
+					return;
+				}
+			} catch (IOException e) {
+				connection.close();
+				return;
+			}
+			connection.suspend();
+			if (!dispatch(connection) && connection.isOpen()) {
+				connection.resumeReading();
+			}
+		}
+
+		/**
+		 * Closes connections that have been waiting for a request longer than
+		 * the keep-alive timeout.
+		 *
+		 * @param selector the server selector
+		 * @param now current time in milliseconds
+		 */
+		private void closeIdle(Selector selector, long now) {
+			for (SelectionKey key : selector.keys()) {
+				if (!(key.attachment() instanceof ClientConnection)) continue;
+				ClientConnection connection = (ClientConnection) key.attachment();
+				if (connection.isIdle(now, keepAliveTimeout)) {
+					connection.close();
+				}
 			}
 		}
 	}
-	
+
 	/**
-	 * Client worker thread is dispatched every time a new request is sent to a
-	 * server, server then forwards the request to client thread to serve it.
+	 * Client worker is dispatched every time a complete request header has been
+	 * read from a connection, it serves the request and then either hands the
+	 * connection back to the server for the next request or closes it.
 	 * 
 	 * @author Ante Spajic
 	 */
 	private class ClientWorker implements Runnable {
 		
-		/** The cleint socket. */
-		private Socket csocket;
+		/** The client connection. */
+		private ClientConnection connection;
 		
-		/** The input stream from client. */
-		private PushbackInputStream istream;
+		/** The request parsed from the connection. */
+		private HttpRequestParser request;
 		
 		/** The ouput stream to client. */
 		private OutputStream ostream;
 		
-		/** The version of HTTP. */
-		private String version;
-		
-		/** The method of request. */
-		private String method;
-		
 		/** The parameters map. */
 		private Map<String, String> params = new HashMap<String, String>();
 		
@@ -327,117 +706,247 @@ public class SmartHttpServer {
 		/** The host address. */
 		private String hostAddress;
 		
+		/** Flag telling whether the connection stays open after the response. */
+		private boolean keepAlive;
+		
+		/** The route the request is counted under in the metrics. */
+		private String route = ROUTE_INVALID;
+		
+		/** The status code of the response. */
+		private int status;
+		
+		/** Stream of the request body, null if the request has none. */
+		private RequestBodyInputStream body;
+		
 		/**
 		 * Instantiates a new client worker.
 		 *
-		 * @param csocket the client socket
+		 * @param connection the client connection
+		 * @param request the request parsed from the connection
 		 */
-		public ClientWorker(Socket csocket) {
+		public ClientWorker(ClientConnection connection, HttpRequestParser request) {
 			super();
-			this.csocket = csocket;
+			this.connection = connection;
+			this.request = request;
+			this.ostream = connection.getOutputStream();
 		}
 
 		@Override
 		public void run() {
+			long start = System.nanoTime();
+			RequestContext rc = null;
 			try {
-				istream = new PushbackInputStream(csocket.getInputStream());
-				ostream = csocket.getOutputStream();
-				
-				List<String> request = readRequest();
-				if (request == null || request.size() < 1) {
-					sendError(400,"Bad request");
-					return;
-				}
-				String firstLine = request.get(0);
-				String[] info = firstLine.split(" ");
-				if(checkInvalidHeader(info)) return;
+				if(checkInvalidHeader()) return;
 				
-				String[] reqPath = info[1].split("\\?");
-				String path = reqPath[0].substring(1);
-				if(reqPath.length > 1) {
-					String paramString = reqPath[1];
-					parseParameters(paramString);
+				String path = request.getPath().substring(1);
+				if(request.hasQuery()) {
+					request.parseParameters(params);
 				}
 				Path requestedPath = documentRoot.resolve(path);
 				String mimeType = "application/octet-stream";
 				String rp = requestedPath.toString();
 				String ext = rp.substring(rp.lastIndexOf('.')+1, rp.length());
 				
-				checkForAddress(request);
-				checkForCookies(request,path);
-				RequestContext rc = new RequestContext(ostream, params, permParams, outputCookies);
-				if ((path).startsWith("ext/")){
-					// lazy loading
-					String klas = path.substring("ext/".length());
-					String fqcn = "hr.fer.zemris.java.webserver.workers." + klas;
-					Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
-					Object newObject = referenceToClass.newInstance();
-					IWebWorker iww = (IWebWorker)newObject;
-					iww.processRequest(rc);
-				}else if (workersMap.containsKey("/"+path)) {
-					// preloaded maps, slower server start
-					workersMap.get("/"+path).processRequest(rc);
-				} else if (!requestedPath.startsWith(documentRoot)) {
+				Router.Match match = router.route(request.getPath());
+				if (match != null) {
+					params.putAll(match.getParameters());
+				} else if (!ext.equals("smscr") && !request.isMethod("GET")) {
+					sendError(405, "Method not allowed");
+					return;
+				}
+				if (match == null && !requestedPath.startsWith(documentRoot)) {
 					sendError(403, "Forbidden!");
 					return;
-				} else if (!Files.exists(requestedPath) || !Files.isReadable(requestedPath)) {
+				}
+				StaticFileCache.CachedFile cached = match == null ? staticCache.get(requestedPath) : null;
+				if (match == null && cached == null
+						&& (!Files.exists(requestedPath) || !Files.isReadable(requestedPath))) {
 					sendError(404, "File not found");
 					return;
+				}
+				if (checkBody()) return;
+				checkForAddress();
+				checkForCookies(path);
+				boolean persistent = !request.headerContains("Connection", "close");
+				rc = new RequestContext(ostream, params, permParams, outputCookies);
+				rc.setRequest(request.getMethod(), request, body);
+				rc.setUploadConfig(uploadMemoryThreshold, uploadDirectory);
+				if (compression != null) {
+					rc.setCompression(compression, compression.negotiate(request.getHeader("Accept-Encoding")));
+				}
+				rc.setKeepAlive(persistent);
+				rc.setBufferSize(responseBufferSize);
+				route = match != null ? match.getRoute() : ext.equals("smscr") ? ROUTE_SCRIPTS : ROUTE_FILES;
+				if (match != null) {
+					if (!runWorker(match.getRoute(), match.getWorker(), rc)) return;
+				} else if (StaticFileSender.sendCached(cached, request, rc)) {
+					// cached static file, sent without touching the file system
 				} else if (ext.equals("smscr")) {
-					String documentBody = new String(Files.readAllBytes(requestedPath));
-					new SmartScriptEngine(new SmartScriptParser(documentBody).getDocumentNode(), rc).execute();
+					scriptCache.execute(requestedPath, rc);
 				} else {
 					String mime = mimeTypes.get(ext);
 					mimeType = mime == null ? mimeType : mime;
-					byte[] data = Files.readAllBytes(requestedPath);
-					rc.addAdditionalHeader("Content-Length: " + data.length);
-					rc.setMimeType(mimeType);
-					rc.setStatusCode(200);
-					rc.write(data);
+					if (!StaticFileSender.sendCached(staticCache.load(requestedPath, mimeType), request, rc)) {
+						StaticFileSender.serveFile(requestedPath, mimeType, request, rc, ostream);
+					}
 				}
+				rc.finish();
+				status = rc.getStatusCode();
+				keepAlive = rc.isKeepAlive() && drainBody();
 			} catch (Exception e ){
+				status = 500;
+				metrics.error();
 				e.printStackTrace();
 			} finally {
-				try { csocket.close(); } catch (IOException e) {e.printStackTrace();}
+				if (rc != null) {
+					rc.release();
+				}
+				metrics.recordRequest(route, status, System.nanoTime() - start);
+				if (!keepAlive || !connection.isOpen()) {
+					connection.close();
+				} else {
+					connection.touch();
+					if (!dispatch(connection) && connection.isOpen()) {
+						serverThread.resume(connection);
+					}
+				}
 			}
 		}
 
 		/**
-		 * Scans through http header for host address
-		 * 
-		 * @param request htpp request headers
+		 * Runs a web worker unless its route already executes the maximum
+		 * number of concurrent requests, in which case the client is told to
+		 * retry later.
+		 *
+		 * @param route the route of the worker
+		 * @param worker the worker to process the request
+		 * @param rc the request context
+		 * @return true if the worker has processed the request
+		 * @throws IOException Signals that an I/O exception has occurred.
 		 */
-		private void checkForAddress(List<String> request) {
-			for (String line : request) {
-				if(!line.startsWith("Host:")) continue;
-				hostAddress = line.substring("Host:".length(), line.lastIndexOf(":")).trim();
-				break;
+		private boolean runWorker(String route, IWebWorker worker, RequestContext rc) throws IOException {
+			if (!routeLimiter.tryAcquire(route)) {
+				sendError(503, "Service unavailable");
+				return false;
+			}
+			try {
+				worker.processRequest(rc);
+			} finally {
+				routeLimiter.release(route);
 			}
+			return true;
+		}
+
+		/**
+		 * Opens the body of the request, framed by chunked transfer encoding or
+		 * by <code>Content-Length</code>. A client that waits for
+		 * <code>100 Continue</code> is told to send the body once its length is
+		 * known to be acceptable, and a url encoded form body is read and its
+		 * parameters are added to the request parameters.
+		 *
+		 * @return true if the body can not be accepted and an error has been
+		 *         sent
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		private boolean checkBody() throws IOException {
+			String transferEncoding = request.getHeader("Transfer-Encoding");
+			String contentLength = request.getHeader("Content-Length");
+			String contentType = request.getHeader("Content-Type");
+			boolean form = contentType != null
+					&& contentType.toLowerCase().startsWith("application/x-www-form-urlencoded");
+			if (transferEncoding != null) {
+				if (!request.headerContains("Transfer-Encoding", "chunked")) {
+					sendError(501, "Not implemented");
+					return true;
+				}
+				body = RequestBodyInputStream.chunked(connection.openBody(), maxRequestBody);
+			} else if (contentLength != null) {
+				long length;
+				try {
+					length = Long.parseLong(contentLength.trim());
+				} catch (NumberFormatException e) {
+					length = -1;
+				}
+				if (length < 0) {
+					sendError(400, "Bad request");
+					return true;
+				}
+				if (length > maxRequestBody || form && length > uploadMemoryThreshold) {
+					sendError(413, "Payload too large");
+					return true;
+				}
+				body = RequestBodyInputStream.fixed(connection.openBody(), length);
+			} else {
+				return false;
+			}
+			if (request.headerContains("Expect", "100-continue")) {
+				ostream.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+				ostream.flush();
+			}
+			if (form) {
+				ByteArrayOutputStream data = new ByteArrayOutputStream();
+				byte[] chunk = new byte[4096];
+				int n;
+				while ((n = body.read(chunk, 0, chunk.length)) >= 0) {
+					data.write(chunk, 0, n);
+					if (data.size() > uploadMemoryThreshold) {
+						sendError(413, "Payload too large");
+						return true;
+					}
+				}
+				HttpRequestParser.parseParameters(data.toByteArray(), data.size(), params);
+			}
+			return false;
+		}
+
+		/**
+		 * Discards the part of the request body the worker has not read, so the
+		 * connection can be reused for the next request.
+		 *
+		 * @return false if too much of the body is left and the connection has
+		 *         to be closed
+		 */
+		private boolean drainBody() {
+			if (body == null) {
+				return true;
+			}
+			try {
+				return body.drain(MAX_BODY_DRAIN);
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Takes the host address from the <code>Host</code> header, without the
+		 * port.
+		 */
+		private void checkForAddress() {
+			String host = request.getHeader("Host");
+			if (host == null) return;
+			int colon = host.lastIndexOf(':');
+			hostAddress = colon > host.lastIndexOf(']') ? host.substring(0, colon) : host;
 		}
 
 		/**
 		 * Checks if a first line of header is correct, a correct header would
-		 * have GET method, HTTP/1.1 version and a correct path within a webroot
+		 * have GET, POST or PUT method, HTTP/1.1 version and a correct path within a webroot
 		 * server.
 		 *
-		 * @param info
-		 *            first line separated in string array
 		 * @return true if any part of header is invalid, false otherwise
 		 * @throws IOException
 		 *             Signals that an I/O exception has occurred.
 		 */
-		private boolean checkInvalidHeader(String[] info) throws IOException {
-			if(info.length != 3) {
+		private boolean checkInvalidHeader() throws IOException {
+			if(request == null || !request.isValid()) {
 				sendError(400, "Bad request");
 				return true;
 			}
-			method = info[0].toUpperCase();
-			if(!method.equals("GET")) {
+			if(!request.isMethod("GET") && !request.isMethod("POST") && !request.isMethod("PUT")) {
 				sendError(405, "Method not allowed");
 				return true;
 			}
-			version = info[2].toUpperCase();
-			if(!version.equals("HTTP/1.1")){
+			if(!request.isVersion("HTTP/1.1")){
 				sendError(505, "HTTP version not supported");
 				return true;
 			}
@@ -448,32 +957,21 @@ public class SmartHttpServer {
 		 * Method that checks if any cookies have been set by the request, it
 		 * scans them and stores them for further use.
 		 *
-		 * @param request
-		 *            the http request header
 		 * @param path
 		 *            the path header has provided
 		 */
-		private void checkForCookies(List<String> request, String path) {
-			String sidCandidate = "";
-			for (String headerLine : request) {
-				if(!headerLine.startsWith("Cookie:")) continue;
-				headerLine = headerLine.substring("Cookie:".length()).trim();
-				String[] cewkies = headerLine.split(";");
-				for (int i = 0; i < cewkies.length; i++) {
-					String[] pair = cewkies[i].split("=");
-					if (pair.length != 2) continue;
-					String name = pair[0].trim();
-					String value = pair[1].trim();
-					if (invalidCookie(name,value)) continue;
-					if (name.equals("sid")) {
-						sidCandidate = value;
-					} else {
-						RCCookie cook = new RCCookie(name, value, null, hostAddress, "/"+path);
-						outputCookies.add(cook);
-					}
+		private void checkForCookies(String path) {
+			String[] sidCandidate = { "" };
+			request.parseCookies((name, value) -> {
+				if (invalidCookie(name, value)) return;
+				if (name.equals("sid")) {
+					sidCandidate[0] = value;
+				} else {
+					RCCookie cook = new RCCookie(name, value, null, hostAddress, "/"+path);
+					outputCookies.add(cook);
 				}
-			}
-			checkSession(sidCandidate);
+			});
+			checkSession(sidCandidate[0]);
 		}
 
 		/**
@@ -484,61 +982,36 @@ public class SmartHttpServer {
 		 * @param sidCandidate
 		 *            the sessionID candidate obtained from cookies header line
 		 */
-		private synchronized void checkSession(String sidCandidate) {
-			if (sidCandidate.isEmpty() || !sessions.containsKey(sidCandidate)){
-				String newSID = SID = sidGenerator();
-				createEntry(newSID);
-			} else {
-				SessionMapEntry entry = sessions.get(sidCandidate);
-				if (entry.validUntil < (System.currentTimeMillis() /1000)){
-					sessions.remove(entry);
-					String newSID = SID = sidGenerator();
-					createEntry(newSID);
-				} else {
-					SID = sidCandidate;
-					entry.validUntil = (System.currentTimeMillis()/1000) + sessionTimeout;
-				}
+		private void checkSession(String sidCandidate) {
+			Session session = sidCandidate.isEmpty() ? null : sessions.get(sidCandidate);
+			if (session == null) {
+				session = createSession();
 			}
-			permParams = sessions.get(SID).map;
+			SID = session.getId();
+			permParams = session.getParameters();
 		}
 
 		/**
-		 * When a new session is created a proper entry that will hold relevant
-		 * information about that session is also created by this method.
+		 * When a new session is created it is stored together with the cookies
+		 * of the request and its ID is sent back in a cookie.
 		 *
-		 * @param newSessionID
-		 *            the session id associated with entry
+		 * @return the new session
 		 */
-		private void createEntry(String newSessionID) {
-			SessionMapEntry ret = new SessionMapEntry();
-			ret.sid = newSessionID;
-			ret.validUntil = System.currentTimeMillis() / 1000 + sessionTimeout;
-			ret.map = new ConcurrentHashMap<>();
-			ret.map.put("sid", ret.sid);
+		private Session createSession() {
+			Map<String, String> parameters = new HashMap<>();
 			for (RCCookie currentCookie : outputCookies) {
-				ret.map.put(currentCookie.getName(), currentCookie.getValue());
+				parameters.put(currentCookie.getName(), currentCookie.getValue());
 			}
-			sessions.put(newSessionID, ret);
+			Session session = sessions.create(parameters);
+			String newSessionID = session.getId();
+			session.getParameters().put("sid", newSessionID);
 			// Microsoft Edge/IE browsers for some reason dont work with domain "localhost"
 			// if a domain is null browser interprets it as loopback and works on all browsers
 			// just to clarify that i had this "microsoft" bug in mind but I left it as noted in
 			// assignment, if its accessed from localhost then domain name is localhost and not null
 			// hostAddress = hostAddress.equals("localhost")? null : hostAddress;
 			outputCookies.add(new RCCookie("sid", newSessionID, null, hostAddress, "/",true));
-		}
-
-		/**
-		 * This method generates a new session ID composed of 20 random upper
-		 * case characters.
-		 *
-		 * @return a new sessionID
-		 */
-		private String sidGenerator() {
-			char[] rand = new char[20];
-			for (int i = 0; i < rand.length; i++) {
-				rand[i] = (char) (65 + sessionRandom.nextInt(26));
-			}
-			return new String(rand);
+			return session;
 		}
 		
 		/**
@@ -568,6 +1041,7 @@ public class SmartHttpServer {
 		 * @throws IOException Signals that an I/O exception has occurred.
 		 */
 		private void sendError(int statusCode, String statusText) throws IOException {
+			status = statusCode;
 			ostream.write(("HTTP/1.1 " + statusCode + " " + statusText + "\r\n" +
 					"Server: Smart HTTP server\r\n" +
 					"Content-Type: text/html;charset=UTF-8\r\n"+
@@ -577,88 +1051,5 @@ public class SmartHttpServer {
 					).getBytes(StandardCharsets.US_ASCII));
 			ostream.flush();
 		}
-
-		/**
-		 * Method that parses the request parameters.
-		 *
-		 * @param paramString the parameters string obtained from request
-		 */
-		private void parseParameters(String paramString) {
-			String[] groups = paramString.split("&");
-			for (String group : groups) {
-				String[] nameVal = group.trim().split("=");
-				params.put(nameVal[0].trim(),nameVal[1].trim());
-			}
-		}
-
-		/**
-		 * Method that reads a http request header and returns all lines in a list.
-		 *
-		 * @return the list with all header lines
-		 * @throws IOException Signals that an I/O exception has occurred.
-		 */
-		private List<String> readRequest() throws IOException {
-			byte[] request = readRequest(istream);
-			if(request == null) {
-				sendError(400,"Bad request");
-				return null;
-			}
-			String requestHeader = new String(request,StandardCharsets.US_ASCII);
-			List<String> headers = new ArrayList<>();
-			String currentLine = null;
-			for(String s : requestHeader.split("\n")) {
-				if(s.isEmpty()) break;
-				char c = s.charAt(0);
-				if (c==9 || c==32) {
-					currentLine += s;
-				} else {
-					if(currentLine != null) {
-						headers.add(currentLine);
-					}
-					currentLine = s;
-				}
-			}
-			if(!currentLine.isEmpty()) {
-				headers.add(currentLine);
-			}
-			return headers;
-		}
-
-		/**
-		 * This method reads all bytes from a request until it reaches a '\r\n\r\n'.
-		 *
-		 * @param is the input stream to read the request from
-		 * @return the byte[] array of all the read bytes
-		 * @throws IOException Signals that an I/O exception has occurred.
-		 */
-		private byte[] readRequest(PushbackInputStream is) throws IOException {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			int state = 0;
-l:			while (true) {
-				int b = is.read();
-				if(b == -1) return null;
-				if(b != 13){
-					bos.write(b);
-				}
-				switch (state) {
-				case 0:
-					if(b==13) { state=1; } else if(b==10) state=4;
-					break;
-				case 1:
-					if(b==10) { state=2; } else state=0;
-					break;
-				case 2:
-					if(b==13) { state=3; } else state=0;
-					break;
-				case 3:
-					if(b==10) { break l; } else state=0;
-					break;
-				case 4:
-					if(b==10) { break l; } else state=0;
-					break;
-				}
-			}
-			return bos.toByteArray();
-		}
 	}
 }
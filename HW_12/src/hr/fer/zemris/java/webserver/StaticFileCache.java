@@ -0,0 +1,598 @@
+package hr.fer.zemris.java.webserver;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * StaticFileCache keeps small static files from the document root in memory,
+ * bounded by the total number of cached bytes and evicted least recently used
+ * first. Every cached file holds its body together with the headers its
+ * response needs, and compressible files also hold gzip and deflate encoded
+ * bodies, so a hit does not touch the file system at all.
+ * <p>
+ * Cached files are invalidated by a {@link WatchService} on the document root
+ * and all of its subdirectories, started with {@link #startWatching()}.
+ *
+ * @author Ante Spajic
+ */
+public class StaticFileCache {
+
+	/** Format of dates in HTTP headers. */
+	static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/**
+	 * A single encoding of a cached file.
+	 */
+	public static class Variant {
+
+		/** Content coding of the body, null for the identity encoding. */
+		private final String encoding;
+
+		/** Entity tag of this encoding. */
+		private final String etag;
+
+		/** The encoded body. */
+		private final byte[] body;
+
+		/** Headers sent with every response, including 304 responses. */
+		private final String[] validators;
+
+		/** Headers sent with the body. */
+		private final String[] entityHeaders;
+
+		/**
+		 * Instantiates a new variant.
+		 *
+		 * @param encoding content coding, null for identity
+		 * @param etag the entity tag
+		 * @param body the encoded body
+		 * @param lastModified the formatted last modification time
+		 * @param vary true if the file has other encodings
+		 */
+		Variant(String encoding, String etag, byte[] body, String lastModified, boolean vary) {
+			this.encoding = encoding;
+			this.etag = etag;
+			this.body = body;
+			this.validators = vary
+					? new String[] { "ETag: " + etag, "Last-Modified: " + lastModified, "Accept-Ranges: bytes",
+							"Vary: Accept-Encoding" }
+					: new String[] { "ETag: " + etag, "Last-Modified: " + lastModified, "Accept-Ranges: bytes" };
+			this.entityHeaders = encoding == null
+					? new String[] { "Content-Length: " + body.length }
+					: new String[] { "Content-Encoding: " + encoding, "Content-Length: " + body.length };
+		}
+
+		/**
+		 * Returns the content coding of the body.
+		 *
+		 * @return the coding, null for identity
+		 */
+		public String getEncoding() {
+			return encoding;
+		}
+
+		/**
+		 * Returns the entity tag, which differs between encodings.
+		 *
+		 * @return the entity tag
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * Returns the encoded body. The array is shared and must not be
+		 * modified.
+		 *
+		 * @return the body
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		/**
+		 * Returns the headers sent with every response, including 304
+		 * responses.
+		 *
+		 * @return the headers
+		 */
+		public String[] getValidators() {
+			return validators;
+		}
+
+		/**
+		 * Returns the headers sent with the body.
+		 *
+		 * @return the headers
+		 */
+		public String[] getEntityHeaders() {
+			return entityHeaders;
+		}
+	}
+
+	/**
+	 * A cached file with all of its encodings.
+	 */
+	public static class CachedFile {
+
+		/** Mime type of the file. */
+		private final String mimeType;
+
+		/** Last modification time in milliseconds, truncated to seconds. */
+		private final long lastModified;
+
+		/** The unencoded file. */
+		private final Variant identity;
+
+		/** The gzip encoded file, null if compression does not pay off. */
+		private final Variant gzip;
+
+		/** The deflate encoded file, null if compression does not pay off. */
+		private final Variant deflate;
+
+		/**
+		 * Instantiates a new cached file.
+		 *
+		 * @param mimeType mime type of the file
+		 * @param lastModified last modification time in milliseconds
+		 * @param identity the unencoded file
+		 * @param gzip the gzip encoded file or null
+		 * @param deflate the deflate encoded file or null
+		 */
+		CachedFile(String mimeType, long lastModified, Variant identity, Variant gzip, Variant deflate) {
+			this.mimeType = mimeType;
+			this.lastModified = lastModified;
+			this.identity = identity;
+			this.gzip = gzip;
+			this.deflate = deflate;
+		}
+
+		/**
+		 * Returns the mime type of the file.
+		 *
+		 * @return the mime type
+		 */
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/**
+		 * Returns the last modification time, truncated to seconds.
+		 *
+		 * @return the time in milliseconds
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Selects the encoding the client prefers by the quality values of the
+		 * <code>Accept-Encoding</code> header, the smallest one of those it
+		 * accepts equally. Codings that are not listed get the quality of
+		 * <code>*</code>. The unencoded file competes with its own quality only
+		 * if <code>identity</code> or <code>*</code> is listed, otherwise it is
+		 * sent only when the client accepts nothing else that is available.
+		 *
+		 * @param acceptEncoding value of the <code>Accept-Encoding</code>
+		 *            header, null if it was not sent
+		 * @return the selected variant
+		 */
+		public Variant select(String acceptEncoding) {
+			if (acceptEncoding == null || gzip == null && deflate == null) {
+				return identity;
+			}
+			double gzipQuality = -1;
+			double deflateQuality = -1;
+			double identityQuality = -1;
+			double any = -1;
+			for (String coding : acceptEncoding.split(",")) {
+				int semicolon = coding.indexOf(';');
+				String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim().toLowerCase();
+				double quality = semicolon < 0 ? 1 : ResponseCompression.quality(coding.substring(semicolon + 1));
+				switch (name) {
+				case "gzip":
+				case "x-gzip":
+					gzipQuality = Math.max(gzipQuality, quality);
+					break;
+				case "deflate":
+					deflateQuality = Math.max(deflateQuality, quality);
+					break;
+				case "identity":
+					identityQuality = Math.max(identityQuality, quality);
+					break;
+				case "*":
+					any = quality;
+					break;
+				default:
+					break;
+				}
+			}
+			Variant best = identity;
+			double bestQuality = identityQuality >= 0 ? identityQuality : any >= 0 ? any : 0;
+			double[] qualities = { gzipQuality < 0 ? any : gzipQuality, deflateQuality < 0 ? any : deflateQuality };
+			Variant[] candidates = { gzip, deflate };
+			for (int i = 0; i < candidates.length; i++) {
+				Variant candidate = candidates[i];
+				if (candidate == null || qualities[i] <= 0) {
+					continue;
+				}
+				if (qualities[i] > bestQuality
+						|| qualities[i] == bestQuality && candidate.body.length < best.body.length) {
+					best = candidate;
+					bestQuality = qualities[i];
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Returns the number of bytes this file occupies in the cache.
+		 *
+		 * @return the size in bytes
+		 */
+		int weight() {
+			return identity.body.length + (gzip == null ? 0 : gzip.body.length)
+					+ (deflate == null ? 0 : deflate.body.length);
+		}
+	}
+
+	/** Maximum number of cached bytes. */
+	private final long capacity;
+
+	/** Maximum size of a single cached file. */
+	private final long fileLimit;
+
+	/** The document root. */
+	private final Path documentRoot;
+
+	/** Cached files by normalized path, in access order. */
+	private final LinkedHashMap<Path, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** Number of currently cached bytes. */
+	private long size;
+
+	/** Number of requests served from the cache. */
+	private final LongAdder hits = new LongAdder();
+
+	/** Number of files read into the cache. */
+	private final LongAdder misses = new LongAdder();
+
+	/** Number of files removed to make room for others. */
+	private final LongAdder evictions = new LongAdder();
+
+	/** The watch service of the document root, null until watching starts. */
+	private WatchService watchService;
+
+	/** Watched directories by their watch keys. */
+	private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+	/**
+	 * Instantiates a new static file cache.
+	 *
+	 * @param documentRoot the document root
+	 * @param capacity maximum number of cached bytes, 0 disables caching
+	 * @param fileLimit maximum size of a single cached file
+	 */
+	public StaticFileCache(Path documentRoot, long capacity, long fileLimit) {
+		if (capacity < 0 || fileLimit < 0) {
+			throw new IllegalArgumentException("Capacity and file limit must not be negative");
+		}
+		this.documentRoot = documentRoot;
+		this.capacity = capacity;
+		this.fileLimit = Math.min(fileLimit, capacity);
+	}
+
+	/**
+	 * Returns the cached file for the provided path.
+	 *
+	 * @param path path to the file
+	 * @return the cached file or null if it is not cached
+	 */
+	public CachedFile get(Path path) {
+		if (capacity == 0) {
+			return null;
+		}
+		CachedFile file;
+		synchronized (entries) {
+			file = entries.get(path.normalize());
+		}
+		if (file != null) {
+			hits.increment();
+		}
+		return file;
+	}
+
+	/**
+	 * Reads a file into the cache, if it is small enough.
+	 *
+	 * @param path path to the file
+	 * @param mimeType mime type of the file
+	 * @return the cached file or null if the file is too large to be cached
+	 * @throws IOException if the file can not be read
+	 */
+	public CachedFile load(Path path, String mimeType) throws IOException {
+		Path key = path.normalize();
+		if (capacity == 0 || !key.startsWith(documentRoot.normalize()) || Files.size(path) > fileLimit) {
+			return null;
+		}
+		misses.increment();
+		FileTime modifiedTime = Files.getLastModifiedTime(path);
+		long lastModified = modifiedTime.toMillis() / 1000 * 1000;
+		byte[] data = Files.readAllBytes(path);
+		String modified = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+		String etag = etag(data.length, lastModified);
+		byte[] gzipped = null;
+		byte[] deflated = null;
+		if (isCompressible(mimeType)) {
+			gzipped = compress(new ByteArrayOutputStream(), data, true);
+			deflated = compress(new ByteArrayOutputStream(), data, false);
+		}
+		boolean vary = gzipped != null || deflated != null;
+		CachedFile file = new CachedFile(mimeType, lastModified,
+				new Variant(null, etag, data, modified, vary),
+				gzipped == null ? null : new Variant("gzip", encodedETag(etag, "gz"), gzipped, modified, vary),
+				deflated == null ? null : new Variant("deflate", encodedETag(etag, "df"), deflated, modified, vary));
+		put(key, file);
+		if (!Files.getLastModifiedTime(path).equals(modifiedTime)) {
+			// changed while it was being read, the watcher may have missed it
+			invalidate(key);
+		}
+		return file;
+	}
+
+	/**
+	 * Stores a file, evicting least recently used files until the cache fits
+	 * its capacity.
+	 *
+	 * @param path normalized path of the file
+	 * @param file the cached file
+	 */
+	private void put(Path path, CachedFile file) {
+		synchronized (entries) {
+			CachedFile old = entries.put(path, file);
+			if (old != null) {
+				size -= old.weight();
+			}
+			size += file.weight();
+			Iterator<CachedFile> it = entries.values().iterator();
+			while (size > capacity && it.hasNext()) {
+				size -= it.next().weight();
+				it.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Removes a path and everything below it from the cache.
+	 *
+	 * @param path the changed path
+	 */
+	void invalidate(Path path) {
+		synchronized (entries) {
+			Iterator<Map.Entry<Path, CachedFile>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Path, CachedFile> entry = it.next();
+				if (entry.getKey().startsWith(path)) {
+					size -= entry.getValue().weight();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached files.
+	 */
+	void clear() {
+		synchronized (entries) {
+			entries.clear();
+			size = 0;
+		}
+	}
+
+	/**
+	 * Starts watching the document root for changes on a daemon thread.
+	 *
+	 * @throws IOException if the watch service can not be created
+	 */
+	public synchronized void startWatching() throws IOException {
+		if (capacity == 0 || watchService != null) {
+			return;
+		}
+		watchService = documentRoot.getFileSystem().newWatchService();
+		register(documentRoot);
+		Thread watcher = new Thread(this::watch, "static-cache-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Stops watching the document root and clears the cache.
+	 */
+	public synchronized void stopWatching() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException ignore) {}
+			watchService = null;
+		}
+		clear();
+	}
+
+	/**
+	 * Registers a directory and all of its subdirectories with the watch
+	 * service.
+	 *
+	 * @param directory the directory
+	 * @throws IOException if a directory can not be registered
+	 */
+	private void register(Path directory) throws IOException {
+		WatchService service = watchService;
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				synchronized (watchedDirectories) {
+					watchedDirectories.put(key, dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Body of the watcher thread, invalidates changed paths until the watch
+	 * service is closed.
+	 */
+	private void watch() {
+		WatchService service = watchService;
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				Path directory;
+				synchronized (watchedDirectories) {
+					directory = watchedDirectories.get(key);
+				}
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW || directory == null) {
+						clear();
+						continue;
+					}
+					Path changed = directory.resolve((Path) event.context()).normalize();
+					invalidate(changed);
+					if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+						try {
+							register(changed);
+						} catch (IOException e) {
+							clear();
+						}
+					}
+				}
+				if (!key.reset()) {
+					synchronized (watchedDirectories) {
+						watchedDirectories.remove(key);
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			return;
+		}
+	}
+
+	/**
+	 * Returns the entity tag of a file.
+	 *
+	 * @param size size of the file
+	 * @param lastModified last modification time in milliseconds
+	 * @return the quoted entity tag
+	 */
+	static String etag(long size, long lastModified) {
+		return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * Returns the entity tag of an encoded variant, which must differ from the
+	 * entity tag of the unencoded file.
+	 *
+	 * @param etag entity tag of the unencoded file
+	 * @param suffix suffix identifying the encoding
+	 * @return the quoted entity tag
+	 */
+	private static String encodedETag(String etag, String suffix) {
+		return etag.substring(0, etag.length() - 1) + "-" + suffix + "\"";
+	}
+
+	/**
+	 * Checks if files of a mime type are worth compressing.
+	 *
+	 * @param mimeType the mime type
+	 * @return true for text formats
+	 */
+	private static boolean isCompressible(String mimeType) {
+		return mimeType.startsWith("text/") || mimeType.endsWith("javascript") || mimeType.endsWith("json")
+				|| mimeType.endsWith("xml") || mimeType.equals("image/svg+xml");
+	}
+
+	/**
+	 * Compresses data with gzip or deflate.
+	 *
+	 * @param bos stream collecting the compressed bytes
+	 * @param data data to compress
+	 * @param gzip true for gzip, false for deflate
+	 * @return the compressed data or null if it is not smaller than the input
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static byte[] compress(ByteArrayOutputStream bos, byte[] data, boolean gzip) throws IOException {
+		try (OutputStream os = gzip ? new GZIPOutputStream(bos) : new DeflaterOutputStream(bos)) {
+			os.write(data);
+		}
+		return bos.size() < data.length ? bos.toByteArray() : null;
+	}
+
+	/**
+	 * Returns the number of requests served from the cache.
+	 *
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of files read into the cache.
+	 *
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of files evicted to make room for others.
+	 *
+	 * @return number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the number of currently cached bytes.
+	 *
+	 * @return number of cached bytes
+	 */
+	public long size() {
+		synchronized (entries) {
+			return size;
+		}
+	}
+}
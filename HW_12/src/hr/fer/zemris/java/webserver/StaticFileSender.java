@@ -0,0 +1,227 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * StaticFileSender answers requests for static files, either from the
+ * {@link StaticFileCache} or straight from the file system. It handles the
+ * conditional headers <code>If-None-Match</code> and
+ * <code>If-Modified-Since</code>, which get <code>304 Not Modified</code>, and
+ * a single byte <code>Range</code>, which gets <code>206 Partial
+ * Content</code> or <code>416 Range Not Satisfiable</code>.
+ *
+ * @author Ante Spajic
+ */
+public final class StaticFileSender {
+
+	/**
+	 * Private constructor, the class only has static methods.
+	 */
+	private StaticFileSender() {
+	}
+
+	/**
+	 * Sends a static file. The body is transferred from the file straight to
+	 * the socket without passing through the heap when the output is a socket
+	 * channel. A client that already has the current version gets
+	 * <code>304 Not Modified</code> without the file being read.
+	 *
+	 * @param file the requested file
+	 * @param mimeType mime type of the file
+	 * @param request the parsed request
+	 * @param rc the request context, writing to <code>output</code>
+	 * @param output the stream the response is written to
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void serveFile(Path file, String mimeType, HttpRequestParser request, RequestContext rc,
+			OutputStream output) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long lastModified = Files.getLastModifiedTime(file).toMillis() / 1000 * 1000;
+			String etag = StaticFileCache.etag(size, lastModified);
+			String modified = StaticFileCache.HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+			rc.setMimeType(mimeType);
+			rc.addAdditionalHeader("ETag: " + etag);
+			rc.addAdditionalHeader("Last-Modified: " + modified);
+			rc.addAdditionalHeader("Accept-Ranges: bytes");
+			if (isNotModified(request, etag, lastModified)) {
+				rc.setStatusCode(304);
+				rc.setStatusText("Not Modified");
+				rc.flush();
+				return;
+			}
+			long start = 0;
+			long length = size;
+			String range = request.getHeader("Range");
+			String ifRange = request.getHeader("If-Range");
+			if (range != null && (ifRange == null || ifRange.equals(etag) || ifRange.equals(modified))) {
+				long[] bounds = parseRange(range, size);
+				if (bounds != null && bounds.length == 0) {
+					rc.setStatusCode(416);
+					rc.setStatusText("Range Not Satisfiable");
+					rc.addAdditionalHeader("Content-Range: bytes */" + size);
+					rc.addAdditionalHeader("Content-Length: 0");
+					rc.flush();
+					return;
+				} else if (bounds != null) {
+					start = bounds[0];
+					length = bounds[1] - bounds[0] + 1;
+					rc.setStatusCode(206);
+					rc.setStatusText("Partial Content");
+					rc.addAdditionalHeader("Content-Range: bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+				}
+			}
+			rc.addAdditionalHeader("Content-Length: " + length);
+			rc.flush();
+			transfer(channel, start, length, output);
+		}
+	}
+
+	/**
+	 * Sends a static file from the cache, in the smallest encoding the client
+	 * accepts. Range requests are left to {@link #serveFile}.
+	 *
+	 * @param file the cached file, may be null
+	 * @param request the parsed request
+	 * @param rc the request context
+	 * @return true if the response has been sent
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static boolean sendCached(StaticFileCache.CachedFile file, HttpRequestParser request, RequestContext rc)
+			throws IOException {
+		if (file == null || request.getHeader("Range") != null) {
+			return false;
+		}
+		StaticFileCache.Variant variant = file.select(request.getHeader("Accept-Encoding"));
+		rc.setMimeType(file.getMimeType());
+		for (String header : variant.getValidators()) {
+			rc.addAdditionalHeader(header);
+		}
+		if (isNotModified(request, variant.getETag(), file.getLastModified())) {
+			rc.setStatusCode(304);
+			rc.setStatusText("Not Modified");
+			rc.flush();
+			return true;
+		}
+		for (String header : variant.getEntityHeaders()) {
+			rc.addAdditionalHeader(header);
+		}
+		rc.write(variant.getBody());
+		return true;
+	}
+
+	/**
+	 * Writes a region of a file to the output, through
+	 * {@link ChannelOutputStream#transferFrom} if the output is a socket.
+	 *
+	 * @param channel the file
+	 * @param start position of the first byte to send
+	 * @param length number of bytes to send
+	 * @param output the output
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void transfer(FileChannel channel, long start, long length, OutputStream output)
+			throws IOException {
+		if (output instanceof ChannelOutputStream) {
+			((ChannelOutputStream) output).transferFrom(channel, start, length);
+			return;
+		}
+		WritableByteChannel target = Channels.newChannel(output);
+		for (long end = start + length; start < end;) {
+			long n = channel.transferTo(start, end - start, target);
+			if (n == 0) {
+				throw new IOException("File is shorter than expected");
+			}
+			start += n;
+		}
+	}
+
+	/**
+	 * Checks if the client already has the current version of a file. An
+	 * <code>If-None-Match</code> header takes precedence over
+	 * <code>If-Modified-Since</code>.
+	 *
+	 * @param request the parsed request
+	 * @param etag entity tag of the file
+	 * @param lastModified last modification time of the file in milliseconds
+	 * @return true if the file has not changed
+	 */
+	private static boolean isNotModified(HttpRequestParser request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		String ifModifiedSince = request.getHeader("If-Modified-Since");
+		if (ifModifiedSince == null) {
+			return false;
+		}
+		try {
+			ZonedDateTime since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME);
+			return lastModified <= since.toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses a <code>Range</code> header with a single byte range. Headers
+	 * that are malformed or ask for several ranges are ignored and the whole
+	 * file is sent.
+	 *
+	 * @param range value of the header
+	 * @param size size of the file
+	 * @return first and last byte of the range, an empty array if the range
+	 *         is not satisfiable or null if the header is ignored
+	 */
+	private static long[] parseRange(String range, long size) {
+		if (!range.regionMatches(true, 0, "bytes=", 0, "bytes=".length()) || range.indexOf(',') >= 0) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			if (dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1).trim());
+				if (suffix == 0 || size == 0) {
+					return new long[0];
+				}
+				return new long[] { Math.max(0, size - suffix), size - 1 };
+			}
+			long first = Long.parseLong(spec.substring(0, dash).trim());
+			String lastText = spec.substring(dash + 1).trim();
+			long last = lastText.isEmpty() ? size - 1 : Long.parseLong(lastText);
+			if (first >= size) {
+				return new long[0];
+			}
+			if (last < first) {
+				return null;
+			}
+			return new long[] { first, Math.min(last, size - 1) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
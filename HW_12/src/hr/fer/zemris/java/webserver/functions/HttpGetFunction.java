@@ -0,0 +1,89 @@
+package hr.fer.zemris.java.webserver.functions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import hr.fer.zemris.java.custom.scripting.exec.ScriptFunction;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * The Class HttpGetFunction is an asynchronous script function that fetches
+ * the body of a URL with a GET request, for example
+ * <code>{$= "http://localhost:8080/api/news" @httpGet $}</code>. Several
+ * fetches of a page run at the same time, so the page takes as long as the
+ * slowest one. Responses that are not successful fail the script.
+ *
+ * @author Ante Spajic
+ */
+public class HttpGetFunction implements ScriptFunction {
+
+	/** Timeout of connecting and of every read, in milliseconds. */
+	private static final int TIMEOUT = 5000;
+
+	/** Size of the largest body that is read. */
+	private static final int MAX_BODY = 1024 * 1024;
+
+	@Override
+	public int getArity() {
+		return 1;
+	}
+
+	@Override
+	public boolean isAsync() {
+		return true;
+	}
+
+	@Override
+	public Object apply(RequestContext rc, Object[] args) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(args[0].toString()).openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		try {
+			int status = connection.getResponseCode();
+			if (status / 100 != 2) {
+				throw new IOException("GET " + args[0] + " returned " + status);
+			}
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			try (InputStream in = connection.getInputStream()) {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) >= 0) {
+					if (body.size() + n > MAX_BODY) {
+						throw new IOException("GET " + args[0] + " returned a body larger than " + MAX_BODY);
+					}
+					body.write(buffer, 0, n);
+				}
+			}
+			return new String(body.toByteArray(), charset(connection.getContentType()));
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Returns the charset of a response.
+	 *
+	 * @param contentType the <code>Content-Type</code> header, may be null
+	 * @return the charset of the header, UTF-8 if there is none
+	 */
+	private static Charset charset(String contentType) {
+		if (contentType != null) {
+			for (String param : contentType.split(";")) {
+				param = param.trim();
+				if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+					try {
+						return Charset.forName(param.substring(8).replace("\"", "").trim());
+					} catch (IllegalArgumentException ignore) {
+						break;
+					}
+				}
+			}
+		}
+		return StandardCharsets.UTF_8;
+	}
+}
@@ -0,0 +1,148 @@
+package hr.fer.zemris.java.webserver.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in microseconds with a bounded relative error, in the
+ * manner of HdrHistogram. Values below 16 have a bucket each, larger values
+ * share a power of two range between 16 linear buckets, so any value is
+ * reported within 1/16 of itself. Values of up to about 19 hours are
+ * distinguished, larger ones are counted as the largest.
+ * <p>
+ * Recording is lock free. Buckets are kept in several stripes picked by the
+ * recording thread, so threads recording at the same time seldom update the
+ * same counter. Stripes are only summed up when quantiles are computed.
+ *
+ * @author Ante Spajic
+ */
+public final class LatencyHistogram {
+
+	/** Number of bits of a value kept by its bucket. */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** Number of buckets per power of two. */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** The largest value told apart from larger ones. */
+	private static final long MAX_VALUE = (1L << 36) - 1;
+
+	/** Number of buckets. */
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+	/** Number of stripes, a power of two. */
+	private static final int STRIPES = Integer.highestOneBit(
+			Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+	/** Bucket counts of every stripe. */
+	private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+	/** Number of recorded values. */
+	private final LongAdder count = new LongAdder();
+
+	/** Sum of recorded values. */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Instantiates a new empty histogram.
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param micros the latency in microseconds
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		stripes[stripe].incrementAndGet(index(Math.min(value, MAX_VALUE)));
+		count.increment();
+		sum.add(value);
+	}
+
+	/**
+	 * Returns the number of recorded latencies.
+	 *
+	 * @return number of latencies
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of recorded latencies.
+	 *
+	 * @return sum in microseconds
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Computes quantiles of the recorded latencies. Each quantile is reported as
+	 * the largest value of the bucket it falls into.
+	 *
+	 * @param quantiles the quantiles, in ascending order between 0 and 1
+	 * @return the latencies in microseconds, all 0 if nothing is recorded
+	 */
+	public long[] quantiles(double... quantiles) {
+		long[] buckets = new long[BUCKETS];
+		long total = 0;
+		for (AtomicLongArray stripe : stripes) {
+			for (int i = 0; i < BUCKETS; i++) {
+				long n = stripe.get(i);
+				buckets[i] += n;
+				total += n;
+			}
+		}
+		long[] result = new long[quantiles.length];
+		if (total == 0) {
+			return result;
+		}
+		int bucket = 0;
+		long seen = buckets[0];
+		for (int q = 0; q < quantiles.length; q++) {
+			long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+			while (seen < rank && bucket < BUCKETS - 1) {
+				seen += buckets[++bucket];
+			}
+			result[q] = highestValue(bucket);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the bucket of a value.
+	 *
+	 * @param value the value, not larger than {@link #MAX_VALUE}
+	 * @return index of the bucket
+	 */
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the largest value counted by a bucket.
+	 *
+	 * @param index index of the bucket
+	 * @return the largest value
+	 */
+	private static long highestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
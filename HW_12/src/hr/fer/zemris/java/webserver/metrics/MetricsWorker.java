@@ -0,0 +1,41 @@
+package hr.fer.zemris.java.webserver.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * The Class MetricsWorker serves the metrics of the server in the Prometheus
+ * text exposition format, so the server can be scraped by Prometheus or read
+ * in a browser.
+ *
+ * @author Ante Spajic
+ */
+public class MetricsWorker implements IWebWorker {
+
+	/** The metrics of the server. */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Instantiates a new metrics worker.
+	 *
+	 * @param metrics the metrics of the server
+	 */
+	public MetricsWorker(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void processRequest(RequestContext context) {
+		StringBuilder sb = new StringBuilder(4096);
+		metrics.write(sb);
+		context.setMimeType("text/plain; version=0.0.4");
+		try {
+			context.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package hr.fer.zemris.java.webserver.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Instrumentation of a server. Requests are counted per route and status class
+ * and their latencies are kept in a {@link LatencyHistogram} per route, next to
+ * server wide counters of bytes, connections and errors. All counters are
+ * {@link LongAdder}s, so recording from many threads at once stays cheap.
+ * Values owned by other components, such as cache counters, are registered as
+ * suppliers and only read when the metrics are written out.
+ * <p>
+ * Metrics are written in the Prometheus text exposition format. Latency
+ * quantiles are computed over all requests since the server started.
+ *
+ * @author Ante Spajic
+ */
+public class ServerMetrics {
+
+	/** Prefix of all metric names. */
+	private static final String PREFIX = "smarthttp_";
+
+	/** Reported latency quantiles. */
+	private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+	/** Metrics of every route that has been requested. */
+	private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+	/** Bytes read from clients. */
+	private final LongAdder bytesReceived = new LongAdder();
+
+	/** Bytes written to clients. */
+	private final LongAdder bytesSent = new LongAdder();
+
+	/** Accepted connections. */
+	private final LongAdder connections = new LongAdder();
+
+	/** Open connections. */
+	private final LongAdder activeConnections = new LongAdder();
+
+	/** Requests that failed with an exception. */
+	private final LongAdder errors = new LongAdder();
+
+	/** Metrics registered by other components. */
+	private final List<Supplied> supplied = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Records a served request.
+	 *
+	 * @param route the route of the request
+	 * @param status the status code of the response
+	 * @param nanos time taken to serve the request in nanoseconds
+	 */
+	public void recordRequest(String route, int status, long nanos) {
+		RouteMetrics metrics = routes.get(route);
+		if (metrics == null) {
+			metrics = routes.computeIfAbsent(route, r -> new RouteMetrics());
+		}
+		int statusClass = status / 100;
+		metrics.requests[statusClass >= 1 && statusClass <= 5 ? statusClass - 1 : 4].increment();
+		metrics.latency.record(nanos / 1000);
+	}
+
+	/**
+	 * Counts bytes read from a client.
+	 *
+	 * @param count number of bytes
+	 */
+	public void addBytesReceived(long count) {
+		bytesReceived.add(count);
+	}
+
+	/**
+	 * Counts bytes written to a client.
+	 *
+	 * @param count number of bytes
+	 */
+	public void addBytesSent(long count) {
+		bytesSent.add(count);
+	}
+
+	/**
+	 * Counts an accepted connection.
+	 */
+	public void connectionOpened() {
+		connections.increment();
+		activeConnections.increment();
+	}
+
+	/**
+	 * Counts a closed connection.
+	 */
+	public void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	/**
+	 * Counts a request that failed with an exception.
+	 */
+	public void error() {
+		errors.increment();
+	}
+
+	/**
+	 * Registers a counter owned by another component.
+	 *
+	 * @param name name of the counter without the common prefix
+	 * @param help description of the counter
+	 * @param value supplier of the current value
+	 */
+	public void counter(String name, String help, DoubleSupplier value) {
+		supplied.add(new Supplied(name, help, "counter", value));
+	}
+
+	/**
+	 * Registers a gauge owned by another component.
+	 *
+	 * @param name name of the gauge without the common prefix
+	 * @param help description of the gauge
+	 * @param value supplier of the current value
+	 */
+	public void gauge(String name, String help, DoubleSupplier value) {
+		supplied.add(new Supplied(name, help, "gauge", value));
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format.
+	 *
+	 * @param sb builder the metrics are appended to
+	 */
+	public void write(StringBuilder sb) {
+		Map<String, RouteMetrics> routes = new TreeMap<>(this.routes);
+
+		header(sb, "requests_total", "Served requests by route and status class.", "counter");
+		for (Map.Entry<String, RouteMetrics> e : routes.entrySet()) {
+			for (int i = 0; i < 5; i++) {
+				long n = e.getValue().requests[i].sum();
+				if (n == 0) continue;
+				sb.append(PREFIX).append("requests_total{route=\"");
+				escape(sb, e.getKey());
+				sb.append("\",code=\"").append(i + 1).append("xx\"} ").append(n).append('\n');
+			}
+		}
+
+		header(sb, "request_duration_seconds", "Request latency by route since the server started.", "summary");
+		for (Map.Entry<String, RouteMetrics> e : routes.entrySet()) {
+			LatencyHistogram latency = e.getValue().latency;
+			long count = latency.getCount();
+			long[] values = latency.quantiles(QUANTILES);
+			for (int i = 0; i < QUANTILES.length; i++) {
+				sample(sb, "request_duration_seconds", e.getKey(), "\",quantile=\"" + QUANTILES[i]);
+				sb.append(values[i] / 1e6).append('\n');
+			}
+			sample(sb, "request_duration_seconds_sum", e.getKey(), "");
+			sb.append(latency.getSum() / 1e6).append('\n');
+			sample(sb, "request_duration_seconds_count", e.getKey(), "");
+			sb.append(count).append('\n');
+		}
+
+		single(sb, "received_bytes_total", "Bytes read from clients.", "counter", bytesReceived.sum());
+		single(sb, "sent_bytes_total", "Bytes written to clients.", "counter", bytesSent.sum());
+		single(sb, "connections_total", "Accepted connections.", "counter", connections.sum());
+		single(sb, "active_connections", "Open connections.", "gauge", activeConnections.sum());
+		single(sb, "errors_total", "Requests that failed with an exception.", "counter", errors.sum());
+		for (Supplied s : supplied) {
+			header(sb, s.name, s.help, s.type);
+			sb.append(PREFIX).append(s.name).append(' ');
+			number(sb, s.value.getAsDouble());
+			sb.append('\n');
+		}
+	}
+
+	/**
+	 * Appends the help and type lines of a metric.
+	 *
+	 * @param sb the builder
+	 * @param name name of the metric
+	 * @param help description of the metric
+	 * @param type type of the metric
+	 */
+	private static void header(StringBuilder sb, String name, String help, String type) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	/**
+	 * Appends the name and labels of a route sample, up to its value.
+	 *
+	 * @param sb the builder
+	 * @param name name of the sample
+	 * @param route the route label
+	 * @param labels further labels, starting with the quote closing the route
+	 */
+	private static void sample(StringBuilder sb, String name, String route, String labels) {
+		sb.append(PREFIX).append(name).append("{route=\"");
+		escape(sb, route);
+		sb.append(labels.isEmpty() ? "\"" : labels + "\"").append("} ");
+	}
+
+	/**
+	 * Appends a metric with a single sample.
+	 *
+	 * @param sb the builder
+	 * @param name name of the metric
+	 * @param help description of the metric
+	 * @param type type of the metric
+	 * @param value the value
+	 */
+	private static void single(StringBuilder sb, String name, String help, String type, long value) {
+		header(sb, name, help, type);
+		sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Appends a number, whole numbers without a fraction.
+	 *
+	 * @param sb the builder
+	 * @param value the number
+	 */
+	private static void number(StringBuilder sb, double value) {
+		if (value == (long) value) {
+			sb.append((long) value);
+		} else if (Double.isNaN(value)) {
+			sb.append("NaN");
+		} else {
+			sb.append(value);
+		}
+	}
+
+	/**
+	 * Appends a label value, escaping backslashes, quotes and line feeds.
+	 *
+	 * @param sb the builder
+	 * @param value the label value
+	 */
+	private static void escape(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				sb.append('\\').append(c);
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Metrics of a single route.
+	 */
+	private static final class RouteMetrics {
+
+		/** Requests by status class, 1xx to 5xx. */
+		private final LongAdder[] requests = new LongAdder[5];
+
+		/** Latencies of the requests. */
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * Instantiates new route metrics.
+		 */
+		private RouteMetrics() {
+			for (int i = 0; i < requests.length; i++) {
+				requests[i] = new LongAdder();
+			}
+		}
+	}
+
+	/**
+	 * Metric owned by another component.
+	 */
+	private static final class Supplied {
+
+		/** Name without the common prefix. */
+		private final String name;
+
+		/** Description. */
+		private final String help;
+
+		/** Prometheus type. */
+		private final String type;
+
+		/** Supplier of the current value. */
+		private final DoubleSupplier value;
+
+		/**
+		 * Instantiates a new supplied metric.
+		 *
+		 * @param name name without the common prefix
+		 * @param help description
+		 * @param type Prometheus type
+		 * @param value supplier of the current value
+		 */
+		private Supplied(String name, String help, String type, DoubleSupplier value) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,431 @@
+package hr.fer.zemris.java.webserver.multipart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming parser of <code>multipart/form-data</code> bodies. The body is read
+ * through a buffer of fixed size and the content of every part is copied to
+ * its destination as soon as it is known not to contain the boundary. Parts
+ * are kept in memory as long as all in-memory parts of the body together stay
+ * within a threshold, the rest are written to temporary files, so the memory
+ * a body takes is bounded no matter how large it is.
+ *
+ * @author Ante Spajic
+ */
+public class MultipartParser {
+
+	/** Maximum size of the headers of a part. */
+	private static final int MAX_HEADER_SIZE = 8192;
+
+	/** The body. */
+	private final InputStream in;
+
+	/** The delimiter of parts, CRLF followed by two dashes and the boundary. */
+	private final byte[] delimiter;
+
+	/** Maximum number of bytes of all parts kept in memory. */
+	private final long memoryThreshold;
+
+	/** Directory of temporary files, null for the default one. */
+	private final Path directory;
+
+	/** The read buffer. */
+	private final byte[] buffer;
+
+	/** Start of unprocessed bytes in the buffer. */
+	private int position;
+
+	/** End of bytes in the buffer. */
+	private int limit;
+
+	/** Flag telling whether the body has ended. */
+	private boolean eof;
+
+	/** Bytes of all parts kept in memory. */
+	private long memoryUsed;
+
+	/**
+	 * Instantiates a new multipart parser.
+	 *
+	 * @param in the body
+	 * @param boundary the boundary of parts
+	 * @param memoryThreshold maximum number of bytes of all parts kept in
+	 *            memory
+	 * @param directory directory of temporary files, null for the default one
+	 */
+	public MultipartParser(InputStream in, String boundary, long memoryThreshold, Path directory) {
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.memoryThreshold = memoryThreshold;
+		this.directory = directory;
+		this.buffer = new byte[Math.max(8192, 4 * delimiter.length)];
+		// the first boundary is not preceded by a line end, pretend it is
+		buffer[0] = '\r';
+		buffer[1] = '\n';
+		limit = 2;
+	}
+
+	/**
+	 * Returns the boundary of a multipart form body.
+	 *
+	 * @param contentType value of the <code>Content-Type</code> header, may be
+	 *            null
+	 * @return the boundary or null if the body is not a multipart form
+	 */
+	public static String boundary(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		Map<String, String> params = new HashMap<>();
+		String type = parseHeaderValue(contentType, params);
+		if (!type.equalsIgnoreCase("multipart/form-data")) {
+			return null;
+		}
+		String boundary = params.get("boundary");
+		return boundary == null || boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+	}
+
+	/**
+	 * Parses the body. If parsing fails, temporary files of parts that have
+	 * already been read are deleted.
+	 *
+	 * @return the parts in the order of the body
+	 * @throws IOException if the body is malformed or can not be read
+	 */
+	public List<Part> parse() throws IOException {
+		List<Part> parts = new ArrayList<>();
+		try {
+			copyPart(null);
+			while (!isLast()) {
+				Map<String, String> headers = readHeaders();
+				Map<String, String> disposition = new HashMap<>();
+				String type = parseHeaderValue(headers.getOrDefault("content-disposition", ""), disposition);
+				String name = disposition.get("name");
+				if (!type.equalsIgnoreCase("form-data") || name == null) {
+					throw new IOException("Part is not a form field");
+				}
+				Sink sink = new Sink();
+				boolean complete = false;
+				try {
+					copyPart(sink);
+					complete = true;
+				} finally {
+					sink.close(complete);
+				}
+				parts.add(sink.toPart(name, fileName(disposition.get("filename")), headers));
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Part part : parts) {
+				part.delete();
+			}
+			throw e;
+		}
+		return Collections.unmodifiableList(parts);
+	}
+
+	/**
+	 * Copies bytes up to the next delimiter and skips the delimiter.
+	 *
+	 * @param sink destination of the bytes, null to discard them
+	 * @throws IOException if the body ends before the delimiter
+	 */
+	private void copyPart(Sink sink) throws IOException {
+		while (true) {
+			int index = indexOfDelimiter();
+			if (index >= 0) {
+				if (sink != null) {
+					sink.write(buffer, position, index - position);
+				}
+				position = index + delimiter.length;
+				return;
+			}
+			int safe = Math.max(position, limit - delimiter.length + 1);
+			if (sink != null) {
+				sink.write(buffer, position, safe - position);
+			}
+			position = safe;
+			if (!fill()) {
+				throw new IOException("Multipart body ended before its last boundary");
+			}
+		}
+	}
+
+	/**
+	 * Checks what follows a delimiter: two dashes end the body, a line end
+	 * starts another part.
+	 *
+	 * @return true if the delimiter was the last one
+	 * @throws IOException if neither follows
+	 */
+	private boolean isLast() throws IOException {
+		ensure(2);
+		if (limit - position >= 2 && buffer[position] == '-' && buffer[position + 1] == '-') {
+			position += 2;
+			return true;
+		}
+		while (true) {
+			ensure(1);
+			if (position < limit && (buffer[position] == ' ' || buffer[position] == '\t')) {
+				position++;
+				continue;
+			}
+			break;
+		}
+		ensure(2);
+		if (limit - position >= 2 && buffer[position] == '\r' && buffer[position + 1] == '\n') {
+			position += 2;
+			return false;
+		}
+		throw new IOException("Malformed multipart boundary");
+	}
+
+	/**
+	 * Reads the headers of a part.
+	 *
+	 * @return headers by their lower case names
+	 * @throws IOException if the headers are malformed or too large
+	 */
+	private Map<String, String> readHeaders() throws IOException {
+		Map<String, String> headers = new HashMap<>();
+		int total = 0;
+		while (true) {
+			String line = readLine();
+			total += line.length() + 2;
+			if (total > MAX_HEADER_SIZE) {
+				throw new IOException("Part headers are too large");
+			}
+			if (line.isEmpty()) {
+				return headers;
+			}
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+	}
+
+	/**
+	 * Reads a line ending with CRLF.
+	 *
+	 * @return the line without its end
+	 * @throws IOException if the body ends or the line is too long
+	 */
+	private String readLine() throws IOException {
+		while (true) {
+			for (int i = position; i + 1 < limit; i++) {
+				if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+					String line = new String(buffer, position, i - position, StandardCharsets.UTF_8);
+					position = i + 2;
+					return line;
+				}
+			}
+			if (limit - position >= MAX_HEADER_SIZE || !fill()) {
+				throw new IOException("Malformed part headers");
+			}
+		}
+	}
+
+	/**
+	 * Finds the delimiter among the buffered bytes.
+	 *
+	 * @return index of the delimiter or -1 if it is not buffered completely
+	 */
+	private int indexOfDelimiter() {
+		byte first = delimiter[0];
+		int last = limit - delimiter.length;
+		outer: for (int i = position; i <= last; i++) {
+			if (buffer[i] != first) {
+				continue;
+			}
+			for (int j = 1; j < delimiter.length; j++) {
+				if (buffer[i + j] != delimiter[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Makes sure a number of bytes is buffered, unless the body ends first.
+	 *
+	 * @param count number of bytes
+	 * @throws IOException if the body can not be read
+	 */
+	private void ensure(int count) throws IOException {
+		while (limit - position < count && fill()) {
+			// keep reading
+		}
+	}
+
+	/**
+	 * Moves unprocessed bytes to the start of the buffer and reads more.
+	 *
+	 * @return false if the body has ended
+	 * @throws IOException if the body can not be read
+	 */
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		int n = in.read(buffer, limit, buffer.length - limit);
+		if (n < 0) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	/**
+	 * Parses a header value with parameters, such as
+	 * <code>form-data; name="file"; filename="a.txt"</code>.
+	 *
+	 * @param value the header value
+	 * @param params map parameters are put into by their lower case names
+	 * @return the value before the parameters
+	 */
+	static String parseHeaderValue(String value, Map<String, String> params) {
+		int semicolon = value.indexOf(';');
+		String main = (semicolon < 0 ? value : value.substring(0, semicolon)).trim();
+		int i = semicolon < 0 ? value.length() : semicolon + 1;
+		while (i < value.length()) {
+			int eq = value.indexOf('=', i);
+			int next = value.indexOf(';', i);
+			if (eq < 0 || next >= 0 && next < eq) {
+				i = next < 0 ? value.length() : next + 1;
+				continue;
+			}
+			String name = value.substring(i, eq).trim().toLowerCase();
+			StringBuilder sb = new StringBuilder();
+			i = eq + 1;
+			while (i < value.length() && value.charAt(i) == ' ') i++;
+			if (i < value.length() && value.charAt(i) == '"') {
+				// browsers do not escape backslashes, so they are kept as they are
+				for (i++; i < value.length() && value.charAt(i) != '"'; i++) {
+					sb.append(value.charAt(i));
+				}
+				i = value.indexOf(';', i);
+				i = i < 0 ? value.length() : i + 1;
+			} else {
+				int end = value.indexOf(';', i);
+				end = end < 0 ? value.length() : end;
+				sb.append(value, i, end);
+				i = end + 1;
+			}
+			params.put(name, sb.toString().trim());
+		}
+		return main;
+	}
+
+	/**
+	 * Strips the directories some browsers send with the name of an uploaded
+	 * file.
+	 *
+	 * @param fileName the file name, may be null
+	 * @return the name without directories
+	 */
+	private static String fileName(String fileName) {
+		if (fileName == null) {
+			return null;
+		}
+		return fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+	}
+
+	/**
+	 * Destination of the content of a part. Content is collected in memory
+	 * until the memory threshold of the body would be exceeded, then it is
+	 * moved to a temporary file.
+	 */
+	private final class Sink {
+
+		/** Content kept in memory, null once it is in a file. */
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+
+		/** The temporary file, null while the content is in memory. */
+		private Path file;
+
+		/** Stream of the temporary file. */
+		private OutputStream out;
+
+		/** Size of the content. */
+		private long size;
+
+		/**
+		 * Writes bytes of the content.
+		 *
+		 * @param b the bytes
+		 * @param off offset of the first byte
+		 * @param len number of bytes
+		 * @throws IOException if the temporary file can not be written
+		 */
+		void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			size += len;
+			if (memory != null && memoryUsed + len <= memoryThreshold) {
+				memory.write(b, off, len);
+				memoryUsed += len;
+				return;
+			}
+			if (memory != null) {
+				file = directory == null ? Files.createTempFile("upload-", ".part")
+						: Files.createTempFile(directory, "upload-", ".part");
+				out = Files.newOutputStream(file);
+				memory.writeTo(out);
+				memoryUsed -= memory.size();
+				memory = null;
+			}
+			out.write(b, off, len);
+		}
+
+		/**
+		 * Closes the temporary file, deleting it if the part is incomplete.
+		 *
+		 * @param complete true if the whole part has been written
+		 * @throws IOException if the file can not be closed
+		 */
+		void close(boolean complete) throws IOException {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.close();
+			} finally {
+				if (!complete) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+
+		/**
+		 * Creates the part of the written content.
+		 *
+		 * @param name name of the form field
+		 * @param fileName name of the uploaded file, may be null
+		 * @param headers headers of the part
+		 * @return the part
+		 */
+		Part toPart(String name, String fileName, Map<String, String> headers) {
+			return new Part(name, fileName, headers, memory == null ? null : memory.toByteArray(), file, size);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package hr.fer.zemris.java.webserver.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A part of a <code>multipart/form-data</code> request body, either a form
+ * field or an uploaded file. Small parts are kept in memory, larger ones in a
+ * temporary file that is deleted together with the part.
+ *
+ * @author Ante Spajic
+ */
+public final class Part {
+
+	/** Name of the form field. */
+	private final String name;
+
+	/** Name of the uploaded file, null for plain fields. */
+	private final String fileName;
+
+	/** Headers of the part by their lower case names. */
+	private final Map<String, String> headers;
+
+	/** Content of a part kept in memory, null if it is in a file. */
+	private final byte[] data;
+
+	/** File holding the content, null if it is in memory. */
+	private Path file;
+
+	/** Size of the content in bytes. */
+	private final long size;
+
+	/**
+	 * Instantiates a new part.
+	 *
+	 * @param name name of the form field
+	 * @param fileName name of the uploaded file, may be null
+	 * @param headers headers by their lower case names
+	 * @param data content kept in memory, null if it is in a file
+	 * @param file file holding the content, null if it is in memory
+	 * @param size size of the content in bytes
+	 */
+	Part(String name, String fileName, Map<String, String> headers, byte[] data, Path file, long size) {
+		this.name = name;
+		this.fileName = fileName;
+		this.headers = Collections.unmodifiableMap(headers);
+		this.data = data;
+		this.file = file;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the name of the form field this part belongs to.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the name of the uploaded file, without directories.
+	 *
+	 * @return the file name or null if the part is a plain field
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Returns the size of the content.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the value of a header of this part.
+	 *
+	 * @param name name of the header, case is ignored
+	 * @return the value or null if the header is not present
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * Returns the content type of this part.
+	 *
+	 * @return the content type, <code>text/plain</code> if none is given
+	 */
+	public String getContentType() {
+		String type = headers.get("content-type");
+		return type == null ? "text/plain" : type;
+	}
+
+	/**
+	 * Checks if the content of this part is kept in memory.
+	 *
+	 * @return true if the content is in memory
+	 */
+	public boolean isInMemory() {
+		return data != null;
+	}
+
+	/**
+	 * Opens a stream of the content.
+	 *
+	 * @return stream of the content
+	 * @throws IOException if the temporary file can not be read
+	 */
+	public InputStream getInputStream() throws IOException {
+		if (data != null) {
+			return new ByteArrayInputStream(data);
+		}
+		if (file == null) {
+			throw new IOException("Part has been deleted");
+		}
+		return Files.newInputStream(file);
+	}
+
+	/**
+	 * Returns the content as a string. Meant for form fields, the content of a
+	 * large file is read into memory.
+	 *
+	 * @param charset charset of the content
+	 * @return the content
+	 * @throws IOException if the temporary file can not be read
+	 */
+	public String getString(Charset charset) throws IOException {
+		if (data != null) {
+			return new String(data, charset);
+		}
+		if (file == null) {
+			throw new IOException("Part has been deleted");
+		}
+		return new String(Files.readAllBytes(file), charset);
+	}
+
+	/**
+	 * Saves the content to a file. The temporary file of a large part is
+	 * moved, so the part can not be read afterwards.
+	 *
+	 * @param target the file to save the content to
+	 * @throws IOException if the content can not be saved
+	 */
+	public void write(Path target) throws IOException {
+		if (data != null) {
+			Files.write(target, data);
+			return;
+		}
+		if (file == null) {
+			throw new IOException("Part has been deleted");
+		}
+		Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+		file = null;
+	}
+
+	/**
+	 * Deletes the temporary file of this part, if there is one.
+	 */
+	public void delete() {
+		if (file == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			System.err.println("Couldn't delete " + file + ": " + e.getMessage());
+		}
+		file = null;
+	}
+}
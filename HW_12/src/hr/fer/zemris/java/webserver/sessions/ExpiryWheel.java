@@ -0,0 +1,92 @@
+package hr.fer.zemris.java.webserver.sessions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hashed timer wheel of session expiry times. A session is put into the slot
+ * of the tick its expiry time falls into and is only looked at again when the
+ * wheel reaches that slot, so the cost of expiry does not depend on the number
+ * of live sessions. Prolonging a session does not move it: when its slot is
+ * reached the session is checked and, if it is still valid, put into the slot
+ * of its new expiry time. Expiry times more than one rotation away are handled
+ * the same way.
+ *
+ * @author Ante Spajic
+ */
+class ExpiryWheel {
+
+	/** Duration of a tick in milliseconds. */
+	private final long tick;
+
+	/** Slots of the wheel, the number of slots is a power of two. */
+	private final List<ConcurrentLinkedQueue<Session>> slots;
+
+	/** Mask of a tick number that gives its slot. */
+	private final int mask;
+
+	/** Number of the next tick to process. */
+	private long cursor;
+
+	/**
+	 * Instantiates a new expiry wheel.
+	 *
+	 * @param tick duration of a tick in milliseconds
+	 * @param slotCount number of slots, rounded up to a power of two
+	 * @param now the current time in milliseconds
+	 */
+	ExpiryWheel(long tick, int slotCount, long now) {
+		int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+		this.tick = tick;
+		this.mask = size - 1;
+		this.slots = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			slots.add(new ConcurrentLinkedQueue<>());
+		}
+		this.cursor = now / tick;
+	}
+
+	/**
+	 * Schedules a session for its current expiry time. May be called from any
+	 * thread.
+	 *
+	 * @param session the session
+	 */
+	void schedule(Session session) {
+		long deadline = session.getValidUntil() / tick + 1;
+		slots.get((int) (deadline & mask)).add(session);
+	}
+
+	/**
+	 * Processes all ticks up to the current time. Must only be called from a
+	 * single thread.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return sessions that have expired and have been ended
+	 */
+	List<Session> advance(long now) {
+		List<Session> expired = new ArrayList<>();
+		List<Session> later = new ArrayList<>();
+		long last = now / tick;
+		if (last - cursor > mask) {
+			// every slot is due, there is no point in visiting one more than once
+			cursor = last - mask;
+		}
+		for (; cursor <= last; cursor++) {
+			ConcurrentLinkedQueue<Session> slot = slots.get((int) (cursor & mask));
+			Session session;
+			while ((session = slot.poll()) != null) {
+				if (session.expire(now)) {
+					expired.add(session);
+				} else if (!session.isEnded()) {
+					later.add(session);
+				}
+			}
+		}
+		for (Session session : later) {
+			schedule(session);
+		}
+		return expired;
+	}
+}
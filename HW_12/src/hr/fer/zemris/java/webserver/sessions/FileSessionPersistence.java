@@ -0,0 +1,120 @@
+package hr.fer.zemris.java.webserver.sessions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps sessions in a single local file. The file is written next to its
+ * final location first and then moved over it, so a crash while saving never
+ * leaves a partially written file behind.
+ *
+ * @author Ante Spajic
+ */
+public class FileSessionPersistence implements SessionPersistence {
+
+	/** Marks the start of a session file and its format version. */
+	private static final int MAGIC = 0x53455331;
+
+	/** Maximum length of a string, a longer one means the file is corrupt. */
+	private static final int MAX_STRING_LENGTH = 1 << 20;
+
+	/** The session file. */
+	private final Path file;
+
+	/**
+	 * Instantiates a new file session persistence.
+	 *
+	 * @param file the session file
+	 */
+	public FileSessionPersistence(Path file) {
+		this.file = file;
+	}
+
+	@Override
+	public Collection<Session> load() throws IOException {
+		List<Session> sessions = new ArrayList<>();
+		if (!Files.exists(file)) {
+			return sessions;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a session file: " + file);
+			}
+			for (int i = 0, n = in.readInt(); i < n; i++) {
+				String id = readString(in);
+				long validUntil = in.readLong();
+				Map<String, String> parameters = new HashMap<>();
+				for (int j = 0, m = in.readInt(); j < m; j++) {
+					parameters.put(readString(in), readString(in));
+				}
+				sessions.add(new Session(id, validUntil, parameters));
+			}
+		} catch (EOFException e) {
+			throw new IOException("Truncated session file: " + file, e);
+		}
+		return sessions;
+	}
+
+	@Override
+	public void save(Collection<Session> sessions) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(sessions.size());
+			for (Session session : sessions) {
+				writeString(out, session.getId());
+				out.writeLong(session.getValidUntil());
+				Map<String, String> parameters = new HashMap<>(session.getParameters());
+				out.writeInt(parameters.size());
+				for (Map.Entry<String, String> e : parameters.entrySet()) {
+					writeString(out, e.getKey());
+					writeString(out, e.getValue());
+				}
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes a length prefixed UTF-8 string.
+	 *
+	 * @param out the output
+	 * @param s the string
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a length prefixed UTF-8 string.
+	 *
+	 * @param in the input
+	 * @return the string
+	 * @throws IOException if an I/O error occurs or the length is out of range
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_STRING_LENGTH) {
+			throw new IOException("Corrupt session file, string of " + length + " bytes");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
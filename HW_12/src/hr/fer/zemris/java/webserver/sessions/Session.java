@@ -0,0 +1,115 @@
+package hr.fer.zemris.java.webserver.sessions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A user session, identified by the value of its <code>sid</code> cookie. The
+ * expiry time is kept in an atomic so requests can prolong the session and the
+ * expiry thread can end it without any locking: once a session has expired it
+ * can never be prolonged again.
+ *
+ * @author Ante Spajic
+ */
+public final class Session {
+
+	/** Expiry time of a session that has been ended. */
+	private static final long ENDED = Long.MIN_VALUE;
+
+	/** The session ID. */
+	private final String id;
+
+	/** Time in milliseconds when this session expires. */
+	private final AtomicLong validUntil;
+
+	/** Persistent parameters of this session. */
+	private final Map<String, String> parameters;
+
+	/**
+	 * Instantiates a new session.
+	 *
+	 * @param id the session ID
+	 * @param validUntil time in milliseconds when the session expires
+	 * @param parameters persistent parameters of the session
+	 */
+	public Session(String id, long validUntil, Map<String, String> parameters) {
+		this.id = id;
+		this.validUntil = new AtomicLong(validUntil);
+		this.parameters = new ConcurrentHashMap<>(parameters);
+	}
+
+	/**
+	 * Returns the session ID, the value of the <code>sid</code> cookie.
+	 *
+	 * @return the session ID
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the persistent parameters of this session. The map is shared by
+	 * concurrent requests of the session and can be modified.
+	 *
+	 * @return the parameters
+	 */
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Returns the time in milliseconds when this session expires.
+	 *
+	 * @return the expiry time, {@link Long#MIN_VALUE} if the session has ended
+	 */
+	public long getValidUntil() {
+		return validUntil.get();
+	}
+
+	/**
+	 * Prolongs this session unless it has already expired.
+	 *
+	 * @param now the current time in milliseconds
+	 * @param timeout session timeout in milliseconds
+	 * @return true if the session is still valid
+	 */
+	boolean refresh(long now, long timeout) {
+		while (true) {
+			long current = validUntil.get();
+			if (current < now) {
+				return false;
+			}
+			if (current >= now + timeout || validUntil.compareAndSet(current, now + timeout)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Ends this session if it has expired.
+	 *
+	 * @param now the current time in milliseconds
+	 * @return true if this call has ended the session
+	 */
+	boolean expire(long now) {
+		while (true) {
+			long current = validUntil.get();
+			if (current == ENDED || current >= now) {
+				return false;
+			}
+			if (validUntil.compareAndSet(current, ENDED)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Checks if this session has been ended.
+	 *
+	 * @return true if the session has ended
+	 */
+	boolean isEnded() {
+		return validUntil.get() == ENDED;
+	}
+}
@@ -0,0 +1,30 @@
+package hr.fer.zemris.java.webserver.sessions;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Storage {@link SessionStore} uses to keep sessions across server restarts.
+ * Sessions are loaded once when the store starts, saved periodically while it
+ * runs and saved once more when it stops.
+ *
+ * @author Ante Spajic
+ */
+public interface SessionPersistence {
+
+	/**
+	 * Loads previously saved sessions, expired ones are discarded by the store.
+	 *
+	 * @return the saved sessions, empty if there are none
+	 * @throws IOException if the sessions can not be read
+	 */
+	Collection<Session> load() throws IOException;
+
+	/**
+	 * Saves the live sessions, replacing previously saved ones.
+	 *
+	 * @param sessions the sessions to save
+	 * @throws IOException if the sessions can not be written
+	 */
+	void save(Collection<Session> sessions) throws IOException;
+}
@@ -0,0 +1,208 @@
+package hr.fer.zemris.java.webserver.sessions;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent store of user sessions. Looking up a session does not take any
+ * lock and prolongs it with a single atomic update. Expired sessions are
+ * removed by a daemon thread driving an {@link ExpiryWheel}, which only looks
+ * at the sessions due in the current tick instead of sweeping the whole store.
+ * <p>
+ * If a {@link SessionPersistence} is provided, sessions are loaded from it on
+ * {@link #start()} and saved to it on {@link #stop()}. The expiry thread also
+ * saves them every {@link #FLUSH_TICKS} ticks, so a server that is killed
+ * without being stopped loses at most the changes of the last minute.
+ *
+ * @author Ante Spajic
+ */
+public class SessionStore {
+
+	/** Duration of an expiry wheel tick in milliseconds. */
+	private static final long TICK = 1000;
+
+	/** Number of expiry wheel slots. */
+	private static final int SLOTS = 512;
+
+	/** Number of ticks between saves of the sessions by the expiry thread. */
+	private static final int FLUSH_TICKS = 60;
+
+	/** Length of a session ID. */
+	private static final int ID_LENGTH = 20;
+
+	/** Live sessions by their IDs. */
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+	/** Session timeout in milliseconds. */
+	private final long timeout;
+
+	/** Storage of sessions across restarts, null if sessions are not kept. */
+	private final SessionPersistence persistence;
+
+	/** Generator of session IDs. */
+	private final SecureRandom random = new SecureRandom();
+
+	/** The expiry wheel. */
+	private final ExpiryWheel wheel;
+
+	/** The expiry thread, null while the store is stopped. */
+	private Thread expiryThread;
+
+	/**
+	 * Instantiates a new session store.
+	 *
+	 * @param timeout session timeout in milliseconds
+	 * @param persistence storage of sessions across restarts, may be null
+	 */
+	public SessionStore(long timeout, SessionPersistence persistence) {
+		this.timeout = timeout;
+		this.persistence = persistence;
+		this.wheel = new ExpiryWheel(TICK, SLOTS, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the session with the provided ID and prolongs it.
+	 *
+	 * @param id the session ID
+	 * @return the session or null if it does not exist or has expired
+	 */
+	public Session get(String id) {
+		Session session = sessions.get(id);
+		if (session == null) {
+			return null;
+		}
+		if (!session.refresh(System.currentTimeMillis(), timeout)) {
+			sessions.remove(id, session);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Creates a new session with a unique random ID.
+	 *
+	 * @param parameters initial parameters of the session
+	 * @return the new session
+	 */
+	public Session create(Map<String, String> parameters) {
+		while (true) {
+			Session session = new Session(generateId(), System.currentTimeMillis() + timeout, parameters);
+			if (sessions.putIfAbsent(session.getId(), session) == null) {
+				wheel.schedule(session);
+				return session;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of live sessions.
+	 *
+	 * @return number of sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Loads persisted sessions and starts the expiry thread.
+	 */
+	public synchronized void start() {
+		if (expiryThread != null) {
+			return;
+		}
+		if (persistence != null) {
+			try {
+				long now = System.currentTimeMillis();
+				for (Session session : persistence.load()) {
+					if (session.getValidUntil() >= now && sessions.putIfAbsent(session.getId(), session) == null) {
+						wheel.schedule(session);
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Couldn't load sessions: " + e.getMessage());
+			}
+		}
+		expiryThread = new Thread(this::expire, "session-expiry");
+		expiryThread.setDaemon(true);
+		expiryThread.start();
+	}
+
+	/**
+	 * Stops the expiry thread and saves the live sessions.
+	 */
+	public synchronized void stop() {
+		if (expiryThread == null) {
+			return;
+		}
+		expiryThread.interrupt();
+		try {
+			expiryThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		expiryThread = null;
+		save();
+	}
+
+	/**
+	 * Saves the live sessions, if sessions are kept across restarts.
+	 */
+	private void save() {
+		if (persistence == null) {
+			return;
+		}
+		List<Session> live = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for (Session session : sessions.values()) {
+			if (session.getValidUntil() >= now) {
+				live.add(session);
+			}
+		}
+		try {
+			persistence.save(Collections.unmodifiableList(live));
+		} catch (IOException e) {
+			System.err.println("Couldn't save sessions: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Body of the expiry thread, advances the wheel every tick and saves the
+	 * sessions every {@link #FLUSH_TICKS} ticks.
+	 */
+	private void expire() {
+		int ticks = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(TICK);
+			} catch (InterruptedException e) {
+				return;
+			}
+			for (Session session : wheel.advance(System.currentTimeMillis())) {
+				sessions.remove(session.getId(), session);
+			}
+			if (++ticks == FLUSH_TICKS) {
+				ticks = 0;
+				save();
+			}
+		}
+	}
+
+	/**
+	 * Generates a random session ID of upper case letters.
+	 *
+	 * @return a new session ID
+	 */
+	private String generateId() {
+		char[] id = new char[ID_LENGTH];
+		for (int i = 0; i < id.length; i++) {
+			id[i] = (char) ('A' + random.nextInt(26));
+		}
+		return new String(id);
+	}
+}
@@ -0,0 +1,114 @@
+package hr.fer.zemris.java.webserver.sessions;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Tests for the expiry wheel and the transitions of a session between being
+ * refreshed and expired. Both are package-private parts of the store, so
+ * unlike the other tests these live in the package of the sessions; the
+ * store itself is tested through its public API in
+ * <code>hr.fer.zemris.java.webserver.tests.SessionStoreTests</code>.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class ExpiryWheelTests {
+
+	@Test
+	public void refreshRacingExpiry() throws Exception {
+		int rounds = 2000;
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		Session[] session = new Session[1];
+		boolean[] refreshed = new boolean[rounds];
+		AtomicBoolean failed = new AtomicBoolean();
+		Thread refresher = new Thread(() -> {
+			try {
+				for (int i = 0; i < rounds; i++) {
+					barrier.await();
+					refreshed[i] = session[0].refresh(100, 1000);
+					barrier.await();
+				}
+			} catch (Exception e) {
+				failed.set(true);
+			}
+		});
+		refresher.start();
+		for (int i = 0; i < rounds; i++) {
+			session[0] = new Session("ID", 100, Collections.<String, String>emptyMap());
+			barrier.await();
+			boolean expired = session[0].expire(101);
+			barrier.await();
+			assertTrue("exactly one of refresh and expiry wins", expired != refreshed[i]);
+			if (expired) {
+				assertTrue(session[0].isEnded());
+				assertFalse(session[0].refresh(100, 1000));
+			} else {
+				assertEquals(1100, session[0].getValidUntil());
+			}
+		}
+		refresher.join();
+		assertFalse(failed.get());
+	}
+
+	@Test
+	public void expiredSessionIsNotProlonged() {
+		Session session = new Session("ID", 100, Collections.<String, String>emptyMap());
+		assertTrue(session.expire(101));
+		assertFalse(session.expire(102));
+		assertFalse(session.refresh(50, 1000));
+		assertEquals(Long.MIN_VALUE, session.getValidUntil());
+	}
+
+	@Test
+	public void wheelWrapsPastItsSlots() {
+		ExpiryWheel wheel = new ExpiryWheel(1, 512, 0);
+		Session far = new Session("FAR", 1300, Collections.<String, String>emptyMap());
+		Session near = new Session("NEAR", 10, Collections.<String, String>emptyMap());
+		wheel.schedule(far);
+		wheel.schedule(near);
+		assertTrue(wheel.advance(5).isEmpty());
+		assertEquals(Arrays.asList(near), wheel.advance(11));
+		// the slot of the far session comes up twice before it expires
+		for (long now = 100; now <= 1300; now += 100) {
+			assertTrue("expired at " + now, wheel.advance(now).isEmpty());
+		}
+		assertFalse(far.isEnded());
+		assertEquals(Arrays.asList(far), wheel.advance(1301));
+		assertTrue(far.isEnded());
+	}
+
+	@Test
+	public void wheelRechecksProlongedSession() {
+		ExpiryWheel wheel = new ExpiryWheel(1, 512, 0);
+		Session session = new Session("ID", 10, Collections.<String, String>emptyMap());
+		wheel.schedule(session);
+		assertTrue(session.refresh(5, 600));
+		assertTrue(wheel.advance(20).isEmpty());
+		assertTrue(wheel.advance(605).isEmpty());
+		assertEquals(Arrays.asList(session), wheel.advance(606));
+	}
+
+	@Test
+	public void wheelCatchesUpAfterLongPause() {
+		ExpiryWheel wheel = new ExpiryWheel(1, 512, 0);
+		List<Session> all = new ArrayList<>();
+		for (int i = 0; i < 2000; i += 7) {
+			Session session = new Session("S" + i, i, Collections.<String, String>emptyMap());
+			wheel.schedule(session);
+			all.add(session);
+		}
+		List<Session> expired = wheel.advance(5000);
+		assertEquals(all.size(), expired.size());
+		assertTrue(expired.containsAll(all));
+		assertTrue(wheel.advance(10000).isEmpty());
+	}
+}
@@ -0,0 +1,200 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.exec.FragmentCache;
+import hr.fer.zemris.java.custom.scripting.exec.ScriptProgram;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Tests for caching the output of <code>{$CACHE$}</code> blocks, run through
+ * the engine the way the server runs scripts.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class FragmentCacheTests {
+
+	private RequestContext rc;
+	private ByteArrayOutputStream output;
+
+	private static ScriptProgram compile(String script) {
+		return new SmartScriptParser(script).getProgram();
+	}
+
+	private String run(ScriptProgram program, FragmentCache cache, String... parameters) {
+		Map<String, String> params = new HashMap<>();
+		Map<String, String> persistent = new HashMap<>();
+		output = new ByteArrayOutputStream();
+		rc = new RequestContext(output, params, persistent, new ArrayList<>());
+		for (String parameter : parameters) {
+			// p:name=value, pp:name=value or tp:name=value
+			String[] parts = parameter.split("[:=]");
+			if (parts[0].equals("p")) {
+				params.put(parts[1], parts[2]);
+			} else if (parts[0].equals("pp")) {
+				persistent.put(parts[1], parts[2]);
+			} else {
+				rc.setTemporaryParameter(parts[1], parts[2]);
+			}
+		}
+		new SmartScriptEngine(program, rc, cache).execute();
+		String response = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		return response.substring(response.indexOf("\r\n\r\n") + 4);
+	}
+
+	private String header() {
+		String response = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		return response.substring(0, response.indexOf("\r\n\r\n"));
+	}
+
+	@Test
+	public void hitReplaysOutput() {
+		FragmentCache cache = new FragmentCache(1 << 20);
+		ScriptProgram program = compile("a{$CACHE 60$}b{$= 1 2 + $}{$END$}c");
+		assertEquals("ab3c", run(program, cache));
+		assertEquals("ab3c", run(program, cache));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, program.getFragments().get(0).getHits());
+	}
+
+	@Test
+	public void keysSeparateParameters() {
+		FragmentCache cache = new FragmentCache(1 << 20);
+		ScriptProgram program = compile("{$CACHE 60$}{$= \"x\" \"-\" @paramGet $}{$END$}");
+		assertEquals("1", run(program, cache, "p:x=1"));
+		assertEquals("2", run(program, cache, "p:x=2"));
+		assertEquals("-", run(program, cache));
+		assertEquals("1", run(program, cache, "p:x=1"));
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void keysSeparatePersistentAndTemporaryParameters() {
+		FragmentCache cache = new FragmentCache(1 << 20);
+		ScriptProgram program = compile(
+				"{$CACHE 60$}{$= \"x\" \"-\" @pparamGet \"x\" \"-\" @tparamGet $}{$END$}");
+		assertEquals("1-", run(program, cache, "pp:x=1"));
+		assertEquals("-1", run(program, cache, "tp:x=1"));
+		assertEquals("11", run(program, cache, "pp:x=1", "tp:x=1"));
+		assertEquals("1-", run(program, cache, "pp:x=1", "p:x=9"));
+		assertEquals(1, cache.getHits());
+		assertEquals(3, cache.getMisses());
+	}
+
+	@Test
+	public void keysSeparateSameNameInDifferentBlocks() {
+		FragmentCache cache = new FragmentCache(1 << 20);
+		ScriptProgram program = compile("{$CACHE 60$}A{$END$}{$CACHE 60$}B{$END$}");
+		assertEquals("AB", run(program, cache));
+		assertEquals("AB", run(program, cache));
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test
+	public void entriesExpire() throws InterruptedException {
+		FragmentCache cache = new FragmentCache(1 << 20);
+		ScriptProgram program = compile("{$CACHE 0.05$}{$= \"x\" \"-\" @paramGet $}{$END$}");
+		assertEquals("1", run(program, cache, "p:x=1"));
+		assertEquals("1", run(program, cache, "p:x=1"));
+		assertEquals(1, cache.getHits());
+		Thread.sleep(100);
+		assertEquals("1", run(program, cache, "p:x=1"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void evictionIsBoundedByBytes() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			text.append('t');
+		}
+		// two entries of 1000 bytes and their overhead fit, three don't
+		FragmentCache cache = new FragmentCache(2600);
+		ScriptProgram program = compile("{$CACHE 60$}" + text + "{$= \"x\" \"-\" @paramGet $}{$END$}");
+		run(program, cache, "p:x=1");
+		run(program, cache, "p:x=2");
+		assertEquals(0, cache.getEvictions());
+		run(program, cache, "p:x=3");
+		assertEquals(1, cache.getEvictions());
+		assertTrue(cache.size() <= 2600);
+		run(program, cache, "p:x=3");
+		assertEquals(1, cache.getHits());
+		run(program, cache, "p:x=1");
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void outputLargerThanCacheIsNotKept() {
+		FragmentCache cache = new FragmentCache(100);
+		ScriptProgram program = compile("{$CACHE 60$}short{$END$}");
+		assertEquals("short", run(program, cache));
+		assertEquals("short", run(program, cache));
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void nestedBlocks() {
+		FragmentCache cache = new FragmentCache(1 << 20);
+		ScriptProgram program = compile("{$CACHE 60 \"outer\"$}o{$CACHE 60 \"inner\"$}"
+				+ "{$= \"x\" \"-\" @paramGet $}{$END$}{$= \"y\" \"-\" @paramGet $}{$END$}");
+		List<FragmentCache.Fragment> fragments = program.getFragments();
+		FragmentCache.Fragment outer = fragments.get(0).getName().equals("outer") ? fragments.get(0) : fragments.get(1);
+		FragmentCache.Fragment inner = outer == fragments.get(0) ? fragments.get(1) : fragments.get(0);
+		assertEquals("o1a", run(program, cache, "p:x=1", "p:y=a"));
+		assertEquals("o1a", run(program, cache, "p:x=1", "p:y=a"));
+		assertEquals(1, outer.getHits());
+		assertEquals(0, inner.getHits());
+		// only the outer block reads y, the inner one is reused
+		assertEquals("o1b", run(program, cache, "p:x=1", "p:y=b"));
+		assertEquals(2, outer.getMisses());
+		assertEquals(1, inner.getHits());
+		// the outer block depends on what the inner one reads
+		assertEquals("o2b", run(program, cache, "p:x=2", "p:y=b"));
+		assertEquals(3, outer.getMisses());
+		assertEquals(2, inner.getMisses());
+	}
+
+	@Test
+	public void hitReplaysMimeTypeAndParameterChanges() {
+		FragmentCache cache = new FragmentCache(1 << 20);
+		ScriptProgram program = compile("{$CACHE 60$}{$= \"text/plain\" @setMimeType $}a"
+				+ "{$= \"v\" \"t\" @tparamSet \"w\" \"u\" @pparamSet $}b{$END$}{$= \"t\" \"-\" @tparamGet $}");
+		assertEquals("abv", run(program, cache));
+		assertTrue(header().contains("text/plain"));
+		assertEquals("abv", run(program, cache));
+		assertEquals(1, cache.getHits());
+		assertTrue(header().contains("text/plain"));
+		assertEquals("v", rc.getTemporaryParameter("t"));
+		assertEquals("w", rc.getPersistentParameter("u"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void nonConstantParameterNameFails() {
+		ScriptProgram program = compile(
+				"{$CACHE 60$}{$= \"n\" \"x\" @tparamGet \"-\" @paramGet $}{$END$}");
+		run(program, new FragmentCache(1 << 20), "tp:n=x");
+	}
+
+	@Test
+	public void nonConstantParameterNameOutsideBlockWorks() {
+		ScriptProgram program = compile("{$= \"n\" \"x\" @tparamGet \"-\" @paramGet $}");
+		assertEquals("1", run(program, new FragmentCache(1 << 20), "tp:n=x", "p:x=1"));
+	}
+}
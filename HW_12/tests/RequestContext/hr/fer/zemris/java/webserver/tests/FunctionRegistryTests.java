@@ -0,0 +1,207 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.exec.FunctionRegistry;
+import hr.fer.zemris.java.custom.scripting.exec.ScriptFunction;
+import hr.fer.zemris.java.custom.scripting.exec.ScriptProgram;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Tests for functions registered in a {@link FunctionRegistry} and called from
+ * scripts, synchronously and asynchronously.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class FunctionRegistryTests {
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+	/** Number of tasks submitted to the executor of the registry. */
+	private final AtomicInteger submitted = new AtomicInteger();
+
+	private final FunctionRegistry registry = new FunctionRegistry(task -> {
+		submitted.incrementAndGet();
+		pool.execute(task);
+	});
+
+	@After
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Body of a test function.
+	 */
+	private interface Body {
+		Object apply(RequestContext rc, Object[] args) throws Exception;
+	}
+
+	private static ScriptFunction function(int arity, boolean async, Body body) {
+		return new ScriptFunction() {
+			@Override
+			public int getArity() {
+				return arity;
+			}
+
+			@Override
+			public boolean isAsync() {
+				return async;
+			}
+
+			@Override
+			public Object apply(RequestContext rc, Object[] args) throws Exception {
+				return body.apply(rc, args);
+			}
+		};
+	}
+
+	private String run(String script) {
+		ScriptProgram program = ScriptProgram.compile(new SmartScriptParser(script).getDocumentNode(), registry);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(output, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		new SmartScriptEngine(program, rc).execute();
+		String response = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		return response.substring(response.indexOf("\r\n\r\n") + 4);
+	}
+
+	@Test
+	public void namesAreCaseInsensitive() {
+		ScriptFunction upper = function(1, false, (rc, args) -> args[0].toString().toUpperCase());
+		registry.register("Upper", upper);
+		assertSame(upper, registry.get("upper"));
+		assertSame(upper, registry.get("UPPER"));
+		assertNull(registry.get("lower"));
+		assertEquals("ABC", run("{$= \"abc\" @uPPer $}"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void builtInFunctionsCanNotBeReplaced() {
+		registry.register("DecFmt", function(2, false, (rc, args) -> null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeArity() {
+		registry.register("f", function(-1, false, (rc, args) -> null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void executorIsRequired() {
+		new FunctionRegistry(null);
+	}
+
+	@Test
+	public void argumentsAreInPushOrder() {
+		registry.register("minus", function(2, false, (rc, args) -> (Integer) args[0] - (Integer) args[1]));
+		registry.register("minusAsync", function(2, true, (rc, args) -> (Integer) args[0] - (Integer) args[1]));
+		assertEquals("-1 -1", run("{$= 1 2 @minus \" \" 1 2 @minusAsync $}"));
+		assertEquals("-2-1", run("{$FOR i 0 2 1 $}{$= i 2 @minusAsync $}{$END$}"));
+	}
+
+	@Test
+	public void nullResultPushesAnEmptyString() {
+		registry.register("nothing", function(0, false, (rc, args) -> null));
+		registry.register("nothingAsync", function(0, true, (rc, args) -> null));
+		assertEquals("[][]", run("[{$= @nothing $}][{$= @nothingAsync $}]"));
+	}
+
+	@Test
+	public void usesFunctions() {
+		registry.register("f", function(0, false, (rc, args) -> "f"));
+		assertTrue(ScriptProgram.compile(new SmartScriptParser("{$= @f $}").getDocumentNode(), registry)
+				.usesFunctions());
+		assertFalse(ScriptProgram.compile(new SmartScriptParser("{$= 1 @g $}").getDocumentNode(), registry)
+				.usesFunctions());
+		assertEquals("1", run("{$= 1 @g $}"));
+	}
+
+	@Test
+	public void asyncCallsOfAPageRunAtTheSameTime() {
+		CyclicBarrier barrier = new CyclicBarrier(2);
+		// each call waits for the other one, so they only finish if they overlap
+		registry.register("meet", function(1, true, (rc, args) -> {
+			barrier.await(5, TimeUnit.SECONDS);
+			return args[0];
+		}));
+		assertEquals("a text b", run("{$= \"a\" @meet $} text {$= \"b\" @meet $}"));
+		assertEquals(2, submitted.get());
+	}
+
+	@Test
+	public void asyncCallsAreStartedWithTheProgram() {
+		CountDownLatch started = new CountDownLatch(1);
+		// the synchronous call runs first and only sees the lookup if it has
+		// been started before the script reached it
+		registry.register("before", function(0, false,
+				(rc, args) -> started.await(5, TimeUnit.SECONDS) ? "" : "late "));
+		registry.register("lookup", function(1, true, (rc, args) -> {
+			started.countDown();
+			return args[0];
+		}));
+		assertEquals("x", run("{$= @before $}{$= \"x\" @lookup $}"));
+	}
+
+	@Test
+	public void asyncCallsInLoopsAreNotPrefetched() {
+		registry.register("square", function(1, true, (rc, args) -> (Integer) args[0] * (Integer) args[0]));
+		assertEquals("0,1,4,9,", run("{$FOR i 0 4 1 $}{$= i @square \",\" $}{$END$}"));
+		assertEquals(4, submitted.get());
+	}
+
+	@Test
+	public void asyncCallsOfLaterTagsUseEarlierResults() {
+		registry.register("twice", function(1, true, (rc, args) -> args[0].toString() + args[0]));
+		assertEquals("abababab", run("{$= \"ab\" @twice @twice $}"));
+	}
+
+	@Test
+	public void runtimeExceptionsAreRethrown() {
+		registry.register("fail", function(0, true, (rc, args) -> {
+			throw new IllegalStateException("lookup failed");
+		}));
+		try {
+			run("{$= @fail $}");
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("lookup failed", e.getMessage());
+		}
+	}
+
+	@Test
+	public void checkedExceptionsAreWrapped() {
+		registry.register("io", function(0, false, (rc, args) -> {
+			throw new IOException("no connection");
+		}));
+		registry.register("ioAsync", function(0, true, (rc, args) -> {
+			throw new IOException("no connection");
+		}));
+		for (String script : Arrays.asList("{$= @io $}", "{$= @ioAsync $}")) {
+			try {
+				run(script);
+				fail(script);
+			} catch (RuntimeException e) {
+				assertEquals(script, "Script function failed: no connection", e.getMessage());
+				assertTrue(script, e.getCause() instanceof IOException);
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.HttpRequestParser;
+
+/**
+ * Tests for the incremental parser of request headers.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class HttpRequestParserTests {
+
+	private final HttpRequestParser parser = new HttpRequestParser();
+
+	private static byte[] bytes(String request) {
+		return request.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private boolean parse(String request) {
+		byte[] data = bytes(request);
+		parser.reset();
+		return parser.parse(ByteBuffer.wrap(data), data.length);
+	}
+
+	private Map<String, String> parameters(String target) {
+		assertTrue(parse("GET " + target + " HTTP/1.1\r\n\r\n"));
+		Map<String, String> parameters = new HashMap<>();
+		parser.parseParameters(parameters);
+		return parameters;
+	}
+
+	@Test
+	public void requestLineAndHeaders() {
+		String request = "GET /some/path?a=1 HTTP/1.1\r\nHost: localhost\r\nAccept:text/html  \r\n\r\n";
+		assertTrue(parse(request + "next request"));
+		assertEquals(request.length(), parser.getLength());
+		assertTrue(parser.isValid());
+		assertTrue(parser.isMethod("get"));
+		assertFalse(parser.isMethod("POST"));
+		assertEquals("GET", parser.getMethod());
+		assertTrue(parser.isVersion("http/1.1"));
+		assertFalse(parser.isVersion("HTTP/1.0"));
+		assertEquals("/some/path", parser.getPath());
+		assertTrue(parser.hasQuery());
+		assertEquals(2, parser.getHeaderCount());
+		assertEquals("localhost", parser.getHeader("HOST"));
+		assertEquals("text/html", parser.getHeader("accept"));
+		assertNull(parser.getHeader("Cookie"));
+		assertTrue(parser.headerContains("Accept", "HTML"));
+		assertFalse(parser.headerContains("Accept", "json"));
+	}
+
+	@Test
+	public void headerSplitAcrossReads() {
+		byte[] data = bytes("POST /form HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n\r\n");
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		parser.reset();
+		for (int limit = 0; limit < data.length; limit++) {
+			assertFalse(parser.parse(buffer, limit));
+			assertEquals(-1, parser.getLength());
+		}
+		assertTrue(parser.parse(buffer, data.length));
+		assertTrue(parser.parse(buffer, data.length));
+		assertEquals(data.length, parser.getLength());
+		assertTrue(parser.isMethod("POST"));
+		assertEquals("/form", parser.getPath());
+		assertEquals("localhost", parser.getHeader("Host"));
+		assertEquals("3", parser.getHeader("Content-Length"));
+	}
+
+	@Test
+	public void resetStartsANewRequest() {
+		assertTrue(parse("GET /first HTTP/1.1\r\nA: 1\r\n\r\n"));
+		assertEquals("/first", parser.getPath());
+		assertTrue(parse("GET /second HTTP/1.1\r\n\r\n"));
+		assertEquals("/second", parser.getPath());
+		assertEquals(0, parser.getHeaderCount());
+		assertNull(parser.getHeader("A"));
+	}
+
+	@Test
+	public void bareLineFeeds() {
+		String request = "GET /a HTTP/1.1\nHost: x\r\nAccept: y\n\n";
+		assertTrue(parse(request));
+		assertEquals(request.length(), parser.getLength());
+		assertTrue(parser.isValid());
+		assertTrue(parser.isVersion("HTTP/1.1"));
+		assertEquals("x", parser.getHeader("Host"));
+		assertEquals("y", parser.getHeader("Accept"));
+
+		assertTrue(parse("GET /a HTTP/1.1\nHost: x\n\r\n"));
+		assertEquals("x", parser.getHeader("Host"));
+	}
+
+	@Test
+	public void leadingEmptyLinesAreSkipped() {
+		String request = "\r\n\nGET /a HTTP/1.1\r\n\r\n";
+		assertTrue(parse(request));
+		assertEquals(request.length(), parser.getLength());
+		assertEquals("/a", parser.getPath());
+
+		parser.reset();
+		assertFalse(parser.parse(ByteBuffer.wrap(bytes("\r\n\r\n")), 4));
+	}
+
+	@Test
+	public void foldedHeaderLines() {
+		assertTrue(parse("GET / HTTP/1.1\r\nX-Long: first\r\n  second\r\n\tthird\r\nY: 1\r\n\r\n"));
+		assertEquals(2, parser.getHeaderCount());
+		assertEquals("first  second\tthird", parser.getHeader("X-Long"));
+		assertEquals("1", parser.getHeader("Y"));
+	}
+
+	@Test
+	public void linesWithoutANameAreIgnored() {
+		assertTrue(parse("GET / HTTP/1.1\r\n: value\r\nno colon\r\nA:\r\n\r\n"));
+		assertEquals(1, parser.getHeaderCount());
+		assertEquals("", parser.getHeader("A"));
+	}
+
+	@Test
+	public void malformedRequestLines() {
+		for (String line : Arrays.asList("GET", "GET /a", "GET /a ", "GET a HTTP/1.1", "GET  /a HTTP/1.1",
+				" GET /a HTTP/1.1", "GET /a HTTP/1.1 extra", "GET /a  HTTP/1.1", "/a HTTP/1.1")) {
+			assertTrue(line, parse(line + "\r\nHost: x\r\n\r\n"));
+			assertFalse(line, parser.isValid());
+			assertFalse(line, parser.isMethod("GET"));
+			assertFalse(line, parser.isVersion("HTTP/1.1"));
+			assertEquals(line, "", parser.getMethod());
+			assertEquals(line, "", parser.getPath());
+			assertFalse(line, parser.hasQuery());
+			assertEquals(line, "x", parser.getHeader("Host"));
+		}
+	}
+
+	@Test
+	public void oversizedHeaderIsIncomplete() {
+		StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\nX-Large: ");
+		while (sb.length() < 9000) {
+			sb.append("0123456789");
+		}
+		byte[] data = Arrays.copyOf(bytes(sb.toString()), 8192);
+		parser.reset();
+		assertFalse(parser.parse(ByteBuffer.wrap(data), data.length));
+		assertEquals(-1, parser.getLength());
+	}
+
+	@Test
+	public void manyAndLongHeaders() {
+		StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+		for (int i = 0; i < 100; i++) {
+			sb.append("H").append(i).append(": ").append(i).append("\r\n");
+		}
+		char[] value = new char[5000];
+		Arrays.fill(value, 'v');
+		sb.append("Long: ").append(value).append("\r\n\r\n");
+		assertTrue(parse(sb.toString()));
+		assertEquals(101, parser.getHeaderCount());
+		assertEquals("0", parser.getHeader("H0"));
+		assertEquals("99", parser.getHeader("H99"));
+		assertEquals(new String(value), parser.getHeader("Long"));
+	}
+
+	@Test
+	public void parametersAreDecoded() {
+		Map<String, String> parameters = parameters("/a?name=J%C3%BCrgen+M&x%20y=%41%42&plus=%2B&empty=&flag");
+		assertEquals("Jürgen M", parameters.get("name"));
+		assertEquals("AB", parameters.get("x y"));
+		assertEquals("+", parameters.get("plus"));
+		assertEquals("", parameters.get("empty"));
+		assertEquals("", parameters.get("flag"));
+		assertEquals(5, parameters.size());
+		assertEquals("/a", parser.getPath());
+	}
+
+	@Test
+	public void invalidEscapesAreKept() {
+		Map<String, String> parameters = parameters("/?a=%zz&b=%4&c=100%&d=%G1%41&e=%%41");
+		assertEquals("%zz", parameters.get("a"));
+		assertEquals("%4", parameters.get("b"));
+		assertEquals("100%", parameters.get("c"));
+		assertEquals("%G1A", parameters.get("d"));
+		assertEquals("%A", parameters.get("e"));
+	}
+
+	@Test
+	public void repeatedParametersKeepTheLastValue() {
+		Map<String, String> parameters = parameters("/?a=1&b=2&a=3&&=4&a");
+		assertEquals(2, parameters.size());
+		assertEquals("", parameters.get("a"));
+		assertEquals("2", parameters.get("b"));
+		assertEquals("3", parameters("/?a=1&a=3").get("a"));
+	}
+
+	@Test
+	public void noQuery() {
+		assertTrue(parameters("/a").isEmpty());
+		assertFalse(parser.hasQuery());
+		assertTrue(parameters("/a?").isEmpty());
+		assertTrue(parser.hasQuery());
+		assertEquals("/a", parser.getPath());
+	}
+
+	@Test
+	public void bodyParameters() {
+		byte[] body = bytes("a=x+y&b=%C5%A1&a=z&ignored");
+		Map<String, String> parameters = new HashMap<>();
+		HttpRequestParser.parseParameters(body, body.length - "&ignored".length(), parameters);
+		assertEquals(2, parameters.size());
+		assertEquals("z", parameters.get("a"));
+		assertEquals("š", parameters.get("b"));
+	}
+
+	@Test
+	public void cookies() {
+		assertTrue(parse("GET / HTTP/1.1\r\nCookie: a=1; b = two ;c=;=d; e;f=x=y\r\nHost: x\r\ncookie: sid=abc\r\n\r\n"));
+		List<String> cookies = new ArrayList<>();
+		parser.parseCookies((name, value) -> cookies.add(name + "|" + value));
+		assertEquals(Arrays.asList("a|1", "b|two", "f|x=y", "sid|abc"), cookies);
+
+		assertTrue(parse("GET / HTTP/1.1\r\nHost: x\r\n\r\n"));
+		parser.parseCookies((name, value) -> fail());
+	}
+}
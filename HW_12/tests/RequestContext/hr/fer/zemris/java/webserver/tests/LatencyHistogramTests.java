@@ -0,0 +1,150 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.metrics.LatencyHistogram;
+
+/**
+ * Tests for the quantiles computed by the latency histogram.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class LatencyHistogramTests {
+
+	/** The largest value told apart from larger ones. */
+	private static final long MAX_VALUE = (1L << 36) - 1;
+
+	@Test
+	public void empty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertArrayEquals(new long[3], histogram.quantiles(0.5, 0.99, 1));
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getSum());
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+		assertArrayEquals(new long[] { 1, 1, 5, 6, 9, 10, 10 }, histogram.quantiles(0, 0.1, 0.5, 0.51, 0.9, 0.91, 1));
+		assertEquals(10, histogram.getCount());
+		assertEquals(55, histogram.getSum());
+
+		histogram = new LatencyHistogram();
+		for (int i = 0; i < 32; i++) {
+			histogram.record(i);
+		}
+		// values below 32 still have a bucket each
+		assertArrayEquals(new long[] { 0, 15, 16, 31 }, histogram.quantiles(0, 0.5, 0.51, 1));
+	}
+
+	@Test
+	public void largeValuesAreReportedAsTheTopOfTheirBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(32);
+		histogram.record(500);
+		histogram.record(1000000);
+		// 32 and 33 share a bucket, 500 is in 496..511, 1000000 in 983040..1015807
+		assertArrayEquals(new long[] { 33, 511, 1015807 }, histogram.quantiles(0.3, 0.6, 1));
+	}
+
+	@Test
+	public void relativeErrorIsBounded() {
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			long value = (long) Math.pow(2, random.nextDouble() * 36) - 1;
+			LatencyHistogram histogram = new LatencyHistogram();
+			histogram.record(value);
+			long reported = histogram.quantiles(0.5)[0];
+			assertTrue(value + " reported as " + reported, reported >= value);
+			assertTrue(value + " reported as " + reported, reported - value <= value / 16);
+		}
+	}
+
+	@Test
+	public void quantilesOfAUniformDistribution() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1000; i >= 1; i--) {
+			histogram.record(i);
+		}
+		double[] quantiles = { 0.001, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1 };
+		long[] values = histogram.quantiles(quantiles);
+		for (int i = 0; i < quantiles.length; i++) {
+			long exact = Math.round(quantiles[i] * 1000);
+			assertTrue(quantiles[i] + ": " + values[i], values[i] >= exact && values[i] <= exact + exact / 16);
+			if (i > 0) {
+				assertTrue(values[i] >= values[i - 1]);
+			}
+		}
+		assertEquals(500500, histogram.getSum());
+	}
+
+	@Test
+	public void rareOutlierOnlyShowsInTheTail() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 999; i++) {
+			histogram.record(10);
+		}
+		histogram.record(5000000);
+		long[] values = histogram.quantiles(0.5, 0.99, 0.999, 0.9991, 1);
+		assertEquals(10, values[0]);
+		assertEquals(10, values[1]);
+		assertEquals(10, values[2]);
+		assertTrue(values[3] >= 5000000);
+		assertEquals(values[3], values[4]);
+	}
+
+	@Test
+	public void outOfRangeValuesAreClamped() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		histogram.record(MAX_VALUE + 1000);
+		histogram.record(Long.MAX_VALUE / 2);
+		assertArrayEquals(new long[] { 0, MAX_VALUE, MAX_VALUE }, histogram.quantiles(0.3, 0.6, 1));
+		assertEquals(3, histogram.getCount());
+		assertEquals(MAX_VALUE + 1000 + Long.MAX_VALUE / 2, histogram.getSum());
+	}
+
+	@Test
+	public void concurrentRecording() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		int threads = 8;
+		int values = 10000;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CyclicBarrier barrier = new CyclicBarrier(threads);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				long value = t < threads / 2 ? 10 : 20;
+				futures.add(pool.submit(() -> {
+					barrier.await();
+					for (int i = 0; i < values; i++) {
+						histogram.record(value);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(threads * values, histogram.getCount());
+		assertEquals(threads / 2 * values * 30L, histogram.getSum());
+		assertArrayEquals(new long[] { 10, 20 }, histogram.quantiles(0.5, 0.5001));
+	}
+}
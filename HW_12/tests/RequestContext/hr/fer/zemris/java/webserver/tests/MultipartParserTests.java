@@ -0,0 +1,160 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.multipart.MultipartParser;
+import hr.fer.zemris.java.webserver.multipart.Part;
+
+/**
+ * Tests for the streaming multipart parser, mostly the cases where the body
+ * arrives in pieces that don't line up with the boundary.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class MultipartParserTests {
+
+	private static final String BOUNDARY = "----form7MA4YWxkTrZu0gW";
+
+	/**
+	 * Stream that returns at most a given number of bytes per read.
+	 */
+	private static class TrickleInputStream extends InputStream {
+
+		private final InputStream in;
+		private final int step;
+
+		TrickleInputStream(byte[] data, int step) {
+			this.in = new ByteArrayInputStream(data);
+			this.step = step;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return in.read(b, off, Math.min(len, step));
+		}
+	}
+
+	private static byte[] body(boolean closed, byte[]... contents) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < contents.length; i++) {
+			String head = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"f" + i + "\"; filename=\"f" + i
+					+ ".bin\"\r\nContent-Type: application/octet-stream\r\n\r\n";
+			out.write(head.getBytes(StandardCharsets.ISO_8859_1), 0, head.length());
+			out.write(contents[i], 0, contents[i].length);
+			out.write('\r');
+			out.write('\n');
+		}
+		String end = closed ? "--" + BOUNDARY + "--\r\n" : "";
+		out.write(end.getBytes(StandardCharsets.ISO_8859_1), 0, end.length());
+		return out.toByteArray();
+	}
+
+	private static byte[] content(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			// dashes and line ends make partial delimiters appear in the content
+			data[i] = (byte) "ab\r\n--x-".charAt(i % 8);
+		}
+		return data;
+	}
+
+	private static byte[] read(Part part) throws IOException {
+		try (InputStream in = part.getInputStream()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	@Test
+	public void boundarySplitAcrossReads() throws IOException {
+		byte[] first = content(20000);
+		byte[] second = content(37);
+		byte[] body = body(true, first, second);
+		for (int step : new int[] { 1, 7, 29, 8191 }) {
+			List<Part> parts = new MultipartParser(new TrickleInputStream(body, step), BOUNDARY, 1 << 20, null)
+					.parse();
+			assertEquals(2, parts.size());
+			assertEquals("f0", parts.get(0).getName());
+			assertEquals("f1.bin", parts.get(1).getFileName());
+			assertArrayEquals(first, read(parts.get(0)));
+			assertArrayEquals(second, read(parts.get(1)));
+		}
+	}
+
+	@Test
+	public void partExactlyAtMemoryThreshold() throws IOException {
+		byte[] data = content(10000);
+		List<Part> parts = new MultipartParser(new TrickleInputStream(body(true, data), 100), BOUNDARY, 10000, null)
+				.parse();
+		assertTrue(parts.get(0).isInMemory());
+		assertEquals(10000, parts.get(0).getSize());
+		assertArrayEquals(data, read(parts.get(0)));
+	}
+
+	@Test
+	public void partOverMemoryThresholdGoesToFile() throws IOException {
+		byte[] data = content(10001);
+		List<Part> parts = new MultipartParser(new TrickleInputStream(body(true, data), 100), BOUNDARY, 10000, null)
+				.parse();
+		Part part = parts.get(0);
+		try {
+			assertFalse(part.isInMemory());
+			assertEquals(10001, part.getSize());
+			assertArrayEquals(data, read(part));
+		} finally {
+			part.delete();
+		}
+	}
+
+	@Test
+	public void thresholdIsSharedByParts() throws IOException {
+		byte[] data = content(6000);
+		List<Part> parts = new MultipartParser(new ByteArrayInputStream(body(true, data, data)), BOUNDARY, 10000,
+				null).parse();
+		try {
+			assertTrue(parts.get(0).isInMemory());
+			assertFalse(parts.get(1).isInMemory());
+			assertArrayEquals(data, read(parts.get(1)));
+		} finally {
+			parts.get(1).delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void missingClosingDelimiter() throws IOException {
+		new MultipartParser(new ByteArrayInputStream(body(false, content(100))), BOUNDARY, 1 << 20, null).parse();
+	}
+
+	@Test(expected = IOException.class)
+	public void missingClosingDelimiterOfLargePart() throws IOException {
+		new MultipartParser(new TrickleInputStream(body(false, content(50000)), 1000), BOUNDARY, 1000, null).parse();
+	}
+
+	@Test
+	public void boundaryOfContentType() {
+		assertEquals(BOUNDARY, MultipartParser.boundary("multipart/form-data; boundary=" + BOUNDARY));
+		assertEquals(BOUNDARY, MultipartParser.boundary("multipart/form-data; boundary=\"" + BOUNDARY + "\""));
+		assertNull(MultipartParser.boundary("application/x-www-form-urlencoded"));
+		assertNull(MultipartParser.boundary(null));
+	}
+}
@@ -2,17 +2,23 @@ package hr.fer.zemris.java.webserver.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.Test;
 
 import hr.fer.zemris.java.webserver.RequestContext;
+import hr.fer.zemris.java.webserver.ResponseCompression;
 import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
 
 /**
@@ -149,4 +155,148 @@ public class RequestContextTests {
 		output.close();;
 		expected.close();;
 	}
+	
+	@Test
+	public void bufferedContentLengthTest() throws IOException {
+		rc.setBufferSize(64);
+		rc.write("Test.");
+		rc.write("Super.".getBytes(StandardCharsets.UTF_8));
+		assertEquals("", output.toString());
+		rc.finish();
+		String expected = "HTTP/1.1 200 OK\r\n"
+				+ "Content-Type:text/html; charset=UTF-8\r\n"
+				+ "Content-Length: 11\r\n"
+				+ "\r\n"
+				+ "Test.Super.";
+		assertEquals(expected, output.toString());
+	}
+	
+	@Test
+	public void bufferedChunkedTest() throws IOException {
+		rc.setBufferSize(4);
+		rc.setKeepAlive(true);
+		rc.write("Test.Super.");
+		rc.finish();
+		String expected = "HTTP/1.1 200 OK\r\n"
+				+ "Content-Type:text/html; charset=UTF-8\r\n"
+				+ "Transfer-Encoding: chunked\r\n"
+				+ "\r\n"
+				+ "4\r\nTest\r\n"
+				+ "4\r\n.Sup\r\n"
+				+ "3\r\ner.\r\n"
+				+ "0\r\n\r\n";
+		assertEquals(expected, output.toString());
+		assertTrue(rc.isKeepAlive());
+	}
+	
+	@Test
+	public void bufferedFlushTest() throws IOException {
+		rc.setBufferSize(64);
+		rc.write("Test.");
+		rc.flush();
+		assertTrue(output.toString().endsWith("Transfer-Encoding: chunked\r\n\r\n5\r\nTest.\r\n"));
+		rc.finish();
+		assertTrue(output.toString().endsWith("5\r\nTest.\r\n0\r\n\r\n"));
+	}
+	
+	@Test
+	public void compressedContentLengthTest() throws IOException {
+		rc.setBufferSize(4096);
+		rc.setCompression(compression(), "gzip");
+		String text = body(2000);
+		rc.write(text);
+		rc.finish();
+		String header = header();
+		assertTrue(header.contains("Content-Encoding: gzip\r\n"));
+		assertTrue(header.contains("Vary: Accept-Encoding\r\n"));
+		byte[] body = body();
+		assertTrue(header.contains("Content-Length: " + body.length + "\r\n"));
+		assertEquals(text, decode(new GZIPInputStream(new ByteArrayInputStream(body))));
+	}
+	
+	@Test
+	public void compressedChunkedTest() throws IOException {
+		rc.setBufferSize(256);
+		rc.setCompression(compression(), "deflate");
+		String text = body(20000);
+		rc.write(text.substring(0, 1000));
+		rc.flush();
+		rc.write(text.substring(1000));
+		rc.finish();
+		String header = header();
+		assertTrue(header.contains("Content-Encoding: deflate\r\n"));
+		assertTrue(header.contains("Transfer-Encoding: chunked\r\n"));
+		assertEquals(text, decode(new InflaterInputStream(new ByteArrayInputStream(dechunk(body())))));
+	}
+	
+	@Test
+	public void compressionMinSizeTest() throws IOException {
+		rc.setBufferSize(4096);
+		rc.setCompression(compression(), "gzip");
+		rc.write("Test.");
+		rc.finish();
+		String header = header();
+		assertFalse(header.contains("Content-Encoding"));
+		assertTrue(header.contains("Vary: Accept-Encoding\r\n"));
+		assertEquals("Test.", new String(body(), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void compressionNegotiationTest() {
+		ResponseCompression compression = compression();
+		assertEquals("gzip", compression.negotiate("gzip, deflate, br"));
+		assertEquals("deflate", compression.negotiate("gzip;q=0.5, deflate"));
+		assertEquals("deflate", compression.negotiate("gzip;q=0, *"));
+		assertNull(compression.negotiate("identity"));
+		assertNull(compression.negotiate("*;q=0"));
+		assertNull(compression.negotiate(null));
+	}
+	
+	private static ResponseCompression compression() {
+		return new ResponseCompression(100, new String[] { "text/" }, 6, 2);
+	}
+	
+	private static String body(int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < length; i++) {
+			sb.append("<tr><td>").append(i).append("</td><td>").append(i * 7919 % 1000).append("</td></tr>\n");
+		}
+		return sb.toString();
+	}
+	
+	private String header() {
+		String text = new String(output.toByteArray(), StandardCharsets.ISO_8859_1);
+		return text.substring(0, text.indexOf("\r\n\r\n") + 2);
+	}
+	
+	private byte[] body() {
+		byte[] bytes = output.toByteArray();
+		int start = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("\r\n\r\n") + 4;
+		return Arrays.copyOfRange(bytes, start, bytes.length);
+	}
+	
+	private static byte[] dechunk(byte[] chunked) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		String text = new String(chunked, StandardCharsets.ISO_8859_1);
+		int i = 0;
+		while (true) {
+			int lineEnd = text.indexOf("\r\n", i);
+			int size = Integer.parseInt(text.substring(i, lineEnd), 16);
+			if (size == 0) {
+				return bos.toByteArray();
+			}
+			bos.write(chunked, lineEnd + 2, size);
+			i = lineEnd + 2 + size + 2;
+		}
+	}
+	
+	private static String decode(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) >= 0) {
+			bos.write(buffer, 0, n);
+		}
+		return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+	}
 }
@@ -0,0 +1,143 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.Router;
+import hr.fer.zemris.java.webserver.SmartHttpServer;
+import hr.fer.zemris.java.webserver.workers.HelloWorker;
+
+/**
+ * Tests for the route trie and the workers loaded under <code>/ext/</code>.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class RouterTests {
+
+	private final IWebWorker first = context -> {};
+	private final IWebWorker second = context -> {};
+
+	private static Router router() {
+		return new Router(SmartHttpServer.WORKERS_PACKAGE, RouterTests.class.getClassLoader());
+	}
+
+	@Test
+	public void staticRoutes() {
+		Router router = router();
+		router.add("/", first);
+		router.add("/hello/world", second);
+		assertSame(first, router.route("/").getWorker());
+		assertSame(second, router.route("/hello/world").getWorker());
+		assertEquals("/hello/world", router.route("/hello/world").getRoute());
+		assertTrue(router.route("/hello/world").getParameters().isEmpty());
+		assertNull(router.route("/hello"));
+		assertNull(router.route("/hello/world/"));
+		assertNull(router.route("/hello/worlds"));
+		assertNull(router.route(""));
+		assertNull(router.route("hello/world"));
+	}
+
+	@Test
+	public void staticSegmentWinsOverParameter() {
+		Router router = router();
+		router.add("/users/{id}", first);
+		router.add("/users/me", second);
+		assertSame(second, router.route("/users/me").getWorker());
+		Router.Match match = router.route("/users/42");
+		assertSame(first, match.getWorker());
+		assertEquals("/users/{id}", match.getRoute());
+		assertEquals(Collections.singletonMap("id", "42"), match.getParameters());
+		assertNull(router.route("/users/"));
+		assertNull(router.route("/users/42/posts"));
+	}
+
+	@Test
+	public void backtracksWhenStaticBranchDeadEnds() {
+		Router router = router();
+		router.add("/a/b/c", first);
+		router.add("/a/{x}/d", second);
+		assertSame(first, router.route("/a/b/c").getWorker());
+		Router.Match match = router.route("/a/b/d");
+		assertSame(second, match.getWorker());
+		assertEquals(Collections.singletonMap("x", "b"), match.getParameters());
+		assertNull(router.route("/a/b/e"));
+	}
+
+	@Test
+	public void severalParameters() {
+		Router router = router();
+		router.add("/users/{user}/posts/{post}", first);
+		Router.Match match = router.route("/users/ante/posts/7");
+		assertEquals(2, match.getParameters().size());
+		assertEquals("ante", match.getParameters().get("user"));
+		assertEquals("7", match.getParameters().get("post"));
+	}
+
+	@Test
+	public void parametersArePercentDecoded() {
+		Router router = router();
+		router.add("/users/{id}", first);
+		assertEquals("a b", router.route("/users/a%20b").getParameters().get("id"));
+		assertEquals("š", router.route("/users/%C5%A1").getParameters().get("id"));
+		assertEquals("a+b", router.route("/users/a+b").getParameters().get("id"));
+		assertEquals("%zz%2", router.route("/users/%zz%2").getParameters().get("id"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void clashingParameterRoutes() {
+		Router router = router();
+		router.add("/users/{id}", first);
+		router.add("/users/{name}", second);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void clashingStaticRoutes() {
+		Router router = router();
+		router.add("/hello", first);
+		router.add("/hello", second);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void routeWithoutSlash() {
+		router().add("hello", first);
+	}
+
+	@Test
+	public void extWorkerIsInstantiatedOnce() {
+		Router router = router();
+		Router.Match match = router.route("/ext/HelloWorker");
+		assertNotNull(match);
+		assertTrue(match.getWorker() instanceof HelloWorker);
+		assertSame(match.getWorker(), router.route("/ext/HelloWorker").getWorker());
+		assertNotSame(match.getWorker(), router().route("/ext/HelloWorker").getWorker());
+	}
+
+	@Test
+	public void extRejectsNonIdentifiers() {
+		Router router = router();
+		assertNull(router.route("/ext/"));
+		assertNull(router.route("/ext/../HelloWorker"));
+		assertNull(router.route("/ext/java.lang.Object"));
+		assertNull(router.route("/ext/HelloWorker/more"));
+		assertNull(router.route("/ext/1HelloWorker"));
+		assertNull(router.route("/ext/NoSuchWorker"));
+	}
+
+	@Test
+	public void extRejectsClassesThatAreNotWorkers() {
+		Router router = new Router("java.lang", RouterTests.class.getClassLoader());
+		assertNull(router.route("/ext/Object"));
+	}
+
+	@Test
+	public void configuredRouteWinsOverExt() {
+		Router router = router();
+		router.add("/ext/HelloWorker", first);
+		assertSame(first, router.route("/ext/HelloWorker").getWorker());
+	}
+}
@@ -0,0 +1,162 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.webserver.RequestContext;
+import hr.fer.zemris.java.webserver.ScriptCache;
+
+/**
+ * Tests for the cache of parsed smart scripts.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class ScriptCacheTests {
+
+	private Path directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("scripts");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	private Path script(String name, String body, long modified) throws IOException {
+		Path file = directory.resolve(name);
+		Files.write(file, body.getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+		return file;
+	}
+
+	private static String execute(ScriptCache cache, Path script) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(output, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		cache.execute(script, rc);
+		rc.finish();
+		String response = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		return response.substring(response.indexOf("\r\n\r\n") + 4);
+	}
+
+	@Test
+	public void hit() throws IOException {
+		ScriptCache cache = new ScriptCache(4);
+		Path script = script("a.smscr", "a{$= 1 2 + $}", 1000000);
+		DocumentNode document = cache.get(script);
+		assertSame(document, cache.get(script));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.size());
+		assertEquals("a3", execute(cache, script));
+		assertEquals(2, cache.getHits());
+	}
+
+	@Test
+	public void changedScriptIsParsedAgain() throws IOException {
+		ScriptCache cache = new ScriptCache(4);
+		Path script = script("a.smscr", "old", 1000000);
+		assertEquals("old", execute(cache, script));
+		script("a.smscr", "new", 2000000);
+		assertEquals("new", execute(cache, script));
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.size());
+		assertEquals("new", execute(cache, script));
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() throws IOException {
+		ScriptCache cache = new ScriptCache(2);
+		Path a = script("a.smscr", "a", 1000000);
+		Path b = script("b.smscr", "b", 1000000);
+		Path c = script("c.smscr", "c", 1000000);
+		DocumentNode documentA = cache.get(a);
+		cache.get(b);
+		// a is used again, so b is the least recently used one
+		cache.get(a);
+		cache.get(c);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertSame(documentA, cache.get(a));
+		long misses = cache.getMisses();
+		cache.get(b);
+		assertEquals(misses + 1, cache.getMisses());
+	}
+
+	@Test
+	public void disabledCacheParsesEveryTime() throws IOException {
+		ScriptCache cache = new ScriptCache(0);
+		Path script = script("a.smscr", "a", 1000000);
+		assertNotSame(cache.get(script), cache.get(script));
+		assertEquals(0, cache.size());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test(expected = NoSuchFileException.class)
+	public void missingScript() throws IOException {
+		new ScriptCache(4).get(directory.resolve("missing.smscr"));
+	}
+
+	@Test
+	public void concurrentRequestsParseOnce() throws Exception {
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			body.append("line ").append(i).append(" {$= i 2 * $}\n");
+		}
+		int threads = 8;
+		ScriptCache cache = new ScriptCache(4);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			// the first round loads the script, the later ones reload it
+			for (int round = 1; round <= 3; round++) {
+				Path script = script("a.smscr", body.toString(), round * 1000000);
+				CyclicBarrier barrier = new CyclicBarrier(threads);
+				List<Future<DocumentNode>> documents = new ArrayList<>();
+				for (int i = 0; i < threads; i++) {
+					documents.add(pool.submit(() -> {
+						barrier.await();
+						return cache.get(script);
+					}));
+				}
+				DocumentNode document = documents.get(0).get();
+				for (Future<DocumentNode> future : documents) {
+					assertSame(document, future.get());
+				}
+				assertEquals(round, cache.getMisses());
+				assertEquals(round * (threads - 1), cache.getHits());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.exec.ScriptProgram;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Tests for scripts flattened into instruction arrays and executed by the
+ * engine.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class ScriptProgramTests {
+
+	private ByteArrayOutputStream output;
+
+	private static ScriptProgram compile(String script) {
+		return ScriptProgram.compile(new SmartScriptParser(script).getDocumentNode());
+	}
+
+	private String run(ScriptProgram program, Map<String, String> persistent) {
+		output = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(output, new HashMap<>(), persistent, new ArrayList<>());
+		new SmartScriptEngine(program, rc).execute();
+		return body();
+	}
+
+	private String run(String script) {
+		return run(compile(script), new HashMap<>());
+	}
+
+	private String body() {
+		String response = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		int header = response.indexOf("\r\n\r\n");
+		return header < 0 ? response : response.substring(header + 4);
+	}
+
+	@Test
+	public void emptyScript() {
+		ScriptProgram program = compile("");
+		assertEquals(0, program.getCodeSize());
+		assertFalse(program.usesFunctions());
+		assertTrue(program.getFragments().isEmpty());
+		assertEquals("", run(program, new HashMap<>()));
+	}
+
+	@Test
+	public void constantEchoTagsAreMergedWithText() {
+		ScriptProgram program = compile("a{$= 1 \"b\" 2.5 $}c\n{$= \"d\" $}");
+		// a single TEXT instruction with its constant
+		assertEquals(2, program.getCodeSize());
+		assertEquals("a1b2.5c\nd", run(program, new HashMap<>()));
+	}
+
+	@Test
+	public void echoOfVariablesIsNotMerged() {
+		ScriptProgram program = compile("{$FOR i 0 2 1 $}a{$= i $}b{$END$}");
+		assertTrue(program.getCodeSize() > 2);
+		assertEquals("a0ba1b", run(program, new HashMap<>()));
+	}
+
+	@Test
+	public void operatorsAndStackFunctions() {
+		assertEquals("7", run("{$FOR i 3 4 1 $}{$= i 4 + $}{$END$}"));
+		assertEquals("-1 12 0.75", run("{$FOR i 3 4 1 $}{$= i 4 - \" \" i 4 * \" \" i 4.0 / $}{$END$}"));
+		assertEquals("33", run("{$FOR i 3 4 1 $}{$= i @dup $}{$END$}"));
+		assertEquals("x3", run("{$FOR i 3 4 1 $}{$= i \"x\" @swap $}{$END$}"));
+	}
+
+	@Test
+	public void loopVariableIsANumberFromTheFirstIteration() {
+		assertEquals("3.00;4.00;", run("{$FOR i 3 5 1 $}{$= i \"0.00\" @decfmt $};{$END$}"));
+		assertEquals("0.50;1.00;", run("{$FOR x 0.5 1.5 0.5 $}{$= x \"0.00\" @decfmt $};{$END$}"));
+		assertEquals("3.00;4.00;", run("{$FOR i \"3\" \"5\" \"1\" $}{$= i \"0.00\" @decfmt $};{$END$}"));
+	}
+
+	@Test
+	public void loopsJumpOverEmptyRanges() {
+		assertEquals("ab", run("a{$FOR i 5 5 1 $}never{$END$}{$FOR i 6 5 1 $}never{$END$}b"));
+		assertEquals("0 2 4 ", run("{$FOR i 0 5 2 $}{$= i \" \" $}{$END$}"));
+		assertEquals("0 0.5 ", run("{$FOR x 0.0 1.0 0.5 $}{$= x \" \" $}{$END$}"));
+	}
+
+	@Test
+	public void nestedLoopsUseASlotPerDepth() {
+		assertEquals("00 01 10 11 20 21 ", run("{$FOR i 0 3 1 $}{$FOR j 0 2 1 $}{$= i j \" \" $}{$END$}{$END$}"));
+		// the inner i hides the outer one and the outer one is seen again after it
+		assertEquals("560561", run("{$FOR i 0 2 1 $}{$FOR i 5 7 1 $}{$= i $}{$END$}{$= i $}{$END$}"));
+		assertEquals("ab|ab|", run("{$FOR i 0 2 1 $}{$FOR j 0 1 1 $}a{$END$}{$FOR k 0 1 1 $}b{$END$}|{$END$}"));
+	}
+
+	@Test
+	public void unknownFunctionsAreDropped() {
+		ScriptProgram program = compile("{$FOR i 1 2 1 $}{$= i @nosuchfunction $}{$END$}");
+		assertEquals("1", run(program, new HashMap<>()));
+		assertFalse(program.usesFunctions());
+	}
+
+	@Test
+	public void variableOutsideOfItsLoopFailsWhereItIsUsed() {
+		ScriptProgram program = compile("before{$= i $}after");
+		try {
+			run(program, new HashMap<>());
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("Variable i is used outside of its loop.", e.getMessage());
+		}
+		assertEquals("before", body());
+	}
+
+	@Test
+	public void poppingAnEmptyStackFails() {
+		try {
+			run("x{$FOR i 0 1 1 $}{$= i + $}{$END$}");
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("Echo tag pops more values than it pushes.", e.getMessage());
+		}
+		assertEquals("x", body());
+	}
+
+	@Test
+	public void loopWithoutStepFails() {
+		try {
+			run("x{$FOR i 0 3 $}y{$END$}");
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("FOR loop without a step expression can not be executed.", e.getMessage());
+		}
+		assertEquals("x", body());
+	}
+
+	@Test
+	public void programIsReusedAcrossExecutions() {
+		ScriptProgram program = compile("{$= \"count\" \"0\" @pparamGet 1 + \"count\" @pparamSet $}"
+				+ "{$FOR i 0 3 1 $}{$= i $}{$END$}");
+		Map<String, String> persistent = new HashMap<>();
+		for (int i = 1; i <= 3; i++) {
+			assertEquals("012", run(program, persistent));
+			assertEquals(String.valueOf(i), persistent.get("count"));
+		}
+	}
+
+	@Test
+	public void programIsExecutedConcurrently() throws Exception {
+		ScriptProgram program = compile("{$FOR i 0 50 1 $}{$FOR x 0.0 1.0 0.25 $}{$= i x * \",\" $}{$END$}{$END$}");
+		String expected = run(program, new HashMap<>());
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CyclicBarrier barrier = new CyclicBarrier(threads);
+			List<Future<String>> results = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				results.add(pool.submit(() -> {
+					barrier.await();
+					String result = null;
+					for (int i = 0; i < 50; i++) {
+						ByteArrayOutputStream output = new ByteArrayOutputStream();
+						RequestContext rc = new RequestContext(output, new HashMap<>(), new HashMap<>(),
+								new ArrayList<>());
+						new SmartScriptEngine(program, rc).execute();
+						result = new String(output.toByteArray(), StandardCharsets.UTF_8);
+						if (!result.endsWith(expected)) {
+							return result;
+						}
+					}
+					return result;
+				}));
+			}
+			for (Future<String> result : results) {
+				assertTrue(result.get().endsWith(expected));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
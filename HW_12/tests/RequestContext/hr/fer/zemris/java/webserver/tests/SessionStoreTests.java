@@ -0,0 +1,130 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.sessions.FileSessionPersistence;
+import hr.fer.zemris.java.webserver.sessions.Session;
+import hr.fer.zemris.java.webserver.sessions.SessionStore;
+
+/**
+ * Tests for the session store and the file sessions are kept in across
+ * restarts.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class SessionStoreTests {
+
+	private Path directory;
+	private Path file;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("sessions");
+		file = directory.resolve("sessions.bin");
+	}
+
+	@After
+	public void deleteDirectory() throws IOException {
+		Files.deleteIfExists(file);
+		Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tmp"));
+		Files.deleteIfExists(directory);
+	}
+
+	private static Map<String, String> parameters(String... pairs) {
+		Map<String, String> map = new HashMap<>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			map.put(pairs[i], pairs[i + 1]);
+		}
+		return map;
+	}
+
+	@Test
+	public void persistenceRoundTrip() throws IOException {
+		FileSessionPersistence persistence = new FileSessionPersistence(file);
+		persistence.save(Arrays.asList(new Session("A", 1000, parameters("user", "ante", "empty", "")),
+				new Session("B", 2000, parameters("šđčćž", "ü\n="))));
+		Map<String, Session> loaded = new HashMap<>();
+		for (Session session : persistence.load()) {
+			loaded.put(session.getId(), session);
+		}
+		assertEquals(2, loaded.size());
+		assertEquals(1000, loaded.get("A").getValidUntil());
+		assertEquals(parameters("user", "ante", "empty", ""), loaded.get("A").getParameters());
+		assertEquals(2000, loaded.get("B").getValidUntil());
+		assertEquals(parameters("šđčćž", "ü\n="), loaded.get("B").getParameters());
+	}
+
+	@Test
+	public void missingFileHasNoSessions() throws IOException {
+		assertTrue(new FileSessionPersistence(file).load().isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void badMagic() throws IOException {
+		Files.write(file, new byte[] { 'S', 'E', 'S', '0', 0, 0, 0, 0 });
+		new FileSessionPersistence(file).load();
+	}
+
+	@Test(expected = IOException.class)
+	public void truncatedFile() throws IOException {
+		FileSessionPersistence persistence = new FileSessionPersistence(file);
+		persistence.save(Arrays.asList(new Session("A", 1000, parameters("user", "ante"))));
+		byte[] data = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(data, data.length - 3));
+		persistence.load();
+	}
+
+	@Test(expected = IOException.class)
+	public void corruptStringLength() throws IOException {
+		FileSessionPersistence persistence = new FileSessionPersistence(file);
+		persistence.save(Arrays.asList(new Session("A", 1000, parameters("user", "ante"))));
+		byte[] data = Files.readAllBytes(file);
+		// length of the ID follows the magic and the number of sessions
+		data[8] = 0x7f;
+		Files.write(file, data);
+		persistence.load();
+	}
+
+	@Test
+	public void storeKeepsSessionsAcrossRestart() {
+		SessionStore store = new SessionStore(60000, new FileSessionPersistence(file));
+		store.start();
+		Session session = store.create(parameters("user", "ante"));
+		session.getParameters().put("visits", "3");
+		store.stop();
+
+		SessionStore restarted = new SessionStore(60000, new FileSessionPersistence(file));
+		restarted.start();
+		try {
+			Session loaded = restarted.get(session.getId());
+			assertNotNull(loaded);
+			assertEquals(parameters("user", "ante", "visits", "3"), loaded.getParameters());
+			assertEquals(1, restarted.size());
+		} finally {
+			restarted.stop();
+		}
+	}
+
+	@Test
+	public void storeStartsEmptyFromCorruptFile() throws IOException {
+		Files.write(file, new byte[] { 1, 2, 3 });
+		SessionStore store = new SessionStore(60000, new FileSessionPersistence(file));
+		store.start();
+		assertEquals(0, store.size());
+		assertNull(store.get("ANYTHING"));
+		store.stop();
+		assertTrue(new FileSessionPersistence(file).load().isEmpty());
+	}
+}
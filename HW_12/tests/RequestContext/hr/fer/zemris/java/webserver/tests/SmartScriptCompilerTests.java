@@ -0,0 +1,195 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.compiler.SmartScriptCompiler;
+import hr.fer.zemris.java.custom.scripting.compiler.SmartScriptCompilerException;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Tests that scripts compiled by {@link SmartScriptCompiler} write exactly the
+ * same bytes as the interpreter, and leave the same parameters behind.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class SmartScriptCompilerTests {
+
+	/**
+	 * Output and persistent parameters of a single run.
+	 */
+	private static class Run {
+		private final byte[] output;
+		private final Map<String, String> persistent;
+
+		private Run(byte[] output, Map<String, String> persistent) {
+			this.output = output;
+			this.persistent = persistent;
+		}
+	}
+
+	private static Run run(String script, boolean compiled) throws IOException {
+		Map<String, String> params = new HashMap<>();
+		params.put("name", "Ivo");
+		params.put("n", "3");
+		Map<String, String> persistent = new HashMap<>();
+		persistent.put("visits", "41");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(output, params, persistent, new ArrayList<>());
+		rc.setTemporaryParameter("t", "temp");
+		if (compiled) {
+			DocumentNode document = new SmartScriptParser(script).getDocumentNode();
+			new SmartScriptCompiler().compile(document).execute(rc);
+		} else {
+			new SmartScriptEngine(new SmartScriptParser(script).getProgram(), rc).execute();
+		}
+		rc.finish();
+		return new Run(output.toByteArray(), persistent);
+	}
+
+	/**
+	 * Runs a script both ways, checks that the results are equal and returns
+	 * the body.
+	 */
+	private static String assertSameOutput(String script) throws IOException {
+		Run interpreted = run(script, false);
+		Run compiled = run(script, true);
+		String response = new String(interpreted.output, StandardCharsets.UTF_8);
+		assertEquals(response, new String(compiled.output, StandardCharsets.UTF_8));
+		assertArrayEquals(interpreted.output, compiled.output);
+		assertEquals(interpreted.persistent, compiled.persistent);
+		// a script that writes nothing sends no header either
+		int header = response.indexOf("\r\n\r\n");
+		return header < 0 ? response : response.substring(header + 4);
+	}
+
+	@Test
+	public void textAndConstants() throws IOException {
+		assertEquals("plain šđ 1 2.5 str\"ing", assertSameOutput("plain šđ {$= 1 $} {$= 2.5 $} {$= \"str\\\"ing\" $}"));
+	}
+
+	@Test
+	public void integerLoops() throws IOException {
+		assertSameOutput("{$FOR i 1 10 2 $}{$= i $},{$END$}");
+		assertSameOutput("{$FOR i 10 1 -3 $}{$= i $},{$END$}|{$FOR i 3 3 1 $}never{$END$}");
+		assertSameOutput("{$FOR i 0 3 1 $}{$FOR j 0 2 1 $}{$= i j $};{$END$}{$END$}");
+		// an inner loop hides the outer variable of the same name
+		assertSameOutput("{$FOR i 0 2 1 $}{$FOR i 5 7 1 $}{$= i $}{$END$}{$= i $}{$END$}");
+	}
+
+	@Test
+	public void doubleLoops() throws IOException {
+		assertSameOutput("{$FOR x 0.5 3.0 0.75 $}{$= x $} {$END$}");
+		assertSameOutput("{$FOR x 1.0 2.5 0.5 $}{$= x x * $} {$END$}");
+		assertSameOutput("{$FOR x 1 3 0.5 $}{$= x $} {$END$}");
+		assertSameOutput("{$FOR x \"1\" \"4\" \"1.5\" $}{$= x $} {$END$}");
+	}
+
+	@Test
+	public void variableLoopBounds() throws IOException {
+		// bounds are taken as text, so a variable bound is its name, which is
+		// not a number, both ways
+		String script = "{$FOR i 1 3 1 $}{$FOR j i i 1 $}x{$END$}{$END$}";
+		for (boolean compiled : new boolean[] { false, true }) {
+			try {
+				run(script, compiled);
+				fail();
+			} catch (IllegalArgumentException e) {
+				assertEquals("Value must be an integer, double or a string that represents a number.",
+						e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void echoStack() throws IOException {
+		assertEquals("15x2.0", assertSameOutput("{$= 1 2 3 + \"x\" 0.5 1.5 + $}"));
+		assertSameOutput("{$= 7 2 - 3 * 4 / 1.5 + $} {$= \"3\" \"4.5\" * $} {$= 10 4 / 10 4.0 / $}");
+		assertSameOutput("{$FOR i 0 4 1 $}{$= i i i * i 2 - $}|{$END$}");
+		assertSameOutput("{$= $}empty");
+	}
+
+	@Test
+	public void dupAndSwap() throws IOException {
+		assertEquals("221", assertSameOutput("{$= 1 2 @swap @dup 3 @swap - @swap $}"));
+		assertSameOutput("{$= \"a\" @dup @dup \"b\" @swap $}");
+		assertSameOutput("{$FOR i 1 4 1 $}{$= i @dup * i @swap $},{$END$}");
+	}
+
+	@Test
+	public void sinAndDecfmt() throws IOException {
+		assertSameOutput("{$= 3.14159 \"0.00\" @decfmt 2 \"#.0\" @decfmt $}");
+		assertSameOutput("{$FOR x 0 90 30 $}{$= x @sin \"0.000\" @decfmt $} {$END$}");
+		// loop variables are numbers from the first iteration on, both ways
+		assertEquals("3.00;4.00;0.5;1.0;", assertSameOutput("{$FOR i 3 5 1 $}{$= i \"0.00\" @decfmt $};{$END$}"
+				+ "{$FOR x 0.5 1.5 0.5 $}{$= x \"0.0\" @decfmt $};{$END$}"));
+	}
+
+	@Test
+	public void parameters() throws IOException {
+		assertSameOutput("{$= \"name\" \"anon\" @paramGet \"missing\" \"default\" @paramGet $}");
+		assertSameOutput("{$= \"t\" \"none\" @tparamGet \"t\" @tparamDel \"t\" \"none\" @tparamGet $}");
+		assertSameOutput("{$= \"visits\" \"0\" @pparamGet @dup 1 + \"visits\" @pparamSet $}");
+		assertSameOutput("{$= \"new\" \"value\" @pparamSet \"visits\" @pparamDel $}");
+	}
+
+	@Test
+	public void temporaryParameters() throws IOException {
+		assertSameOutput("{$= \"0\" \"a\" @tparamSet \"1\" \"b\" @tparamSet \"0\\r\\n1\\r\\n\" $}"
+				+ "{$FOR i 3 10 1 $}{$= \"b\" \"0\" @tparamGet @dup \"a\" \"0\" @tparamGet + "
+				+ "\"b\" @tparamSet \"a\" @tparamSet \"b\" \"0\" @tparamGet \"\\r\\n\" $}{$END$}");
+	}
+
+	@Test
+	public void mimeType() throws IOException {
+		assertSameOutput("{$= \"text/plain\" @setMimeType $}text");
+		assertSameOutput("{$= \"application/json\" @setMimeType \"{}\" $}");
+		String response = new String(run("{$= \"text/plain\" @setMimeType $}x", true).output,
+				StandardCharsets.UTF_8);
+		assertTrue(response.contains("Content-Type:text/plain"));
+		assertEquals("", assertSameOutput("{$= \"text/plain\" @setMimeType $}"));
+	}
+
+	@Test
+	public void unknownFunctionsAreIgnored() throws IOException {
+		assertSameOutput("{$= 1 2 @nosuchfunction $}");
+	}
+
+	@Test
+	public void scriptLargerThanOneMethod() throws IOException {
+		StringBuilder script = new StringBuilder("{$= \"text/plain\" @setMimeType $}");
+		for (int i = 0; i < 150; i++) {
+			script.append("line ").append(i).append(": {$= ").append(i).append(" 2 * $}\n");
+			if (i % 40 == 30) {
+				script.append("{$FOR j 0 ").append(i % 7 + 1).append(" 1 $}{$= j $}{$END$}");
+			}
+		}
+		script.append("{$= \"visits\" \"0\" @pparamGet 1 + \"visits\" @pparamSet $}end");
+		String body = assertSameOutput(script.toString());
+		assertTrue(body.startsWith("line 0: 0\nline 1: 2\n"));
+		assertTrue(body.contains("line 149: 298\n"));
+		assertTrue(body.endsWith("end"));
+	}
+
+	@Test(expected = SmartScriptCompilerException.class)
+	public void cacheBlocksAreNotCompiled() {
+		new SmartScriptCompiler().compile(new SmartScriptParser("{$CACHE 10 $}a{$END$}").getDocumentNode());
+	}
+
+	@Test(expected = SmartScriptCompilerException.class)
+	public void variableOutsideOfItsLoopIsNotCompiled() {
+		new SmartScriptCompiler().compile(new SmartScriptParser("{$= i $}").getDocumentNode());
+	}
+}
@@ -0,0 +1,132 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantInteger;
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantString;
+import hr.fer.zemris.java.custom.scripting.parser.ScriptToken;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptLexer;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptLexerException;
+import hr.fer.zemris.java.custom.scripting.parser.TokenType;
+
+/**
+ * Tests for the smart script lexer: text around tags, escapes and the range
+ * of integer constants.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class SmartScriptLexerTests {
+
+	private static List<ScriptToken> tokens(String text) {
+		SmartScriptLexer lexer = new SmartScriptLexer(text);
+		List<ScriptToken> tokens = new ArrayList<>();
+		ScriptToken token;
+		do {
+			token = lexer.nextToken();
+			tokens.add(token);
+		} while (token.getType() != TokenType.EOF);
+		return tokens;
+	}
+
+	private static String text(ScriptToken token) {
+		return ((ElementConstantString) token.getValue()).getValue();
+	}
+
+	@Test
+	public void documentEndingInText() {
+		List<ScriptToken> tokens = tokens("Hello {$= x $} world");
+		assertEquals(7, tokens.size());
+		assertEquals(TokenType.TEXT, tokens.get(5).getType());
+		assertEquals(" world", text(tokens.get(5)));
+		assertEquals(TokenType.EOF, tokens.get(6).getType());
+	}
+
+	@Test
+	public void documentOfTextOnly() {
+		List<ScriptToken> tokens = tokens("  just text\n");
+		assertEquals(2, tokens.size());
+		assertEquals("just text", text(tokens.get(0)));
+	}
+
+	@Test
+	public void bareBraceIsText() {
+		List<ScriptToken> tokens = tokens("a { b } c {");
+		assertEquals(2, tokens.size());
+		assertEquals(TokenType.TEXT, tokens.get(0).getType());
+		assertEquals("a { b } c {", text(tokens.get(0)));
+	}
+
+	@Test
+	public void braceBeforeTagIsText() {
+		List<ScriptToken> tokens = tokens("{{$= x $}");
+		assertEquals("{", text(tokens.get(0)));
+		assertEquals(TokenType.TAG, tokens.get(1).getType());
+	}
+
+	@Test
+	public void integersAreIntegerConstants() {
+		List<ScriptToken> tokens = tokens("{$= 42 -7 1.5 $}");
+		assertEquals(TokenType.CONSTANT_INTEGER, tokens.get(2).getType());
+		assertEquals(42, ((ElementConstantInteger) tokens.get(2).getValue()).getValue());
+		assertEquals(TokenType.CONSTANT_INTEGER, tokens.get(3).getType());
+		assertEquals(-7, ((ElementConstantInteger) tokens.get(3).getValue()).getValue());
+		assertEquals(TokenType.CONSTANT_DOUBLE, tokens.get(4).getType());
+	}
+
+	@Test
+	public void integerRangeEdges() {
+		List<ScriptToken> tokens = tokens("{$= 2147483647 -2147483648 $}");
+		assertEquals(Integer.MAX_VALUE, ((ElementConstantInteger) tokens.get(2).getValue()).getValue());
+		assertEquals(Integer.MIN_VALUE, ((ElementConstantInteger) tokens.get(3).getValue()).getValue());
+	}
+
+	@Test(expected = SmartScriptLexerException.class)
+	public void integerOverflow() {
+		tokens("{$= 2147483648 $}");
+	}
+
+	@Test(expected = SmartScriptLexerException.class)
+	public void negativeIntegerOverflow() {
+		tokens("{$= -2147483649 $}");
+	}
+
+	@Test
+	public void textEscapes() {
+		List<ScriptToken> tokens = tokens("x \\{$ y \\\\ z");
+		assertEquals(2, tokens.size());
+		assertEquals("x {$ y \\ z", text(tokens.get(0)));
+	}
+
+	@Test
+	public void stringEscapes() {
+		List<ScriptToken> tokens = tokens("{$= \"a\\\"b\\nc\\r\\\\\" $}");
+		assertEquals(TokenType.STRING, tokens.get(2).getType());
+		assertEquals("a\"b\nc\r\\", text(tokens.get(2)));
+	}
+
+	@Test(expected = SmartScriptLexerException.class)
+	public void invalidTextEscape() {
+		tokens("a\\b");
+	}
+
+	@Test(expected = SmartScriptLexerException.class)
+	public void invalidStringEscape() {
+		tokens("{$= \"a\\tb\" $}");
+	}
+
+	@Test(expected = SmartScriptLexerException.class)
+	public void escapeAtEnd() {
+		tokens("text \\");
+	}
+
+	@Test(expected = SmartScriptLexerException.class)
+	public void unclosedString() {
+		tokens("{$= \"abc $}");
+	}
+}
@@ -0,0 +1,89 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.elems.ElementConstantInteger;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
+import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
+import hr.fer.zemris.java.custom.scripting.nodes.TextNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserException;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Tests for the smart script parser, the syntax the lexer accepts as it is
+ * seen through the document tree.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class SmartScriptParserTests {
+
+	private static DocumentNode parse(String text) {
+		return new SmartScriptParser(text).getDocumentNode();
+	}
+
+	@Test
+	public void documentEndingInText() {
+		DocumentNode document = parse("{$FOR i 1 10 1$}x{$END$} tail");
+		assertEquals(2, document.numberOfChildren());
+		assertTrue(document.getChild(0) instanceof ForLoopNode);
+		assertEquals(" tail", ((TextNode) document.getChild(1)).getValue());
+	}
+
+	@Test
+	public void bareBraceIsText() {
+		DocumentNode document = parse("function f() { return 1; }");
+		assertEquals(1, document.numberOfChildren());
+		assertEquals("function f() { return 1; }", ((TextNode) document.getChild(0)).getValue());
+	}
+
+	@Test
+	public void textIsWrittenUnescaped() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(output, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		new SmartScriptEngine(parse("a { b \\{$ c \\\\ {$= 1 $}"), rc).execute();
+		String response = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		assertTrue(response, response.endsWith("\r\n\r\na { b {$ c \\ 1"));
+	}
+
+	@Test
+	public void reparsedTextKeepsBraces() {
+		DocumentNode document = parse("a { b \\{$ c {$= x $}");
+		DocumentNode reparsed = parse(document.asText());
+		assertEquals("a { b {$ c ", ((TextNode) reparsed.getChild(0)).getValue());
+		assertTrue(reparsed.getChild(1) instanceof EchoNode);
+	}
+
+	@Test
+	public void integerEdgesInLoop() {
+		DocumentNode document = parse("{$FOR i -2147483648 2147483647 1$}{$END$}");
+		ForLoopNode loop = (ForLoopNode) document.getChild(0);
+		assertEquals(Integer.MIN_VALUE, ((ElementConstantInteger) loop.getStartExpression()).getValue());
+		assertEquals(Integer.MAX_VALUE, ((ElementConstantInteger) loop.getEndExpression()).getValue());
+	}
+
+	@Test(expected = SmartScriptParserException.class)
+	public void integerOverflow() {
+		parse("{$= 2147483648 $}");
+	}
+
+	@Test(expected = SmartScriptParserException.class)
+	public void invalidEscape() {
+		parse("{$= \"\\x\" $}");
+	}
+
+	@Test(expected = SmartScriptParserException.class)
+	public void unclosedLoop() {
+		parse("{$FOR i 1 10 1$} text");
+	}
+}
@@ -0,0 +1,215 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.StaticFileCache;
+import hr.fer.zemris.java.webserver.StaticFileCache.CachedFile;
+import hr.fer.zemris.java.webserver.StaticFileCache.Variant;
+
+/**
+ * Tests for the in-memory cache of static files, its eviction, invalidation
+ * and the selection of encodings.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class StaticFileCacheTests {
+
+	private Path root;
+
+	@Before
+	public void createRoot() throws IOException {
+		root = Files.createTempDirectory("webroot");
+	}
+
+	@After
+	public void deleteRoot() throws IOException {
+		try (Stream<Path> paths = Files.walk(root)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	private Path file(String name, byte[] data) throws IOException {
+		Path file = root.resolve(name);
+		Files.createDirectories(file.getParent());
+		return Files.write(file, data);
+	}
+
+	private static byte[] binary(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (i * 31 + 7);
+		}
+		return data;
+	}
+
+	private static byte[] text() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			sb.append("Line ").append(i % 10).append(" of some text\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void loadThenHit() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 10000, 1000);
+		Path path = file("a.bin", binary(100));
+		assertNull(cache.get(path));
+		CachedFile loaded = cache.load(path, "application/octet-stream");
+		assertNotNull(loaded);
+		assertSame(loaded, cache.get(path));
+		assertSame(loaded, cache.get(root.resolve("x/../a.bin")));
+		assertArrayEquals(binary(100), loaded.select(null).getBody());
+		assertEquals("application/octet-stream", loaded.getMimeType());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(100, cache.size());
+	}
+
+	@Test
+	public void largeFilesAndFilesOutsideRootAreNotCached() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 10000, 100);
+		assertNull(cache.load(file("large.bin", binary(101)), "application/octet-stream"));
+		Path outside = Files.createTempFile("outside", ".bin");
+		try {
+			assertNull(cache.load(outside, "application/octet-stream"));
+		} finally {
+			Files.delete(outside);
+		}
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void disabledCache() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 0, 100);
+		Path path = file("a.bin", binary(10));
+		assertNull(cache.load(path, "application/octet-stream"));
+		assertNull(cache.get(path));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedByWeight() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 1000, 1000);
+		Path a = file("a.bin", binary(400));
+		Path b = file("b.bin", binary(400));
+		Path c = file("c.bin", binary(150));
+		Path d = file("d.bin", binary(300));
+		cache.load(a, "application/octet-stream");
+		cache.load(b, "application/octet-stream");
+		cache.load(c, "application/octet-stream");
+		assertEquals(950, cache.size());
+		// a is used again, so b is the least recently used one
+		assertNotNull(cache.get(a));
+		cache.load(d, "application/octet-stream");
+		assertNull(cache.get(b));
+		assertNotNull(cache.get(a));
+		assertNotNull(cache.get(c));
+		assertNotNull(cache.get(d));
+		assertEquals(850, cache.size());
+		assertEquals(1, cache.getEvictions());
+
+		// a file as large as the cache leaves nothing else
+		cache.load(file("e.bin", binary(1000)), "application/octet-stream");
+		assertEquals(1000, cache.size());
+		assertEquals(4, cache.getEvictions());
+	}
+
+	@Test
+	public void compressedVariantsCountInTheWeight() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 100000, 100000);
+		CachedFile file = cache.load(file("a.txt", text()), "text/plain");
+		long weight = file.select(null).getBody().length + file.select("gzip").getBody().length
+				+ file.select("deflate").getBody().length;
+		assertEquals(weight, cache.size());
+	}
+
+	@Test
+	public void changedFileIsInvalidated() throws Exception {
+		StaticFileCache cache = new StaticFileCache(root, 10000, 1000);
+		Path path = file("dir/a.bin", binary(100));
+		cache.startWatching();
+		try {
+			cache.load(path, "application/octet-stream");
+			assertNotNull(cache.get(path));
+			Files.write(path, binary(50));
+			long end = System.currentTimeMillis() + 10000;
+			while (cache.get(path) != null && System.currentTimeMillis() < end) {
+				Thread.sleep(20);
+			}
+			assertNull(cache.get(path));
+			assertEquals(0, cache.size());
+			assertArrayEquals(binary(50), cache.load(path, "application/octet-stream").select(null).getBody());
+		} finally {
+			cache.stopWatching();
+		}
+		assertNull(cache.get(path));
+	}
+
+	@Test
+	public void binaryFilesHaveOnlyIdentity() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 10000, 1000);
+		CachedFile file = cache.load(file("a.png", binary(100)), "image/png");
+		Variant variant = file.select("gzip, deflate");
+		assertNull(variant.getEncoding());
+		assertFalse(Arrays.asList(variant.getValidators()).contains("Vary: Accept-Encoding"));
+	}
+
+	@Test
+	public void selectsByQuality() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 100000, 100000);
+		CachedFile file = cache.load(file("a.txt", text()), "text/plain");
+		Variant gzip = file.select("gzip");
+		Variant deflate = file.select("deflate");
+		assertEquals("gzip", gzip.getEncoding());
+		assertEquals("deflate", deflate.getEncoding());
+		assertTrue(gzip.getBody().length < text().length);
+		assertNotEquals(gzip.getETag(), deflate.getETag());
+		assertNotEquals(gzip.getETag(), file.select(null).getETag());
+		assertTrue(Arrays.asList(gzip.getValidators()).contains("Vary: Accept-Encoding"));
+		assertTrue(Arrays.asList(gzip.getEntityHeaders()).contains("Content-Encoding: gzip"));
+
+		assertNull(file.select(null).getEncoding());
+		assertNull(file.select("").getEncoding());
+		assertNull(file.select("br").getEncoding());
+		assertNull(file.select("gzip;q=0").getEncoding());
+		assertNull(file.select("gzip;q=0.1, identity;q=1").getEncoding());
+		assertEquals("gzip", file.select("gzip;q=0.1").getEncoding());
+		// deflate is not listed, so it gets the quality of *
+		assertEquals("deflate", file.select("gzip;q=0.5, *;q=1").getEncoding());
+		assertNull(file.select("gzip;q=0.5, identity, *;q=0.2").getEncoding());
+		assertEquals("gzip", file.select("gzip;q=1, identity;q=0.5").getEncoding());
+		assertEquals("gzip", file.select("gzip;q=0.8, deflate;q=0.5").getEncoding());
+		assertEquals("deflate", file.select("gzip;q=0.5, deflate").getEncoding());
+		assertEquals("gzip", file.select("x-gzip").getEncoding());
+		assertEquals("gzip", file.select("GZIP ; q=0.9").getEncoding());
+		assertNull(file.select("gzip;q=oops").getEncoding());
+		// refusing everything still gets the file unencoded
+		assertNull(file.select("identity;q=0, *;q=0").getEncoding());
+		assertNull(file.select("*;q=0").getEncoding());
+	}
+
+	@Test
+	public void equalQualitySelectsSmallest() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 100000, 100000);
+		CachedFile file = cache.load(file("a.txt", text()), "text/plain");
+		Variant smaller = file.select("gzip").getBody().length <= file.select("deflate").getBody().length
+				? file.select("gzip") : file.select("deflate");
+		assertSame(smaller, file.select("gzip, deflate"));
+		assertSame(smaller, file.select("deflate, gzip"));
+		assertSame(smaller, file.select("*"));
+		assertSame(smaller, file.select("identity, gzip, deflate"));
+	}
+}
@@ -0,0 +1,253 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import hr.fer.zemris.java.webserver.HttpRequestParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+import hr.fer.zemris.java.webserver.StaticFileCache;
+import hr.fer.zemris.java.webserver.StaticFileSender;
+
+/**
+ * Tests for sending static files: conditional requests answered with
+ * <code>304</code> and byte ranges answered with <code>206</code> or
+ * <code>416</code>.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class StaticFileSenderTests {
+
+	private static final String CONTENT = "0123456789abcdefghij";
+
+	/** Last modification time of the file, Sun, 09 Sep 2001 01:46:40 GMT. */
+	private static final long MODIFIED = 1000000000000L;
+
+	private Path root;
+	private Path file;
+
+	/**
+	 * Status line, header lines and body of a response.
+	 */
+	private static class Response {
+		private final String status;
+		private final List<String> headers;
+		private final String body;
+
+		private Response(String response) {
+			int end = response.indexOf("\r\n\r\n");
+			List<String> lines = Arrays.asList(response.substring(0, end).split("\r\n"));
+			status = lines.get(0);
+			headers = lines.subList(1, lines.size());
+			body = response.substring(end + 4);
+		}
+
+		private String header(String name) {
+			for (String header : headers) {
+				if (header.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+					return header.substring(name.length() + 1).trim();
+				}
+			}
+			return null;
+		}
+	}
+
+	@Before
+	public void createFile() throws IOException {
+		root = Files.createTempDirectory("webroot");
+		file = Files.write(root.resolve("a.txt"), CONTENT.getBytes(StandardCharsets.US_ASCII));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED));
+	}
+
+	@After
+	public void deleteFile() throws IOException {
+		Files.delete(file);
+		Files.delete(root);
+	}
+
+	private static HttpRequestParser request(String... headers) {
+		StringBuilder sb = new StringBuilder("GET /a.txt HTTP/1.1\r\nHost: localhost\r\n");
+		for (String header : headers) {
+			sb.append(header).append("\r\n");
+		}
+		byte[] data = sb.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+		HttpRequestParser parser = new HttpRequestParser();
+		assertTrue(parser.parse(ByteBuffer.wrap(data), data.length));
+		return parser;
+	}
+
+	private static RequestContext context(ByteArrayOutputStream output) {
+		return new RequestContext(output, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+	}
+
+	private Response serve(String... headers) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RequestContext rc = context(output);
+		StaticFileSender.serveFile(file, "text/plain", request(headers), rc, output);
+		rc.finish();
+		return new Response(new String(output.toByteArray(), StandardCharsets.ISO_8859_1));
+	}
+
+	private Response sendCached(StaticFileCache.CachedFile cached, String... headers) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RequestContext rc = context(output);
+		assertTrue(StaticFileSender.sendCached(cached, request(headers), rc));
+		rc.finish();
+		return new Response(new String(output.toByteArray(), StandardCharsets.ISO_8859_1));
+	}
+
+	private void assertRange(Response response, int first, int last) {
+		assertEquals("HTTP/1.1 206 Partial Content", response.status);
+		assertEquals("bytes " + first + "-" + last + "/" + CONTENT.length(), response.header("Content-Range"));
+		assertEquals(String.valueOf(last - first + 1), response.header("Content-Length"));
+		assertEquals(CONTENT.substring(first, last + 1), response.body);
+	}
+
+	private void assertWhole(Response response) {
+		assertEquals("HTTP/1.1 200 OK", response.status);
+		assertNull(response.header("Content-Range"));
+		assertEquals(String.valueOf(CONTENT.length()), response.header("Content-Length"));
+		assertEquals(CONTENT, response.body);
+	}
+
+	private void assertNotModified(Response response) {
+		assertEquals("HTTP/1.1 304 Not Modified", response.status);
+		assertNull(response.header("Content-Length"));
+		assertEquals("", response.body);
+	}
+
+	@Test
+	public void wholeFile() throws IOException {
+		Response response = serve();
+		assertWhole(response);
+		assertTrue(response.header("Content-Type").startsWith("text/plain"));
+		assertEquals("Sun, 09 Sep 2001 01:46:40 GMT", response.header("Last-Modified"));
+		assertEquals("bytes", response.header("Accept-Ranges"));
+		assertNotNull(response.header("ETag"));
+	}
+
+	@Test
+	public void ifNoneMatch() throws IOException {
+		String etag = serve().header("ETag");
+		assertNotModified(serve("If-None-Match: " + etag));
+		assertNotModified(serve("If-None-Match: W/" + etag));
+		assertNotModified(serve("If-None-Match: \"other\", " + etag));
+		assertNotModified(serve("If-None-Match: *"));
+		assertEquals(etag, serve("If-None-Match: " + etag).header("ETag"));
+		assertWhole(serve("If-None-Match: \"other\""));
+	}
+
+	@Test
+	public void ifNoneMatchWinsOverIfModifiedSince() throws IOException {
+		assertWhole(serve("If-None-Match: \"other\"", "If-Modified-Since: Sun, 09 Sep 2001 01:46:40 GMT"));
+	}
+
+	@Test
+	public void ifModifiedSince() throws IOException {
+		assertNotModified(serve("If-Modified-Since: Sun, 09 Sep 2001 01:46:40 GMT"));
+		assertNotModified(serve("If-Modified-Since: Mon, 10 Sep 2001 00:00:00 GMT"));
+		assertWhole(serve("If-Modified-Since: Sun, 09 Sep 2001 01:46:39 GMT"));
+		assertWhole(serve("If-Modified-Since: yesterday"));
+	}
+
+	@Test
+	public void modificationTimeIsTruncatedToSeconds() throws IOException {
+		Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED + 999));
+		assertNotModified(serve("If-Modified-Since: Sun, 09 Sep 2001 01:46:40 GMT"));
+	}
+
+	@Test
+	public void byteRanges() throws IOException {
+		assertRange(serve("Range: bytes=2-5"), 2, 5);
+		assertRange(serve("Range: bytes=0-0"), 0, 0);
+		assertRange(serve("Range: bytes=15-"), 15, 19);
+		assertRange(serve("Range: bytes=15-100"), 15, 19);
+		assertRange(serve("Range: BYTES=3-4"), 3, 4);
+		assertEquals("bytes", serve("Range: bytes=2-5").header("Accept-Ranges"));
+	}
+
+	@Test
+	public void suffixRanges() throws IOException {
+		assertRange(serve("Range: bytes=-3"), 17, 19);
+		assertRange(serve("Range: bytes=-20"), 0, 19);
+		assertRange(serve("Range: bytes=-100"), 0, 19);
+	}
+
+	@Test
+	public void unsatisfiableRanges() throws IOException {
+		for (String range : Arrays.asList("bytes=20-", "bytes=100-200", "bytes=-0")) {
+			Response response = serve("Range: " + range);
+			assertEquals(range, "HTTP/1.1 416 Range Not Satisfiable", response.status);
+			assertEquals(range, "bytes */20", response.header("Content-Range"));
+			assertEquals(range, "0", response.header("Content-Length"));
+			assertEquals(range, "", response.body);
+		}
+	}
+
+	@Test
+	public void severalRangesGetTheWholeFile() throws IOException {
+		assertWhole(serve("Range: bytes=0-1,5-6"));
+		assertWhole(serve("Range: bytes=-2, 0-1"));
+	}
+
+	@Test
+	public void malformedRangesAreIgnored() throws IOException {
+		for (String range : Arrays.asList("bytes=5-2", "items=0-1", "bytes=1", "bytes=a-b", "bytes=-x")) {
+			assertWhole(serve("Range: " + range));
+		}
+	}
+
+	@Test
+	public void ifRange() throws IOException {
+		Response whole = serve();
+		assertRange(serve("Range: bytes=2-5", "If-Range: " + whole.header("ETag")), 2, 5);
+		assertRange(serve("Range: bytes=2-5", "If-Range: " + whole.header("Last-Modified")), 2, 5);
+		assertWhole(serve("Range: bytes=2-5", "If-Range: \"other\""));
+		assertWhole(serve("Range: bytes=2-5", "If-Range: Mon, 10 Sep 2001 00:00:00 GMT"));
+	}
+
+	@Test
+	public void notModifiedWinsOverRange() throws IOException {
+		assertNotModified(serve("Range: bytes=2-5", "If-None-Match: " + serve().header("ETag")));
+	}
+
+	@Test
+	public void cachedFile() throws IOException {
+		StaticFileCache cache = new StaticFileCache(root, 10000, 1000);
+		StaticFileCache.CachedFile cached = cache.load(file, "text/plain");
+		Response response = sendCached(cached);
+		assertEquals("HTTP/1.1 200 OK", response.status);
+		assertEquals(CONTENT, response.body);
+		String etag = response.header("ETag");
+		assertNotNull(etag);
+		assertEquals("Sun, 09 Sep 2001 01:46:40 GMT", response.header("Last-Modified"));
+
+		assertNotModified(sendCached(cached, "If-None-Match: " + etag));
+		assertNotModified(sendCached(cached, "If-Modified-Since: Sun, 09 Sep 2001 01:46:40 GMT"));
+		assertEquals(CONTENT, sendCached(cached, "If-None-Match: \"other\"").body);
+	}
+
+	@Test
+	public void rangesAndMissingFilesAreNotSentFromTheCache() throws IOException {
+		StaticFileCache.CachedFile cached = new StaticFileCache(root, 10000, 1000).load(file, "text/plain");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertFalse(StaticFileSender.sendCached(cached, request("Range: bytes=0-1"), context(output)));
+		assertFalse(StaticFileSender.sendCached(null, request(), context(output)));
+		assertEquals(0, output.size());
+	}
+}
@@ -0,0 +1,152 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.exec.ScriptProgram;
+import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
+import hr.fer.zemris.java.custom.scripting.exec.TextFragment;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Tests for static text fragments, their encoded bytes and the merging of
+ * static text and constant echo tags into single fragments.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class TextFragmentTests {
+
+	private static final Charset ISO_8859_2 = Charset.forName("ISO-8859-2");
+
+	/** Size of an instruction writing a single text fragment. */
+	private static final int TEXT = 2;
+
+	private static ScriptProgram compile(String script) {
+		return ScriptProgram.compile(new SmartScriptParser(script).getDocumentNode());
+	}
+
+	private static byte[] run(ScriptProgram program, String encoding) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(output, new HashMap<>(), new HashMap<>(), new ArrayList<>());
+		rc.setEncoding(encoding);
+		new SmartScriptEngine(program, rc).execute();
+		byte[] response = output.toByteArray();
+		String header = new String(response, StandardCharsets.ISO_8859_1);
+		int start = header.indexOf("\r\n\r\n") + 4;
+		byte[] body = new byte[response.length - start];
+		System.arraycopy(response, start, body, 0, body.length);
+		return body;
+	}
+
+	@Test
+	public void bytesAreKeptForTheLastCharset() {
+		TextFragment fragment = new TextFragment("čćžšđ text");
+		byte[] utf8 = fragment.getBytes(StandardCharsets.UTF_8);
+		assertArrayEquals("čćžšđ text".getBytes(StandardCharsets.UTF_8), utf8);
+		assertSame(utf8, fragment.getBytes(StandardCharsets.UTF_8));
+
+		byte[] latin2 = fragment.getBytes(ISO_8859_2);
+		assertArrayEquals("čćžšđ text".getBytes(ISO_8859_2), latin2);
+		assertSame(latin2, fragment.getBytes(ISO_8859_2));
+
+		byte[] again = fragment.getBytes(StandardCharsets.UTF_8);
+		assertNotSame(utf8, again);
+		assertArrayEquals(utf8, again);
+		assertEquals("čćžšđ text", fragment.toString());
+	}
+
+	@Test
+	public void emptyFragment() {
+		TextFragment fragment = new TextFragment("");
+		assertEquals(0, fragment.getBytes(StandardCharsets.UTF_8).length);
+		assertEquals("", fragment.toString());
+	}
+
+	@Test
+	public void concurrentCharsets() throws Exception {
+		TextFragment fragment = new TextFragment("čćžšđ");
+		byte[] utf8 = "čćžšđ".getBytes(StandardCharsets.UTF_8);
+		byte[] latin2 = "čćžšđ".getBytes(ISO_8859_2);
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CyclicBarrier barrier = new CyclicBarrier(threads);
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				boolean useUtf8 = t % 2 == 0;
+				results.add(pool.submit(() -> {
+					barrier.await();
+					for (int i = 0; i < 10000; i++) {
+						byte[] bytes = fragment.getBytes(useUtf8 ? StandardCharsets.UTF_8 : ISO_8859_2);
+						if (!Arrays.equals(useUtf8 ? utf8 : latin2, bytes)) {
+							return false;
+						}
+					}
+					return true;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void textAndConstantEchoTagsAreMerged() {
+		assertEquals(TEXT, compile("plain text").getCodeSize());
+		assertEquals(TEXT, compile("a{$= 1 $}b").getCodeSize());
+		assertEquals(TEXT, compile("{$= \"a\" 2.5 3 $}{$= \"b\" $}\nc").getCodeSize());
+		assertEquals("a12.5b\nc", new String(run(compile("a{$= 1 2.5 $}b\nc"), "UTF-8"), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void instructionsEndAFragment() {
+		// text, FOR of five ints, text, NEXT of five ints, text
+		ScriptProgram program = compile("a{$FOR i 0 2 1 $}b{$= \"c\" $}d{$END$}e");
+		assertEquals(TEXT + 5 + TEXT + 5 + TEXT, program.getCodeSize());
+		assertEquals("abcdbcde", new String(run(program, "UTF-8"), StandardCharsets.UTF_8));
+
+		program = compile("a{$FOR i 0 2 1 $}{$= i $}b{$END$}");
+		assertEquals("a0b1b", new String(run(program, "UTF-8"), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void echoTagsThatAreNotConstantAreNotMerged() {
+		// PUSH, the dropped unknown function and ECHO
+		assertEquals(TEXT + 2 + 1 + TEXT, compile("a{$= \"b\" @nosuchfunction $}c").getCodeSize());
+		assertEquals("abc", new String(run(compile("a{$= \"b\" @nosuchfunction $}c"), "UTF-8"),
+				StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void cacheBlocksEndAFragment() {
+		ScriptProgram program = compile("a{$CACHE 10 $}b{$END$}c");
+		assertEquals("abc", new String(run(program, "UTF-8"), StandardCharsets.UTF_8));
+		assertTrue(program.getCodeSize() > 3 * TEXT);
+	}
+
+	@Test
+	public void mergedTextIsEncodedInTheResponseCharset() {
+		ScriptProgram program = compile("č{$= \"ć\" 1 $}ž");
+		assertArrayEquals("čć1ž".getBytes(StandardCharsets.UTF_8), run(program, "UTF-8"));
+		assertArrayEquals("čć1ž".getBytes(ISO_8859_2), run(program, "ISO-8859-2"));
+		assertArrayEquals("čć1ž".getBytes(StandardCharsets.UTF_8), run(program, "UTF-8"));
+	}
+}
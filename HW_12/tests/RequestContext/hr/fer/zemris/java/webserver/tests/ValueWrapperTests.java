@@ -0,0 +1,134 @@
+package hr.fer.zemris.java.webserver.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import hr.fer.zemris.java.custom.scripting.exec.ValueWrapper;
+
+/**
+ * Tests for the arithmetic of {@link ValueWrapper}.
+ *
+ * @author Ante Spajic
+ *
+ */
+public class ValueWrapperTests {
+
+	@Test
+	public void testIntegersStayIntegers() {
+		ValueWrapper wrap = new ValueWrapper(5);
+		wrap.increment(7);
+		assertEquals(Integer.valueOf(12), wrap.getValue());
+		wrap.decrement(20);
+		assertEquals(Integer.valueOf(-8), wrap.getValue());
+		wrap.multiply(3);
+		assertEquals(Integer.valueOf(-24), wrap.getValue());
+		wrap.divide(5);
+		assertEquals(Integer.valueOf(-4), wrap.getValue());
+	}
+
+	@Test
+	public void testIntegerPromotedToDouble() {
+		ValueWrapper wrap = new ValueWrapper(3);
+		wrap.increment(1.5);
+		assertEquals(Double.valueOf(4.5), wrap.getValue());
+
+		wrap = new ValueWrapper(1.5);
+		wrap.multiply(2);
+		assertEquals(Double.valueOf(3.0), wrap.getValue());
+		wrap.increment(1);
+		assertEquals(Double.valueOf(4.0), wrap.getValue());
+	}
+
+	@Test
+	public void testStrings() {
+		ValueWrapper wrap = new ValueWrapper("12");
+		wrap.increment("3");
+		assertEquals(Integer.valueOf(15), wrap.getValue());
+		wrap.increment("1.5");
+		assertEquals(Double.valueOf(16.5), wrap.getValue());
+
+		wrap = new ValueWrapper("1e1");
+		wrap.increment(1);
+		assertEquals(Double.valueOf(11.0), wrap.getValue());
+	}
+
+	@Test
+	public void testStringOperandReused() {
+		ValueWrapper step = new ValueWrapper("2");
+		ValueWrapper end = new ValueWrapper("7");
+		ValueWrapper wrap = new ValueWrapper(0);
+		int iterations = 0;
+		for (; wrap.compareWith(end) < 0; wrap.incrementBy(step)) {
+			iterations++;
+		}
+		assertEquals(4, iterations);
+		assertEquals(Integer.valueOf(8), wrap.getValue());
+		assertEquals("2", step.getValue());
+		assertEquals("7", end.getValue());
+	}
+
+	@Test
+	public void testResultReadBeforeNextOperation() {
+		ValueWrapper wrap = new ValueWrapper("4");
+		wrap.increment(1);
+		assertEquals(Integer.valueOf(5), wrap.getValue());
+		wrap.increment(1);
+		assertEquals(Integer.valueOf(6), wrap.getValue());
+		wrap.setValue("2.5");
+		wrap.increment(1);
+		assertEquals(Double.valueOf(3.5), wrap.getValue());
+	}
+
+	@Test
+	public void testNullIsZero() {
+		ValueWrapper wrap = new ValueWrapper(1);
+		wrap.increment(null);
+		assertEquals(Integer.valueOf(1), wrap.getValue());
+		wrap.incrementBy(null);
+		assertEquals(Integer.valueOf(1), wrap.getValue());
+		assertTrue(wrap.numCompare(null) > 0);
+		assertTrue(wrap.compareWith(null) > 0);
+
+		wrap = new ValueWrapper(null);
+		wrap.increment(2);
+		assertEquals(Integer.valueOf(2), wrap.getValue());
+		assertEquals(0, new ValueWrapper(null).numCompare(null));
+	}
+
+	@Test
+	public void testNumCompare() {
+		ValueWrapper wrap = new ValueWrapper(5);
+		assertTrue(wrap.numCompare(4) > 0);
+		assertEquals(0, wrap.numCompare(5));
+		assertTrue(wrap.numCompare(6.4) < 0);
+		assertEquals(0, wrap.numCompare(5.0));
+		assertTrue(wrap.numCompare("5e1") < 0);
+		assertEquals(0, wrap.compareWith(new ValueWrapper("5")));
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testIntegerDivisionByZero() {
+		new ValueWrapper(5).divide(0);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testDoubleDivisionByZero() {
+		new ValueWrapper(5.0).divide("0.0");
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testDivisionByNull() {
+		new ValueWrapper(5).divide(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidString() {
+		new ValueWrapper("abc").increment(1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidOperand() {
+		new ValueWrapper(1).increment("1.2.3");
+	}
+}